@@ -7,12 +7,12 @@ import java.io.InputStreamReader;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.Queue;
 import java.util.Set;
 import java.util.regex.Pattern;
 
@@ -37,6 +37,7 @@ import org.red5.server.api.stream.IStreamPublishSecurity;
 import org.red5.server.api.stream.ISubscriberStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
 
 import io.antmedia.datastore.db.DataStore;
 import io.antmedia.datastore.db.DataStoreFactory;
@@ -44,11 +45,13 @@ import io.antmedia.datastore.db.types.Broadcast;
 import io.antmedia.datastore.db.types.Endpoint;
 import io.antmedia.datastore.db.types.SocialEndpointCredentials;
 import io.antmedia.datastore.db.types.VoD;
+import io.antmedia.filter.ViewerKeyResolver;
 import io.antmedia.ipcamera.OnvifCamera;
 import io.antmedia.muxer.IAntMediaStreamHandler;
 import io.antmedia.muxer.MuxAdaptor;
 import io.antmedia.rest.BroadcastRestService;
 import io.antmedia.rest.model.Result;
+import io.antmedia.security.TokenValidationCache;
 import io.antmedia.shutdown.AMSShutdownManager;
 import io.antmedia.shutdown.IShutdownListener;
 import io.antmedia.social.endpoint.PeriscopeEndpoint;
@@ -59,7 +62,9 @@ import io.antmedia.statistic.type.WebRTCAudioSendStats;
 import io.antmedia.statistic.type.WebRTCVideoReceiveStats;
 import io.antmedia.statistic.type.WebRTCVideoSendStats;
 import io.antmedia.streamsource.StreamFetcher;
+import io.antmedia.streamsource.StreamFetcherEventLoop;
 import io.antmedia.streamsource.StreamFetcherManager;
+import io.antmedia.webhook.WebHookDispatcher;
 import io.vertx.core.Vertx;
 
 public class AntMediaApplicationAdapter extends MultiThreadedApplicationAdapter implements IAntMediaStreamHandler, IShutdownListener {
@@ -76,6 +81,11 @@ public class AntMediaApplicationAdapter extends MultiThreadedApplicationAdapter
 
 	public static final String VERTX_BEAN_NAME = "vertxCore";
 
+	/**
+	 * Maximum time in milliseconds to wait for the stream fetchers in the event loop to close their streams
+	 */
+	public static final int STREAM_FETCHER_EVENT_LOOP_SHUTDOWN_TIMEOUT_MS = 5000;
+
 	protected static Logger logger = LoggerFactory.getLogger(AntMediaApplicationAdapter.class);
 	public static final String LIVE_STREAM = "liveStream";
 	public static final String IP_CAMERA = "ipCamera";
@@ -104,6 +114,115 @@ public class AntMediaApplicationAdapter extends MultiThreadedApplicationAdapter
 	protected int publishTimeoutStreams = 0;
 	private List<String> publishTimeoutStreamsList = new ArrayList<>();
 	
+	/**
+	 * If it's true, stream fetchers run in a shared event loop instead of a thread per stream
+	 */
+	@Value("${settings.streamFetcherEventLoopEnabled:false}")
+	private boolean streamFetcherEventLoopEnabled = false;
+
+	/**
+	 * Number of threads in the stream fetcher event loop. If it's zero, number of cores is used
+	 */
+	@Value("${settings.streamFetcherEventLoopThreadCount:0}")
+	private int streamFetcherEventLoopThreadCount = 0;
+
+	/**
+	 * Maximum number of stream fetchers restarted at the same time
+	 */
+	@Value("${settings.streamFetcherMaxConcurrentRestarts:10}")
+	private int streamFetcherMaxConcurrentRestarts = 10;
+
+	/**
+	 * Time period in milliseconds that stream fetcher restarts are spread in. 
+	 * If it's negative, half of the restart period is used
+	 */
+	@Value("${settings.streamFetcherRestartSpreadMs:-1}")
+	private int streamFetcherRestartSpreadMs = -1;
+
+	/**
+	 * If it's true, webhooks are sent by {@link WebHookDispatcher} with a shared connection pool.
+	 * Responses of the webhooks are not returned by {@link #notifyHook(String, String, String, String, String, String, String)} in this mode
+	 */
+	@Value("${settings.webhookDispatcherEnabled:false}")
+	private boolean webhookDispatcherEnabled = false;
+
+	/**
+	 * Number of threads sending webhooks. If it's zero, number of cores is used
+	 */
+	@Value("${settings.webhookThreadCount:4}")
+	private int webhookThreadCount = 4;
+
+	/**
+	 * Maximum number of concurrent requests to the same webhook URL
+	 */
+	@Value("${settings.webhookMaxConcurrentPerUrl:4}")
+	private int webhookMaxConcurrentPerUrl = 4;
+
+	/**
+	 * Maximum number of events sent to the same URL in a request. 
+	 * If it's greater than 1, the request body is a JSON array of the events instead of form-encoded parameters 
+	 * so webhook receivers written for the form-encoded body cannot read it
+	 */
+	@Value("${settings.webhookBatchSize:1}")
+	private int webhookBatchSize = 1;
+
+	/**
+	 * Number of times a failed webhook is sent again
+	 */
+	@Value("${settings.webhookMaxRetryCount:3}")
+	private int webhookMaxRetryCount = 3;
+
+	/**
+	 * Maximum number of failed webhooks waiting to be sent again
+	 */
+	@Value("${settings.webhookRetryQueueSize:1000}")
+	private int webhookRetryQueueSize = 1000;
+
+	private WebHookDispatcher webHookDispatcher;
+
+	/**
+	 * If it's true, WebRTC publishers write the encoded packets directly to the muxers 
+	 * instead of publishing them to the RTMP server over loopback
+	 */
+	@Value("${settings.webRTCInProcessIngestEnabled:false}")
+	private boolean webRTCInProcessIngestEnabled = false;
+
+	/**
+	 * If it's true, validated play tokens are kept in memory for HLS requests of the same session
+	 */
+	@Value("${settings.tokenValidationCacheEnabled:false}")
+	private boolean tokenValidationCacheEnabled = false;
+
+	/**
+	 * Maximum number of validated tokens in the cache
+	 */
+	@Value("${settings.tokenValidationCacheSize:10000}")
+	private int tokenValidationCacheSize = 10000;
+
+	/**
+	 * Maximum time in milliseconds a validated token is kept in the cache
+	 */
+	@Value("${settings.tokenValidationCacheTtlMs:60000}")
+	private long tokenValidationCacheTtlMs = 60000;
+
+	private TokenValidationCache tokenValidationCache;
+
+	/**
+	 * How HLS viewers are identified in viewer statistics and token checks.
+	 * "session" uses servlet sessions, "signed" uses a signed viewer id in the query parameter or cookie,
+	 * "client" uses hash of the client IP and user agent. Last two do not create servlet sessions
+	 */
+	@Value("${settings.hlsViewerTrackingMode:session}")
+	private String hlsViewerTrackingMode = "session";
+
+	/**
+	 * Secret to sign the viewer ids in "signed" tracking mode. If it's empty, a random secret is used at each start
+	 */
+	@Value("${settings.hlsViewerIdSecret:}")
+	private String hlsViewerIdSecret = "";
+
+	private ViewerKeyResolver viewerKeyResolver;
+
 	protected WebRTCVideoReceiveStats webRTCVideoReceiveStats = new WebRTCVideoReceiveStats();
 
 	protected WebRTCAudioReceiveStats webRTCAudioReceiveStats = new WebRTCAudioReceiveStats();
@@ -120,6 +239,23 @@ public class AntMediaApplicationAdapter extends MultiThreadedApplicationAdapter
 		//initalize to access the data store directly in the code
 		getDataStore();
 
+		if (webhookDispatcherEnabled) {
+			webHookDispatcher = new WebHookDispatcher(webhookThreadCount);
+			webHookDispatcher.setMaxConcurrentPerUrl(webhookMaxConcurrentPerUrl);
+			webHookDispatcher.setBatchSize(webhookBatchSize);
+			webHookDispatcher.setMaxRetryCount(webhookMaxRetryCount);
+			webHookDispatcher.setRetryQueueSize(webhookRetryQueueSize);
+			//keep it out of webapps because it's served over http
+			webHookDispatcher.setRetryQueueFile(new File(System.getProperty("red5.root"), "conf/" + app.getName() + "_webhook_retry_queue.json"));
+			webHookDispatcher.start();
+		}
+
+		if (tokenValidationCacheEnabled) {
+			tokenValidationCache = new TokenValidationCache(tokenValidationCacheSize, tokenValidationCacheTtlMs);
+		}
+
+		viewerKeyResolver = new ViewerKeyResolver(ViewerKeyResolver.Mode.of(hlsViewerTrackingMode), hlsViewerIdSecret);
+
 
 		if (getStreamPublishSecurityList() != null) {
 			for (IStreamPublishSecurity streamPublishSecurity : getStreamPublishSecurityList()) {
@@ -132,6 +268,11 @@ public class AntMediaApplicationAdapter extends MultiThreadedApplicationAdapter
 			public void execute(ISchedulingService service) throws CloneNotSupportedException {
 				streamFetcherManager = new StreamFetcherManager(AntMediaApplicationAdapter.this, getDataStore(),app);
 				streamFetcherManager.setRestartStreamFetcherPeriod(appSettings.getRestartStreamFetcherPeriod());
+				streamFetcherManager.setMaxConcurrentRestarts(streamFetcherMaxConcurrentRestarts);
+				streamFetcherManager.setRestartSpreadMs(streamFetcherRestartSpreadMs);
+				if (streamFetcherEventLoopEnabled) {
+					streamFetcherManager.setEventLoop(new StreamFetcherEventLoop(streamFetcherEventLoopThreadCount));
+				}
 				List<Broadcast> streams = getDataStore().getExternalStreamsList();
 				logger.info("Stream source size: {}", streams.size());
 				streamFetcherManager.startStreams(streams);
@@ -250,8 +391,8 @@ public class AntMediaApplicationAdapter extends MultiThreadedApplicationAdapter
 						final String name = broadcast.getName();
 						final String category = broadcast.getCategory();
 						
-						vertx.runOnContext(e -> notifyHook(listenerHookURL, streamId, HOOK_ACTION_END_LIVE_STREAM, name, category,
-								null, null));
+						notifyHookAsync(listenerHookURL, streamId, HOOK_ACTION_END_LIVE_STREAM, name, category,
+								null, null);
 					}
 
 					stopPublishingSocialEndpoints(broadcast);
@@ -406,8 +547,8 @@ public class AntMediaApplicationAdapter extends MultiThreadedApplicationAdapter
 					if (listenerHookURL != null && listenerHookURL.length() > 0) {
 						final String name = broadcast.getName();
 						final String category = broadcast.getCategory();
-						vertx.runOnContext(e -> notifyHook(listenerHookURL, streamId, HOOK_ACTION_START_LIVE_STREAM, name, category,
-								null, null));
+						notifyHookAsync(listenerHookURL, streamId, HOOK_ACTION_START_LIVE_STREAM, name, category,
+								null, null);
 					}
 
 					publishSocialEndpoints(broadcast.getEndPointList());
@@ -523,9 +664,7 @@ public class AntMediaApplicationAdapter extends MultiThreadedApplicationAdapter
 			final String baseName = vodName.substring(0, index);
 			String finalListenerHookURL = listenerHookURL;
 			
-			vertx.runOnContext(e ->
-				notifyHook(finalListenerHookURL, streamId, HOOK_ACTION_VOD_READY, null, null, baseName, vodId)	
-			);
+			notifyHookAsync(finalListenerHookURL, streamId, HOOK_ACTION_VOD_READY, null, null, baseName, vodId);
 		
 		}
 
@@ -674,6 +813,12 @@ public class AntMediaApplicationAdapter extends MultiThreadedApplicationAdapter
 				variables.put("vodId", vodId);
 			}
 
+			if (webHookDispatcher != null) {
+				//dispatcher sends it on its own threads so there is no response
+				webHookDispatcher.dispatch(url, variables);
+				return null;
+			}
+
 			try {
 				response = sendPOST(url, variables);
 			} catch (Exception e) {
@@ -684,13 +829,30 @@ public class AntMediaApplicationAdapter extends MultiThreadedApplicationAdapter
 		return response;
 	}
 
+	/**
+	 * Calls {@link #notifyHook(String, String, String, String, String, String, String)} without blocking the caller.
+	 * If webhook dispatcher is not enabled, hook is sent in a vertx worker thread
+	 */
+	public void notifyHookAsync(String url, String id, String action, String streamName, String category,
+			String vodName, String vodId) {
+		if (webHookDispatcher != null) {
+			notifyHook(url, id, action, streamName, category, vodName, vodId);
+		}
+		else {
+			vertx.executeBlocking(future -> {
+				notifyHook(url, id, action, streamName, category, vodName, vodId);
+				future.complete();
+			}, false, null);
+		}
+	}
+
 	public StringBuilder sendPOST(String url, Map<String, String> variables) throws IOException {
 
 		StringBuilder response = null;
 		try (CloseableHttpClient httpClient = getHttpClient()) 
 		{
 			HttpPost httpPost = new HttpPost(url);
-			httpPost.addHeader("User-Agent", "Daaavuuuuuttttt https://www.youtube.com/watch?v=cbyTDRgW4Jg");
+			httpPost.addHeader("User-Agent", WebHookDispatcher.USER_AGENT);
 
 			List<NameValuePair> urlParameters = new ArrayList<>();
 			Set<Entry<String, String>> entrySet = variables.entrySet();
@@ -799,6 +961,38 @@ public class AntMediaApplicationAdapter extends MultiThreadedApplicationAdapter
 		this.streamFetcherManager = streamFetcherManager;
 	}
 
+	public boolean isStreamFetcherEventLoopEnabled() {
+		return streamFetcherEventLoopEnabled;
+	}
+
+	public void setStreamFetcherEventLoopEnabled(boolean streamFetcherEventLoopEnabled) {
+		this.streamFetcherEventLoopEnabled = streamFetcherEventLoopEnabled;
+	}
+
+	public int getStreamFetcherEventLoopThreadCount() {
+		return streamFetcherEventLoopThreadCount;
+	}
+
+	public void setStreamFetcherEventLoopThreadCount(int streamFetcherEventLoopThreadCount) {
+		this.streamFetcherEventLoopThreadCount = streamFetcherEventLoopThreadCount;
+	}
+
+	public int getStreamFetcherMaxConcurrentRestarts() {
+		return streamFetcherMaxConcurrentRestarts;
+	}
+
+	public void setStreamFetcherMaxConcurrentRestarts(int streamFetcherMaxConcurrentRestarts) {
+		this.streamFetcherMaxConcurrentRestarts = streamFetcherMaxConcurrentRestarts;
+	}
+
+	public int getStreamFetcherRestartSpreadMs() {
+		return streamFetcherRestartSpreadMs;
+	}
+
+	public void setStreamFetcherRestartSpreadMs(int streamFetcherRestartSpreadMs) {
+		this.streamFetcherRestartSpreadMs = streamFetcherRestartSpreadMs;
+	}
+
 	@Override
 	public void setQualityParameters(String id, String quality, double speed, int pendingPacketSize) {
 		logger.info("update source quality for stream: {} quality:{} speed:{}", id, quality, speed);
@@ -823,6 +1017,38 @@ public class AntMediaApplicationAdapter extends MultiThreadedApplicationAdapter
 		this.dataStoreFactory = dataStoreFactory;
 	}
 
+	public boolean isWebRTCInProcessIngestEnabled() {
+		return webRTCInProcessIngestEnabled;
+	}
+
+	public void setWebRTCInProcessIngestEnabled(boolean webRTCInProcessIngestEnabled) {
+		this.webRTCInProcessIngestEnabled = webRTCInProcessIngestEnabled;
+	}
+
+	public WebHookDispatcher getWebHookDispatcher() {
+		return webHookDispatcher;
+	}
+
+	public void setWebHookDispatcher(WebHookDispatcher webHookDispatcher) {
+		this.webHookDispatcher = webHookDispatcher;
+	}
+
+	public TokenValidationCache getTokenValidationCache() {
+		return tokenValidationCache;
+	}
+
+	public void setTokenValidationCache(TokenValidationCache tokenValidationCache) {
+		this.tokenValidationCache = tokenValidationCache;
+	}
+
+	public ViewerKeyResolver getViewerKeyResolver() {
+		return viewerKeyResolver;
+	}
+
+	public void setViewerKeyResolver(ViewerKeyResolver viewerKeyResolver) {
+		this.viewerKeyResolver = viewerKeyResolver;
+	}
+
 	/**
 	 * This setter for test cases
 	 * @param vertx
@@ -836,7 +1062,7 @@ public class AntMediaApplicationAdapter extends MultiThreadedApplicationAdapter
 	public void serverShuttingdown() {
 		logger.info("{} is shutting down.", getName());
 		if (streamFetcherManager != null) {
-			Queue<StreamFetcher> fetchers = streamFetcherManager.getStreamFetcherList();
+			Collection<StreamFetcher> fetchers = streamFetcherManager.getStreamFetcherList();
 			for (StreamFetcher streamFetcher : fetchers) {
 				streamFetcher.stopStream();
 			}
@@ -859,9 +1085,41 @@ public class AntMediaApplicationAdapter extends MultiThreadedApplicationAdapter
 			}
 		}
 		
+		stopStreamFetcherEventLoop();
+		stopWebHookDispatcher();
+
 		getDataStore().close();
 	}
 
+	@Override
+	public void appStop(IScope app) {
+		if (streamFetcherManager != null) {
+			for (StreamFetcher streamFetcher : streamFetcherManager.getStreamFetcherList()) {
+				streamFetcher.stopStream();
+			}
+		}
+		stopStreamFetcherEventLoop();
+		stopWebHookDispatcher();
+		super.appStop(app);
+	}
+
+	/**
+	 * Shuts down the shared stream fetcher loop. Fetchers that are stopped before 
+	 * close their streams in the remaining runs of the loop
+	 */
+	private void stopStreamFetcherEventLoop() {
+		if (streamFetcherManager != null && streamFetcherManager.getEventLoop() != null) {
+			streamFetcherManager.getEventLoop().shutdown(STREAM_FETCHER_EVENT_LOOP_SHUTDOWN_TIMEOUT_MS);
+		}
+	}
+
+	private void stopWebHookDispatcher() {
+		if (webHookDispatcher != null) {
+			webHookDispatcher.stop();
+			webHookDispatcher = null;
+		}
+	}
+
 	@Override
 	public void muxAdaptorAdded(MuxAdaptor muxAdaptor){
 		getMuxAdaptors().add(muxAdaptor);
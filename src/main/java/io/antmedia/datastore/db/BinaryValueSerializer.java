@@ -0,0 +1,286 @@
+package io.antmedia.datastore.db;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.reflect.Type;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+
+import org.mapdb.DataInput2;
+import org.mapdb.DataOutput2;
+import org.mapdb.serializer.GroupSerializerObjectArray;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Stores the values in a tagged binary encoding of their JSON form.
+ *
+ * Values are written with the same field mapping of Gson so that every field of the domain types
+ * are kept without writing a serializer per type. Gson writes the fields directly to the output through
+ * {@link BinaryWriter}, there is no intermediate string or JSON tree. Values are written with type tags,
+ * packed integers and length prefixed UTF-8 strings so that there is no escaping and number formatting.
+ * Field names are written in every record, so records are not smaller than JSON in general.
+ *
+ * While reading, a JSON tree is built from the binary data and it's converted to the value by Gson
+ * with reflection. There is no text parsing but the tree is allocated because Gson's map adapter cannot
+ * read names from a custom reader. Run MapDBSerializerBenchmark in the test sources to compare with JSON.
+ *
+ * @param <T> type of the value
+ */
+public class BinaryValueSerializer<T> extends GroupSerializerObjectArray<T> {
+
+	private static final int TAG_NULL = 0;
+	private static final int TAG_TRUE = 1;
+	private static final int TAG_FALSE = 2;
+	private static final int TAG_LONG = 3;
+	private static final int TAG_DOUBLE = 4;
+	private static final int TAG_STRING = 5;
+	private static final int TAG_ARRAY = 6;
+	private static final int TAG_OBJECT = 7;
+	private static final int TAG_DECIMAL = 8;
+	private static final int TAG_NAME = 9;
+	private static final int TAG_END = 10;
+
+	private transient Gson gson = new GsonBuilder().create();
+
+	private Type type;
+
+	public BinaryValueSerializer(Type type) {
+		this.type = type;
+	}
+
+	@Override
+	public void serialize(DataOutput2 out, T value) throws IOException {
+		gson.toJson(value, type, new BinaryWriter(out));
+	}
+
+	@Override
+	public T deserialize(DataInput2 input, int available) throws IOException {
+		return gson.fromJson(readElement(input, input.readByte()), type);
+	}
+
+	private JsonElement readElement(DataInput2 input, int tag) throws IOException
+	{
+		switch (tag) {
+		case TAG_NULL:
+			return JsonNull.INSTANCE;
+		case TAG_TRUE:
+			return new JsonPrimitive(true);
+		case TAG_FALSE:
+			return new JsonPrimitive(false);
+		case TAG_LONG:
+			long zigzag = input.unpackLong();
+			return new JsonPrimitive((zigzag >>> 1) ^ -(zigzag & 1));
+		case TAG_DOUBLE:
+			return new JsonPrimitive(input.readDouble());
+		case TAG_DECIMAL:
+			return new JsonPrimitive(new BigDecimal(readString(input)));
+		case TAG_STRING:
+			return new JsonPrimitive(readString(input));
+		case TAG_ARRAY:
+			JsonArray jsonArray = new JsonArray();
+			int itemTag;
+			while ((itemTag = input.readByte()) != TAG_END) {
+				jsonArray.add(readElement(input, itemTag));
+			}
+			return jsonArray;
+		case TAG_OBJECT:
+			JsonObject jsonObject = new JsonObject();
+			int nameTag;
+			while ((nameTag = input.readByte()) != TAG_END) {
+				if (nameTag != TAG_NAME) {
+					throw new IOException("Expected a field name in binary value but tag is " + nameTag);
+				}
+				String key = readString(input);
+				jsonObject.add(key, readElement(input, input.readByte()));
+			}
+			return jsonObject;
+		default:
+			throw new IOException("Unknown tag in binary value: " + tag);
+		}
+	}
+
+	private static void writeString(DataOutput2 out, String value) throws IOException {
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		out.packInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(DataInput2 input) throws IOException {
+		byte[] bytes = new byte[input.unpackInt()];
+		input.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Receives the tokens from Gson's type adapters and writes them to the output.
+	 * Objects and arrays are closed with {@link #TAG_END} because their sizes are not known in advance
+	 */
+	private static class BinaryWriter extends JsonWriter {
+
+		private static final Writer UNWRITABLE_WRITER = new Writer() {
+			@Override
+			public void write(char[] buffer, int offset, int counter) {
+				throw new AssertionError();
+			}
+			@Override
+			public void flush() {
+				throw new AssertionError();
+			}
+			@Override
+			public void close() {
+				throw new AssertionError();
+			}
+		};
+
+		private final DataOutput2 out;
+
+		/**
+		 * Name of the field whose value is not written yet. Field is skipped if its value is null
+		 * and nulls are not serialized
+		 */
+		private String deferredName;
+
+		public BinaryWriter(DataOutput2 out) {
+			super(UNWRITABLE_WRITER);
+			this.out = out;
+		}
+
+		private void writeDeferredName() throws IOException {
+			if (deferredName != null) {
+				out.writeByte(TAG_NAME);
+				writeString(out, deferredName);
+				deferredName = null;
+			}
+		}
+
+		@Override
+		public JsonWriter beginArray() throws IOException {
+			writeDeferredName();
+			out.writeByte(TAG_ARRAY);
+			return this;
+		}
+
+		@Override
+		public JsonWriter endArray() throws IOException {
+			out.writeByte(TAG_END);
+			return this;
+		}
+
+		@Override
+		public JsonWriter beginObject() throws IOException {
+			writeDeferredName();
+			out.writeByte(TAG_OBJECT);
+			return this;
+		}
+
+		@Override
+		public JsonWriter endObject() throws IOException {
+			out.writeByte(TAG_END);
+			return this;
+		}
+
+		@Override
+		public JsonWriter name(String name) throws IOException {
+			if (name == null) {
+				throw new NullPointerException("name == null");
+			}
+			deferredName = name;
+			return this;
+		}
+
+		@Override
+		public JsonWriter value(String value) throws IOException {
+			if (value == null) {
+				return nullValue();
+			}
+			writeDeferredName();
+			out.writeByte(TAG_STRING);
+			writeString(out, value);
+			return this;
+		}
+
+		@Override
+		public JsonWriter nullValue() throws IOException {
+			if (deferredName != null && !getSerializeNulls()) {
+				deferredName = null;
+				return this;
+			}
+			writeDeferredName();
+			out.writeByte(TAG_NULL);
+			return this;
+		}
+
+		@Override
+		public JsonWriter value(boolean value) throws IOException {
+			writeDeferredName();
+			out.writeByte(value ? TAG_TRUE : TAG_FALSE);
+			return this;
+		}
+
+		//it's not annotated with @Override because older Gson versions do not have this method
+		public JsonWriter value(Boolean value) throws IOException {
+			if (value == null) {
+				return nullValue();
+			}
+			return value(value.booleanValue());
+		}
+
+		@Override
+		public JsonWriter value(double value) throws IOException {
+			writeDeferredName();
+			out.writeByte(TAG_DOUBLE);
+			out.writeDouble(value);
+			return this;
+		}
+
+		//it's not annotated with @Override because older Gson versions do not have this method
+		public JsonWriter value(float value) throws IOException {
+			return value((double) value);
+		}
+
+		@Override
+		public JsonWriter value(long value) throws IOException {
+			writeDeferredName();
+			out.writeByte(TAG_LONG);
+			//zigzag encoding keeps small negative numbers small
+			out.packLong((value << 1) ^ (value >> 63));
+			return this;
+		}
+
+		@Override
+		public JsonWriter value(Number value) throws IOException {
+			if (value == null) {
+				return nullValue();
+			}
+			if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+				return value(value.longValue());
+			}
+			else if (value instanceof Double || value instanceof Float) {
+				return value(value.doubleValue());
+			}
+			writeDeferredName();
+			out.writeByte(TAG_DECIMAL);
+			writeString(out, value.toString());
+			return this;
+		}
+
+		@Override
+		public void flush() throws IOException {
+			//nothing is buffered
+		}
+
+		@Override
+		public void close() throws IOException {
+			//output is owned by MapDB
+		}
+	}
+
+}
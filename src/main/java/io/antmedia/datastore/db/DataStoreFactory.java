@@ -20,6 +20,10 @@ public class DataStoreFactory implements IDataStoreFactory, InitializingBean{
 	public static final String SETTINGS_DB_HOST = "db.host";
 	public static final String SETTINGS_DB_USER = "db.user";
 	public static final String SETTINGS_DB_PASS = "db.password";
+	public static final String SETTINGS_DB_MAPDB_BINARY = "db.mapdb.binary";
+	public static final String SETTINGS_DB_MAPDB_GROUP_COMMIT_WINDOW_MS = "db.mapdb.groupCommitWindowMs";
+	public static final String SETTINGS_DB_MAPDB_GROUP_COMMIT_MAX_OPS = "db.mapdb.groupCommitMaxOps";
+	public static final String SETTINGS_DB_MAPDB_LAZY_COMMIT_GROUPS = "db.mapdb.lazyCommitGroups";
 
 
 	private static Logger logger = LoggerFactory.getLogger(DataStoreFactory.class);
@@ -52,6 +56,29 @@ public class DataStoreFactory implements IDataStoreFactory, InitializingBean{
 	@Value( "${"+SETTINGS_DB_PASS+":#{null}}" )
 	private String dbPassword;
 	
+	/**
+	 * If it is true, MapDB values are stored with {@link BinaryValueSerializer} in separate maps instead of 
+	 * the JSON string maps. Records are copied to the maps of the selected mode when the mode is changed
+	 */
+	@Value( "${"+SETTINGS_DB_MAPDB_BINARY+":false}" )
+	private boolean mapDBBinarySerialization;
+	
+	/**
+	 * Group commit window of MapDB in milliseconds. Zero disables group commit 
+	 * and every mutation is committed immediately
+	 */
+	@Value( "${"+SETTINGS_DB_MAPDB_GROUP_COMMIT_WINDOW_MS+":0}" )
+	private long mapDBGroupCommitWindowMs;
+	
+	@Value( "${"+SETTINGS_DB_MAPDB_GROUP_COMMIT_MAX_OPS+":100}" )
+	private int mapDBGroupCommitMaxOps = 100;
+	
+	/**
+	 * Comma separated MapDB map names that are committed lazily in group commit mode
+	 */
+	@Value( "${"+SETTINGS_DB_MAPDB_LAZY_COMMIT_GROUPS+":"+MapDBStore.DEFAULT_LAZY_COMMIT_GROUPS+"}" )
+	private String mapDBLazyCommitGroups = MapDBStore.DEFAULT_LAZY_COMMIT_GROUPS;
+	
 	public String getDbName() {
 		return dbName;
 	}
@@ -100,7 +127,11 @@ public class DataStoreFactory implements IDataStoreFactory, InitializingBean{
 		}
 		else if(dbType .contentEquals(DB_TYPE_MAPDB))
 		{
-			dataStore = new MapDBStore(dbName+".db");
+			MapDBStore mapDBStore = new MapDBStore(dbName+".db", mapDBBinarySerialization);
+			if (mapDBGroupCommitWindowMs > 0) {
+				mapDBStore.setGroupCommit(mapDBGroupCommitWindowMs, mapDBGroupCommitMaxOps, mapDBLazyCommitGroups);
+			}
+			dataStore = mapDBStore;
 		}
 		else if(dbType .contentEquals(DB_TYPE_MEMORYDB))
 		{
@@ -152,5 +183,37 @@ public class DataStoreFactory implements IDataStoreFactory, InitializingBean{
 		this.writeStatsToDatastore = writeStatsToDatastore;
 	}
 
+	public boolean isMapDBBinarySerialization() {
+		return mapDBBinarySerialization;
+	}
+
+	public void setMapDBBinarySerialization(boolean mapDBBinarySerialization) {
+		this.mapDBBinarySerialization = mapDBBinarySerialization;
+	}
+
+	public long getMapDBGroupCommitWindowMs() {
+		return mapDBGroupCommitWindowMs;
+	}
+
+	public void setMapDBGroupCommitWindowMs(long mapDBGroupCommitWindowMs) {
+		this.mapDBGroupCommitWindowMs = mapDBGroupCommitWindowMs;
+	}
+
+	public int getMapDBGroupCommitMaxOps() {
+		return mapDBGroupCommitMaxOps;
+	}
+
+	public void setMapDBGroupCommitMaxOps(int mapDBGroupCommitMaxOps) {
+		this.mapDBGroupCommitMaxOps = mapDBGroupCommitMaxOps;
+	}
+
+	public String getMapDBLazyCommitGroups() {
+		return mapDBLazyCommitGroups;
+	}
+
+	public void setMapDBLazyCommitGroups(String mapDBLazyCommitGroups) {
+		this.mapDBLazyCommitGroups = mapDBLazyCommitGroups;
+	}
+
 }
 	
@@ -0,0 +1,23 @@
+package io.antmedia.datastore.db;
+
+import java.util.Collection;
+
+/**
+ * Updates that are applied to several records together. Stores write them in one commit or 
+ * in one query instead of a write per record.
+ *
+ * Updates are not written if statistics are not written to the datastore, 
+ * see {@link DataStore#isWriteStatsToDatastore()}
+ */
+public interface IBatchUpdateDataStore {
+
+	/**
+	 * Sets the same source quality parameters of the streams
+	 * @param ids - stream ids
+	 * @param quality - quality of the stream sources
+	 * @param speed - speed of the stream sources
+	 * @param pendingPacketQueue - number of the pending packets
+	 * @return number of updated streams
+	 */
+	int updateSourceQualityParameters(Collection<String> ids, String quality, double speed, int pendingPacketQueue);
+}
@@ -0,0 +1,51 @@
+package io.antmedia.datastore.db;
+
+import java.util.List;
+
+import io.antmedia.datastore.db.types.Broadcast;
+import io.antmedia.datastore.db.types.SocialEndpointCredentials;
+import io.antmedia.datastore.db.types.Token;
+import io.antmedia.datastore.db.types.VoD;
+
+/**
+ * Keyset(cursor) based listing. Items are ordered by their keys and the next page is
+ * fetched by giving the key of the last item of the previous page. Unlike offset based listing,
+ * cost of fetching a page does not depend on how deep the page is.
+ *
+ * Size is limited to {@link DataStore#MAX_ITEM_IN_ONE_LIST}
+ */
+public interface IKeysetPaginatedDataStore {
+
+	/**
+	 * Returns broadcasts ordered by stream id
+	 * @param lastStreamId - stream id of the last item of the previous page, null for the first page
+	 * @param size - number of items to return
+	 * @return list of broadcasts whose stream ids are greater than lastStreamId
+	 */
+	List<Broadcast> getBroadcastListAfter(String lastStreamId, int size);
+
+	/**
+	 * Returns VoDs ordered by VoD id
+	 * @param lastVodId - VoD id of the last item of the previous page, null for the first page
+	 * @param size - number of items to return
+	 * @return list of VoDs whose ids are greater than lastVodId
+	 */
+	List<VoD> getVodListAfter(String lastVodId, int size);
+
+	/**
+	 * Returns social endpoint credentials ordered by id
+	 * @param lastId - id of the last item of the previous page, null for the first page
+	 * @param size - number of items to return
+	 * @return list of credentials whose ids are greater than lastId
+	 */
+	List<SocialEndpointCredentials> getSocialEndpointsAfter(String lastId, int size);
+
+	/**
+	 * Returns tokens of the stream ordered by token id
+	 * @param streamId - id of the stream
+	 * @param lastTokenId - token id of the last item of the previous page, null for the first page
+	 * @param size - number of items to return
+	 * @return list of tokens whose ids are greater than lastTokenId
+	 */
+	List<Token> listAllTokensAfter(String streamId, String lastTokenId, int size);
+}
@@ -5,10 +5,7 @@ import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Iterator;
-import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Map;
-import java.util.Set;
 import java.util.regex.Pattern;
 
 import org.apache.commons.io.FilenameUtils;
@@ -28,15 +25,24 @@ import io.antmedia.datastore.db.types.Token;
 import io.antmedia.datastore.db.types.VoD;
 import io.antmedia.muxer.MuxAdaptor;
 
-public class InMemoryDataStore extends DataStore {
+public class InMemoryDataStore extends DataStore implements IKeysetPaginatedDataStore, IBatchUpdateDataStore {
 
 	protected static Logger logger = LoggerFactory.getLogger(InMemoryDataStore.class);
-	private Map<String, Broadcast> broadcastMap = new LinkedHashMap<>();
-	private Map<String, VoD> vodMap = new LinkedHashMap<>();
-	private Map<String, List<TensorFlowObject>> detectionMap = new LinkedHashMap<>();
-	private Map<String, SocialEndpointCredentials> socialEndpointCredentialsMap = new LinkedHashMap<>();
-	private Map<String, Token> tokenMap = new LinkedHashMap<>();
-	private Map<String, ConferenceRoom> roomMap = new LinkedHashMap<>();
+
+	/**
+	 * Maps are thread safe and keep the insertion order. Updates on a record are done 
+	 * by synchronizing on the record so that updates on different records do not block each other.
+	 * 
+	 * Records are returned without copying as it's done in the other in-memory structures of the server. 
+	 * Callers share them with the writers, a caller that needs a consistent view of a record 
+	 * should synchronize on it
+	 */
+	private InsertionOrderedMap<Broadcast> broadcastMap = new InsertionOrderedMap<>();
+	private InsertionOrderedMap<VoD> vodMap = new InsertionOrderedMap<>();
+	private InsertionOrderedMap<List<TensorFlowObject>> detectionMap = new InsertionOrderedMap<>();
+	private InsertionOrderedMap<SocialEndpointCredentials> socialEndpointCredentialsMap = new InsertionOrderedMap<>();
+	private InsertionOrderedMap<Token> tokenMap = new InsertionOrderedMap<>();
+	private InsertionOrderedMap<ConferenceRoom> roomMap = new InsertionOrderedMap<>();
 
 	public InMemoryDataStore(String dbName) {
 	}
@@ -87,8 +93,9 @@ public class InMemoryDataStore extends DataStore {
 		Broadcast broadcast = broadcastMap.get(id);
 		boolean result = false;
 		if (broadcast != null) {
-			broadcast.setStatus(status);
-			broadcastMap.put(id, broadcast);
+			synchronized (broadcast) {
+				broadcast.setStatus(status);
+			}
 			result = true;
 		}
 		return result;
@@ -99,8 +106,9 @@ public class InMemoryDataStore extends DataStore {
 		Broadcast broadcast = broadcastMap.get(id);
 		boolean result = false;
 		if (broadcast != null) {
-			broadcast.setDuration(duration);
-			broadcastMap.put(id, broadcast);
+			synchronized (broadcast) {
+				broadcast.setDuration(duration);
+			}
 			result = true;
 		}
 		return result;
@@ -112,13 +120,14 @@ public class InMemoryDataStore extends DataStore {
 		Broadcast broadcast = broadcastMap.get(id);
 		boolean result = false;
 		if (broadcast != null && endpoint != null) {
-			List<Endpoint> endPointList = broadcast.getEndPointList();
-			if (endPointList == null) {
-				endPointList = new ArrayList<>();
+			synchronized (broadcast) {
+				List<Endpoint> endPointList = broadcast.getEndPointList();
+				if (endPointList == null) {
+					endPointList = new ArrayList<>();
+				}
+				endPointList.add(endpoint);
+				broadcast.setEndPointList(endPointList);
 			}
-			endPointList.add(endpoint);
-			broadcast.setEndPointList(endPointList);
-			broadcastMap.put(id, broadcast);
 			result = true;
 		}
 		return result;
@@ -129,17 +138,19 @@ public class InMemoryDataStore extends DataStore {
 		boolean result = false;
 		Broadcast broadcast = broadcastMap.get(id);
 		if (broadcast != null && endpoint != null) {
-			List<Endpoint> endPointList = broadcast.getEndPointList();
-			if (endPointList != null) {
-				for (Iterator<Endpoint> iterator = endPointList.iterator(); iterator.hasNext();) {
-					Endpoint endpointItem = iterator.next();
-					if (endpointItem.getRtmpUrl().equals(endpoint.getRtmpUrl())) {
-						iterator.remove();
-						result = true;
-						break;
+			synchronized (broadcast) {
+				List<Endpoint> endPointList = broadcast.getEndPointList();
+				if (endPointList != null) {
+					for (Iterator<Endpoint> iterator = endPointList.iterator(); iterator.hasNext();) {
+						Endpoint endpointItem = iterator.next();
+						if (endpointItem.getRtmpUrl().equals(endpoint.getRtmpUrl())) {
+							iterator.remove();
+							result = true;
+							break;
+						}
 					}
-				}
 
+				}
 			}
 		}
 		return result;
@@ -166,46 +177,58 @@ public class InMemoryDataStore extends DataStore {
 
 	@Override
 	public boolean delete(String id) {
-		Broadcast broadcast = broadcastMap.get(id);
-		boolean result = false;
-		if (broadcast != null) {
-			broadcastMap.remove(id);
-			result = true;
-		}
-		return result;
+		return broadcastMap.remove(id) != null;
 	}
 
 	@Override
 	public List<Broadcast> getBroadcastList(int offset, int size) {
-		Collection<Broadcast> values = broadcastMap.values();
-		int t = 0;
-		int itemCount = 0;
 		if (size > MAX_ITEM_IN_ONE_LIST) {
 			size = MAX_ITEM_IN_ONE_LIST;
 		}
-		if (offset < 0) {
-			offset = 0;
-		}
-		List<Broadcast> list = new ArrayList<>();
-		for (Broadcast broadcast : values) {
+		return broadcastMap.getRange(offset, size);
+	}
 
-			if (t < offset) {
-				t++;
-				continue;
-			}
-			list.add(broadcast);
-			itemCount++;
 
-			if (itemCount >= size) {
-				break;
-			}
 
+
+	@Override
+	public List<Broadcast> getBroadcastListAfter(String lastStreamId, int size) {
+		if (size > MAX_ITEM_IN_ONE_LIST) {
+			size = MAX_ITEM_IN_ONE_LIST;
 		}
-		return list;
+		return broadcastMap.getRangeAfter(lastStreamId, size);
 	}
 
+	@Override
+	public List<VoD> getVodListAfter(String lastVodId, int size) {
+		if (size > MAX_ITEM_IN_ONE_LIST) {
+			size = MAX_ITEM_IN_ONE_LIST;
+		}
+		return vodMap.getRangeAfter(lastVodId, size);
+	}
 
+	@Override
+	public List<SocialEndpointCredentials> getSocialEndpointsAfter(String lastId, int size) {
+		if (size > MAX_ITEM_IN_ONE_LIST) {
+			size = MAX_ITEM_IN_ONE_LIST;
+		}
+		return socialEndpointCredentialsMap.getRangeAfter(lastId, size);
+	}
 
+	@Override
+	public List<Token> listAllTokensAfter(String streamId, String lastTokenId, int size) {
+		if (size > MAX_ITEM_IN_ONE_LIST) {
+			size = MAX_ITEM_IN_ONE_LIST;
+		}
+		List<Token> list = new ArrayList<>();
+		for (Iterator<String> iterator = tokenMap.keysAfter(lastTokenId).iterator(); iterator.hasNext() && list.size() < size;) {
+			Token token = tokenMap.get(iterator.next());
+			if (token != null && token.getStreamId().equals(streamId)) {
+				list.add(token);
+			}
+		}
+		return list;
+	}
 
 	@Override
 	public List<Broadcast> getExternalStreamsList() {
@@ -288,32 +311,10 @@ public class InMemoryDataStore extends DataStore {
 
 	@Override
 	public List<VoD> getVodList(int offset, int size) {
-		Collection<VoD> values = vodMap.values();
-		int t = 0;
-		int itemCount = 0;
 		if (size > MAX_ITEM_IN_ONE_LIST) {
 			size = MAX_ITEM_IN_ONE_LIST;
 		}
-		if (offset < 0) {
-			offset = 0;
-		}
-		List<VoD> list = new ArrayList<>();
-
-		for (VoD vodString : values) {
-			if (t < offset) {
-				t++;
-			}
-			else {
-				list.add(vodString);
-				itemCount++;
-
-				if (itemCount >= size) {
-					break;
-				}
-			}
-
-		}
-		return list;
+		return vodMap.getRange(offset, size);
 	}
 
 
@@ -328,8 +329,9 @@ public class InMemoryDataStore extends DataStore {
 		boolean result = false;
 		Broadcast broadcast = broadcastMap.get(id);
 		if (broadcast != null) {
-			broadcast.setEndPointList(null);
-			broadcastMap.replace(id, broadcast);
+			synchronized (broadcast) {
+				broadcast.setEndPointList(null);
+			}
 			result = true;
 		}
 		return result;
@@ -353,12 +355,9 @@ public class InMemoryDataStore extends DataStore {
 		 * Delete all user vod in db
 		 */
 		int numberOfSavedFiles = 0;
-		Collection<VoD> vodCollection = vodMap.values();
-
-		for (Iterator iterator = vodCollection.iterator(); iterator.hasNext();) {
-			VoD vod = (VoD) iterator.next();
+		for (VoD vod : vodMap.values()) {
 			if (vod.getType().equals(VoD.USER_VOD)) {
-				iterator.remove();
+				vodMap.remove(vod.getVodId());
 			}
 		}
 
@@ -404,16 +403,30 @@ public class InMemoryDataStore extends DataStore {
 		if (id != null) {
 			Broadcast broadcast = broadcastMap.get(id);
 			if (broadcast != null) {
-				broadcast.setQuality(quality);
-				broadcast.setSpeed(speed);
-				broadcast.setPendingPacketSize(pendingPacketSize);
-				broadcastMap.replace(id, broadcast);
+				synchronized (broadcast) {
+					broadcast.setQuality(quality);
+					broadcast.setSpeed(speed);
+					broadcast.setPendingPacketSize(pendingPacketSize);
+				}
 				result = true;
 			}
 		}
 		return result;
 	}
 
+	@Override
+	public int updateSourceQualityParameters(Collection<String> ids, String quality, double speed, int pendingPacketQueue) {
+		int count = 0;
+		if (isWriteStatsToDatastore()) {
+			for (String id : ids) {
+				if (updateSourceQualityParametersLocal(id, quality, speed, pendingPacketQueue)) {
+					count++;
+				}
+			}
+		}
+		return count;
+	}
+
 
 	public SocialEndpointCredentials addSocialEndpointCredentials(SocialEndpointCredentials credentials) {
 		SocialEndpointCredentials addedCredential = null;
@@ -429,10 +442,9 @@ public class InMemoryDataStore extends DataStore {
 			}
 			else {
 
-				if(socialEndpointCredentialsMap.get(credentials.getId()) != null) 
+				//replace the field if id exists
+				if(socialEndpointCredentialsMap.replace(credentials.getId(), credentials) != null) 
 				{
-					//replace the field if id exists
-					socialEndpointCredentialsMap.put(credentials.getId(), credentials);
 					addedCredential = credentials;
 				}
 				//if id is not matched with any value, do not record
@@ -444,29 +456,10 @@ public class InMemoryDataStore extends DataStore {
 	@Override
 	public List<SocialEndpointCredentials> getSocialEndpoints(int offset, int size) 
 	{
-		Collection<SocialEndpointCredentials> values = socialEndpointCredentialsMap.values();
-		int t = 0;
-		int itemCount = 0;
 		if (size > MAX_ITEM_IN_ONE_LIST) {
 			size = MAX_ITEM_IN_ONE_LIST;
 		}
-		if (offset < 0) {
-			offset = 0;
-		}
-		List<SocialEndpointCredentials> list = new ArrayList();
-		for (SocialEndpointCredentials credential : values) {
-			if (t < offset) {
-				t++;
-				continue;
-			}
-			list.add(credential);
-			itemCount++;
-
-			if (itemCount >= size) {
-				break;
-			}
-		}
-		return list;
+		return socialEndpointCredentialsMap.getRange(offset, size);
 	}
 
 	@Override
@@ -502,7 +495,7 @@ public class InMemoryDataStore extends DataStore {
 		int offsetCount=0; 
 		int batchCount=0;
 		List<TensorFlowObject> list = new ArrayList<>();
-		Set<String> keySet = detectionMap.keySet();
+		Collection<String> keySet = detectionMap.keys();
 		if (batchSize > MAX_ITEM_IN_ONE_LIST) {
 			batchSize = MAX_ITEM_IN_ONE_LIST;
 		}
@@ -517,7 +510,9 @@ public class InMemoryDataStore extends DataStore {
 					break;
 				}
 				List<TensorFlowObject> detectedList = detectionMap.get(keyValue);
-				list.addAll(detectedList);
+				if (detectedList != null) {
+					list.addAll(detectedList);
+				}
 				batchCount=list.size();
 			}
 		}
@@ -528,17 +523,18 @@ public class InMemoryDataStore extends DataStore {
 
 	public long getObjectDetectedTotal(String id) {
 
-		List<TensorFlowObject> list = new ArrayList<>();
-		Set<String> keySet = detectionMap.keySet();
+		long total = 0;
 
-		for(String keyValue: keySet) {
+		for(String keyValue: detectionMap.keys()) {
 			if (keyValue.startsWith(id)) 
 			{
 				List<TensorFlowObject> detectedList = detectionMap.get(keyValue);
-				list.addAll(detectedList);
+				if (detectedList != null) {
+					total += detectedList.size();
+				}
 			}
 		}
-		return list.size();
+		return total;
 	}
 
 	@Override
@@ -557,9 +553,9 @@ public class InMemoryDataStore extends DataStore {
 			Broadcast oldBroadcast = get(streamId);
 
 			if (oldBroadcast != null) {
-				updateStreamInfo(oldBroadcast, broadcast.getName(), broadcast.getDescription(), broadcast.getUsername(), broadcast.getPassword(), broadcast.getIpAddr(), broadcast.getStreamUrl());
-				broadcastMap.replace(oldBroadcast.getStreamId(), oldBroadcast);
-
+				synchronized (oldBroadcast) {
+					updateStreamInfo(oldBroadcast, broadcast.getName(), broadcast.getDescription(), broadcast.getUsername(), broadcast.getPassword(), broadcast.getIpAddr(), broadcast.getStreamUrl());
+				}
 				result = true;
 			}
 		} catch (Exception e) {
@@ -571,16 +567,17 @@ public class InMemoryDataStore extends DataStore {
 	}
 
 	@Override
-	public synchronized boolean updateHLSViewerCountLocal(String streamId, int diffCount) {
+	public boolean updateHLSViewerCountLocal(String streamId, int diffCount) {
 		boolean result = false;
 		if (streamId != null) {
 			Broadcast broadcast = broadcastMap.get(streamId);
 			if (broadcast != null) {
-				int hlsViewerCount = broadcast.getHlsViewerCount();
-				hlsViewerCount += diffCount;
+				synchronized (broadcast) {
+					int hlsViewerCount = broadcast.getHlsViewerCount();
+					hlsViewerCount += diffCount;
 
-				broadcast.setHlsViewerCount(hlsViewerCount);
-				broadcastMap.replace(streamId, broadcast);
+					broadcast.setHlsViewerCount(hlsViewerCount);
+				}
 				result = true;
 			}
 		}
@@ -588,21 +585,22 @@ public class InMemoryDataStore extends DataStore {
 	}
 
 	@Override
-	public synchronized boolean updateWebRTCViewerCountLocal(String streamId, boolean increment) {
+	public boolean updateWebRTCViewerCountLocal(String streamId, boolean increment) {
 		boolean result = false;
 		if (streamId != null) {
 			Broadcast broadcast = broadcastMap.get(streamId);
 			if (broadcast != null) {
-				int webRTCViewerCount = broadcast.getWebRTCViewerCount();
-				if (increment) {
-					webRTCViewerCount++;
-				}
-				else  {
-					webRTCViewerCount--;
-				}
+				synchronized (broadcast) {
+					int webRTCViewerCount = broadcast.getWebRTCViewerCount();
+					if (increment) {
+						webRTCViewerCount++;
+					}
+					else  {
+						webRTCViewerCount--;
+					}
 
-				broadcast.setWebRTCViewerCount(webRTCViewerCount);
-				broadcastMap.replace(streamId, broadcast);
+					broadcast.setWebRTCViewerCount(webRTCViewerCount);
+				}
 				result = true;
 			}
 		}
@@ -610,21 +608,22 @@ public class InMemoryDataStore extends DataStore {
 	}
 
 	@Override
-	public synchronized boolean updateRtmpViewerCountLocal(String streamId, boolean increment) {
+	public boolean updateRtmpViewerCountLocal(String streamId, boolean increment) {
 		boolean result = false;
 		if (streamId != null) {
 			Broadcast broadcast = broadcastMap.get(streamId);
 			if (broadcast != null) {
-				int rtmpViewerCount = broadcast.getRtmpViewerCount();
-				if (increment) {
-					rtmpViewerCount++;
-				}
-				else  {
-					rtmpViewerCount--;
-				}
+				synchronized (broadcast) {
+					int rtmpViewerCount = broadcast.getRtmpViewerCount();
+					if (increment) {
+						rtmpViewerCount++;
+					}
+					else  {
+						rtmpViewerCount--;
+					}
 
-				broadcast.setRtmpViewerCount(rtmpViewerCount);
-				broadcastMap.replace(streamId, broadcast);
+					broadcast.setRtmpViewerCount(rtmpViewerCount);
+				}
 				result = true;
 			}
 		}
@@ -659,7 +658,10 @@ public class InMemoryDataStore extends DataStore {
 
 				if(token.getRoomId() == null || token.getRoomId().isEmpty()) {
 					if(fetchedToken.getStreamId().equals(token.getStreamId())) {
-						tokenMap.remove(token.getTokenId());
+						//only one of the concurrent validations can consume the token
+						if (tokenMap.remove(token.getTokenId()) == null) {
+							fetchedToken = null;
+						}
 					}
 					else {
 						fetchedToken = null;
@@ -676,16 +678,11 @@ public class InMemoryDataStore extends DataStore {
 	@Override
 	public boolean revokeTokens(String streamId) {
 		boolean result = false;
-		Collection<Token> tokenCollection = tokenMap.values();
-
-		for (Iterator iterator = tokenCollection.iterator(); iterator.hasNext();) {
-			Token token = (Token) iterator.next();
+		for (Token token : tokenMap.values()) {
 			if (token.getStreamId().equals(streamId)) {
-				iterator.remove();
 				tokenMap.remove(token.getTokenId());
 			}
 			result = true;
-
 		}
 		return result;
 	}
@@ -754,8 +751,9 @@ public class InMemoryDataStore extends DataStore {
 		if (streamId != null) {
 			Broadcast broadcast = broadcastMap.get(streamId);
 			if (broadcast != null && (enabled == MuxAdaptor.MP4_ENABLED_FOR_STREAM || enabled == MuxAdaptor.MP4_NO_SET_FOR_STREAM || enabled == MuxAdaptor.MP4_DISABLED_FOR_STREAM)) {
-				broadcast.setMp4Enabled(enabled);
-				broadcastMap.replace(streamId, broadcast);
+				synchronized (broadcast) {
+					broadcast.setMp4Enabled(enabled);
+				}
 				result = true;
 			}
 		}
@@ -0,0 +1,343 @@
+package io.antmedia.datastore.db;
+
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Thread safe map that keeps the insertion order of the keys like {@link java.util.LinkedHashMap}.
+ *
+ * Values are kept in nodes. Nodes are mapped by their keys in a {@link ConcurrentHashMap}, by their insertion
+ * sequence in a {@link ConcurrentSkipListMap} for the insertion order and by their keys in another
+ * {@link ConcurrentSkipListMap} for keyset pagination. Replacing the value of a key does not change its order.
+ *
+ * Readers iterate the skip list maps and read the values from the nodes, so they do not look up another map.
+ * A node that is being removed is skipped.
+ *
+ * Offset based ranges record the node at the end of the range with its position. The next page starts from the
+ * closest recorded position instead of walking from the start, so paging through the map does not cost O(offset)
+ * for each page. Keys are only appended to the order, so a position is valid until a key is removed.
+ * Recorded positions are immutable, a reader never changes the state of another reader.
+ *
+ * Values are returned as they are stored, they are not copied.
+ */
+class InsertionOrderedMap<V> {
+
+	private static class Node<V> {
+		private final String key;
+		private final long sequence;
+		private volatile V value;
+		private volatile boolean removed = false;
+
+		private Node(String key, long sequence, V value) {
+			this.key = key;
+			this.sequence = sequence;
+			this.value = value;
+		}
+	}
+
+	private final ConcurrentHashMap<String, Node<V>> nodes = new ConcurrentHashMap<>();
+	private final ConcurrentSkipListMap<Long, Node<V>> order = new ConcurrentSkipListMap<>();
+
+	/**
+	 * Nodes in natural order of their keys for keyset pagination
+	 */
+	private final ConcurrentSkipListMap<String, Node<V>> sortedNodes = new ConcurrentSkipListMap<>();
+	private final Object insertLock = new Object();
+
+	private long sequence = 0;
+
+	/**
+	 * Maximum number of recorded positions. Lowest positions are evicted first because they are the cheapest to walk
+	 */
+	private static final int MAX_POSITION_COUNT = 64;
+
+	/**
+	 * Sequence of the node at a position in the insertion order. It's valid if no key is removed after it's recorded
+	 */
+	private static class Position {
+		private final long sequence;
+		private final long removeCount;
+
+		private Position(long sequence, long removeCount) {
+			this.sequence = sequence;
+			this.removeCount = removeCount;
+		}
+	}
+
+	/**
+	 * Recorded positions by their offsets
+	 */
+	private final ConcurrentSkipListMap<Integer, Position> positions = new ConcurrentSkipListMap<>();
+
+	/**
+	 * Number of removals. It's increased before a node is removed so that recorded positions are not used anymore
+	 */
+	private final AtomicLong removeCount = new AtomicLong();
+
+	/**
+	 * Total number of nodes visited by offset based ranges
+	 */
+	private final LongAdder visitedNodeCount = new LongAdder();
+
+	public V get(String key) {
+		Node<V> node = key != null ? nodes.get(key) : null;
+		return node != null ? node.value : null;
+	}
+
+	public boolean containsKey(String key) {
+		return key != null && nodes.containsKey(key);
+	}
+
+	/**
+	 * Puts the value. If the key exists, value is replaced and the order of the key is kept.
+	 * Null keys are not stored
+	 * @return previous value or null
+	 */
+	public V put(String key, V value) {
+		if (key == null) {
+			return null;
+		}
+		List<V> previous = new ArrayList<>(1);
+		nodes.compute(key, (k, node) -> {
+			if (node == null) {
+				synchronized (insertLock) {
+					//sequences are added to the order in increasing order so that readers never miss an earlier key
+					sequence++;
+					Node<V> newNode = new Node<>(k, sequence, value);
+					order.put(sequence, newNode);
+					sortedNodes.put(k, newNode);
+					return newNode;
+				}
+			}
+			previous.add(node.value);
+			node.value = value;
+			return node;
+		});
+		return previous.isEmpty() ? null : previous.get(0);
+	}
+
+	/**
+	 * Replaces the value if key exists
+	 * @return previous value or null if key does not exist
+	 */
+	public V replace(String key, V value) {
+		List<V> previous = new ArrayList<>(1);
+		if (key != null) {
+			nodes.computeIfPresent(key, (k, node) -> {
+				previous.add(node.value);
+				node.value = value;
+				return node;
+			});
+		}
+		return previous.isEmpty() ? null : previous.get(0);
+	}
+
+	/**
+	 * @return removed value or null if key does not exist
+	 */
+	public V remove(String key) {
+		List<V> removed = new ArrayList<>(1);
+		if (key != null) {
+			nodes.computeIfPresent(key, (k, node) -> {
+				//positions after the node are shifted
+				removeCount.incrementAndGet();
+				//mark first so that readers iterating the order skip it
+				node.removed = true;
+				order.remove(node.sequence);
+				sortedNodes.remove(k);
+				removed.add(node.value);
+				return null;
+			});
+		}
+		return removed.isEmpty() ? null : removed.get(0);
+	}
+
+	public int size() {
+		return nodes.size();
+	}
+
+	/**
+	 * @return live view of the values in insertion order
+	 */
+	public Collection<V> values() {
+		return new AbstractCollection<V>() {
+			@Override
+			public Iterator<V> iterator() {
+				return new NodeIterator<>(order.values().iterator(), node -> node.value);
+			}
+
+			@Override
+			public int size() {
+				return nodes.size();
+			}
+		};
+	}
+
+	/**
+	 * @return live view of the keys in insertion order
+	 */
+	public Collection<String> keys() {
+		return new AbstractCollection<String>() {
+			@Override
+			public Iterator<String> iterator() {
+				return new NodeIterator<>(order.values().iterator(), node -> node.key);
+			}
+
+			@Override
+			public int size() {
+				return nodes.size();
+			}
+		};
+	}
+
+	/**
+	 * Returns the values in the range in insertion order. It starts from the closest position 
+	 * recorded by the previous ranges and records the position after the range
+	 */
+	public List<V> getRange(int offset, int size)
+	{
+		List<V> list = new ArrayList<>();
+		if (size <= 0) {
+			return list;
+		}
+		if (offset < 0) {
+			offset = 0;
+		}
+
+		long currentRemoveCount = removeCount.get();
+		int position = 0;
+		Iterator<Node<V>> iterator = order.values().iterator();
+		Map.Entry<Integer, Position> recorded = positions.floorEntry(offset);
+		while (recorded != null && recorded.getValue().removeCount != currentRemoveCount) {
+			positions.remove(recorded.getKey(), recorded.getValue());
+			recorded = positions.lowerEntry(recorded.getKey());
+		}
+		if (recorded != null) {
+			position = recorded.getKey();
+			iterator = order.tailMap(recorded.getValue().sequence, true).values().iterator();
+		}
+
+		int visited = 0;
+		Node<V> nextNode = null;
+		while (iterator.hasNext()) {
+			Node<V> node = iterator.next();
+			visited++;
+			if (node.removed) {
+				continue;
+			}
+			if (list.size() == size) {
+				nextNode = node;
+				break;
+			}
+			if (position >= offset) {
+				list.add(node.value);
+			}
+			position++;
+		}
+		visitedNodeCount.add(visited);
+
+		if (nextNode != null) {
+			positions.put(position, new Position(nextNode.sequence, currentRemoveCount));
+			if (positions.size() > MAX_POSITION_COUNT) {
+				positions.pollFirstEntry();
+			}
+		}
+		return list;
+	}
+
+	/**
+	 * @return total number of nodes visited by {@link #getRange(int, int)}
+	 */
+	long getVisitedNodeCount() {
+		return visitedNodeCount.sum();
+	}
+
+	/**
+	 * @param lastKey - keys greater than it are returned, null returns all keys
+	 * @return live view of the keys in natural order
+	 */
+	public NavigableSet<String> keysAfter(String lastKey) {
+		return tailNodes(lastKey).navigableKeySet();
+	}
+
+	/**
+	 * Returns the values whose keys are greater than lastKey in natural order of the keys.
+	 * It starts from lastKey so it does not depend on the previous calls
+	 */
+	public List<V> getRangeAfter(String lastKey, int size) {
+		List<V> list = new ArrayList<>();
+		for (Iterator<Node<V>> iterator = tailNodes(lastKey).values().iterator(); iterator.hasNext() && list.size() < size;) {
+			Node<V> node = iterator.next();
+			if (!node.removed) {
+				list.add(node.value);
+			}
+		}
+		return list;
+	}
+
+	private ConcurrentNavigableMap<String, Node<V>> tailNodes(String lastKey) {
+		if (lastKey == null) {
+			return sortedNodes;
+		}
+		return sortedNodes.tailMap(lastKey, false);
+	}
+
+	public void clear() {
+		for (String key : nodes.keySet()) {
+			remove(key);
+		}
+	}
+
+	/**
+	 * Iterates the nodes that are not removed and returns the mapped field of them
+	 */
+	private static class NodeIterator<V, R> implements Iterator<R> {
+
+		private final Iterator<Node<V>> nodeIterator;
+		private final Function<Node<V>, R> mapper;
+		private R next;
+
+		private NodeIterator(Iterator<Node<V>> nodeIterator, Function<Node<V>, R> mapper) {
+			this.nodeIterator = nodeIterator;
+			this.mapper = mapper;
+			advance();
+		}
+
+		private void advance() {
+			next = null;
+			while (next == null && nodeIterator.hasNext()) {
+				Node<V> node = nodeIterator.next();
+				if (!node.removed) {
+					next = mapper.apply(node);
+				}
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			return next != null;
+		}
+
+		@Override
+		public R next() {
+			if (next == null) {
+				throw new NoSuchElementException();
+			}
+			R value = next;
+			advance();
+			return value;
+		}
+	}
+}
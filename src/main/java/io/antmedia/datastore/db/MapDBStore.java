@@ -4,9 +4,20 @@ import java.io.File;
 import java.lang.reflect.Type;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map.Entry;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Pattern;
 
 import org.apache.commons.io.FilenameUtils;
@@ -21,6 +32,7 @@ import org.slf4j.LoggerFactory;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.JsonSyntaxException;
 import com.google.gson.reflect.TypeToken;
 
 import io.antmedia.AntMediaApplicationAdapter;
@@ -35,31 +47,123 @@ import io.antmedia.datastore.db.types.VoD;
 import io.antmedia.muxer.MuxAdaptor;
 
 
-public class MapDBStore extends DataStore {
+public class MapDBStore extends DataStore implements IKeysetPaginatedDataStore, IBatchUpdateDataStore {
 
 	private DB db;
-	private BTreeMap<String, String> map;
-	private BTreeMap<String, String> vodMap;
-	private BTreeMap<String, String> detectionMap;
+	private RecordMap<Broadcast> map;
+	private RecordMap<VoD> vodMap;
+	private RecordMap<List<TensorFlowObject>> detectionMap;
 	private BTreeMap<String, String> userVodMap;
-	private BTreeMap<String, String> socialEndpointsCredentialsMap;
-	private BTreeMap<String, String> tokenMap;
-	private BTreeMap<String, String> conferenceRoomMap;
+	private RecordMap<SocialEndpointCredentials> socialEndpointsCredentialsMap;
+	private RecordMap<Token> tokenMap;
+	private RecordMap<ConferenceRoom> conferenceRoomMap;
 
+	/**
+	 * Name of the map that has the current records for each map name. A map that is not in it 
+	 * has its records in the map with the same name. It's only created when binary mode is used
+	 */
+	private BTreeMap<String, String> activeMaps;
+
+	/**
+	 * Locks for the read-modify-write operations. Operations on different keys 
+	 * use different locks with high probability so they do not block each other. 
+	 * Plain reads do not take any lock because BTreeMap is thread safe
+	 */
+	private final Object[] keyLocks = new Object[KEY_LOCK_COUNT];
+
+	private boolean binarySerialization;
+
+	/**
+	 * Secondary indexes are kept in memory and built while opening the store. 
+	 * They are updated under the key locks together with the maps
+	 */
+	private final SecondaryIndex broadcastTypeIndex = new SecondaryIndex();
+	private final SecondaryIndex broadcastStatusIndex = new SecondaryIndex();
+	private final SecondaryIndex tokenStreamIndex = new SecondaryIndex();
+
+	/**
+	 * Group commit window in milliseconds. If it is zero or less, every mutation is committed immediately
+	 */
+	private long groupCommitWindowMs = 0;
+
+	/**
+	 * Number of the pending lazy mutations that triggers commit before the window elapses
+	 */
+	private int groupCommitMaxOps = 100;
+
+	/**
+	 * Map names or {@link #STATS_GROUP} whose mutations are committed lazily in group commit mode.
+	 * Mutations of the other maps are committed immediately, which commits the pending lazy ones as well
+	 */
+	private Set<String> lazyCommitGroups = new HashSet<>(Arrays.asList(DEFAULT_LAZY_COMMIT_GROUPS.split(",")));
+
+	private final AtomicInteger pendingCommitCount = new AtomicInteger(0);
+
+	private final AtomicLong commitCount = new AtomicLong(0);
+
+	private final AtomicLong coalescedCommitCount = new AtomicLong(0);
+
+	private ScheduledExecutorService groupCommitExecutor;
+
+	/**
+	 * Lock of the commits and closing the db so that a scheduled flush does not commit a closed db
+	 */
+	private final Object commitLock = new Object();
 
 	private Gson gson;
 	protected static Logger logger = LoggerFactory.getLogger(MapDBStore.class);
-	private static final String MAP_NAME = "BROADCAST";
-	private static final String VOD_MAP_NAME = "VOD";
-	private static final String DETECTION_MAP_NAME = "DETECTION";
+	public static final String MAP_NAME = "BROADCAST";
+	public static final String VOD_MAP_NAME = "VOD";
+	public static final String DETECTION_MAP_NAME = "DETECTION";
 	private static final String USER_MAP_NAME = "USER_VOD";
-	private static final String TOKEN = "TOKEN";
-	private static final String SOCIAL_ENDPONT_CREDENTIALS_MAP_NAME = "SOCIAL_ENDPONT_CREDENTIALS_MAP_NAME";
-	private static final String CONFERENCE_ROOM_MAP_NAME = "CONFERENCE_ROOM";
+	public static final String TOKEN = "TOKEN";
+	public static final String SOCIAL_ENDPONT_CREDENTIALS_MAP_NAME = "SOCIAL_ENDPONT_CREDENTIALS_MAP_NAME";
+	public static final String CONFERENCE_ROOM_MAP_NAME = "CONFERENCE_ROOM";
+	public static final String ACTIVE_MAPS_MAP_NAME = "ACTIVE_MAPS";
 
+	/**
+	 * Durability group of the statistics updates(viewer counts, source quality) 
+	 * that are written to the broadcast records
+	 */
+	public static final String STATS_GROUP = "STATS";
+
+	/**
+	 * Durability groups that are committed lazily by default when group commit is enabled
+	 */
+	public static final String DEFAULT_LAZY_COMMIT_GROUPS = STATS_GROUP + "," + DETECTION_MAP_NAME;
+
+	/**
+	 * Suffix of the map names in which values are stored with {@link BinaryValueSerializer}
+	 */
+	public static final String BINARY_MAP_SUFFIX = "_BIN";
+
+	private static final int KEY_LOCK_COUNT = 64;
+
+	private static final int GROUP_COMMIT_SHUTDOWN_TIMEOUT_MS = 5000;
+
+	private static final Type DETECTION_LIST_TYPE = new TypeToken<ArrayList<TensorFlowObject>>(){}.getType();
 
 
 	public MapDBStore(String dbName) {
+		this(dbName, false);
+	}
+
+	/**
+	 * @param dbName name of the db file
+	 * @param binarySerialization if it is true, values are stored with {@link BinaryValueSerializer} in separate maps,
+	 * otherwise they are stored as JSON strings in the maps that the store has always used. When the mode is changed, 
+	 * records are copied to the maps of the selected mode while opening 
+	 */
+	public MapDBStore(String dbName, boolean binarySerialization) {
+
+		this.binarySerialization = binarySerialization;
+
+		GsonBuilder builder = new GsonBuilder();
+		gson = builder.create();
+
+		for (int i = 0; i < keyLocks.length; i++) {
+			keyLocks[i] = new Object();
+		}
 
 		db = DBMaker
 				.fileDB(dbName)
@@ -67,29 +171,253 @@ public class MapDBStore extends DataStore {
 				.transactionEnable()
 				.make();
 
-		map = db.treeMap(MAP_NAME).keySerializer(Serializer.STRING).valueSerializer(Serializer.STRING).counterEnable()
-				.createOrOpen();
-		vodMap = db.treeMap(VOD_MAP_NAME).keySerializer(Serializer.STRING).valueSerializer(Serializer.STRING)
-				.counterEnable().createOrOpen();
+		if (binarySerialization || db.exists(ACTIVE_MAPS_MAP_NAME)) {
+			activeMaps = db.treeMap(ACTIVE_MAPS_MAP_NAME).keySerializer(Serializer.STRING).valueSerializer(Serializer.STRING)
+					.createOrOpen();
+		}
 
-		detectionMap = db.treeMap(DETECTION_MAP_NAME).keySerializer(Serializer.STRING)
-				.valueSerializer(Serializer.STRING).counterEnable().createOrOpen();
+		map = openMap(MAP_NAME, Broadcast.class);
+
+		vodMap = openMap(VOD_MAP_NAME, VoD.class);
+
+		detectionMap = openMap(DETECTION_MAP_NAME, DETECTION_LIST_TYPE);
 
 		userVodMap = db.treeMap(USER_MAP_NAME).keySerializer(Serializer.STRING).valueSerializer(Serializer.STRING)
 				.counterEnable().createOrOpen();
 
-		socialEndpointsCredentialsMap = db.treeMap(SOCIAL_ENDPONT_CREDENTIALS_MAP_NAME).keySerializer(Serializer.STRING).valueSerializer(Serializer.STRING)
-				.counterEnable().createOrOpen();
+		socialEndpointsCredentialsMap = openMap(SOCIAL_ENDPONT_CREDENTIALS_MAP_NAME, SocialEndpointCredentials.class);
 
-		tokenMap = db.treeMap(TOKEN).keySerializer(Serializer.STRING).valueSerializer(Serializer.STRING)
-				.counterEnable().createOrOpen();
+		tokenMap = openMap(TOKEN, Token.class);
 
-		conferenceRoomMap = db.treeMap(CONFERENCE_ROOM_MAP_NAME).keySerializer(Serializer.STRING).valueSerializer(Serializer.STRING)
-				.counterEnable().createOrOpen();
+		conferenceRoomMap = openMap(CONFERENCE_ROOM_MAP_NAME, ConferenceRoom.class);
 
-		GsonBuilder builder = new GsonBuilder();
-		gson = builder.create();
+		buildIndexes();
+	}
+
+	private void buildIndexes() 
+	{
+		long startTime = System.currentTimeMillis();
+		for (Entry<String, Broadcast> entry : map.entrySet()) {
+			indexBroadcast(entry.getKey(), null, entry.getValue());
+		}
+		for (Entry<String, Token> entry : tokenMap.entrySet()) {
+			indexToken(entry.getKey(), null, entry.getValue());
+		}
+		logger.info("Indexes are built for {} broadcasts and {} tokens in {}ms", map.size(), tokenMap.size(), System.currentTimeMillis() - startTime);
+	}
+
+	private void indexBroadcast(String id, Broadcast previous, Broadcast current) {
+		broadcastTypeIndex.update(id, previous != null ? previous.getType() : null, current != null ? current.getType() : null);
+		broadcastStatusIndex.update(id, previous != null ? previous.getStatus() : null, current != null ? current.getStatus() : null);
+	}
+
+	private void indexToken(String tokenId, Token previous, Token current) {
+		tokenStreamIndex.update(tokenId, previous != null ? previous.getStreamId() : null, current != null ? current.getStreamId() : null);
+	}
+
+	private boolean removeToken(String tokenId) {
+		Token removedToken = tokenMap.remove(tokenId);
+		indexToken(tokenId, removedToken, null);
+		return removedToken != null;
+	}
+
+	/**
+	 * Opens the map of the selected serialization mode. In JSON mode, it's the string map with the given name 
+	 * so the db stays readable by the older versions. In binary mode, it's a typed map whose name has 
+	 * {@link #BINARY_MAP_SUFFIX}. Legacy string maps cannot be opened with a typed serializer because MapDB 
+	 * keeps using {@link Serializer#STRING} that is recorded in its catalog.
+	 * 
+	 * If the current records are in the map of the other mode, the opened map is cleared and 
+	 * the records are copied to it. The other map is kept as it is.
+	 */
+	private <T> RecordMap<T> openMap(String name, Type type) 
+	{
+		String mapName = binarySerialization ? name + BINARY_MAP_SUFFIX : name;
+		RecordMap<T> recordMap = openRecordMap(mapName, type, binarySerialization);
+		if (activeMaps == null) {
+			return recordMap;
+		}
+
+		String activeMapName = activeMaps.getOrDefault(name, name);
+		if (!activeMapName.equals(mapName) && db.exists(activeMapName)) 
+		{
+			RecordMap<T> activeMap = openRecordMap(activeMapName, type, !binarySerialization);
+			recordMap.clear();
+			int count = 0;
+			Iterator<Entry<String, T>> iterator = activeMap.entrySet().iterator();
+			while (iterator.hasNext()) {
+				String key = null;
+				try {
+					Entry<String, T> entry = iterator.next();
+					key = entry.getKey();
+					recordMap.put(key, entry.getValue());
+					count++;
+				}
+				catch (JsonSyntaxException e) {
+					logger.error("Record {} in map {} cannot be migrated {}", key, activeMapName, ExceptionUtils.getStackTrace(e));
+				}
+			}
+			logger.info("{} records are migrated from map {} to {}", count, activeMapName, mapName);
+		}
+
+		if (!mapName.equals(activeMapName)) {
+			if (binarySerialization) {
+				activeMaps.put(name, mapName);
+			}
+			else {
+				activeMaps.remove(name);
+			}
+		}
+		db.commit();
+		return recordMap;
+	}
+
+	private <T> RecordMap<T> openRecordMap(String mapName, Type type, boolean binary) {
+		if (binary) {
+			BTreeMap<String, T> typedMap = db.treeMap(mapName).keySerializer(Serializer.STRING)
+					.valueSerializer(new BinaryValueSerializer<T>(type)).counterEnable().createOrOpen();
+			return RecordMap.typed(typedMap);
+		}
+		BTreeMap<String, String> stringMap = db.treeMap(mapName).keySerializer(Serializer.STRING)
+				.valueSerializer(Serializer.STRING).counterEnable().createOrOpen();
+		return RecordMap.json(stringMap, gson, type);
+	}
+
+	/**
+	 * Enables group commit mode. Mutations in the lazy groups are coalesced and 
+	 * committed when the window elapses or when the number of pending mutations reaches maxOps. 
+	 * A lazy mutation can be lost if the process crashes before the commit.
+	 * 
+	 * @param windowMs commit window in milliseconds, zero or less disables group commit
+	 * @param maxOps maximum number of pending lazy mutations
+	 * @param lazyGroups comma separated map names or {@link #STATS_GROUP}, if it is null 
+	 * {@link #DEFAULT_LAZY_COMMIT_GROUPS} is used
+	 */
+	public synchronized void setGroupCommit(long windowMs, int maxOps, String lazyGroups) 
+	{
+		stopGroupCommitExecutor();
+		flushCommits();
+
+		groupCommitWindowMs = windowMs;
+		groupCommitMaxOps = maxOps;
+
+		Set<String> groups = new HashSet<>();
+		if (lazyGroups == null) {
+			lazyGroups = DEFAULT_LAZY_COMMIT_GROUPS;
+		}
+		for (String group : lazyGroups.split(",")) {
+			if (!group.trim().isEmpty()) {
+				groups.add(group.trim());
+			}
+		}
+		lazyCommitGroups = groups;
+
+		if (windowMs > 0) {
+			groupCommitExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread thread = new Thread(r, "MapDBGroupCommit");
+				thread.setDaemon(true);
+				return thread;
+			});
+			groupCommitExecutor.scheduleWithFixedDelay(this::flushCommits, windowMs, windowMs, TimeUnit.MILLISECONDS);
+		}
+		logger.info("Group commit window:{}ms max ops:{} lazy groups:{}", windowMs, maxOps, lazyCommitGroups);
+	}
+
+	/**
+	 * Commits the mutation of the group immediately if group commit is disabled or the group is not lazy. 
+	 * Otherwise the commit is deferred to the group commit window
+	 */
+	private void commit(String group) 
+	{
+		if (groupCommitWindowMs <= 0 || !lazyCommitGroups.contains(group)) {
+			//strict commit covers the pending lazy mutations as well
+			synchronized (commitLock) {
+				pendingCommitCount.set(0);
+				db.commit();
+				commitCount.incrementAndGet();
+			}
+		}
+		else if (pendingCommitCount.incrementAndGet() >= groupCommitMaxOps) {
+			flushCommits();
+		}
+		else {
+			coalescedCommitCount.incrementAndGet();
+		}
+	}
 
+	/**
+	 * Commits the pending lazy mutations if there are any
+	 */
+	public void flushCommits() 
+	{
+		synchronized (commitLock) {
+			if (pendingCommitCount.getAndSet(0) > 0 && !db.isClosed()) {
+				try {
+					db.commit();
+					commitCount.incrementAndGet();
+				}
+				catch (Exception e) {
+					logger.error(ExceptionUtils.getStackTrace(e));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Stops the scheduled flushes and waits for the running one to finish
+	 */
+	private synchronized void stopGroupCommitExecutor() 
+	{
+		if (groupCommitExecutor != null) {
+			groupCommitExecutor.shutdown();
+			try {
+				if (!groupCommitExecutor.awaitTermination(GROUP_COMMIT_SHUTDOWN_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+					logger.warn("Group commit executor is not terminated in {}ms", GROUP_COMMIT_SHUTDOWN_TIMEOUT_MS);
+				}
+			} catch (InterruptedException e) {
+				logger.error(ExceptionUtils.getStackTrace(e));
+				Thread.currentThread().interrupt();
+			}
+			groupCommitExecutor = null;
+		}
+	}
+
+	public long getGroupCommitWindowMs() {
+		return groupCommitWindowMs;
+	}
+
+	public int getGroupCommitMaxOps() {
+		return groupCommitMaxOps;
+	}
+
+	public Set<String> getLazyCommitGroups() {
+		return lazyCommitGroups;
+	}
+
+	public int getPendingCommitCount() {
+		return pendingCommitCount.get();
+	}
+
+	/**
+	 * @return number of the commits that are done on disk
+	 */
+	public long getCommitCount() {
+		return commitCount.get();
+	}
+
+	/**
+	 * @return number of the mutations whose commits are coalesced into a later commit
+	 */
+	public long getCoalescedCommitCount() {
+		return coalescedCommitCount.get();
+	}
+
+	private Object getLock(String key) {
+		return keyLocks[(key.hashCode() & 0x7fffffff) % keyLocks.length];
+	}
+
+	public boolean isBinarySerialization() {
+		return binarySerialization;
 	}
 
 	public BTreeMap<String, String> getUserVodMap() {
@@ -100,27 +428,27 @@ public class MapDBStore extends DataStore {
 		this.userVodMap = userVodMap;
 	}
 
-	public BTreeMap<String, String> getVodMap() {
+	public RecordMap<VoD> getVodMap() {
 		return vodMap;
 	}
 
-	public void setVodMap(BTreeMap<String, String> vodMap) {
+	public void setVodMap(RecordMap<VoD> vodMap) {
 		this.vodMap = vodMap;
 	}
 
-	public BTreeMap<String, String> getMap() {
+	public RecordMap<Broadcast> getMap() {
 		return map;
 	}
 
-	public void setMap(BTreeMap<String, String> map) {
+	public void setMap(RecordMap<Broadcast> map) {
 		this.map = map;
 	}
 
-	public BTreeMap<String, String> getDetectionMap() {
+	public RecordMap<List<TensorFlowObject>> getDetectionMap() {
 		return detectionMap;
 	}
 
-	public void setDetectionMap(BTreeMap<String, String> detectionMap) {
+	public void setDetectionMap(RecordMap<List<TensorFlowObject>> detectionMap) {
 		this.detectionMap = detectionMap;
 	}
 
@@ -128,29 +456,29 @@ public class MapDBStore extends DataStore {
 	public String save(Broadcast broadcast) {
 
 		String streamId = null;
-		synchronized (this) {
-			if (broadcast != null) {
-				try {
-					if (broadcast.getStreamId() == null) {
-						streamId = RandomStringUtils.randomNumeric(24);
-						broadcast.setStreamId(streamId);
-					}
-					streamId = broadcast.getStreamId();
+		if (broadcast != null) {
+			try {
+				if (broadcast.getStreamId() == null) {
+					streamId = RandomStringUtils.randomNumeric(24);
+					broadcast.setStreamId(streamId);
+				}
+				streamId = broadcast.getStreamId();
 
-					String rtmpURL = broadcast.getRtmpURL();
-					if (rtmpURL != null) {
-						rtmpURL += streamId;
-					}
-					broadcast.setRtmpURL(rtmpURL);
-					if(broadcast.getStatus()==null) {
-						broadcast.setStatus(AntMediaApplicationAdapter.BROADCAST_STATUS_CREATED);
-					}
-					map.put(streamId, gson.toJson(broadcast));
-					db.commit();
-				} catch (Exception e) {
-					logger.error(ExceptionUtils.getStackTrace(e));
-					streamId = null;
+				String rtmpURL = broadcast.getRtmpURL();
+				if (rtmpURL != null) {
+					rtmpURL += streamId;
 				}
+				broadcast.setRtmpURL(rtmpURL);
+				if(broadcast.getStatus()==null) {
+					broadcast.setStatus(AntMediaApplicationAdapter.BROADCAST_STATUS_CREATED);
+				}
+				synchronized (getLock(streamId)) {
+					indexBroadcast(streamId, map.put(streamId, broadcast), broadcast);
+					commit(MAP_NAME);
+				}
+			} catch (Exception e) {
+				logger.error(ExceptionUtils.getStackTrace(e));
+				streamId = null;
 			}
 		}
 
@@ -159,26 +487,16 @@ public class MapDBStore extends DataStore {
 
 	@Override
 	public Broadcast get(String id) {
-		synchronized (this) {
-			if (id != null) {
-				String jsonString = map.get(id);
-				if (jsonString != null) {
-					return gson.fromJson(jsonString, Broadcast.class);
-				}
-			}
+		if (id != null) {
+			return map.get(id);
 		}
 		return null;
 	}
 
 	@Override
 	public VoD getVoD(String id) {
-		synchronized (this) {
-			if (id != null) {
-				String jsonString = vodMap.get(id);
-				if (jsonString != null) {
-					return gson.fromJson(jsonString, VoD.class);
-				}
-			}
+		if (id != null) {
+			return vodMap.get(id);
 		}
 		return null;
 	}
@@ -186,16 +504,15 @@ public class MapDBStore extends DataStore {
 	@Override
 	public boolean updateStatus(String id, String status) {
 		boolean result = false;
-		synchronized (this) {
-			if (id != null) {
-				String jsonString = map.get(id);
-				if (jsonString != null) {
-					Broadcast broadcast = gson.fromJson(jsonString, Broadcast.class);
+		if (id != null) {
+			synchronized (getLock(id)) {
+				Broadcast broadcast = map.get(id);
+				if (broadcast != null) {
+					String previousStatus = broadcast.getStatus();
 					broadcast.setStatus(status);
-					String jsonVal = gson.toJson(broadcast);
-					String previousValue = map.replace(id, jsonVal);
-					db.commit();
-					logger.debug("updateStatus replacing id {} having value {} to {}", id, previousValue, jsonVal);
+					indexBroadcast(id, map.replace(id, broadcast), broadcast);
+					commit(MAP_NAME);
+					logger.debug("updateStatus replacing id {} having status {} to {}", id, previousStatus, status);
 					result = true;
 				}
 			}
@@ -206,17 +523,16 @@ public class MapDBStore extends DataStore {
 	@Override
 	public boolean updateDuration(String id, long duration) {
 		boolean result = false;
-		synchronized (this) {
-			if (id != null) {
-				String jsonString = map.get(id);
-				if (jsonString != null) {
-					Broadcast broadcast = gson.fromJson(jsonString, Broadcast.class);
+		if (id != null) {
+			synchronized (getLock(id)) {
+				Broadcast broadcast = map.get(id);
+				if (broadcast != null) {
+					long previousDuration = broadcast.getDuration();
 					broadcast.setDuration(duration);
-					String jsonVal = gson.toJson(broadcast);
-					String previousValue = map.replace(id, jsonVal);
-					db.commit();
+					indexBroadcast(id, map.replace(id, broadcast), broadcast);
+					commit(MAP_NAME);
 					result = true;
-					logger.debug("updateStatus replacing id {} having value {} to {}", id, previousValue, jsonVal);
+					logger.debug("updateDuration replacing id {} having duration {} to {}", id, previousDuration, duration);
 				}
 			}
 		}
@@ -227,19 +543,18 @@ public class MapDBStore extends DataStore {
 	@Override
 	public boolean addEndpoint(String id, Endpoint endpoint) {
 		boolean result = false;
-		synchronized (this) {
-			if (id != null && endpoint != null) {
-				String jsonString = map.get(id);
-				if (jsonString != null) {
-					Broadcast broadcast = gson.fromJson(jsonString, Broadcast.class);
+		if (id != null && endpoint != null) {
+			synchronized (getLock(id)) {
+				Broadcast broadcast = map.get(id);
+				if (broadcast != null) {
 					List<Endpoint> endPointList = broadcast.getEndPointList();
 					if (endPointList == null) {
 						endPointList = new ArrayList<>();
 					}
 					endPointList.add(endpoint);
 					broadcast.setEndPointList(endPointList);
-					map.replace(id, gson.toJson(broadcast));
-					db.commit();
+					indexBroadcast(id, map.replace(id, broadcast), broadcast);
+					commit(MAP_NAME);
 					result = true;
 				}
 			}
@@ -250,12 +565,11 @@ public class MapDBStore extends DataStore {
 	@Override
 	public boolean removeEndpoint(String id, Endpoint endpoint) {
 		boolean result = false;
-		synchronized (this) {
 
-			if (id != null && endpoint != null) {
-				String jsonString = map.get(id);
-				if (jsonString != null) {
-					Broadcast broadcast = gson.fromJson(jsonString, Broadcast.class);
+		if (id != null && endpoint != null) {
+			synchronized (getLock(id)) {
+				Broadcast broadcast = map.get(id);
+				if (broadcast != null) {
 					List<Endpoint> endPointList = broadcast.getEndPointList();
 					if (endPointList != null) {
 						for (Iterator<Endpoint> iterator = endPointList.iterator(); iterator.hasNext();) {
@@ -269,8 +583,8 @@ public class MapDBStore extends DataStore {
 
 						if (result) {
 							broadcast.setEndPointList(endPointList);
-							map.replace(id, gson.toJson(broadcast));
-							db.commit();
+							indexBroadcast(id, map.replace(id, broadcast), broadcast);
+							commit(MAP_NAME);
 						}
 					}
 				}
@@ -283,14 +597,13 @@ public class MapDBStore extends DataStore {
 	public boolean removeAllEndpoints(String id) {
 
 		boolean result = false;
-		synchronized (this) {
-			if (id != null) {
-				String jsonString = map.get(id);
-				if (jsonString != null) {
-					Broadcast broadcast = gson.fromJson(jsonString, Broadcast.class);
+		if (id != null) {
+			synchronized (getLock(id)) {
+				Broadcast broadcast = map.get(id);
+				if (broadcast != null) {
 					broadcast.setEndPointList(null);
-					map.replace(id, gson.toJson(broadcast));
-					db.commit();
+					indexBroadcast(id, map.replace(id, broadcast), broadcast);
+					commit(MAP_NAME);
 					result = true;
 				}
 			}
@@ -300,32 +613,25 @@ public class MapDBStore extends DataStore {
 
 	@Override
 	public long getBroadcastCount() {
-		synchronized (this) {
-			return map.getSize();
-		}
+		return map.size();
 	}
 
 	@Override
 	public long getActiveBroadcastCount() {
-		Collection<String> values = map.values();
-		int activeBroadcastCount = 0;
-		for (String broadcastString : values) {
-			Broadcast broadcast = gson.fromJson(broadcastString, Broadcast.class);
-			String status = broadcast.getStatus();
-			if (status != null && status.equals(AntMediaApplicationAdapter.BROADCAST_STATUS_BROADCASTING)) {
-				activeBroadcastCount++;
-			}
-		}
-		return activeBroadcastCount;
+		return broadcastStatusIndex.getCount(AntMediaApplicationAdapter.BROADCAST_STATUS_BROADCASTING);
 	}
 
 	@Override
 	public boolean delete(String id) {
 		boolean result = false;
-		synchronized (this) {
-			result = map.remove(id) != null;
-			if (result) {
-				db.commit();
+		if (id != null) {
+			synchronized (getLock(id)) {
+				Broadcast removedBroadcast = map.remove(id);
+				indexBroadcast(id, removedBroadcast, null);
+				result = removedBroadcast != null;
+				if (result) {
+					commit(MAP_NAME);
+				}
 			}
 		}
 		return result;
@@ -333,136 +639,114 @@ public class MapDBStore extends DataStore {
 
 	@Override
 	public List<Broadcast> getBroadcastList(int offset, int size) {
-		List<Broadcast> list = new ArrayList<>();
-		synchronized (this) {
-			Collection<String> values = map.values();
-			int t = 0;
-			int itemCount = 0;
-			if (size > MAX_ITEM_IN_ONE_LIST) {
-				size = MAX_ITEM_IN_ONE_LIST;
-			}
-			if (offset < 0) {
-				offset = 0;
-			}
-			Iterator<String> iterator = values.iterator();
-
-			while(itemCount < size && iterator.hasNext()) {
-				if (t < offset) {
-					t++;
-					iterator.next();
-				}
-				else {
-					list.add(gson.fromJson(iterator.next(), Broadcast.class));
-
-					itemCount++;	
-				}
-			}
-
-		}
-		return list;
+		return getList(map.values(), offset, size);
 	}
 
 	@Override
 	public List<VoD> getVodList(int offset, int size) {
+		return getList(vodMap.values(), offset, size);
+	}
 
-		List<VoD> list = new ArrayList<>();
-		synchronized (this) {
+	/**
+	 * Returns the items in the range. Size is limited to {@link DataStore#MAX_ITEM_IN_ONE_LIST}
+	 */
+	private <T> List<T> getList(Collection<T> values, int offset, int size) {
+		List<T> list = new ArrayList<>();
+		int t = 0;
+		int itemCount = 0;
+		if (size > MAX_ITEM_IN_ONE_LIST) {
+			size = MAX_ITEM_IN_ONE_LIST;
+		}
+		if (offset < 0) {
+			offset = 0;
+		}
+		Iterator<T> iterator = values.iterator();
 
-			Collection<String> values = vodMap.values();
-			int t = 0;
-			int itemCount = 0;
-			if (size > MAX_ITEM_IN_ONE_LIST) {
-				size = MAX_ITEM_IN_ONE_LIST;
+		while(itemCount < size && iterator.hasNext()) {
+			if (t < offset) {
+				t++;
+				iterator.next();
 			}
-			if (offset < 0) {
-				offset = 0;
-			}
-
-			for (String vodString : values) {
-				if (t < offset) {
-					t++;
-					continue;
-				}
-				list.add(gson.fromJson(vodString, VoD.class));
+			else {
+				list.add(iterator.next());
 				itemCount++;
-
-				if (itemCount >= size) {
-					break;
-				}
-
 			}
 		}
 		return list;
 	}
 
 
-	@Override
-	public List<Broadcast> filterBroadcastList(int offset, int size, String type) {
-
-		List<Broadcast> list = new ArrayList<>();
-		synchronized (this) {
-			int t = 0;
-			int itemCount = 0;
-			if (size > MAX_ITEM_IN_ONE_LIST) {
-				size = MAX_ITEM_IN_ONE_LIST;
-			}
-			if (offset < 0) {
-				offset = 0;
-			}
-
-			Object[] objectArray = map.getValues().toArray();
-
-			Broadcast[] broadcastArray = new Broadcast[objectArray.length];
-
-			for (int i = 0; i < objectArray.length; i++) {
-				broadcastArray[i] = gson.fromJson((String) objectArray[i], Broadcast.class);
+	/**
+	 * Returns the records of the keys in the range. Offset is skipped on the keys 
+	 * so that skipped records are not read. Size is limited to {@link DataStore#MAX_ITEM_IN_ONE_LIST}
+	 */
+	private <T> List<T> getListByKeys(RecordMap<T> valueMap, Collection<String> keys, int offset, int size) {
+		List<T> list = new ArrayList<>();
+		for (String key : getList(keys, offset, size)) {
+			T value = valueMap.get(key);
+			if (value != null) {
+				list.add(value);
 			}
+		}
+		return list;
+	}
 
-			List<Broadcast> filterList = new ArrayList<>();
-			for (int i = 0; i < broadcastArray.length; i++) {
+	/**
+	 * Returns the values whose keys are greater than lastKey in key order
+	 */
+	private <T> List<T> getListAfter(RecordMap<T> valueMap, String lastKey, int size) {
+		Collection<T> values = lastKey == null ? valueMap.values() : valueMap.tailMap(lastKey, false).values();
+		return getList(values, 0, size);
+	}
 
-				if (broadcastArray[i].getType().equals(type)) {
-					filterList.add(gson.fromJson((String) objectArray[i], Broadcast.class));
-				}
-			}
-			Iterator<Broadcast> iterator = filterList.iterator();
+	@Override
+	public List<Broadcast> getBroadcastListAfter(String lastStreamId, int size) {
+		return getListAfter(map, lastStreamId, size);
+	}
 
-			while(itemCount < size && iterator.hasNext()) {
-				if (t < offset) {
-					t++;
-					iterator.next();
-				}
-				else {
+	@Override
+	public List<VoD> getVodListAfter(String lastVodId, int size) {
+		return getListAfter(vodMap, lastVodId, size);
+	}
 
-					list.add(iterator.next());
-					itemCount++;
-				}
-			}
+	@Override
+	public List<SocialEndpointCredentials> getSocialEndpointsAfter(String lastId, int size) {
+		return getListAfter(socialEndpointsCredentialsMap, lastId, size);
+	}
 
+	@Override
+	public List<Token> listAllTokensAfter(String streamId, String lastTokenId, int size) {
+		NavigableSet<String> keys = tokenStreamIndex.getKeys(streamId);
+		if (lastTokenId != null) {
+			keys = keys.tailSet(lastTokenId, false);
 		}
-		return list;
+		return getListByKeys(tokenMap, keys, 0, size);
+	}
 
+	@Override
+	public List<Broadcast> filterBroadcastList(int offset, int size, String type) {
+
+		return getListByKeys(map, broadcastTypeIndex.getKeys(type), offset, size);
 	}
 
 	@Override
 	public String addVod(VoD vod) {
 
 		String id = null;
-		synchronized (this) {
-			try {
-				if (vod.getVodId() == null) {
-					vod.setVodId(RandomStringUtils.randomNumeric(24));
-				}
-				id = vod.getVodId();
-				vodMap.put(vod.getVodId(), gson.toJson(vod));
-				db.commit();
-				logger.warn("VoD is saved to DB {} with voID {}", vod.getVodName(), id);
-
-			} catch (Exception e) {
-				logger.error(e.getMessage());
-				id = null;
+		try {
+			if (vod.getVodId() == null) {
+				vod.setVodId(RandomStringUtils.randomNumeric(24));
+			}
+			id = vod.getVodId();
+			synchronized (getLock(id)) {
+				vodMap.put(id, vod);
+				commit(VOD_MAP_NAME);
 			}
+			logger.warn("VoD is saved to DB {} with voID {}", vod.getVodName(), id);
 
+		} catch (Exception e) {
+			logger.error(e.getMessage());
+			id = null;
 		}
 		return id;
 	}
@@ -473,24 +757,14 @@ public class MapDBStore extends DataStore {
 
 		List<Broadcast> streamsList = new ArrayList<>();
 
-		synchronized (this) {
-
-			Object[] objectArray = map.getValues().toArray();
-			Broadcast[] broadcastArray = new Broadcast[objectArray.length];
-
-
-			for (int i = 0; i < objectArray.length; i++) {
-
-				broadcastArray[i] = gson.fromJson((String) objectArray[i], Broadcast.class);
-
-			}
-
-			for (int i = 0; i < broadcastArray.length; i++) {
-
-				if (broadcastArray[i].getType().equals(AntMediaApplicationAdapter.IP_CAMERA) || broadcastArray[i].getType().equals(AntMediaApplicationAdapter.STREAM_SOURCE)) {
+		//merge the keys to keep the order of the broadcast map
+		Set<String> keys = new TreeSet<>(broadcastTypeIndex.getKeys(AntMediaApplicationAdapter.IP_CAMERA));
+		keys.addAll(broadcastTypeIndex.getKeys(AntMediaApplicationAdapter.STREAM_SOURCE));
 
-					streamsList.add(gson.fromJson((String) objectArray[i], Broadcast.class));
-				}
+		for (String key : keys) {
+			Broadcast broadcast = map.get(key);
+			if (broadcast != null) {
+				streamsList.add(broadcast);
 			}
 		}
 		return streamsList;
@@ -498,7 +772,11 @@ public class MapDBStore extends DataStore {
 
 	@Override
 	public void close() {
-		db.close();
+		stopGroupCommitExecutor();
+		synchronized (commitLock) {
+			flushCommits();
+			db.close();
+		}
 	}
 
 	@Override
@@ -506,10 +784,12 @@ public class MapDBStore extends DataStore {
 
 		boolean result = false;
 
-		synchronized (this) {
-			result = vodMap.remove(id) != null;
-			if (result) {
-				db.commit();
+		if (id != null) {
+			synchronized (getLock(id)) {
+				result = vodMap.remove(id) != null;
+				if (result) {
+					commit(VOD_MAP_NAME);
+				}
 			}
 		}
 		return result;
@@ -517,9 +797,7 @@ public class MapDBStore extends DataStore {
 
 	@Override
 	public long getTotalVodNumber() {
-		synchronized (this) {
-			return getVodMap().size();
-		}
+		return getVodMap().size();
 	}
 
 	@Override
@@ -532,19 +810,19 @@ public class MapDBStore extends DataStore {
 		int numberOfSavedFiles = 0;
 
 		synchronized (this) {
-			Object[] objectArray = vodMap.getValues().toArray();
-			VoD[] vodtArray = new VoD[objectArray.length];
-
-			for (int i = 0; i < objectArray.length; i++) {
-				vodtArray[i] = gson.fromJson((String) objectArray[i], VoD.class);
-			}
-
-			for (int i = 0; i < vodtArray.length; i++) {
-				if (vodtArray[i].getType().equals(VoD.USER_VOD)) {
-					vodMap.remove(vodtArray[i].getVodId());
-					db.commit();
+			boolean removed = false;
+			for (Iterator<Entry<String, VoD>> iterator = vodMap.entrySet().iterator(); iterator.hasNext();) {
+				Entry<String, VoD> entry = iterator.next();
+				if (entry.getValue().getType().equals(VoD.USER_VOD)) {
+					synchronized (getLock(entry.getKey())) {
+						vodMap.remove(entry.getKey());
+					}
+					removed = true;
 				}
 			}
+			if (removed) {
+				commit(VOD_MAP_NAME);
+			}
 
 
 			File[] listOfFiles = userfile.listFiles();
@@ -586,19 +864,43 @@ public class MapDBStore extends DataStore {
 
 	@Override
 	protected boolean updateSourceQualityParametersLocal(String id, String quality, double speed, int pendingPacketQueue) {
+		boolean result = setSourceQualityParameters(id, quality, speed, pendingPacketQueue);
+		if (result) {
+			commit(STATS_GROUP);
+		}
+		return result;
+	}
+
+	/**
+	 * Updates the streams and commits once
+	 */
+	@Override
+	public int updateSourceQualityParameters(Collection<String> ids, String quality, double speed, int pendingPacketQueue) {
+		int count = 0;
+		if (isWriteStatsToDatastore()) {
+			for (String id : ids) {
+				if (setSourceQualityParameters(id, quality, speed, pendingPacketQueue)) {
+					count++;
+				}
+			}
+			if (count > 0) {
+				commit(STATS_GROUP);
+			}
+		}
+		return count;
+	}
+
+	private boolean setSourceQualityParameters(String id, String quality, double speed, int pendingPacketQueue) {
 		boolean result = false;
-		synchronized (this) {
-			if (id != null) {
-				String jsonString = map.get(id);
-				if (jsonString != null) {
-					Broadcast broadcast = gson.fromJson(jsonString, Broadcast.class);
+		if (id != null) {
+			synchronized (getLock(id)) {
+				Broadcast broadcast = map.get(id);
+				if (broadcast != null) {
 					broadcast.setSpeed(speed);
 					broadcast.setQuality(quality);
 					broadcast.setPendingPacketSize(pendingPacketQueue);
-					map.replace(id, gson.toJson(broadcast));
-					db.commit();
+					indexBroadcast(id, map.replace(id, broadcast), broadcast);
 					result = true;
-
 				}
 			}
 		}
@@ -607,26 +909,27 @@ public class MapDBStore extends DataStore {
 
 	public SocialEndpointCredentials addSocialEndpointCredentials(SocialEndpointCredentials credentials) {
 		SocialEndpointCredentials addedCredential = null;
-		synchronized (this) {
-
-			if (credentials != null && credentials.getAccountName() != null && credentials.getAccessToken() != null
-					&& credentials.getServiceName() != null) 
-			{
-				if (credentials.getId() == null) {
-					//create new id if id is not set
-					String id = RandomStringUtils.randomAlphanumeric(6);
-					credentials.setId(id);
-					socialEndpointsCredentialsMap.put(id, gson.toJson(credentials));
-					db.commit();
-					addedCredential = credentials;
-				}	
-				else {
 
+		if (credentials != null && credentials.getAccountName() != null && credentials.getAccessToken() != null
+				&& credentials.getServiceName() != null) 
+		{
+			if (credentials.getId() == null) {
+				//create new id if id is not set
+				String id = RandomStringUtils.randomAlphanumeric(6);
+				credentials.setId(id);
+				synchronized (getLock(id)) {
+					socialEndpointsCredentialsMap.put(id, credentials);
+					commit(SOCIAL_ENDPONT_CREDENTIALS_MAP_NAME);
+				}
+				addedCredential = credentials;
+			}	
+			else {
+				synchronized (getLock(credentials.getId())) {
 					if(socialEndpointsCredentialsMap.get(credentials.getId()) != null) 
 					{
 						//replace the field if id exists
-						socialEndpointsCredentialsMap.put(credentials.getId(), gson.toJson(credentials));
-						db.commit();
+						socialEndpointsCredentialsMap.put(credentials.getId(), credentials);
+						commit(SOCIAL_ENDPONT_CREDENTIALS_MAP_NAME);
 						addedCredential = credentials;
 					}
 					//if id is not matched with any value, do not record
@@ -638,44 +941,18 @@ public class MapDBStore extends DataStore {
 
 	@Override
 	public List<SocialEndpointCredentials> getSocialEndpoints(int offset, int size) {
-
-		List<SocialEndpointCredentials> list = new ArrayList<>();
-
-		synchronized (this) {
-			Collection<String> values = socialEndpointsCredentialsMap.values();
-			int t = 0;
-			int itemCount = 0;
-			if (size > MAX_ITEM_IN_ONE_LIST) {
-				size = MAX_ITEM_IN_ONE_LIST;
-			}
-			if (offset < 0) {
-				offset = 0;
-			}
-
-			for (String credentialString : values) {
-				if (t < offset) {
-					t++;
-					continue;
-				}
-				list.add(gson.fromJson(credentialString, SocialEndpointCredentials.class));
-				itemCount++;
-
-				if (itemCount >= size) {
-					break;
-				}
-
-			}
-		}
-		return list;
+		return getList(socialEndpointsCredentialsMap.values(), offset, size);
 	}
 
 	@Override
 	public boolean removeSocialEndpointCredentials(String id) {
 		boolean result = false;
-		synchronized (this) {
-			result = socialEndpointsCredentialsMap.remove(id) != null;
-			if (result) {
-				db.commit();
+		if (id != null) {
+			synchronized (getLock(id)) {
+				result = socialEndpointsCredentialsMap.remove(id) != null;
+				if (result) {
+					commit(SOCIAL_ENDPONT_CREDENTIALS_MAP_NAME);
+				}
 			}
 		}
 		return result;
@@ -684,13 +961,8 @@ public class MapDBStore extends DataStore {
 	@Override
 	public SocialEndpointCredentials getSocialEndpointCredentials(String id) {
 		SocialEndpointCredentials credential = null;
-		synchronized (this) {
-			if (id != null) {
-				String jsonString = socialEndpointsCredentialsMap.get(id);
-				if (jsonString != null) {
-					credential = gson.fromJson(jsonString, SocialEndpointCredentials.class);
-				}
-			}
+		if (id != null) {
+			credential = socialEndpointsCredentialsMap.get(id);
 		}
 		return credential;
 
@@ -699,39 +971,31 @@ public class MapDBStore extends DataStore {
 	@Override
 
 	public long getTotalBroadcastNumber() {
-		synchronized (this) {
-			return getMap().size();
-		}
+		return getMap().size();
 	}
 
 
 	public void saveDetection(String id, long timeElapsed, List<TensorFlowObject> detectedObjects) {
-		synchronized (this) {
-			try {
-				if (detectedObjects != null) {
-					for (TensorFlowObject tensorFlowObject : detectedObjects) {
-						tensorFlowObject.setDetectionTime(timeElapsed);
-					}
-					detectionMap.put(id, gson.toJson(detectedObjects));
-					db.commit();
+		try {
+			if (detectedObjects != null) {
+				for (TensorFlowObject tensorFlowObject : detectedObjects) {
+					tensorFlowObject.setDetectionTime(timeElapsed);
+				}
+				synchronized (getLock(id)) {
+					detectionMap.put(id, detectedObjects);
+					commit(DETECTION_MAP_NAME);
 				}
-			} catch (Exception e) {
-				logger.error(e.getMessage());
 			}
+		} catch (Exception e) {
+			logger.error(e.getMessage());
 		}
 	}
 
 	@Override
 	public List<TensorFlowObject> getDetection(String id) {
 
-		synchronized (this) {
-			if (id != null) {
-				String jsonString = detectionMap.get(id);
-				if (jsonString != null) {
-					Type listType = new TypeToken<ArrayList<TensorFlowObject>>(){}.getType();
-					return gson.fromJson(jsonString, listType);
-				}
-			}
+		if (id != null) {
+			return detectionMap.get(id);
 		}
 		return null;
 	}
@@ -741,31 +1005,30 @@ public class MapDBStore extends DataStore {
 
 		List<TensorFlowObject> list = new ArrayList<>();
 
-		synchronized (this) {
-			Type listType = new TypeToken<ArrayList<TensorFlowObject>>(){}.getType();
-			int offsetCount = 0;
-			int batchCount = 0;
+		int offsetCount = 0;
+		int batchCount = 0;
 
-			if (batchSize > MAX_ITEM_IN_ONE_LIST) {
-				batchSize = MAX_ITEM_IN_ONE_LIST;
-			}
+		if (batchSize > MAX_ITEM_IN_ONE_LIST) {
+			batchSize = MAX_ITEM_IN_ONE_LIST;
+		}
 
-			for (Iterator<String> keyIterator =  detectionMap.keyIterator(); keyIterator.hasNext();) {
-				String keyValue = keyIterator.next();
-				if (keyValue.startsWith(idFilter)) 
-				{
-					if (offsetCount < offsetSize) {
-						offsetCount++;
-						continue;
-					}
-					if (batchCount >= batchSize) {
-						break;
-					}
-					List<TensorFlowObject> detectedList = gson.fromJson(detectionMap.get(keyValue), listType);
-					list.addAll(detectedList);
-					batchCount=list.size();
-				}
+		//keys having the prefix are consecutive in the tree so scan starts from the prefix and ends at the first unmatched key
+		for (String keyValue : detectionMap.tailMap(idFilter, true).keySet()) {
+			if (!keyValue.startsWith(idFilter)) {
+				break;
+			}
+			if (offsetCount < offsetSize) {
+				offsetCount++;
+				continue;
+			}
+			if (batchCount >= batchSize) {
+				break;
 			}
+			List<TensorFlowObject> detectedList = detectionMap.get(keyValue);
+			if (detectedList != null) {
+				list.addAll(detectedList);
+			}
+			batchCount=list.size();
 		}
 		return list;
 	}
@@ -773,22 +1036,17 @@ public class MapDBStore extends DataStore {
 	@Override
 	public long getObjectDetectedTotal(String id) {
 
-		List<TensorFlowObject> list = new ArrayList<>();
-
-		Type listType = new TypeToken<ArrayList<TensorFlowObject>>(){}.getType();
+		long total = 0;
 
-		synchronized (this) {
-
-			for (Iterator<String> keyIterator =  detectionMap.keyIterator(); keyIterator.hasNext();) {
-				String keyValue = keyIterator.next();
-				if (keyValue.startsWith(id)) 
-				{
-					List<TensorFlowObject> detectedList = gson.fromJson(detectionMap.get(keyValue), listType);
-					list.addAll(detectedList);
-				}
+		for (Entry<String, List<TensorFlowObject>> entry : detectionMap.tailMap(id, true).entrySet()) {
+			if (!entry.getKey().startsWith(id)) {
+				break;
+			}
+			if (entry.getValue() != null) {
+				total += entry.getValue().size();
 			}
 		}
-		return list.size();
+		return total;
 	}
 
 
@@ -801,22 +1059,22 @@ public class MapDBStore extends DataStore {
 	@Override
 	public boolean updateBroadcastFields(String streamId, Broadcast broadcast) {
 		boolean result = false;
-		synchronized (this) {
-			try {
-				logger.debug("inside of editStreamSourceInfo {}", broadcast.getStreamId());
+		try {
+			logger.debug("inside of editStreamSourceInfo {}", broadcast.getStreamId());
+			synchronized (getLock(streamId)) {
 				Broadcast oldBroadcast = get(streamId);
 				if (oldBroadcast != null) 
 				{
 
 					updateStreamInfo(oldBroadcast, broadcast.getName(), broadcast.getDescription(), broadcast.getUsername(), broadcast.getPassword(), broadcast.getIpAddr(), broadcast.getStreamUrl());
-					getMap().replace(streamId, gson.toJson(oldBroadcast));
+					indexBroadcast(streamId, getMap().replace(streamId, oldBroadcast), oldBroadcast);
 
-					db.commit();
+					commit(MAP_NAME);
 					result = true;
 				}
-			} catch (Exception e) {
-				result = false;
 			}
+		} catch (Exception e) {
+			result = false;
 		}
 
 		logger.debug("result inside edit camera:{} ", result);
@@ -824,18 +1082,20 @@ public class MapDBStore extends DataStore {
 	}
 
 	@Override
-	protected synchronized boolean updateHLSViewerCountLocal(String streamId, int diffCount) {
+	protected boolean updateHLSViewerCountLocal(String streamId, int diffCount) {
 		boolean result = false;
 
 		if (streamId != null) {
-			Broadcast broadcast = get(streamId);
-			if (broadcast != null) {
-				int hlsViewerCount = broadcast.getHlsViewerCount();
-				hlsViewerCount += diffCount;
-				broadcast.setHlsViewerCount(hlsViewerCount);
-				map.replace(streamId, gson.toJson(broadcast));
-				db.commit();
-				result = true;
+			synchronized (getLock(streamId)) {
+				Broadcast broadcast = get(streamId);
+				if (broadcast != null) {
+					int hlsViewerCount = broadcast.getHlsViewerCount();
+					hlsViewerCount += diffCount;
+					broadcast.setHlsViewerCount(hlsViewerCount);
+					indexBroadcast(streamId, map.replace(streamId, broadcast), broadcast);
+					commit(STATS_GROUP);
+					result = true;
+				}
 			}
 		}
 
@@ -843,42 +1103,46 @@ public class MapDBStore extends DataStore {
 	}
 
 	@Override
-	protected synchronized boolean updateWebRTCViewerCountLocal(String streamId, boolean increment) {
+	protected boolean updateWebRTCViewerCountLocal(String streamId, boolean increment) {
 		boolean result = false;
 		if (streamId != null) {
-			Broadcast broadcast = get(streamId);
-			if (broadcast != null) {
-				int webRTCViewerCount = broadcast.getWebRTCViewerCount();
-				if (increment) {
-					webRTCViewerCount++;
-				}
-				else {
-					webRTCViewerCount--;
+			synchronized (getLock(streamId)) {
+				Broadcast broadcast = get(streamId);
+				if (broadcast != null) {
+					int webRTCViewerCount = broadcast.getWebRTCViewerCount();
+					if (increment) {
+						webRTCViewerCount++;
+					}
+					else {
+						webRTCViewerCount--;
+					}
+					broadcast.setWebRTCViewerCount(webRTCViewerCount);
+					indexBroadcast(streamId, map.replace(streamId, broadcast), broadcast);
+					result = true;
 				}
-				broadcast.setWebRTCViewerCount(webRTCViewerCount);
-				map.replace(streamId, gson.toJson(broadcast));
-				result = true;
 			}
 		}
 		return result;
 	}
 
 	@Override
-	protected synchronized boolean updateRtmpViewerCountLocal(String streamId, boolean increment) {
+	protected boolean updateRtmpViewerCountLocal(String streamId, boolean increment) {
 		boolean result = false;
 		if (streamId != null) {
-			Broadcast broadcast = get(streamId);
-			if (broadcast != null) {
-				int rtmpViewerCount = broadcast.getRtmpViewerCount();
-				if (increment) {
-					rtmpViewerCount++;
-				}
-				else { 
-					rtmpViewerCount--;
+			synchronized (getLock(streamId)) {
+				Broadcast broadcast = get(streamId);
+				if (broadcast != null) {
+					int rtmpViewerCount = broadcast.getRtmpViewerCount();
+					if (increment) {
+						rtmpViewerCount++;
+					}
+					else { 
+						rtmpViewerCount--;
+					}
+					broadcast.setRtmpViewerCount(rtmpViewerCount);
+					indexBroadcast(streamId, map.replace(streamId, broadcast), broadcast);
+					result = true;
 				}
-				broadcast.setRtmpViewerCount(rtmpViewerCount);
-				map.replace(streamId, gson.toJson(broadcast));
-				result = true;
 			}
 		}
 		return result;
@@ -901,18 +1165,16 @@ public class MapDBStore extends DataStore {
 	public boolean saveToken(Token token) {
 		boolean result = false;
 
-		synchronized (this) {
-
-			if(token.getStreamId() != null && token.getTokenId() != null) {
-
+		if(token.getStreamId() != null && token.getTokenId() != null) {
 
-				try {
-					tokenMap.put(token.getTokenId(), gson.toJson(token));
-					db.commit();
-					result = true;
-				} catch (Exception e) {
-					logger.error(ExceptionUtils.getStackTrace(e));
+			try {
+				synchronized (getLock(token.getTokenId())) {
+					indexToken(token.getTokenId(), tokenMap.put(token.getTokenId(), token), token);
+					commit(TOKEN);
 				}
+				result = true;
+			} catch (Exception e) {
+				logger.error(ExceptionUtils.getStackTrace(e));
 			}
 		}
 
@@ -923,21 +1185,20 @@ public class MapDBStore extends DataStore {
 	public Token validateToken(Token token) {
 		Token fetchedToken = null;
 
-		synchronized (this) {
-			if (token.getTokenId() != null) {
-				String jsonToken = tokenMap.get(token.getTokenId());
-				if (jsonToken != null) {
-					fetchedToken = gson.fromJson((String) jsonToken, Token.class);
+		if (token.getTokenId() != null) {
+			synchronized (getLock(token.getTokenId())) {
+				fetchedToken = tokenMap.get(token.getTokenId());
+				if (fetchedToken != null) {
 
 					if( fetchedToken.getType().equals(token.getType())
 							&& Instant.now().getEpochSecond() < fetchedToken.getExpireDate()) {
-						
+
 						if(token.getRoomId() == null || token.getRoomId().isEmpty() ) {
 							if(fetchedToken.getStreamId().equals(token.getStreamId())) {
 
-								boolean result = tokenMap.remove(token.getTokenId()) != null;
+								boolean result = removeToken(token.getTokenId());
 								if (result) {
-									db.commit();
+									commit(TOKEN);
 								}
 							}
 							else{
@@ -960,86 +1221,35 @@ public class MapDBStore extends DataStore {
 	public boolean revokeTokens(String streamId) {
 		boolean result = false;
 
-		synchronized (this) {
-			Object[] objectArray = tokenMap.getValues().toArray();
-			Token[] tokenArray = new Token[objectArray.length];
-
-			for (int i = 0; i < objectArray.length; i++) {
-				tokenArray[i] = gson.fromJson((String) objectArray[i], Token.class);
+		for (String tokenId : new ArrayList<>(tokenStreamIndex.getKeys(streamId))) {
+			synchronized (getLock(tokenId)) {
+				result = removeToken(tokenId);
 			}
-
-			for (int i = 0; i < tokenArray.length; i++) {
-				if (tokenArray[i].getStreamId().equals(streamId)) {
-					result = tokenMap.remove(tokenArray[i].getTokenId()) != null;
-					if(!result) {
-						break;
-					}
-				}
-				db.commit();
+			if(!result) {
+				break;
 			}
 		}
+		commit(TOKEN);
 		return result;
 	}
 
 	@Override
 	public List<Token> listAllTokens(String streamId, int offset, int size) {
 
-		List<Token> list = new ArrayList<>();
-		List<Token> listToken = new ArrayList<>();
-
-		synchronized (this) {
-			Collection<String> values = tokenMap.values();
-			int t = 0;
-			int itemCount = 0;
-			if (size > MAX_ITEM_IN_ONE_LIST) {
-				size = MAX_ITEM_IN_ONE_LIST;
-			}
-			if (offset < 0) {
-				offset = 0;
-			}
-
-			Iterator<String> iterator = values.iterator();
-
-			while(iterator.hasNext()) {
-				Token token = gson.fromJson(iterator.next(), Token.class);
-
-				if(token.getStreamId().equals(streamId)) {
-					list.add(token);
-				}
-			}
-
-			Iterator<Token> listIterator = list.iterator();
-
-			while(itemCount < size && listIterator.hasNext()) {
-				if (t < offset) {
-					t++;
-					listIterator.next();
-				}
-				else {
-
-					listToken.add(listIterator.next());
-					itemCount++;
-
-				}
-			}
-
-		}
-		return listToken;
+		return getListByKeys(tokenMap, tokenStreamIndex.getKeys(streamId), offset, size);
 	}
 
 	@Override
 	public boolean setMp4Muxing(String streamId, int enabled) {
 		boolean result = false;
-		synchronized (this) {
-			if (streamId != null) {
-				String jsonString = map.get(streamId);
-				if (jsonString != null && (enabled == MuxAdaptor.MP4_ENABLED_FOR_STREAM || enabled == MuxAdaptor.MP4_NO_SET_FOR_STREAM || enabled == MuxAdaptor.MP4_DISABLED_FOR_STREAM)) {			
-
-					Broadcast broadcast =  gson.fromJson(jsonString, Broadcast.class);	
+		if (streamId != null && (enabled == MuxAdaptor.MP4_ENABLED_FOR_STREAM || enabled == MuxAdaptor.MP4_NO_SET_FOR_STREAM || enabled == MuxAdaptor.MP4_DISABLED_FOR_STREAM)) {
+			synchronized (getLock(streamId)) {
+				Broadcast broadcast = map.get(streamId);
+				if (broadcast != null) {			
 					broadcast.setMp4Enabled(enabled);
-					map.replace(streamId, gson.toJson(broadcast));
+					indexBroadcast(streamId, map.replace(streamId, broadcast), broadcast);
 
-					db.commit();
+					commit(MAP_NAME);
 					result = true;
 				}
 			}
@@ -1059,57 +1269,51 @@ public class MapDBStore extends DataStore {
 
 	@Override
 	public boolean createConferenceRoom(ConferenceRoom room) {
-		synchronized (this) {
-			boolean result = false;
+		boolean result = false;
 
-			if (room != null && room.getRoomId() != null) {
-				conferenceRoomMap.put(room.getRoomId(), gson.toJson(room));
-				db.commit();
-				result = true;
+		if (room != null && room.getRoomId() != null) {
+			synchronized (getLock(room.getRoomId())) {
+				conferenceRoomMap.put(room.getRoomId(), room);
+				commit(CONFERENCE_ROOM_MAP_NAME);
 			}
-
-			return result;
+			result = true;
 		}
+
+		return result;
 	}
 
 	@Override
 	public boolean editConferenceRoom(String roomId, ConferenceRoom room) {
-		synchronized (this) {
-			boolean result = false;
+		boolean result = false;
 
-			if (room != null && room.getRoomId() != null) {
-				conferenceRoomMap.replace(room.getRoomId(), gson.toJson(room));
-				db.commit();
-				result = true;
+		if (room != null && room.getRoomId() != null) {
+			synchronized (getLock(room.getRoomId())) {
+				conferenceRoomMap.replace(room.getRoomId(), room);
+				commit(CONFERENCE_ROOM_MAP_NAME);
 			}
-			return result;
+			result = true;
 		}
+		return result;
 	}
 
 	@Override
 	public boolean deleteConferenceRoom(String roomId) {
-		synchronized (this) 
-		{		
-			boolean result = false;
+		boolean result = false;
 
-			if (roomId != null && !roomId.isEmpty()) {
+		if (roomId != null && !roomId.isEmpty()) {
+			synchronized (getLock(roomId)) {
 				conferenceRoomMap.remove(roomId);
-				db.commit();
-				result = true;
+				commit(CONFERENCE_ROOM_MAP_NAME);
 			}
-			return result;
+			result = true;
 		}
+		return result;
 	}
 
 	@Override
 	public ConferenceRoom getConferenceRoom(String roomId) {
-		synchronized (this) {
-			if (roomId != null) {
-				String jsonString = conferenceRoomMap.get(roomId);
-				if (jsonString != null) {
-					return gson.fromJson(jsonString, ConferenceRoom.class);
-				}
-			}
+		if (roomId != null) {
+			return conferenceRoomMap.get(roomId);
 		}
 		return null;
 	}
@@ -1119,10 +1323,12 @@ public class MapDBStore extends DataStore {
 
 		boolean result = false;
 
-		synchronized (this) {
-			result = tokenMap.remove(tokenId) != null;
-			if (result) {
-				db.commit();
+		if (tokenId != null) {
+			synchronized (getLock(tokenId)) {
+				result = removeToken(tokenId);
+				if (result) {
+					commit(TOKEN);
+				}
 			}
 		}
 		return result;
@@ -1131,15 +1337,10 @@ public class MapDBStore extends DataStore {
 	@Override
 	public Token getToken(String tokenId) {
 		Token token = null;
-		synchronized (this) {
-			if (tokenId != null) {
-				String jsonString = tokenMap.get(tokenId);
-				if (jsonString != null) {
-					token = gson.fromJson(jsonString, Token.class);
-				}
-			}
+		if (tokenId != null) {
+			token = tokenMap.get(tokenId);
 		}
 		return token;
 
 	}
-}
\ No newline at end of file
+}
@@ -2,6 +2,8 @@ package io.antmedia.datastore.db;
 
 import java.io.File;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 import java.util.regex.Pattern;
 
@@ -35,7 +37,7 @@ import io.antmedia.datastore.db.types.Token;
 import io.antmedia.datastore.db.types.VoD;
 import io.antmedia.muxer.MuxAdaptor;
 
-public class MongoStore extends DataStore {
+public class MongoStore extends DataStore implements IKeysetPaginatedDataStore, IBatchUpdateDataStore {
 
 	private Morphia morphia;
 	private Datastore datastore;
@@ -292,6 +294,48 @@ public class MongoStore extends DataStore {
 		}
 	}
 
+	/**
+	 * Returns the items of the query whose key fields are greater than lastKey in key order
+	 */
+	private <T> List<T> getListAfter(Query<T> query, String keyField, Object lastKey, int size) {
+		if (size <= 0) {
+			return new ArrayList<>();
+		}
+		query.order(keyField);
+		if (lastKey != null) {
+			query.field(keyField).greaterThan(lastKey);
+		}
+		return query.asList(new FindOptions().limit(Math.min(size, MAX_ITEM_IN_ONE_LIST)));
+	}
+
+	@Override
+	public List<Broadcast> getBroadcastListAfter(String lastStreamId, int size) {
+		synchronized(this) {
+			return getListAfter(datastore.find(Broadcast.class), "streamId", lastStreamId, size);
+		}
+	}
+
+	@Override
+	public List<VoD> getVodListAfter(String lastVodId, int size) {
+		synchronized(this) {
+			return getListAfter(vodDatastore.find(VoD.class), "vodId", lastVodId, size);
+		}
+	}
+
+	@Override
+	public List<SocialEndpointCredentials> getSocialEndpointsAfter(String lastId, int size) {
+		synchronized(this) {
+			return getListAfter(endpointCredentialsDS.find(SocialEndpointCredentials.class), "id", lastId != null ? new ObjectId(lastId) : null, size);
+		}
+	}
+
+	@Override
+	public List<Token> listAllTokensAfter(String streamId, String lastTokenId, int size) {
+		synchronized(this) {
+			return getListAfter(tokenDatastore.find(Token.class).field("streamId").equal(streamId), "tokenId", lastTokenId, size);
+		}
+	}
+
 	public Datastore getDataStore() {
 		return datastore;
 	}
@@ -477,6 +521,28 @@ public class MongoStore extends DataStore {
 		return false;
 	}
 
+	/**
+	 * Updates the streams in one query
+	 */
+	@Override
+	public int updateSourceQualityParameters(Collection<String> ids, String quality, double speed, int pendingPacketQueue) {
+		if (!isWriteStatsToDatastore() || ids.isEmpty()) {
+			return 0;
+		}
+		synchronized(this) {
+			try {
+				Query<Broadcast> query = datastore.createQuery(Broadcast.class).field("streamId").in(ids);
+				UpdateOperations<Broadcast> ops = datastore.createUpdateOperations(Broadcast.class)
+						.set("quality", quality).set("speed", speed).set("pendingPacketSize", pendingPacketQueue);
+
+				return datastore.update(query, ops).getUpdatedCount();
+			} catch (Exception e) {
+				logger.error(ExceptionUtils.getStackTrace(e));
+			}
+		}
+		return 0;
+	}
+
 
 	public SocialEndpointCredentials addSocialEndpointCredentials(SocialEndpointCredentials credentials) {
 		SocialEndpointCredentials addedCredential = null;
@@ -0,0 +1,154 @@
+package io.antmedia.datastore.db;
+
+import java.lang.reflect.Type;
+import java.util.AbstractCollection;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map.Entry;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.function.Function;
+
+import org.mapdb.BTreeMap;
+
+import com.google.gson.Gson;
+
+/**
+ * Records of a map in {@link MapDBStore}. In JSON mode records are kept as JSON strings in the
+ * string maps and they are converted on each access, as the store has always done. In binary mode
+ * records are kept in typed maps and they are converted by the serializer of the map.
+ *
+ * @param <T> type of the records
+ */
+public class RecordMap<T> {
+
+	private final ConcurrentNavigableMap<String, Object> storedMap;
+
+	private final Function<Object, T> reader;
+
+	private final Function<T, Object> writer;
+
+	private RecordMap(ConcurrentNavigableMap<String, Object> storedMap, Function<Object, T> reader, Function<T, Object> writer) {
+		this.storedMap = storedMap;
+		this.reader = reader;
+		this.writer = writer;
+	}
+
+	/**
+	 * @return records of the map whose values are the records
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> RecordMap<T> typed(BTreeMap<String, T> map) {
+		return new RecordMap<>((ConcurrentNavigableMap<String, Object>) (ConcurrentNavigableMap<String, ?>) map,
+				value -> (T) value, value -> value);
+	}
+
+	/**
+	 * @return records of the map whose values are the JSON strings of the records
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> RecordMap<T> json(BTreeMap<String, String> map, Gson gson, Type type) {
+		return new RecordMap<>((ConcurrentNavigableMap<String, Object>) (ConcurrentNavigableMap<String, ?>) map,
+				value -> value != null ? gson.<T>fromJson((String) value, type) : null,
+				value -> value != null ? gson.toJson(value) : null);
+	}
+
+	public T get(String key) {
+		return reader.apply(storedMap.get(key));
+	}
+
+	/**
+	 * @return previous record or null
+	 */
+	public T put(String key, T value) {
+		return reader.apply(storedMap.put(key, writer.apply(value)));
+	}
+
+	/**
+	 * Replaces the record if key exists
+	 * @return previous record or null if key does not exist
+	 */
+	public T replace(String key, T value) {
+		return reader.apply(storedMap.replace(key, writer.apply(value)));
+	}
+
+	/**
+	 * @return removed record or null
+	 */
+	public T remove(String key) {
+		return reader.apply(storedMap.remove(key));
+	}
+
+	public int size() {
+		return storedMap.size();
+	}
+
+	public boolean isEmpty() {
+		return storedMap.isEmpty();
+	}
+
+	public void clear() {
+		storedMap.clear();
+	}
+
+	public NavigableSet<String> keySet() {
+		return storedMap.navigableKeySet();
+	}
+
+	/**
+	 * @return view of the records in key order, records are converted while iterating
+	 */
+	public Collection<T> values() {
+		return new AbstractCollection<T>() {
+			@Override
+			public Iterator<T> iterator() {
+				Iterator<Object> iterator = storedMap.values().iterator();
+				return new Iterator<T>() {
+					@Override
+					public boolean hasNext() {
+						return iterator.hasNext();
+					}
+
+					@Override
+					public T next() {
+						return reader.apply(iterator.next());
+					}
+				};
+			}
+
+			@Override
+			public int size() {
+				return storedMap.size();
+			}
+		};
+	}
+
+	/**
+	 * @return entries in key order, records are converted while iterating
+	 */
+	public Iterable<Entry<String, T>> entrySet() {
+		return () -> {
+			Iterator<Entry<String, Object>> iterator = storedMap.entrySet().iterator();
+			return new Iterator<Entry<String, T>>() {
+				@Override
+				public boolean hasNext() {
+					return iterator.hasNext();
+				}
+
+				@Override
+				public Entry<String, T> next() {
+					Entry<String, Object> entry = iterator.next();
+					return new SimpleImmutableEntry<>(entry.getKey(), reader.apply(entry.getValue()));
+				}
+			};
+		};
+	}
+
+	/**
+	 * @return view of the records whose keys are greater than or equal to(if inclusive) fromKey
+	 */
+	public RecordMap<T> tailMap(String fromKey, boolean inclusive) {
+		return new RecordMap<>(storedMap.tailMap(fromKey, inclusive), reader, writer);
+	}
+}
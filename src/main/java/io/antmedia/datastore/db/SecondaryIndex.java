@@ -0,0 +1,72 @@
+package io.antmedia.datastore.db;
+
+import java.util.Collections;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In memory index that keeps the keys of the records having the same field value.
+ * Keys of a value are kept sorted so that they are iterated in the same order with the primary map.
+ * Number of the keys for each value is kept in a counter to return it in constant time.
+ *
+ * Callers should serialize the updates of the same key.
+ */
+class SecondaryIndex {
+
+	private static class Bucket {
+		private final NavigableSet<String> keys = new ConcurrentSkipListSet<>();
+		private final AtomicInteger count = new AtomicInteger();
+	}
+
+	private final ConcurrentHashMap<String, Bucket> buckets = new ConcurrentHashMap<>();
+
+	public void add(String value, String key) {
+		if (value != null && key != null) {
+			Bucket bucket = buckets.computeIfAbsent(value, v -> new Bucket());
+			if (bucket.keys.add(key)) {
+				bucket.count.incrementAndGet();
+			}
+		}
+	}
+
+	public void remove(String value, String key) {
+		if (value != null && key != null) {
+			Bucket bucket = buckets.get(value);
+			if (bucket != null && bucket.keys.remove(key)) {
+				bucket.count.decrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Moves the key from the old value to the new value
+	 */
+	public void update(String key, String oldValue, String newValue) {
+		if (oldValue == null ? newValue != null : !oldValue.equals(newValue)) {
+			remove(oldValue, key);
+			add(newValue, key);
+		}
+	}
+
+	/**
+	 * @return sorted keys having the value. Returned set is a live view
+	 */
+	public NavigableSet<String> getKeys(String value) {
+		Bucket bucket = value != null ? buckets.get(value) : null;
+		if (bucket != null) {
+			return Collections.unmodifiableNavigableSet(bucket.keys);
+		}
+		return Collections.emptyNavigableSet();
+	}
+
+	public int getCount(String value) {
+		Bucket bucket = value != null ? buckets.get(value) : null;
+		return bucket != null ? bucket.count.get() : 0;
+	}
+
+	public void clear() {
+		buckets.clear();
+	}
+}
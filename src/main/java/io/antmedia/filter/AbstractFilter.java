@@ -3,6 +3,8 @@ package io.antmedia.filter;
 import javax.servlet.Filter;
 import javax.servlet.FilterConfig;
 import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -10,12 +12,15 @@ import org.springframework.context.ApplicationContext;
 import org.springframework.web.context.ConfigurableWebApplicationContext;
 import org.springframework.web.context.WebApplicationContext;
 
+import io.antmedia.AntMediaApplicationAdapter;
 import io.antmedia.AppSettings;
 
 public abstract class AbstractFilter implements Filter{
 
 	protected static Logger logger = LoggerFactory.getLogger(AbstractFilter.class);
 	protected FilterConfig config;
+	private AntMediaApplicationAdapter application;
+	private volatile boolean sessionlessViewerKeyRejected = false;
 	
 	@Override
 	public void init(FilterConfig filterConfig) throws ServletException {
@@ -50,6 +55,48 @@ public abstract class AbstractFilter implements Filter{
 		return null;
 	}
 	
+	public AntMediaApplicationAdapter getApplication() {
+		if (application == null) {
+			ApplicationContext context = getAppContext();
+			if (context != null && context.containsBean(AntMediaApplicationAdapter.BEAN_NAME)) {
+				application = (AntMediaApplicationAdapter)context.getBean(AntMediaApplicationAdapter.BEAN_NAME);
+			}
+		}
+		return application;
+	}
+
+	public void setApplication(AntMediaApplicationAdapter application) {
+		this.application = application;
+	}
+
+	/**
+	 * Returns the key of the viewer that is used as session id. 
+	 * Servlet session is created only if the application tracks viewers with sessions.
+	 * 
+	 * Servlet session is always used if token control is enabled. Token service keeps the authenticated 
+	 * viewers until their sessions are destroyed so keys without a session would never be removed. 
+	 * Also viewers having the same client key could use the same one-time token
+	 */
+	public String getViewerKey(HttpServletRequest request, HttpServletResponse response) {
+		AntMediaApplicationAdapter app = getApplication();
+		ViewerKeyResolver viewerKeyResolver = app != null ? app.getViewerKeyResolver() : null;
+		if (viewerKeyResolver != null) {
+			if (viewerKeyResolver.getMode() == ViewerKeyResolver.Mode.SESSION || !isTokenControlEnabled()) {
+				return viewerKeyResolver.getViewerKey(request, response);
+			}
+			if (!sessionlessViewerKeyRejected) {
+				sessionlessViewerKeyRejected = true;
+				logger.warn("Viewer tracking mode {} is not used because token control is enabled. Servlet sessions are used instead", viewerKeyResolver.getMode());
+			}
+		}
+		return request.getSession().getId();
+	}
+
+	private boolean isTokenControlEnabled() {
+		AppSettings appSettings = getAppSettings();
+		return appSettings != null && appSettings.isTokenControlEnabled();
+	}
+
 	public FilterConfig getConfig() {
 		return config;
 	}
@@ -0,0 +1,306 @@
+package io.antmedia.filter;
+
+import java.util.Arrays;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Matches IP addresses against a list of CIDR blocks with a binary prefix trie.
+ *
+ * Lookup time depends on the address length, not on the number of blocks. Addresses are parsed as literals,
+ * host names are not resolved. IPv4 mapped IPv6 addresses are matched as IPv4 addresses
+ * like {@link org.apache.catalina.util.NetMask} does.
+ */
+public class CIDRMatcher {
+
+	protected static Logger logger = LoggerFactory.getLogger(CIDRMatcher.class);
+
+	private final PrefixTrie ipv4Trie = new PrefixTrie();
+	private final PrefixTrie ipv6Trie = new PrefixTrie();
+	private int blockCount = 0;
+
+	/**
+	 * Nodes are kept in arrays. Node 0 is the root, 0 in child arrays means there is no child
+	 */
+	private static class PrefixTrie {
+		private int[] zeroChild = new int[16];
+		private int[] oneChild = new int[16];
+		private boolean[] terminal = new boolean[16];
+		private int nodeCount = 1;
+
+		private int newNode() {
+			if (nodeCount == terminal.length) {
+				int capacity = nodeCount * 2;
+				zeroChild = Arrays.copyOf(zeroChild, capacity);
+				oneChild = Arrays.copyOf(oneChild, capacity);
+				terminal = Arrays.copyOf(terminal, capacity);
+			}
+			return nodeCount++;
+		}
+
+		private void add(byte[] address, int prefixLength) {
+			int node = 0;
+			for (int i = 0; i < prefixLength; i++) {
+				if (terminal[node]) {
+					//a shorter prefix already covers this block
+					return;
+				}
+				int[] children = bit(address, i) == 0 ? zeroChild : oneChild;
+				int child = children[node];
+				if (child == 0) {
+					child = newNode();
+					//arrays may be reallocated in newNode
+					children = bit(address, i) == 0 ? zeroChild : oneChild;
+					children[node] = child;
+				}
+				node = child;
+			}
+			terminal[node] = true;
+		}
+
+		private boolean matches(byte[] address) {
+			int node = 0;
+			int length = address.length * 8;
+			for (int i = 0; i < length; i++) {
+				if (terminal[node]) {
+					return true;
+				}
+				node = bit(address, i) == 0 ? zeroChild[node] : oneChild[node];
+				if (node == 0) {
+					return false;
+				}
+			}
+			return terminal[node];
+		}
+
+		private static int bit(byte[] address, int index) {
+			return (address[index >> 3] >> (7 - (index & 7))) & 1;
+		}
+	}
+
+	private CIDRMatcher() {
+		//use compile
+	}
+
+	/**
+	 * @param cidrList comma separated CIDR blocks such as "127.0.0.1/8,10.0.0.0/16,::1".
+	 * Address without prefix length matches only itself. Invalid blocks are skipped
+	 */
+	public static CIDRMatcher compile(String cidrList) {
+		CIDRMatcher matcher = new CIDRMatcher();
+		if (cidrList == null) {
+			return matcher;
+		}
+		for (String cidr : cidrList.split(",")) {
+			cidr = cidr.trim();
+			if (!cidr.isEmpty() && !matcher.add(cidr)) {
+				logger.warn("Invalid CIDR block is skipped: {}", cidr);
+			}
+		}
+		return matcher;
+	}
+
+	private boolean add(String cidr) {
+		int slashIndex = cidr.indexOf('/');
+		String addressPart = slashIndex == -1 ? cidr : cidr.substring(0, slashIndex);
+		byte[] address = parseAddress(addressPart);
+		if (address == null) {
+			return false;
+		}
+
+		int prefixLength = address.length * 8;
+		if (slashIndex != -1) {
+			try {
+				prefixLength = Integer.parseInt(cidr.substring(slashIndex + 1).trim());
+			}
+			catch (NumberFormatException e) {
+				return false;
+			}
+			if (prefixLength < 0 || prefixLength > address.length * 8) {
+				return false;
+			}
+		}
+
+		(address.length == 4 ? ipv4Trie : ipv6Trie).add(address, prefixLength);
+		blockCount++;
+		return true;
+	}
+
+	/**
+	 * @param address literal IPv4 or IPv6 address
+	 * @return true if the address is in one of the blocks
+	 */
+	public boolean matches(String address) {
+		byte[] bytes = parseAddress(address);
+		return bytes != null && matches(bytes);
+	}
+
+	/**
+	 * @param address 4 bytes for IPv4 or 16 bytes for IPv6
+	 */
+	public boolean matches(byte[] address) {
+		if (address.length == 4) {
+			return ipv4Trie.matches(address);
+		}
+		else if (address.length == 16) {
+			return ipv6Trie.matches(address);
+		}
+		return false;
+	}
+
+	/**
+	 * @return number of valid blocks in the list
+	 */
+	public int getBlockCount() {
+		return blockCount;
+	}
+
+	/**
+	 * Parses a literal IP address without any resolver call
+	 * @return 4 bytes for IPv4 and IPv4 mapped IPv6 addresses, 16 bytes for other IPv6 addresses
+	 * or null if it's not a valid literal address
+	 */
+	public static byte[] parseAddress(String address) {
+		if (address == null || address.isEmpty()) {
+			return null;
+		}
+		if (address.indexOf(':') == -1) {
+			return parseIPv4(address, 0, address.length());
+		}
+
+		int start = 0;
+		int end = address.length();
+		if (address.charAt(0) == '[' && address.charAt(end - 1) == ']') {
+			start++;
+			end--;
+		}
+		int zoneIndex = address.indexOf('%', start);
+		if (zoneIndex != -1 && zoneIndex < end) {
+			end = zoneIndex;
+		}
+		byte[] bytes = parseIPv6(address, start, end);
+		if (bytes != null && isIPv4Mapped(bytes)) {
+			return Arrays.copyOfRange(bytes, 12, 16);
+		}
+		return bytes;
+	}
+
+	private static byte[] parseIPv4(String address, int start, int end) {
+		byte[] bytes = new byte[4];
+		int octet = 0;
+		int value = 0;
+		int digits = 0;
+		for (int i = start; i < end; i++) {
+			char c = address.charAt(i);
+			if (c >= '0' && c <= '9') {
+				value = value * 10 + (c - '0');
+				digits++;
+				if (digits > 3 || value > 255) {
+					return null;
+				}
+			}
+			else if (c == '.' && digits > 0 && octet < 3) {
+				bytes[octet++] = (byte) value;
+				value = 0;
+				digits = 0;
+			}
+			else {
+				return null;
+			}
+		}
+		if (digits == 0 || octet != 3) {
+			return null;
+		}
+		bytes[3] = (byte) value;
+		return bytes;
+	}
+
+	private static byte[] parseIPv6(String address, int start, int end) {
+		byte[] bytes = new byte[16];
+		int index = 0;
+		//index in bytes where :: is
+		int gapIndex = -1;
+		int i = start;
+
+		if (end - start >= 2 && address.charAt(i) == ':') {
+			if (address.charAt(i + 1) != ':') {
+				return null;
+			}
+			gapIndex = 0;
+			i += 2;
+		}
+
+		while (i < end) {
+			if (index == 16) {
+				return null;
+			}
+			int groupStart = i;
+			int value = 0;
+			while (i < end && Character.digit(address.charAt(i), 16) != -1) {
+				value = (value << 4) | Character.digit(address.charAt(i), 16);
+				i++;
+				if (i - groupStart > 4) {
+					return null;
+				}
+			}
+
+			if (i < end && address.charAt(i) == '.') {
+				//embedded IPv4 address in the last 32 bits
+				if (index > 12) {
+					return null;
+				}
+				byte[] ipv4 = parseIPv4(address, groupStart, end);
+				if (ipv4 == null) {
+					return null;
+				}
+				System.arraycopy(ipv4, 0, bytes, index, 4);
+				index += 4;
+				i = end;
+				break;
+			}
+
+			if (i == groupStart) {
+				return null;
+			}
+			bytes[index++] = (byte) (value >> 8);
+			bytes[index++] = (byte) value;
+
+			if (i < end) {
+				if (address.charAt(i) != ':' || i + 1 == end) {
+					return null;
+				}
+				i++;
+				if (address.charAt(i) == ':') {
+					if (gapIndex != -1) {
+						return null;
+					}
+					gapIndex = index;
+					i++;
+				}
+			}
+		}
+
+		if (gapIndex != -1) {
+			int shift = 16 - index;
+			if (shift == 0) {
+				return null;
+			}
+			System.arraycopy(bytes, gapIndex, bytes, gapIndex + shift, index - gapIndex);
+			Arrays.fill(bytes, gapIndex, gapIndex + shift, (byte) 0);
+		}
+		else if (index != 16) {
+			return null;
+		}
+		return bytes;
+	}
+
+	private static boolean isIPv4Mapped(byte[] bytes) {
+		for (int i = 0; i < 10; i++) {
+			if (bytes[i] != 0) {
+				return false;
+			}
+		}
+		return bytes[10] == (byte) 0xff && bytes[11] == (byte) 0xff;
+	}
+}
@@ -35,7 +35,8 @@ public class HlsStatisticsFilter extends AbstractFilter {
 		String method = httpRequest.getMethod();
 		if ("GET".equals(method)) {
 			//only accept GET methods
-			String sessionId = httpRequest.getSession().getId();
+			//key is found before the response is committed because it may add a cookie
+			String sessionId = getViewerKey(httpRequest, (HttpServletResponse) response);
 
 		
 			chain.doFilter(request, response);
@@ -44,7 +45,7 @@ public class HlsStatisticsFilter extends AbstractFilter {
 			
 			if (HttpServletResponse.SC_OK <= status && status <= HttpServletResponse.SC_BAD_REQUEST) 
 			{
-				String streamId = TokenFilterManager.getStreamId(httpRequest.getRequestURI());
+				String streamId = TokenFilterManager.getStreamId(httpRequest);
 				
 				if (streamId != null) {
 					logger.debug("req ip {} session id {} stream id {} status {}", request.getRemoteHost(), sessionId, streamId, status);
@@ -1,9 +1,7 @@
 package io.antmedia.filter;
 
 import java.io.IOException;
-import java.net.InetAddress;
-import java.net.UnknownHostException;
-import java.util.List;
+import java.util.Objects;
 
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
@@ -13,7 +11,6 @@ import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
 import javax.servlet.http.HttpServletResponse;
 
-import org.apache.catalina.util.NetMask;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.context.ApplicationContext;
@@ -36,6 +33,28 @@ public class IPFilter extends AbstractFilter {
 
 
 
+	/**
+	 * Compiled allowed CIDR list of an AppSettings
+	 */
+	private static class CompiledCIDRList {
+		private final AppSettings appSettings;
+		private final String remoteAllowedCIDR;
+		private final CIDRMatcher matcher;
+
+		private CompiledCIDRList(AppSettings appSettings, String remoteAllowedCIDR) {
+			this.appSettings = appSettings;
+			this.remoteAllowedCIDR = remoteAllowedCIDR;
+			this.matcher = CIDRMatcher.compile(remoteAllowedCIDR);
+		}
+
+		private boolean isCompiledFor(AppSettings settings, String cidr) {
+			//settings keep the same string instance until it's changed, so equals returns at the reference check
+			return appSettings == settings && Objects.equals(remoteAllowedCIDR, cidr);
+		}
+	}
+
+	private volatile CompiledCIDRList compiledCIDRList;
+
 	/**
 	 * Test if a remote's IP address is allowed to proceed.
 	 *
@@ -48,24 +67,25 @@ public class IPFilter extends AbstractFilter {
 		AppSettings appSettings = getAppSettings();
 		if (appSettings != null) 
 		{
-			try {
-				InetAddress addr = InetAddress.getByName(property);
-				List<NetMask> allowedCIDRList = appSettings.getAllowedCIDRList();
-
-				for (final NetMask nm : allowedCIDRList) {
-					if (nm.matches(addr)) {
-						return true;
-					}
-				}
-				
-			} catch (UnknownHostException e) {
-				// This should be in the 'could never happen' category but handle it
-				// to be safe.
-				log.error("error", e);
-			}
+			//remote address is always a literal so it's parsed without resolving
+			return getCIDRMatcher(appSettings).matches(property);
 		}
 		// Deny this request
 		return false;
 	}
 
+	/**
+	 * @return matcher of the allowed CIDR list. It's compiled again only if the list in the settings is changed
+	 */
+	public CIDRMatcher getCIDRMatcher(AppSettings appSettings) {
+		String remoteAllowedCIDR = appSettings.getRemoteAllowedCIDR();
+		CompiledCIDRList compiled = compiledCIDRList;
+		if (compiled == null || !compiled.isCompiledFor(appSettings, remoteAllowedCIDR)) {
+			compiled = new CompiledCIDRList(appSettings, remoteAllowedCIDR);
+			compiledCIDRList = compiled;
+			log.info("Allowed CIDR list is compiled with {} blocks", compiled.matcher.getBlockCount());
+		}
+		return compiled.matcher;
+	}
+
 }
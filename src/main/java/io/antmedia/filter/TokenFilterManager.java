@@ -15,14 +15,21 @@ import org.slf4j.LoggerFactory;
 import org.springframework.context.ApplicationContext;
 import org.springframework.web.context.WebApplicationContext;
 
+import io.antmedia.AntMediaApplicationAdapter;
 import io.antmedia.AppSettings;
 import io.antmedia.datastore.db.types.Token;
-import io.antmedia.muxer.MuxAdaptor;
 import io.antmedia.security.ITokenService;
+import io.antmedia.security.TokenValidationCache;
 
 public class TokenFilterManager extends AbstractFilter   {
 
 	private static final String REPLACE_CHARS_REGEX = "[\n|\r|\t]";
+	/**
+	 * Request attribute that keeps the stream id of the request
+	 */
+	public static final String STREAM_ID_ATTRIBUTE = "io.antmedia.filter.streamId";
+	private static final String MP4_EXTENSION = ".mp4";
+	private static final String M3U8_EXTENSION = ".m3u8";
 	protected static Logger logger = LoggerFactory.getLogger(TokenFilterManager.class);
 	private ITokenService tokenService;
 
@@ -42,8 +49,8 @@ public class TokenFilterManager extends AbstractFilter   {
 			tokenId = tokenId.replaceAll(REPLACE_CHARS_REGEX, "_");
 		}
 		 
-		String sessionId = httpRequest.getSession().getId();
-		String streamId = getStreamId(httpRequest.getRequestURI());
+		String sessionId = getViewerKey(httpRequest, httpResponse);
+		String streamId = getStreamId(httpRequest);
 		
 		String clientIP = httpRequest.getRemoteAddr().replaceAll(REPLACE_CHARS_REGEX, "_");
 
@@ -69,7 +76,7 @@ public class TokenFilterManager extends AbstractFilter   {
 				ITokenService tokenServiceTmp = getTokenService();
 				if (tokenServiceTmp != null) 
 				{
-					if (!tokenServiceTmp.checkToken(tokenId, streamId, sessionId, Token.PLAY_TOKEN)) {
+					if (!checkToken(tokenServiceTmp, tokenId, streamId, sessionId)) {
 						httpResponse.sendError(HttpServletResponse.SC_FORBIDDEN, "Invalid Token");
 						logger.warn("token {} is not valid", tokenId);
 						return; 
@@ -106,6 +113,31 @@ public class TokenFilterManager extends AbstractFilter   {
 
 	}
 
+	/**
+	 * Checks the play token with the token service if it's not validated for the same stream and session before.
+	 * A cache miss makes a single call to the token service. Cached result expires after the ttl of the cache 
+	 * or when the validated token expires, whichever is earlier
+	 */
+	private boolean checkToken(ITokenService tokenServiceTmp, String tokenId, String streamId, String sessionId) {
+		AntMediaApplicationAdapter app = getApplication();
+		TokenValidationCache cache = app != null ? app.getTokenValidationCache() : null;
+		if (cache == null) {
+			return tokenServiceTmp.checkToken(tokenId, streamId, sessionId, Token.PLAY_TOKEN);
+		}
+
+		if (cache.isValid(tokenId, streamId, sessionId)) {
+			return true;
+		}
+
+		Token token = tokenServiceTmp.validateToken(tokenId, streamId, sessionId, Token.PLAY_TOKEN);
+		if (token == null) {
+			return false;
+		}
+		//expire date of the token is in seconds
+		cache.put(tokenId, streamId, sessionId, token.getExpireDate() * 1000);
+		return true;
+	}
+
 	public ITokenService getTokenService() {
 		if (tokenService == null) {
 			ApplicationContext context = getAppContext();
@@ -121,43 +153,66 @@ public class TokenFilterManager extends AbstractFilter   {
 		this.tokenService = tokenService;
 	}
 
-	public static String getStreamId(String requestURI) {
-		
-		requestURI = requestURI.replaceAll(REPLACE_CHARS_REGEX, "_");
-		
-		int endIndex;
-		int startIndex = requestURI.lastIndexOf('/');
-
-		if(requestURI.contains("_")) {
-			//if multiple files with same id requested such as : 541211332342978513714151_480p_1.mp4 
-			return requestURI.split("_")[0].substring(startIndex+1);
+	/**
+	 * Returns the stream id of the request. Result is kept in the request 
+	 * so that other filters of the same request do not parse the URI again
+	 */
+	public static String getStreamId(HttpServletRequest request) {
+		Object streamId = request.getAttribute(STREAM_ID_ATTRIBUTE);
+		if (streamId instanceof String) {
+			return (String) streamId;
+		}
+		String result = getStreamId(request.getRequestURI());
+		if (result != null) {
+			request.setAttribute(STREAM_ID_ATTRIBUTE, result);
 		}
+		return result;
+	}
 
-		//if mp4 file requested
-		endIndex = requestURI.lastIndexOf(".mp4");
-		if (endIndex != -1) {
-			return requestURI.substring(startIndex+1, endIndex);
+	/**
+	 * Extracts stream id from the file name in the URI in a single pass without regex
+	 * 
+	 * - [ID]_[anything] such as [ID]_adaptive.m3u8, [ID]_240p.m3u8, [ID]_240p0001.ts, [ID]_480p_1.mp4 returns [ID]
+	 * - [ID].mp4 and [ID].m3u8 return [ID]
+	 * 
+	 * Plain segment names ([ID][index].ts) return null because index is appended to the id without a separator
+	 * 
+	 * @param requestURI
+	 * @return stream id or null if it cannot be found
+	 */
+	public static String getStreamId(String requestURI) {
+		if (requestURI == null) {
+			return null;
 		}
 
-		//if request is adaptive file ( ending with _adaptive.m3u8)
-		endIndex = requestURI.lastIndexOf(MuxAdaptor.ADAPTIVE_SUFFIX + ".m3u8");
-		if (endIndex != -1) {
-			return requestURI.substring(startIndex+1, endIndex);
+		int end = requestURI.length();
+		//index of the first separator in the file name
+		int separatorIndex = -1;
+		int startIndex = end - 1;
+		for (; startIndex >= 0; startIndex--) {
+			char c = requestURI.charAt(startIndex);
+			if (c == '/') {
+				break;
+			}
+			//new line, tab and pipe characters were replaced with underscore before
+			if (c == '_' || c == '\n' || c == '\r' || c == '\t' || c == '|') {
+				separatorIndex = startIndex;
+			}
 		}
+		startIndex++;
 
-		//if specific bitrate is requested
-		String regex = "_[0-9]+p\\.m3u8$";  // matches ending with _[resolution]p.m3u8
-		if (requestURI.matches(regex)) {
-			endIndex = requestURI.lastIndexOf('_'); //because file format is [NAME]_[RESOLUTION]p.m3u8
-			return requestURI.substring(startIndex+1, endIndex);
+		if (separatorIndex != -1) {
+			//if multiple files with same id requested such as : 541211332342978513714151_480p_1.mp4 
+			return requestURI.substring(startIndex, separatorIndex);
 		}
 
-		//if just the m3u8 file
-		endIndex = requestURI.lastIndexOf(".m3u8");
-		if (endIndex != -1) {
-			return requestURI.substring(startIndex+1, endIndex);
+		if (requestURI.endsWith(MP4_EXTENSION)) {
+			return requestURI.substring(startIndex, end - MP4_EXTENSION.length());
 		}
 
+		if (requestURI.endsWith(M3U8_EXTENSION)) {
+			return requestURI.substring(startIndex, end - M3U8_EXTENSION.length());
+		}
 
 		return null;
 	}
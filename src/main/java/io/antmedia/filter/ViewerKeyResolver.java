@@ -0,0 +1,224 @@
+package io.antmedia.filter;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Finds the key of the HLS viewer that sends the request. Key is used as session id
+ * in viewer statistics and token checks.
+ *
+ * In {@link Mode#SESSION} mode, id of the servlet session is used as before. Other modes do not create servlet sessions
+ * so that the session manager does not keep a session for each HLS viewer.
+ */
+public class ViewerKeyResolver {
+
+	protected static Logger logger = LoggerFactory.getLogger(ViewerKeyResolver.class);
+
+	public enum Mode {
+		/**
+		 * Id of the servlet session
+		 */
+		SESSION,
+		/**
+		 * Signed viewer id in the query parameter or cookie. A new id is given in a cookie if request does not have a valid one
+		 */
+		SIGNED,
+		/**
+		 * Hash of the client IP and user agent
+		 */
+		CLIENT;
+
+		/**
+		 * @return mode with the name case insensitively or SESSION if there is no mode with the name
+		 */
+		public static Mode of(String name) {
+			if (name != null) {
+				for (Mode mode : values()) {
+					if (mode.name().equalsIgnoreCase(name.trim())) {
+						return mode;
+					}
+				}
+			}
+			return SESSION;
+		}
+	}
+
+	/**
+	 * Request attribute that keeps the viewer key of the request
+	 */
+	public static final String VIEWER_KEY_ATTRIBUTE = "io.antmedia.filter.viewerKey";
+
+	/**
+	 * Name of the query parameter and cookie that keeps the signed viewer id
+	 */
+	public static final String VIEWER_ID_PARAMETER = "viewerId";
+
+	private static final String HMAC_ALGORITHM = "HmacSHA256";
+	private static final int VIEWER_ID_LENGTH = 12;
+	private static final int SIGNATURE_LENGTH = 16;
+
+	private final Mode mode;
+	private final SecretKeySpec secretKey;
+	private final SecureRandom random = new SecureRandom();
+	private final ThreadLocal<Mac> mac;
+	private final ThreadLocal<MessageDigest> digest = ThreadLocal.withInitial(() -> {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException(e);
+		}
+	});
+
+	/**
+	 * @param mode
+	 * @param secret secret to sign the viewer ids. If it's null or empty, a random secret is used
+	 * so ids given before restart become invalid
+	 */
+	public ViewerKeyResolver(Mode mode, String secret) {
+		this.mode = mode;
+		byte[] secretBytes;
+		if (secret != null && !secret.isEmpty()) {
+			secretBytes = secret.getBytes(StandardCharsets.UTF_8);
+		}
+		else {
+			secretBytes = new byte[32];
+			random.nextBytes(secretBytes);
+		}
+		secretKey = new SecretKeySpec(secretBytes, HMAC_ALGORITHM);
+		mac = ThreadLocal.withInitial(() -> {
+			try {
+				Mac instance = Mac.getInstance(HMAC_ALGORITHM);
+				instance.init(secretKey);
+				return instance;
+			} catch (GeneralSecurityException e) {
+				throw new IllegalStateException(e);
+			}
+		});
+	}
+
+	/**
+	 * Returns the viewer key of the request. It should be called before response is committed because
+	 * it may add a cookie. Result is kept in the request so that other filters get the same key
+	 * @param response it may be null, then a key from client address is used if a new viewer id is needed
+	 */
+	public String getViewerKey(HttpServletRequest request, HttpServletResponse response) {
+		Object key = request.getAttribute(VIEWER_KEY_ATTRIBUTE);
+		if (key instanceof String) {
+			return (String) key;
+		}
+
+		String viewerKey;
+		switch (mode) {
+		case SIGNED:
+			viewerKey = getSignedViewerKey(request, response);
+			break;
+		case CLIENT:
+			viewerKey = getClientKey(request);
+			break;
+		default:
+			viewerKey = request.getSession().getId();
+			break;
+		}
+		request.setAttribute(VIEWER_KEY_ATTRIBUTE, viewerKey);
+		return viewerKey;
+	}
+
+	private String getSignedViewerKey(HttpServletRequest request, HttpServletResponse response) {
+		String viewerId = verify(request.getParameter(VIEWER_ID_PARAMETER));
+		if (viewerId == null) {
+			Cookie[] cookies = request.getCookies();
+			if (cookies != null) {
+				for (Cookie cookie : cookies) {
+					if (VIEWER_ID_PARAMETER.equals(cookie.getName())) {
+						viewerId = verify(cookie.getValue());
+						break;
+					}
+				}
+			}
+		}
+
+		if (viewerId == null) {
+			if (response == null) {
+				return getClientKey(request);
+			}
+			byte[] idBytes = new byte[VIEWER_ID_LENGTH];
+			random.nextBytes(idBytes);
+			viewerId = Base64.getUrlEncoder().withoutPadding().encodeToString(idBytes);
+			Cookie cookie = new Cookie(VIEWER_ID_PARAMETER, sign(viewerId));
+			cookie.setPath("/");
+			cookie.setHttpOnly(true);
+			response.addCookie(cookie);
+		}
+		return viewerId;
+	}
+
+	private String getClientKey(HttpServletRequest request) {
+		MessageDigest messageDigest = digest.get();
+		messageDigest.reset();
+		String remoteAddr = request.getRemoteAddr();
+		if (remoteAddr != null) {
+			messageDigest.update(remoteAddr.getBytes(StandardCharsets.UTF_8));
+		}
+		messageDigest.update((byte) '|');
+		String userAgent = request.getHeader("User-Agent");
+		if (userAgent != null) {
+			messageDigest.update(userAgent.getBytes(StandardCharsets.UTF_8));
+		}
+		byte[] hash = messageDigest.digest();
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(Arrays.copyOf(hash, 16));
+	}
+
+	/**
+	 * @param viewerId
+	 * @return signed value in [viewerId].[signature] format to be given to the viewer
+	 */
+	public String sign(String viewerId) {
+		return viewerId + "." + Base64.getUrlEncoder().withoutPadding().encodeToString(signature(viewerId));
+	}
+
+	/**
+	 * @return viewer id if the value is signed by this resolver, null otherwise
+	 */
+	public String verify(String signedValue) {
+		if (signedValue == null) {
+			return null;
+		}
+		int dotIndex = signedValue.lastIndexOf('.');
+		if (dotIndex <= 0) {
+			return null;
+		}
+		String viewerId = signedValue.substring(0, dotIndex);
+		byte[] signature;
+		try {
+			signature = Base64.getUrlDecoder().decode(signedValue.substring(dotIndex + 1));
+		}
+		catch (IllegalArgumentException e) {
+			logger.debug("Viewer id signature is not valid base64: {}", signedValue);
+			return null;
+		}
+		return MessageDigest.isEqual(signature(viewerId), signature) ? viewerId : null;
+	}
+
+	private byte[] signature(String viewerId) {
+		Mac instance = mac.get();
+		byte[] signature = instance.doFinal(viewerId.getBytes(StandardCharsets.UTF_8));
+		return Arrays.copyOf(signature, SIGNATURE_LENGTH);
+	}
+
+	public Mode getMode() {
+		return mode;
+	}
+}
@@ -229,6 +229,16 @@ public class BroadcastRestServiceV2 extends RestServiceBase{
 		return getDataStore().getBroadcastList(offset, size);
 	}
 
+	@ApiOperation(value = "Gets the broadcast list ordered by stream id from database. Next page is fetched with the stream id of the last broadcast in the previous page. "
+			+ "Unlike offset based listing, fetching deep pages is as fast as fetching the first page", notes = "",responseContainer = "List", response = Broadcast.class)
+	@GET
+	@Path("/list")
+	@Produces(MediaType.APPLICATION_JSON)
+	public List<Broadcast> getBroadcastListAfterV2(@ApiParam(value = "Stream id of the last broadcast in the previous page. Leave it empty for the first page", required = false) @QueryParam("after") String after,
+			@ApiParam(value = "Number of items that will be fetched. If there is not enough item in the datastore, returned list size may less then this value", required = true) @QueryParam("size") int size) {
+		return super.getBroadcastListAfter(after, size);
+	}
+
 
 	@ApiOperation(value = "Updates the Broadcast objects fields if it's not null." + 
 			" The updated fields are as follows: name, description, userName, password, IP address, streamUrl of the broadcast. " + 
@@ -443,6 +453,16 @@ public class BroadcastRestServiceV2 extends RestServiceBase{
 		return tokens;
 	}
 
+	@ApiOperation(value = "Get the tokens of requested stream ordered by token id. Next page is fetched with the token id of the last token in the previous page", notes = "",responseContainer = "List", response = Token.class)
+	@GET
+	@Path("/{id}/tokens/list")
+	@Produces(MediaType.APPLICATION_JSON)
+	public List<Token> listTokensAfterV2(@ApiParam(value = "the id of the stream", required = true) @PathParam("id") String streamId,
+			@ApiParam(value = "Token id of the last token in the previous page. Leave it empty for the first page", required = false) @QueryParam("after") String after,
+			@ApiParam(value = "size of the return list (max:50 )", required = true) @QueryParam("size") int size) {
+		return super.listTokensAfter(streamId, after, size);
+	}
+
 	@ApiOperation(value = "Get the broadcast live statistics total RTMP watcher count, total HLS watcher count, total WebRTC watcher count", notes = "", response = BroadcastStatistics.class)
 	@GET
 	@Path("/{id}/broadcast-statistics")
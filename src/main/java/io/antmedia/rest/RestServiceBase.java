@@ -42,6 +42,7 @@ import io.antmedia.AntMediaApplicationAdapter;
 import io.antmedia.AppSettings;
 import io.antmedia.datastore.db.DataStore;
 import io.antmedia.datastore.db.DataStoreFactory;
+import io.antmedia.datastore.db.IKeysetPaginatedDataStore;
 import io.antmedia.datastore.db.types.Broadcast;
 import io.antmedia.datastore.db.types.ConferenceRoom;
 import io.antmedia.datastore.db.types.Endpoint;
@@ -61,6 +62,7 @@ import io.antmedia.rest.model.Interaction;
 import io.antmedia.rest.model.Result;
 import io.antmedia.rest.model.Version;
 import io.antmedia.security.ITokenService;
+import io.antmedia.security.TokenValidationCache;
 import io.antmedia.social.LiveComment;
 import io.antmedia.social.endpoint.PeriscopeEndpoint;
 import io.antmedia.social.endpoint.VideoServiceEndpoint;
@@ -205,6 +207,33 @@ public abstract class RestServiceBase {
 		this.dbStore = dataStore;
 	}
 
+	/**
+	 * @return datastore as {@link IKeysetPaginatedDataStore} or null if it does not support keyset pagination
+	 */
+	protected IKeysetPaginatedDataStore getKeysetPaginatedDataStore() {
+		DataStore dataStore = getDataStore();
+		if (dataStore instanceof IKeysetPaginatedDataStore) {
+			return (IKeysetPaginatedDataStore) dataStore;
+		}
+		logger.warn("Keyset pagination is not supported by datastore {}", dataStore != null ? dataStore.getClass().getSimpleName() : null);
+		return null;
+	}
+
+	protected List<Broadcast> getBroadcastListAfter(String lastStreamId, int size) {
+		IKeysetPaginatedDataStore dataStore = getKeysetPaginatedDataStore();
+		return dataStore != null ? dataStore.getBroadcastListAfter(lastStreamId, size) : new ArrayList<>();
+	}
+
+	protected List<VoD> getVodListAfter(String lastVodId, int size) {
+		IKeysetPaginatedDataStore dataStore = getKeysetPaginatedDataStore();
+		return dataStore != null ? dataStore.getVodListAfter(lastVodId, size) : new ArrayList<>();
+	}
+
+	protected List<Token> listTokensAfter(String streamId, String lastTokenId, int size) {
+		IKeysetPaginatedDataStore dataStore = getKeysetPaginatedDataStore();
+		return dataStore != null && streamId != null ? dataStore.listAllTokensAfter(streamId, lastTokenId, size) : new ArrayList<>();
+	}
+
 	public DataStoreFactory getDataStoreFactory() {
 		if(dataStoreFactory == null) {
 			WebApplicationContext ctxt = WebApplicationContextUtils.getWebApplicationContext(servletContext); 
@@ -313,6 +342,11 @@ public abstract class RestServiceBase {
 
 			result.setSuccess(getDataStore().delete(id));
 
+			if (result.isSuccess()) {
+				//tokens of a deleted stream should not be accepted from the cache
+				invalidateTokenValidationCache(id, null);
+			}
+
 			if(result.isSuccess() && stopResult) {
 				logger.info("brodcast {} is deleted and stopped successfully", broacast.getStreamId());
 				result.setMessage("brodcast is deleted and stopped successfully");
@@ -1588,6 +1622,11 @@ public abstract class RestServiceBase {
 		if(token.getTokenId() != null) {
 
 			validatedToken = getDataStore().validateToken(token);
+
+			if (validatedToken != null && (token.getRoomId() == null || token.getRoomId().isEmpty())) {
+				//token is consumed and deleted from the data store
+				invalidateTokenValidationCache(null, token.getTokenId());
+			}
 		}
 
 		return validatedToken;
@@ -1599,11 +1638,32 @@ public abstract class RestServiceBase {
 		if(streamId != null) {
 
 			result.setSuccess(getDataStore().revokeTokens(streamId));
+
+			invalidateTokenValidationCache(streamId, null);
 		}
 
 		return result;
 	}
 
+	/**
+	 * Removes the validated tokens of the stream or the token from the cache of the application 
+	 * when tokens are deleted from the data store
+	 * @param streamId id of the stream whose tokens are deleted or null
+	 * @param tokenId id of the deleted token or null
+	 */
+	protected void invalidateTokenValidationCache(String streamId, String tokenId) {
+		AntMediaApplicationAdapter application = getApplication();
+		TokenValidationCache cache = application != null ? application.getTokenValidationCache() : null;
+		if (cache != null) {
+			if (streamId != null) {
+				cache.invalidateStream(streamId);
+			}
+			if (tokenId != null) {
+				cache.invalidateToken(tokenId);
+			}
+		}
+	}
+
 	protected boolean deleteConferenceRoom(String roomName) {
 
 		if(roomName != null) {
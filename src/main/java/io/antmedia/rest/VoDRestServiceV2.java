@@ -75,6 +75,15 @@ public class VoDRestServiceV2 extends RestServiceBase{
 		return getDataStore().getVodList(offset, size);
 	}
 	
+	@ApiOperation(value = " Get the VoD list ordered by VoD id from database. Next page is fetched with the id of the last VoD in the previous page", responseContainer = "List",response = VoD.class)
+	@GET
+	@Path("/list")
+	@Produces(MediaType.APPLICATION_JSON)
+	public List<VoD> getVodListAfterV2(@ApiParam(value = "Id of the last VoD in the previous page. Leave it empty for the first page", required = false) @QueryParam("after") String after,
+			@ApiParam(value = "Number of items that will be fetched", required = true) @QueryParam("size") int size) {
+		return super.getVodListAfter(after, size);
+	}
+	
 	@ApiOperation(value = "Get the total number of VoDs", response = Long.class)
 	@GET
 	@Path("/count")
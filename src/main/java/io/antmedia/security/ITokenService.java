@@ -45,6 +45,27 @@ public interface ITokenService {
 
 	boolean checkToken (String tokenId, String streamId, String sessionId, String type);
 
+	/**
+	 * Checks the token validity like {@link #checkToken(String, String, String, String)} and returns the validated token.
+	 * Implementations should return the token with its expire date. Default implementation does not know the expire date 
+	 * so expire date of the returned token is zero
+	 * @param tokenId - requested token id
+	 * @param streamId - id of the stream
+	 * @param sessionId - id of the current session
+	 * @param type - type of the token (play/publish)
+	 * @return validated token or null if token is not valid
+	 */
+	default Token validateToken(String tokenId, String streamId, String sessionId, String type) {
+		Token token = null;
+		if (checkToken(tokenId, streamId, sessionId, type)) {
+			token = new Token();
+			token.setTokenId(tokenId);
+			token.setStreamId(streamId);
+			token.setType(type);
+		}
+		return token;
+	}
+
 	/**
 	 * creates token according to the provided parameters
 	 * @param streamId - id of the requested stream for token creation
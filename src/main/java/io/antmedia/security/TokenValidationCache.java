@@ -0,0 +1,177 @@
+package io.antmedia.security;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the validated (token, stream id, session id) tuples in memory
+ * so that HLS requests of a viewer do not go to the data store each time.
+ *
+ * An entry expires after the ttl or when the token expires, whichever is earlier.
+ * Number of entries is bounded, expired entries are removed first when the cache is full.
+ */
+public class TokenValidationCache {
+
+	/**
+	 * Minimum period between scans for expired entries when the cache is full
+	 */
+	private static final long PURGE_PERIOD_MS = 1000;
+
+	private static class Key {
+		private final String tokenId;
+		private final String streamId;
+		private final String sessionId;
+		private final int hash;
+
+		private Key(String tokenId, String streamId, String sessionId) {
+			this.tokenId = tokenId;
+			this.streamId = streamId;
+			this.sessionId = sessionId;
+			this.hash = Objects.hash(tokenId, streamId, sessionId);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) obj;
+			return hash == other.hash && Objects.equals(tokenId, other.tokenId)
+					&& Objects.equals(streamId, other.streamId) && Objects.equals(sessionId, other.sessionId);
+		}
+	}
+
+	/**
+	 * Key -> expire time in milliseconds
+	 */
+	private final ConcurrentHashMap<Key, Long> entries = new ConcurrentHashMap<>();
+	private final int maxSize;
+	private final long ttlMs;
+	private volatile long lastPurgeTime = 0;
+
+	private final AtomicLong hitCount = new AtomicLong();
+	private final AtomicLong missCount = new AtomicLong();
+	private final AtomicLong evictionCount = new AtomicLong();
+
+	/**
+	 * @param maxSize maximum number of validated tokens kept in the cache
+	 * @param ttlMs maximum time in milliseconds a validated token is kept in the cache
+	 */
+	public TokenValidationCache(int maxSize, long ttlMs) {
+		this.maxSize = maxSize;
+		this.ttlMs = ttlMs;
+	}
+
+	/**
+	 * @return true if the token is validated for the stream and session before and it's not expired
+	 */
+	public boolean isValid(String tokenId, String streamId, String sessionId) {
+		if (tokenId == null) {
+			missCount.incrementAndGet();
+			return false;
+		}
+		Key key = new Key(tokenId, streamId, sessionId);
+		Long expireTime = entries.get(key);
+		if (expireTime != null) {
+			if (expireTime > System.currentTimeMillis()) {
+				hitCount.incrementAndGet();
+				return true;
+			}
+			entries.remove(key, expireTime);
+		}
+		missCount.incrementAndGet();
+		return false;
+	}
+
+	/**
+	 * Adds a validated token to the cache
+	 * @param tokenExpireTimeMs expire time of the token in milliseconds.
+	 * If it's zero or negative, entry expires after the ttl
+	 */
+	public void put(String tokenId, String streamId, String sessionId, long tokenExpireTimeMs) {
+		if (tokenId == null || maxSize <= 0) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		long expireTime = now + ttlMs;
+		if (tokenExpireTimeMs > 0) {
+			expireTime = Math.min(expireTime, tokenExpireTimeMs);
+		}
+		if (expireTime <= now) {
+			return;
+		}
+
+		if (entries.size() >= maxSize) {
+			makeRoom(now);
+		}
+		entries.put(new Key(tokenId, streamId, sessionId), expireTime);
+	}
+
+	private void makeRoom(long now) {
+		if (now - lastPurgeTime >= PURGE_PERIOD_MS) {
+			lastPurgeTime = now;
+			entries.values().removeIf(expireTime -> expireTime <= now);
+		}
+
+		Iterator<Map.Entry<Key, Long>> iterator = entries.entrySet().iterator();
+		while (entries.size() >= maxSize && iterator.hasNext()) {
+			iterator.next();
+			iterator.remove();
+			evictionCount.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Removes all entries of the stream. It should be called when tokens of the stream are revoked
+	 */
+	public void invalidateStream(String streamId) {
+		entries.keySet().removeIf(key -> Objects.equals(key.streamId, streamId));
+	}
+
+	/**
+	 * Removes all entries of the token. It should be called when the token is deleted
+	 */
+	public void invalidateToken(String tokenId) {
+		entries.keySet().removeIf(key -> Objects.equals(key.tokenId, tokenId));
+	}
+
+	public void clear() {
+		entries.clear();
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	public long getHitCount() {
+		return hitCount.get();
+	}
+
+	public long getMissCount() {
+		return missCount.get();
+	}
+
+	public long getEvictionCount() {
+		return evictionCount.get();
+	}
+
+	/**
+	 * @return ratio of the lookups served from the cache, between 0 and 1
+	 */
+	public double getHitRate() {
+		long hits = hitCount.get();
+		long total = hits + missCount.get();
+		return total > 0 ? (double) hits / total : 0;
+	}
+}
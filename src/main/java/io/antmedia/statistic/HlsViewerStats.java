@@ -1,9 +1,11 @@
 package io.antmedia.statistic;
 
-import java.util.Iterator;
-import java.util.Map;
-import java.util.Map.Entry;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.red5.server.api.scheduling.ISchedulingService;
 import org.slf4j.Logger;
@@ -33,7 +35,32 @@ public class HlsViewerStats implements IStreamStats, ApplicationContextAware{
 	 */
 	private int timePeriodMS = DEFAULT_TIME_PERIOD_FOR_VIEWER_COUNT;
 
-	Map<String, Map<String, Long>> streamsViewerMap = new ConcurrentHashMap<>();
+	/**
+	 * Period in milliseconds to write the viewer count changes to the data store
+	 */
+	private int flushPeriodMS = DEFAULT_FLUSH_PERIOD_MS;
+
+	public static final int DEFAULT_FLUSH_PERIOD_MS = 2000;
+
+	/**
+	 * Viewers of each stream. Each stream has its own map so that streams do not contend with each other
+	 */
+	private final ConcurrentHashMap<String, StreamViewers> streamsViewerMap = new ConcurrentHashMap<>();
+
+	/**
+	 * Streams whose viewer count is changed since the last flush
+	 */
+	private final Set<String> changedStreams = ConcurrentHashMap.newKeySet();
+
+	private final AtomicInteger totalViewerCount = new AtomicInteger();
+
+	/**
+	 * Viewers are put into the slot of the tick their timeout expires. When a slot is processed, 
+	 * viewers that have requested since then are put into the slot of their new expire time, others are removed.
+	 * So requests of a viewer only update its last request time
+	 */
+	private ConcurrentLinkedQueue<Viewer>[] timeWheel;
+	private long lastProcessedTick = -1;
 
 	/**
 	 * Time out value in milliseconds, it is regarded as user is not watching stream 
@@ -41,40 +68,188 @@ public class HlsViewerStats implements IStreamStats, ApplicationContextAware{
 	 */
 	private int timeoutMS = 20000;
 
+	private static class Viewer {
+		private final String streamId;
+		private final String sessionId;
+		private volatile long lastRequestTime;
+		private boolean removed = false;
+
+		private Viewer(String streamId, String sessionId, long lastRequestTime) {
+			this.streamId = streamId;
+			this.sessionId = sessionId;
+			this.lastRequestTime = lastRequestTime;
+		}
+	}
+
+	private static class StreamViewers {
+		private final ConcurrentHashMap<String, Viewer> viewers = new ConcurrentHashMap<>();
+		/**
+		 * Viewer count change that is not written to the data store yet
+		 */
+		private final AtomicInteger pendingDelta = new AtomicInteger();
+	}
+
 	@Override
 	public void registerNewViewer(String streamId, String sessionId) 
 	{
-		Map<String, Long> viewerMap = streamsViewerMap.get(streamId);
-		if (viewerMap == null) {
-			viewerMap = new ConcurrentHashMap<>();
+		long now = System.currentTimeMillis();
+		StreamViewers streamViewers = streamsViewerMap.get(streamId);
+		if (streamViewers != null) {
+			Viewer viewer = streamViewers.viewers.get(sessionId);
+			if (viewer != null) {
+				synchronized (viewer) {
+					if (!viewer.removed) {
+						viewer.lastRequestTime = now;
+						return;
+					}
+				}
+			}
 		}
-		if (!viewerMap.containsKey(sessionId)) {
-			//if sessionId is not in the map, this is the first time for getting stream,
-			//increment viewer count
-			getDataStore().updateHLSViewerCount(streamId, 1);
+
+		//this is the first time for getting stream or viewer is just removed, increment viewer count
+		Viewer[] newViewer = new Viewer[1];
+		streamsViewerMap.compute(streamId, (id, viewers) -> {
+			if (viewers == null) {
+				viewers = new StreamViewers();
+			}
+			Viewer viewer = viewers.viewers.get(sessionId);
+			if (viewer == null || viewer.removed) {
+				newViewer[0] = new Viewer(streamId, sessionId, now);
+				viewers.viewers.put(sessionId, newViewer[0]);
+				viewers.pendingDelta.incrementAndGet();
+			}
+			else {
+				viewer.lastRequestTime = now;
+			}
+			return viewers;
+		});
+
+		if (newViewer[0] != null) {
+			totalViewerCount.incrementAndGet();
+			changedStreams.add(streamId);
+			addToTimeWheel(newViewer[0], now + getTimeoutMS());
 		}
-		viewerMap.put(sessionId, System.currentTimeMillis());
+	}
+
+	private void addToTimeWheel(Viewer viewer, long expireTime) {
+		ConcurrentLinkedQueue<Viewer>[] wheel = getTimeWheel();
+		//slot is processed at or after the expire time
+		long tick = (expireTime + timePeriodMS - 1) / timePeriodMS;
+		wheel[(int) (tick % wheel.length)].add(viewer);
+	}
 
-		streamsViewerMap.put(streamId, viewerMap);
+	@SuppressWarnings("unchecked")
+	private synchronized ConcurrentLinkedQueue<Viewer>[] getTimeWheel() {
+		if (timeWheel == null) {
+			//viewers are at most one timeout ahead so that a slot has viewers of a single tick
+			int slotCount = getTimeoutMS() / timePeriodMS + 2;
+			ConcurrentLinkedQueue<Viewer>[] wheel = new ConcurrentLinkedQueue[slotCount];
+			for (int i = 0; i < slotCount; i++) {
+				wheel[i] = new ConcurrentLinkedQueue<>();
+			}
+			timeWheel = wheel;
+		}
+		return timeWheel;
+	}
+
+	/**
+	 * Processes the slots of the ticks passed since the last call and removes the viewers whose timeout has expired
+	 * @return number of removed viewers
+	 */
+	public int removeExpiredViewers() {
+		ConcurrentLinkedQueue<Viewer>[] wheel = getTimeWheel();
+		long now = System.currentTimeMillis();
+		long currentTick = now / timePeriodMS;
+		int removedCount = 0;
+		synchronized (this) {
+			long firstTick = lastProcessedTick == -1 ? currentTick - wheel.length + 1 : lastProcessedTick + 1;
+			//all slots are processed once if the job is late for a whole turn
+			firstTick = Math.max(firstTick, currentTick - wheel.length + 1);
+			for (long tick = firstTick; tick <= currentTick; tick++) {
+				removedCount += processSlot(wheel[(int) (tick % wheel.length)], now);
+			}
+			lastProcessedTick = currentTick;
+		}
+		return removedCount;
+	}
+
+	private int processSlot(ConcurrentLinkedQueue<Viewer> slot, long now) {
+		//take all viewers first because viewers that are still active may be put back into the same slot
+		List<Viewer> viewers = new ArrayList<>();
+		Viewer viewer;
+		while ((viewer = slot.poll()) != null) {
+			viewers.add(viewer);
+		}
+
+		int removedCount = 0;
+		for (Viewer item : viewers) {
+			boolean expired;
+			synchronized (item) {
+				if (item.removed) {
+					continue;
+				}
+				expired = item.lastRequestTime + getTimeoutMS() <= now;
+				if (expired) {
+					// regard it as not a viewer
+					item.removed = true;
+				}
+			}
+
+			if (expired) {
+				//viewer may be registered again with a new entry, so count is decremented even if entry is replaced
+				streamsViewerMap.computeIfPresent(item.streamId, (id, viewers) -> {
+					viewers.viewers.remove(item.sessionId, item);
+					viewers.pendingDelta.decrementAndGet();
+					return viewers;
+				});
+				totalViewerCount.decrementAndGet();
+				changedStreams.add(item.streamId);
+				removedCount++;
+			}
+			else {
+				addToTimeWheel(item, item.lastRequestTime + getTimeoutMS());
+			}
+		}
+		return removedCount;
+	}
+
+	/**
+	 * Writes viewer count changes of the streams to the data store with one update per changed stream
+	 * @return number of streams updated
+	 */
+	public int flushViewerCountChanges() {
+		int updatedCount = 0;
+		for (String streamId : changedStreams) {
+			changedStreams.remove(streamId);
+			StreamViewers streamViewers = streamsViewerMap.get(streamId);
+			if (streamViewers == null) {
+				continue;
+			}
+			int delta = streamViewers.pendingDelta.getAndSet(0);
+			if (delta != 0) {
+				getDataStore().updateHLSViewerCount(streamId, delta);
+				updatedCount++;
+			}
+			//remove the stream if it does not have any viewer
+			streamsViewerMap.computeIfPresent(streamId, (id, viewers) -> 
+				viewers.viewers.isEmpty() && viewers.pendingDelta.get() == 0 ? null : viewers);
+		}
+		return updatedCount;
 	}
 
 	@Override
 	public int getViewerCount(String streamId) {
-		Map<String, Long> viewerMap = streamsViewerMap.get(streamId);
+		StreamViewers streamViewers = streamsViewerMap.get(streamId);
 		int viewerCount = 0;
-		if (viewerMap != null) 
+		if (streamViewers != null) 
 		{
-			viewerCount = viewerMap.size();
+			viewerCount = streamViewers.viewers.size();
 		}
 		return viewerCount;
 	}
 	
 	public int getTotalViewerCount() {
-		int viewerCount = 0;
-		for (Map<String, Long> map : streamsViewerMap.values()) {
-			viewerCount += map.size();
-		}
-		return viewerCount;
+		return totalViewerCount.get();
 	}
 
 	@Override
@@ -90,38 +265,10 @@ public class HlsViewerStats implements IStreamStats, ApplicationContextAware{
 		}
 
 		scheduler.addScheduledJobAfterDelay(timePeriodMS, 
-				(ISchedulingService service) -> {
-					
-					Iterator<Entry<String, Map<String, Long>>> streamIterator = streamsViewerMap.entrySet().iterator();
-					Iterator<Entry<String, Long>> viewerIterator;
-					Entry<String, Map<String, Long>> streamViewerEntry;
-					Map<String, Long> viewerMapEnty;
-					
-					long now = System.currentTimeMillis();
-					while (streamIterator.hasNext()) 
-					{
-						streamViewerEntry = streamIterator.next();
-						viewerMapEnty = streamViewerEntry.getValue();
-						viewerIterator = viewerMapEnty.entrySet().iterator();
-						int numberOfDecrement = 0;
-						while (viewerIterator.hasNext()) 
-						{
-							Entry<String, Long> viewer = viewerIterator.next();
-							if (viewer.getValue() < (now - getTimeoutMS())) 
-							{
-								// regard it as not a viewer
-								viewerIterator.remove();
-								numberOfDecrement++;
-							}
-						}
-						
-						numberOfDecrement = -1 * numberOfDecrement;
-						
-						getDataStore().updateHLSViewerCount(streamViewerEntry.getKey(), numberOfDecrement);
-						
-					}
-					
-				}, timePeriodMS);
+				(ISchedulingService service) -> removeExpiredViewers(), timePeriodMS);
+
+		scheduler.addScheduledJobAfterDelay(flushPeriodMS, 
+				(ISchedulingService service) -> flushViewerCountChanges(), flushPeriodMS);
 	}
 
 	public static int getTimeoutMSFromSettings(AppSettings settings, int defaultValue) {
@@ -141,6 +288,15 @@ public class HlsViewerStats implements IStreamStats, ApplicationContextAware{
 	public void setTimePeriodMS(int timePeriodMS) {
 		this.timePeriodMS = timePeriodMS;
 	}
+
+	public void setFlushPeriodMS(int flushPeriodMS) {
+		this.flushPeriodMS = flushPeriodMS;
+	}
+
+	public int getFlushPeriodMS() {
+		return flushPeriodMS;
+	}
+
 	public int getTimePeriodMS() {
 		return timePeriodMS;
 	}
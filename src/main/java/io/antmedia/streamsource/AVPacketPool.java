@@ -0,0 +1,171 @@
+package io.antmedia.streamsource;
+
+import static org.bytedeco.javacpp.avcodec.av_packet_alloc;
+import static org.bytedeco.javacpp.avcodec.av_packet_free;
+import static org.bytedeco.javacpp.avcodec.av_packet_unref;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bytedeco.javacpp.avcodec.AVPacket;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Pool of native packets to be reused in the buffered stream fetching.
+ * 
+ * Packet data is reference counted by FFmpeg, packets in the pool only keep the packet structure. 
+ * Packets are unreferenced when they are returned to the pool.
+ * 
+ * Pool keeps at most high watermark number of packets and extra returned packets are freed. 
+ * {@link #trim()} frees the packets in the pool down to the low watermark.
+ */
+public class AVPacketPool {
+
+	protected static Logger logger = LoggerFactory.getLogger(AVPacketPool.class);
+
+	public static final int DEFAULT_HIGH_WATERMARK = 1024;
+
+	public static final int DEFAULT_LOW_WATERMARK = 64;
+
+	private ConcurrentLinkedQueue<AVPacket> pool = new ConcurrentLinkedQueue<>();
+
+	/**
+	 * Number of packets in the pool
+	 */
+	private AtomicInteger pooledCount = new AtomicInteger(0);
+
+	/**
+	 * Number of packets taken from the pool and not returned yet
+	 */
+	private AtomicInteger outstandingCount = new AtomicInteger(0);
+
+	private AtomicLong hitCount = new AtomicLong(0);
+
+	private AtomicLong missCount = new AtomicLong(0);
+
+	private AtomicLong freeCount = new AtomicLong(0);
+
+	private int highWatermark;
+
+	private int lowWatermark;
+
+	private String name;
+
+	public AVPacketPool(String name) {
+		this(name, DEFAULT_HIGH_WATERMARK, DEFAULT_LOW_WATERMARK);
+	}
+
+	public AVPacketPool(String name, int highWatermark, int lowWatermark) {
+		this.name = name;
+		this.highWatermark = highWatermark;
+		this.lowWatermark = Math.min(lowWatermark, highWatermark);
+	}
+
+	/**
+	 * Gets a packet from the pool or allocates a new one if the pool is empty
+	 * @return an empty packet
+	 */
+	public AVPacket borrow() 
+	{
+		AVPacket packet = pool.poll();
+		if (packet != null) {
+			pooledCount.decrementAndGet();
+			hitCount.incrementAndGet();
+		}
+		else {
+			packet = av_packet_alloc();
+			missCount.incrementAndGet();
+		}
+		outstandingCount.incrementAndGet();
+		return packet;
+	}
+
+	/**
+	 * Unreferences the packet and returns it to the pool. If the pool is full, packet is freed
+	 * @param packet
+	 */
+	public void release(AVPacket packet) 
+	{
+		av_packet_unref(packet);
+		outstandingCount.decrementAndGet();
+		if (pooledCount.incrementAndGet() > highWatermark) {
+			pooledCount.decrementAndGet();
+			free(packet);
+		}
+		else {
+			pool.offer(packet);
+		}
+	}
+
+	/**
+	 * Frees the packets in the pool down to the low watermark
+	 */
+	public void trim() 
+	{
+		while (pooledCount.get() > lowWatermark) {
+			AVPacket packet = pool.poll();
+			if (packet == null) {
+				break;
+			}
+			pooledCount.decrementAndGet();
+			free(packet);
+		}
+	}
+
+	/**
+	 * Frees all packets in the pool and reports the packets that are not returned. 
+	 * Pool can still be used after this call
+	 * 
+	 * @return number of packets that are not returned to the pool
+	 */
+	public int clear() 
+	{
+		AVPacket packet;
+		while ((packet = pool.poll()) != null) {
+			pooledCount.decrementAndGet();
+			free(packet);
+		}
+
+		int leakCount = outstandingCount.get();
+		if (leakCount > 0) {
+			logger.warn("{} packets are not returned to the packet pool of {}", leakCount, name);
+		}
+		logger.info("Packet pool of {} is cleared. Hit count:{} miss count:{} free count:{}", name, hitCount.get(), missCount.get(), freeCount.get());
+		return leakCount;
+	}
+
+	private void free(AVPacket packet) {
+		av_packet_free(packet);
+		freeCount.incrementAndGet();
+	}
+
+	public int getPooledCount() {
+		return pooledCount.get();
+	}
+
+	public int getOutstandingCount() {
+		return outstandingCount.get();
+	}
+
+	public long getHitCount() {
+		return hitCount.get();
+	}
+
+	public long getMissCount() {
+		return missCount.get();
+	}
+
+	public long getFreeCount() {
+		return freeCount.get();
+	}
+
+	public int getHighWatermark() {
+		return highWatermark;
+	}
+
+	public int getLowWatermark() {
+		return lowWatermark;
+	}
+}
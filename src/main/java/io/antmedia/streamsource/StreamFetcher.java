@@ -1,25 +1,44 @@
 package io.antmedia.streamsource;
 
+import static org.bytedeco.javacpp.avcodec.AV_PKT_FLAG_KEY;
 import static org.bytedeco.javacpp.avcodec.av_packet_free;
 import static org.bytedeco.javacpp.avcodec.av_packet_ref;
 import static org.bytedeco.javacpp.avcodec.av_packet_unref;
+import static org.bytedeco.javacpp.avformat.AVFMT_FLAG_NONBLOCK;
 import static org.bytedeco.javacpp.avformat.av_read_frame;
+import static org.bytedeco.javacpp.avformat.avformat_alloc_context;
 import static org.bytedeco.javacpp.avformat.avformat_close_input;
 import static org.bytedeco.javacpp.avformat.avformat_find_stream_info;
 import static org.bytedeco.javacpp.avformat.avformat_open_input;
+import static org.bytedeco.javacpp.avutil.AVERROR_EAGAIN;
+import static org.bytedeco.javacpp.avutil.AVERROR_EXIT;
 import static org.bytedeco.javacpp.avutil.AVMEDIA_TYPE_AUDIO;
+import static org.bytedeco.javacpp.avutil.AVMEDIA_TYPE_VIDEO;
 import static org.bytedeco.javacpp.avutil.av_dict_free;
 import static org.bytedeco.javacpp.avutil.av_dict_set;
 import static org.bytedeco.javacpp.avutil.av_rescale_q;
 
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.bytedeco.javacpp.LongPointer;
+import org.bytedeco.javacpp.Pointer;
 import org.bytedeco.javacpp.avcodec;
 import org.bytedeco.javacpp.avcodec.AVPacket;
 import org.bytedeco.javacpp.avformat.AVFormatContext;
+import org.bytedeco.javacpp.avformat.AVIOContext;
+import org.bytedeco.javacpp.avformat.AVIOInterruptCB;
+import org.bytedeco.javacpp.avformat.AVStream;
 import org.bytedeco.javacpp.avutil;
 import org.bytedeco.javacpp.avutil.AVDictionary;
 import org.bytedeco.javacpp.avutil.AVRational;
@@ -52,8 +71,8 @@ public class StreamFetcher {
 	/**
 	 * Last packet received time
 	 */
-	private long lastPacketReceivedTime = 0;
-	private boolean threadActive = false;
+	private volatile long lastPacketReceivedTime = 0;
+	private volatile boolean threadActive = false;
 	private Result cameraError = new Result(false,"");
 	private static final int PACKET_RECEIVED_INTERVAL_TIMEOUT = 3000;
 	private IScope scope;
@@ -72,9 +91,124 @@ public class StreamFetcher {
 	 */
 	private int bufferTime = 0;
 
-	private ConcurrentLinkedQueue<AVPacket> availableBufferQueue = new ConcurrentLinkedQueue<>();
+	/**
+	 * Maximum number of packets that can stay in the buffer queue. If the queue exceeds this value,
+	 * writer drops the oldest packets
+	 */
+	private int maxBufferedPacketCount = 10000;
+
+	private AVPacketPool packetPool;
+
+	/**
+	 * Number of packets in the buffer queue. It's kept separately because 
+	 * {@link ConcurrentLinkedQueue#size()} traverses the whole queue
+	 */
+	private AtomicInteger bufferedPacketCount = new AtomicInteger(0);
+
+	/**
+	 * Highest number of packets seen in the buffer queue
+	 */
+	private volatile int bufferedPacketCountPeak = 0;
+
+	/**
+	 * Number of packets dropped because buffer exceeds its limits
+	 */
+	private AtomicLong droppedPacketCount = new AtomicLong(0);
+
+	/**
+	 * Number of packets written by the buffered packet writer
+	 */
+	private AtomicLong bufferedPacketWriteCount = new AtomicLong(0);
+
+	/**
+	 * Number of packets written in the last run of the buffered packet writer
+	 */
+	private volatile int lastWriteBatchSize = 0;
 
 	private ISchedulingService scheduler;
+
+	/**
+	 * If it's not null, stream is fetched in the shared event loop instead of 
+	 * a dedicated thread
+	 */
+	private StreamFetcherEventLoop eventLoop;
+
+	private static final int WORKER_FINISH_CHECK_PERIOD_MS = 100;
+
+	private static final int RESTART_DELAY_MS = 2000;
+
+	/**
+	 * Maximum time in milliseconds for opening the stream source and finding the stream info. 
+	 * Blocking calls are interrupted after this time
+	 */
+	public static final int OPEN_TIMEOUT_MS = 15000;
+
+	/**
+	 * Maximum time in milliseconds for a single read in the event loop. Most demuxers ignore 
+	 * AVFMT_FLAG_NONBLOCK so a read that does not return in this time 
+	 * is interrupted and it's retried in the next run. A stalled source holds a loop thread only for this time
+	 */
+	public static final int EVENT_LOOP_READ_TIMEOUT_MS = 50;
+
+	/**
+	 * Stream is closed if no packet is read in the event loop in this time
+	 */
+	public static final int EVENT_LOOP_STALL_TIMEOUT_MS = PACKET_RECEIVED_INTERVAL_TIMEOUT;
+
+	/**
+	 * Workers that have an input context with the interrupt callback. 
+	 * Key is the address of the opaque pointer passed to the callback
+	 */
+	private static final Map<Long, WorkerThread> interruptibleWorkers = new ConcurrentHashMap<>();
+
+	/**
+	 * There is a single callback instance for all fetchers because JavaCPP limits 
+	 * the number of native instances of a callback class
+	 */
+	private static final InterruptCallback interruptCallback = new InterruptCallback();
+
+	/**
+	 * It's run when the active worker finishes. It's used to start a new worker 
+	 * without polling whether the previous one is finished
+	 */
+	private AtomicReference<Runnable> workerFinishListener = new AtomicReference<>();
+
+	/**
+	 * Initial delay in milliseconds before reconnecting to a stream that failed to open. 
+	 * It's doubled for each consecutive failure
+	 */
+	public static final int RECONNECT_BACKOFF_BASE_MS = 2000;
+
+	/**
+	 * Maximum delay in milliseconds before reconnecting to a stream that failed to open
+	 */
+	public static final int RECONNECT_BACKOFF_MAX_MS = 300000;
+
+	/**
+	 * Number of times stream is restarted by {@link StreamFetcherManager}
+	 */
+	private AtomicInteger restartCount = new AtomicInteger(0);
+
+	/**
+	 * Total number of failed attempts to open the stream
+	 */
+	private AtomicInteger openFailureCount = new AtomicInteger(0);
+
+	/**
+	 * Number of failed attempts to open the stream since the last successful one
+	 */
+	private volatile int consecutiveOpenFailureCount = 0;
+
+	/**
+	 * System time in milliseconds of the last failed attempt to open the stream
+	 */
+	private volatile long lastOpenFailureTime = 0;
+
+	/**
+	 * If it's set, the next attempt to open the stream waits for a permit and releases it when the attempt finishes
+	 */
+	private AtomicReference<Semaphore> openPermits = new AtomicReference<>();
+
 	private AVRational avRationalTimeBaseMS;
 	private AppSettings appSettings;
 
@@ -103,6 +237,8 @@ public class StreamFetcher {
 
 		this.bufferTime = getAppSettings().getStreamFetcherBufferTime();
 
+		packetPool = new AVPacketPool(stream.getStreamId());
+
 		avRationalTimeBaseMS = new AVRational();
 		avRationalTimeBaseMS.num(1);
 		avRationalTimeBaseMS.den(1000);
@@ -184,163 +320,336 @@ public class StreamFetcher {
 		private volatile boolean streamPublished = false;
 		protected AtomicBoolean isJobRunning = new AtomicBoolean(false);
 		AVFormatContext inputFormatContext = null;
+		private AVPacket pkt = null;
+		private String packetWriterJobName = null;
+		private int bufferLogCounter = 0;
 
 		private volatile boolean buffering = false;
 		private ConcurrentLinkedQueue<AVPacket> bufferQueue = new ConcurrentLinkedQueue<>();
 
+		/**
+		 * DTS in milliseconds of the last packet added to the buffer queue
+		 */
+		private volatile long lastPacketTimeInQueue = 0;
+
+		/**
+		 * DTS in milliseconds of the first packet written after buffering.
+		 * Packets are paced relative to this value. It's -1 when there is no anchor
+		 */
+		private long anchorPacketTime = -1;
+
+		/**
+		 * System time in milliseconds when the anchor packet is written
+		 */
+		private long anchorSystemTime = 0;
+
+		/**
+		 * It's true after packets are dropped. Video packets are dropped until a key frame 
+		 * because they cannot be decoded without the dropped ones
+		 */
+		private boolean waitingForKeyFrame = false;
+
+		/**
+		 * System time in milliseconds after which the blocking calls on the input context 
+		 * are interrupted. It's 0 if there is no deadline
+		 */
+		private volatile long ioDeadline = 0;
+
+		/**
+		 * Opaque pointer of the interrupt callback. Its address identifies this worker
+		 */
+		private LongPointer interruptOpaque = null;
+
+		/**
+		 * Time in milliseconds to wait before opening the stream when it runs as a thread
+		 */
+		private long startDelayMs = 0;
+
 		@Override
 		public void run() {
 
 			setThreadActive(true);
-			long lastPacketTime = 0;
-			long firstPacketTime = 0;
-			long bufferDuration = 0;
-
-			AVPacket pkt = null;
-			String packetWriterJobName = null;
 			try {
-				inputFormatContext = new AVFormatContext(null); 
-				pkt = avcodec.av_packet_alloc();
-				logger.info("Preparing the StreamFetcher for {}", stream.getStreamUrl());
-				Result result = prepare(inputFormatContext);
+				waitFor(startDelayMs);
+				if (!stopRequestReceived && openStream()) {
+					while (readPacket() >= 0) {
+						if (stopRequestReceived) {
+							logger.warn("Stop request received, breaking the loop for {} ", stream.getStreamId());
+							break;
+						}
+					}
+					logger.info("Leaving the loop for {}", stream.getStreamId());
+				}
+			}
+			catch (OutOfMemoryError | Exception e) {
+				logger.error(ExceptionUtils.getStackTrace(e));
+				exceptionInThread  = true;
+			}
 
+			closeStream();
 
-				if (result.isSuccess()) {
-					boolean audioOnly = false;
-					if(inputFormatContext.nb_streams() == 1) {
-						audioOnly  = (inputFormatContext.streams(0).codecpar().codec_type() == AVMEDIA_TYPE_AUDIO);
-						logger.debug(" codec: {}", inputFormatContext.streams(0).codecpar().codec_id());
+			if(!stopRequestReceived && restartStream) {
+				long delay = getReconnectDelayMs();
+				if (delay > 0) {
+					logger.info("Waiting {}ms before reconnecting to {}", delay, stream.getStreamUrl());
+				}
+				waitFor(delay);
+			}
+
+			boolean startRequested = workerFinished();
+			if(!startRequested && !stopRequestReceived && restartStream) {
+				startWorker();
+			}
 
+			logger.debug("Leaving thread for {}", stream.getStreamUrl());
+
+
+		}
+
+		/**
+		 * Opens the stream source and prepares the muxers
+		 * 
+		 * @return true if stream is ready to read packets, false if it fails
+		 */
+		public boolean openStream() 
+		{
+			Semaphore permits = openPermits.getAndSet(null);
+			if (permits != null && !acquirePermit(permits)) {
+				//stop is requested while waiting
+				return false;
+			}
+			boolean opened = false;
+			try {
+				opened = prepareStream();
+			}
+			finally {
+				if (permits != null) {
+					permits.release();
+				}
+				openAttemptFinished(opened);
+			}
+			return opened;
+		}
+
+		/**
+		 * Waits for a permit until a stop request is received
+		 * @return true if permit is acquired
+		 */
+		private boolean acquirePermit(Semaphore permits) 
+		{
+			try {
+				while (!stopRequestReceived) {
+					if (permits.tryAcquire(WORKER_FINISH_CHECK_PERIOD_MS, TimeUnit.MILLISECONDS)) {
+						return true;
 					}
-					muxAdaptor = MuxAdaptor.initializeMuxAdaptor(null,true, scope);
-					// if there is only audio, firstKeyFrameReceivedChecked should be true in advance
-					// because there is no video frame
+				}
+			} catch (InterruptedException e) {
+				logger.error(e.getMessage());
+				Thread.currentThread().interrupt();
+			}
+			return false;
+		}
 
-					muxAdaptor.setFirstKeyFrameReceivedChecked(audioOnly); 
-					setUpEndPoints(stream.getStreamId(), muxAdaptor);
+		/**
+		 * Sleeps for the delay or until a stop request is received
+		 */
+		private void waitFor(long delay) 
+		{
+			long endTime = System.currentTimeMillis() + delay;
+			try {
+				while (!stopRequestReceived && System.currentTimeMillis() < endTime) {
+					Thread.sleep(WORKER_FINISH_CHECK_PERIOD_MS);
+				}
+			} catch (InterruptedException e) {
+				logger.error(e.getMessage());
+				Thread.currentThread().interrupt();
+			}
+		}
 
-					muxAdaptor.init(scope, stream.getStreamId(), false);
+		private boolean prepareStream() 
+		{
+			inputFormatContext = avformat_alloc_context(); 
+			setInterruptCallback(inputFormatContext);
+			pkt = avcodec.av_packet_alloc();
+			logger.info("Preparing the StreamFetcher for {}", stream.getStreamUrl());
+			ioDeadline = System.currentTimeMillis() + OPEN_TIMEOUT_MS;
+			Result result = prepare(inputFormatContext);
+			ioDeadline = 0;
+
+			if (result.isSuccess()) {
+				if (eventLoop != null) {
+					//do not block the shared threads in av_read_frame
+					inputFormatContext.flags(inputFormatContext.flags() | AVFMT_FLAG_NONBLOCK);
+				}
 
+				boolean audioOnly = false;
+				if(inputFormatContext.nb_streams() == 1) {
+					audioOnly  = (inputFormatContext.streams(0).codecpar().codec_type() == AVMEDIA_TYPE_AUDIO);
+					logger.debug(" codec: {}", inputFormatContext.streams(0).codecpar().codec_id());
 
-					logger.info("{} stream count in stream {} is {}", stream.getStreamId(), stream.getStreamUrl(), inputFormatContext.nb_streams());
+				}
+				muxAdaptor = MuxAdaptor.initializeMuxAdaptor(null,true, scope);
+				// if there is only audio, firstKeyFrameReceivedChecked should be true in advance
+				// because there is no video frame
 
-					if(muxAdaptor.prepareInternal(inputFormatContext)) {
+				muxAdaptor.setFirstKeyFrameReceivedChecked(audioOnly); 
+				setUpEndPoints(stream.getStreamId(), muxAdaptor);
 
-						long currentTime = System.currentTimeMillis();
-						muxAdaptor.setStartTime(currentTime);
+				muxAdaptor.init(scope, stream.getStreamId(), false);
 
-						getInstance().startPublish(stream.getStreamId());
 
-						if (bufferTime > 0) {
-							packetWriterJobName = scheduler.addScheduledJob(PACKET_WRITER_PERIOD_IN_MS, this);
-						}
+				logger.info("{} stream count in stream {} is {}", stream.getStreamId(), stream.getStreamUrl(), inputFormatContext.nb_streams());
 
-						int bufferLogCounter = 0;
-						while (av_read_frame(inputFormatContext, pkt) >= 0) {
-
-							streamPublished = true;
-							lastPacketReceivedTime = System.currentTimeMillis();
-
-							/**
-							 * Check that dts values are monotically increasing for each stream
-							 */
-							int packetIndex = pkt.stream_index();
-							if (lastDTS[packetIndex] >= pkt.dts()) {
-								pkt.dts(lastDTS[packetIndex] + 1);
-							}
-							lastDTS[packetIndex] = pkt.dts();
-							if (pkt.dts() > pkt.pts()) {
-								logger.info("dts ({}) is bigger than pts({})", pkt.dts(), pkt.pts());
-								pkt.pts(pkt.dts());
-							}
-
-							/***************************************************
-							 *  Memory of being paranoid or failing while looking for excellence without understanding the whole picture
-							 *  
-							 *  Increasing pkt.dts plus 1 is a simple hack for fixing dts error if current dts has a value lower 
-							 *  than the last received dts. Because dts should be monotonically increasing. I made this simple hack and it is working. 
-							 *  After that I thought the same may happen for the pts value as well and I have added below fix. 
-							 *  Actually not a fix, it is a bug. Because pts values does not have to be monotonically increasing
-							 *  and if stream has B-Frames then pts value can be lower than the last PTS value. So below
-							 *  code snippet make the stream does not play smoothly. It took about 10 hours to find it this error.
-							 *  
-							 *  I have written this simple memory for me
-							 *  and for the guys who is developing or reviewing this code. 
-							 *  Even if it is time consuming or not reasonable, these kind of tryouts sometimes makes me excited. 
-							 *  I think I may expect to find something great by trying something crazy :) 
-							 *  
-							 *  @mekya - June 12, 2018
-							 *  
-							 *  ---------------------------------------------------
-							 *  
-							 *  if (lastPTS[packetIndex] >= pkt.pts()) {
-							 * 	   pkt.pts(lastPTS[packetIndex] + 1);
-							 *  }
-							 *  lastPTS[packetIndex] = pkt.pts();
-							 *
-							 ******************************************************/
-							if (bufferTime > 0) 
-							{
-								/*
-								 * If there is a bufferTime in the server.
-								 * Generally we don't use this feature most of the time
-								 */
-								AVPacket packet = getAVPacket();
-								av_packet_ref(packet, pkt);
-								bufferQueue.add(packet);
-
-								AVPacket pktHead = bufferQueue.peek();
-								/**
-								 * BufferQueue may be polled in writer thread. 
-								 * It's a very rare case to happen so that check if it's null
-								 */
-								if (pktHead != null) {
-									lastPacketTime = av_rescale_q(pkt.pts(), inputFormatContext.streams(pkt.stream_index()).time_base(), avRationalTimeBaseMS);
-									firstPacketTime = av_rescale_q(pktHead.pts(), inputFormatContext.streams(pktHead.stream_index()).time_base(), avRationalTimeBaseMS);
-									bufferDuration = (lastPacketTime - firstPacketTime);
-
-									if ( bufferDuration > bufferTime) {
-										buffering = false;
-									}
-
-									bufferLogCounter++;
-									if (bufferLogCounter % 100 == 0) {
-										logger.debug("Buffer status {}, buffer duration {}ms buffer time {}ms", buffering, bufferDuration, bufferTime);
-										bufferLogCounter = 0;
-									}
-								}
-							}
-							else {
-								muxAdaptor.writePacket(inputFormatContext.streams(pkt.stream_index()), pkt);
-							}
-							av_packet_unref(pkt);
-							if (stopRequestReceived) {
-								logger.warn("Stop request received, breaking the loop for {} ", stream.getStreamId());
-								break;
-							}
-						}
-						logger.info("Leaving the loop for {}", stream.getStreamId());
+				if(muxAdaptor.prepareInternal(inputFormatContext)) {
 
-					}
-					else {
-						logger.error("MuxAdaptor.Prepare for {} returned false", stream.getName());
-					}
+					long currentTime = System.currentTimeMillis();
+					muxAdaptor.setStartTime(currentTime);
 
-					setCameraError(result);
-				} 
+					getInstance().startPublish(stream.getStreamId());
+
+					if (bufferTime > 0) {
+						packetWriterJobName = scheduler.addScheduledJob(PACKET_WRITER_PERIOD_IN_MS, this);
+					}
+					return true;
+				}
 				else {
-					logger.error("Prepare for opening the {} has failed", stream.getStreamUrl());
+					logger.error("MuxAdaptor.Prepare for {} returned false", stream.getName());
 				}
+			} 
+			else {
+				logger.error("Prepare for opening the {} has failed", stream.getStreamUrl());
 			}
-			catch (OutOfMemoryError | Exception e) {
-				logger.error(ExceptionUtils.getStackTrace(e));
-				exceptionInThread  = true;
+			return false;
+		}
+
+		/**
+		 * Reads a packet from the stream source and writes it to the muxers or to the buffer
+		 * 
+		 * @return the return value of av_read_frame. It's negative if there is an error or 
+		 * AVERROR_EAGAIN if there is no packet available in non-blocking mode
+		 */
+		public int readPacket() 
+		{
+			long deadline = 0;
+			if (eventLoop != null) {
+				deadline = System.currentTimeMillis() + EVENT_LOOP_READ_TIMEOUT_MS;
+				ioDeadline = deadline;
+			}
+			int ret = av_read_frame(inputFormatContext, pkt);
+			ioDeadline = 0;
+			if (ret < 0) {
+				if (deadline > 0 && !stopRequestReceived && System.currentTimeMillis() > deadline && isReadInterrupted(ret)) {
+					//read is retried in the next run. Demuxer continues from the data that it has read before
+					clearReadError();
+					return AVERROR_EAGAIN();
+				}
+				return ret;
+			}
+
+			streamPublished = true;
+			lastPacketReceivedTime = System.currentTimeMillis();
+
+			/**
+			 * Check that dts values are monotically increasing for each stream
+			 */
+			int packetIndex = pkt.stream_index();
+			if (lastDTS[packetIndex] >= pkt.dts()) {
+				pkt.dts(lastDTS[packetIndex] + 1);
+			}
+			lastDTS[packetIndex] = pkt.dts();
+			if (pkt.dts() > pkt.pts()) {
+				logger.info("dts ({}) is bigger than pts({})", pkt.dts(), pkt.pts());
+				pkt.pts(pkt.dts());
+			}
+
+			/***************************************************
+			 *  Memory of being paranoid or failing while looking for excellence without understanding the whole picture
+			 *  
+			 *  Increasing pkt.dts plus 1 is a simple hack for fixing dts error if current dts has a value lower 
+			 *  than the last received dts. Because dts should be monotonically increasing. I made this simple hack and it is working. 
+			 *  After that I thought the same may happen for the pts value as well and I have added below fix. 
+			 *  Actually not a fix, it is a bug. Because pts values does not have to be monotonically increasing
+			 *  and if stream has B-Frames then pts value can be lower than the last PTS value. So below
+			 *  code snippet make the stream does not play smoothly. It took about 10 hours to find it this error.
+			 *  
+			 *  I have written this simple memory for me
+			 *  and for the guys who is developing or reviewing this code. 
+			 *  Even if it is time consuming or not reasonable, these kind of tryouts sometimes makes me excited. 
+			 *  I think I may expect to find something great by trying something crazy :) 
+			 *  
+			 *  @mekya - June 12, 2018
+			 *  
+			 *  ---------------------------------------------------
+			 *  
+			 *  if (lastPTS[packetIndex] >= pkt.pts()) {
+			 * 	   pkt.pts(lastPTS[packetIndex] + 1);
+			 *  }
+			 *  lastPTS[packetIndex] = pkt.pts();
+			 *
+			 ******************************************************/
+			if (bufferTime > 0) 
+			{
+				/*
+				 * If there is a bufferTime in the server.
+				 * Generally we don't use this feature most of the time
+				 */
+				bufferPacket(pkt);
+			}
+			else {
+				muxAdaptor.writePacket(inputFormatContext.streams(pkt.stream_index()), pkt);
+			}
+			av_packet_unref(pkt);
+			return ret;
+		}
+
+		/**
+		 * Adds a reference of the packet to the buffer queue. Buffering ends when 
+		 * the queue is longer than the buffer time
+		 * 
+		 * @param pkt packet read from the stream source
+		 */
+		public void bufferPacket(AVPacket pkt) 
+		{
+			AVPacket packet = getAVPacket();
+			av_packet_ref(packet, pkt);
+			bufferQueue.add(packet);
+			int queueSize = bufferedPacketCount.incrementAndGet();
+			if (queueSize > bufferedPacketCountPeak) {
+				bufferedPacketCountPeak = queueSize;
 			}
 
+			lastPacketTimeInQueue = av_rescale_q(pkt.dts(), inputFormatContext.streams(pkt.stream_index()).time_base(), avRationalTimeBaseMS);
 
+			AVPacket pktHead = bufferQueue.peek();
+			/**
+			 * BufferQueue may be polled in writer thread. 
+			 * It's a very rare case to happen so that check if it's null
+			 */
+			if (pktHead != null) {
+				long firstPacketTime = av_rescale_q(pktHead.dts(), inputFormatContext.streams(pktHead.stream_index()).time_base(), avRationalTimeBaseMS);
+				long bufferDuration = (lastPacketTimeInQueue - firstPacketTime);
+
+				if ( bufferDuration > bufferTime) {
+					buffering = false;
+				}
+
+				bufferLogCounter++;
+				if (bufferLogCounter % 100 == 0) {
+					logger.debug("Buffer status {}, buffer duration {}ms buffer time {}ms buffered packet count {}", buffering, bufferDuration, bufferTime, queueSize);
+					bufferLogCounter = 0;
+				}
+			}
+		}
+
+		/**
+		 * Writes the buffered packets, closes the muxers and the stream source
+		 */
+		public void closeStream() 
+		{
 			if (packetWriterJobName != null) {
 				logger.info("Removing packet writer job {}", packetWriterJobName);
 				scheduler.removeScheduledJob(packetWriterJobName);
+				packetWriterJobName = null;
 			}
 
 			writeAllBufferedPackets();
@@ -355,6 +664,7 @@ public class StreamFetcher {
 
 			if (pkt != null) {
 				av_packet_free(pkt);
+				pkt = null;
 			}
 
 			if (inputFormatContext != null) {
@@ -366,22 +676,62 @@ public class StreamFetcher {
 				}
 				inputFormatContext = null;
 			}
+			removeInterruptCallback();
 
 			if(streamPublished) {
 				getInstance().closeBroadcast(stream.getStreamId());
 				streamPublished=false;
 			}
+		}
 
+		private void setInterruptCallback(AVFormatContext context) {
+			if (context == null || context.isNull()) {
+				return;
+			}
+			interruptOpaque = new LongPointer(1);
+			interruptibleWorkers.put(interruptOpaque.address(), this);
+			context.interrupt_callback().callback(interruptCallback);
+			context.interrupt_callback().opaque(interruptOpaque);
+		}
 
-			setThreadActive(false);
-			if(!stopRequestReceived && restartStream) {
-				thread = new WorkerThread();
-				thread.start();
+		private void removeInterruptCallback() {
+			if (interruptOpaque != null) {
+				interruptibleWorkers.remove(interruptOpaque.address());
+				interruptOpaque.deallocate();
+				interruptOpaque = null;
 			}
+		}
 
-			logger.debug("Leaving thread for {}", stream.getStreamUrl());
+		/**
+		 * @return true if the read failed because it's interrupted by the callback. 
+		 * Demuxers may return another error after the I/O context fails so the error of the I/O context is also checked
+		 */
+		private boolean isReadInterrupted(int ret) {
+			if (ret == AVERROR_EXIT()) {
+				return true;
+			}
+			AVIOContext pb = inputFormatContext.pb();
+			return pb != null && !pb.isNull() && pb.error() == AVERROR_EXIT();
+		}
 
+		/**
+		 * I/O context keeps the end of file state after a failed read. It's cleared so that next read
+		 * requests data from the source again
+		 */
+		private void clearReadError() {
+			AVIOContext pb = inputFormatContext.pb();
+			if (pb != null && !pb.isNull()) {
+				pb.eof_reached(0);
+				pb.error(0);
+			}
+		}
 
+		/**
+		 * @return true if the blocking call on the input context should return
+		 */
+		public boolean isInterruptRequested() {
+			long deadline = ioDeadline;
+			return stopRequestReceived || (deadline > 0 && System.currentTimeMillis() > deadline);
 		}
 
 		private void setUpEndPoints(String publishedName, MuxAdaptor muxAdaptor) {
@@ -403,19 +753,91 @@ public class StreamFetcher {
 		private void writeAllBufferedPackets() 
 		{
 			logger.info("write all buffered packets for stream: {}", stream.getStreamId());
-			while (!bufferQueue.isEmpty()) {
-				
-				AVPacket pkt = bufferQueue.poll();
-				muxAdaptor.writePacket(inputFormatContext.streams(pkt.stream_index()), pkt);
-				av_packet_unref(pkt);
+			AVPacket pkt;
+			while ((pkt = bufferQueue.poll()) != null) {
+				bufferedPacketCount.decrementAndGet();
+				if (muxAdaptor != null) {
+					muxAdaptor.writePacket(inputFormatContext.streams(pkt.stream_index()), pkt);
+				}
+				packetPool.release(pkt);
 			}
 
+			//free the pooled packets and report the ones that are not returned
+			packetPool.clear();
+		}
+
+		/**
+		 * Writes all packets whose time has come in the buffer queue.
+		 * The time of a packet is calculated by comparing its DTS with the anchor packet and 
+		 * comparing the elapsed system time since the anchor packet is written.
+		 * 
+		 * If buffer exceeds the {@link StreamFetcher#maxBufferedPacketCount} or twice of the buffer time, 
+		 * the oldest packets are dropped. Writing them before their time would make the stream 
+		 * play faster than real time. After a drop, video packets are dropped until the next key frame 
+		 * and the anchor is moved to the first packet written.
+		 * 
+		 * @param now system time in milliseconds
+		 * @return number of packets written
+		 */
+		public int writeDuePackets(long now) 
+		{
+			int count = 0;
 			AVPacket pkt;
-			while ((pkt = bufferQueue.poll()) != null) {
-				pkt.close();
+			while ((pkt = bufferQueue.peek()) != null) 
+			{
+				AVStream avStream = inputFormatContext.streams(pkt.stream_index());
+				long pktTime = av_rescale_q(pkt.dts(), avStream.time_base(), avRationalTimeBaseMS);
+
+				boolean overflow = bufferedPacketCount.get() > maxBufferedPacketCount 
+						|| (lastPacketTimeInQueue - pktTime) > 2L * bufferTime;
+
+				if (overflow) {
+					waitingForKeyFrame = true;
+					anchorPacketTime = -1;
+					dropPacket();
+					continue;
+				}
+
+				if (waitingForKeyFrame && avStream.codecpar().codec_type() == AVMEDIA_TYPE_VIDEO) {
+					if ((pkt.flags() & AV_PKT_FLAG_KEY) == 0) {
+						dropPacket();
+						continue;
+					}
+					waitingForKeyFrame = false;
+				}
+
+				if (anchorPacketTime == -1) {
+					anchorPacketTime = pktTime;
+					anchorSystemTime = now;
+				}
+
+				if ((pktTime - anchorPacketTime) > (now - anchorSystemTime)) {
+					//packet's time has not come yet
+					break;
+				}
+
+				bufferQueue.poll();
+				bufferedPacketCount.decrementAndGet();
+				muxAdaptor.writePacket(avStream, pkt);
+				packetPool.release(pkt);
+				count++;
+			}
+			return count;
+		}
+
+		private void dropPacket() {
+			AVPacket pkt = bufferQueue.poll();
+			if (pkt != null) {
+				bufferedPacketCount.decrementAndGet();
+				droppedPacketCount.incrementAndGet();
+				packetPool.release(pkt);
 			}
 		}
 
+		public void setInputFormatContext(AVFormatContext inputFormatContext) {
+			this.inputFormatContext = inputFormatContext;
+		}
+
 		public void setStopRequestReceived() {
 			logger.warn("inside of setStopRequestReceived for {}", stream.getStreamId());
 			stopRequestReceived = true;
@@ -431,14 +853,16 @@ public class StreamFetcher {
 			if (isJobRunning.compareAndSet(false, true)) 
 			{
 				if (!buffering) {
-					AVPacket pkt = bufferQueue.poll();
-					if (pkt != null) {
-						muxAdaptor.writePacket(inputFormatContext.streams(pkt.stream_index()), pkt);
-						av_packet_unref(pkt);
-						availableBufferQueue.offer(pkt);
-					}
-					else {
+					int count = writeDuePackets(System.currentTimeMillis());
+					lastWriteBatchSize = count;
+					bufferedPacketWriteCount.addAndGet(count);
+
+					if (bufferQueue.isEmpty()) {
+						//start buffering again and reset the anchor
 						buffering = true;
+						anchorPacketTime = -1;
+						//buffer is empty, free the packets that are not likely to be used soon
+						packetPool.trim();
 					}
 				}
 				isJobRunning.compareAndSet(true, false);
@@ -446,43 +870,278 @@ public class StreamFetcher {
 		}
 	}
 
+	/**
+	 * Starts a new worker after the running worker finishes and {@link #RESTART_DELAY_MS} passes. 
+	 * Start is triggered by the worker when it finishes, so nothing polls the worker state. 
+	 * In thread mode new thread waits for the delay, in event loop mode start is scheduled on the loop
+	 */
 	public void startStream() {
-		new Thread() {
-			@Override
-			public void run() {
-				try {
-					int i = 0;
-					while (threadActive) {
-						Thread.sleep(100);
-						if (i % 50 == 0) {
-							logger.info("waiting for thread to be finished for stream {}", stream.getStreamUrl());
-							i = 0;
+		Runnable start = eventLoop != null ? this::scheduleStartInEventLoop : this::startThreadWithDelay;
+		workerFinishListener.set(start);
+
+		//worker may have finished before the listener is set
+		if (!threadActive && workerFinishListener.compareAndSet(start, null)) {
+			start.run();
+		}
+	}
+
+	private void scheduleStartInEventLoop() {
+		try {
+			eventLoop.schedule(() -> {
+				exceptionInThread = false;
+				startWorker();
+				logger.info("StartStream called, new worker is started in event loop for {}", stream.getStreamId());
+			}, RESTART_DELAY_MS);
+		}
+		catch (RejectedExecutionException e) {
+			logger.warn("Event loop is shut down, {} is not started", stream.getStreamId());
+		}
+	}
+
+	private void startThreadWithDelay() {
+		exceptionInThread = false;
+		thread = new WorkerThread();
+		thread.startDelayMs = RESTART_DELAY_MS;
+		thread.start();
+		logger.info("StartStream called, new thread is started for {}", stream.getStreamId());
+	}
+
+	/**
+	 * Marks the worker as finished and runs the pending start request if there is any
+	 * @return true if there is a pending start request
+	 */
+	private boolean workerFinished() {
+		setThreadActive(false);
+		Runnable listener = workerFinishListener.getAndSet(null);
+		if (listener != null) {
+			listener.run();
+			return true;
+		}
+		return false;
+	}
+
+	private void startWorker() {
+		thread = new WorkerThread();
+		if (eventLoop != null) {
+			setThreadActive(true);
+			try {
+				eventLoop.execute(new EventLoopTask(thread));
+			}
+			catch (RejectedExecutionException e) {
+				logger.warn("Event loop is shut down, {} is not started", stream.getStreamId());
+				workerFinished();
+			}
+		}
+		else {
+			thread.start();
+		}
+	}
+
+	/**
+	 * Single native callback for all fetchers. It finds the worker 
+	 * with the address of the opaque pointer
+	 */
+	private static class InterruptCallback extends AVIOInterruptCB.Callback_Pointer {
+		@Override
+		public int call(Pointer opaque) {
+			//returning 1 makes the blocking call return AVERROR_EXIT
+			WorkerThread worker = opaque != null ? interruptibleWorkers.get(opaque.address()) : null;
+			return worker != null && worker.isInterruptRequested() ? 1 : 0;
+		}
+	}
+
+	/**
+	 * Runs a {@link WorkerThread} on the {@link StreamFetcherEventLoop} instead of its own thread.
+	 * It reads at most {@link StreamFetcherEventLoop#PACKETS_PER_RUN} packets in each run 
+	 * and schedules itself again
+	 */
+	private class EventLoopTask implements Runnable {
+
+		private WorkerThread worker;
+
+		private boolean opened = false;
+
+		/**
+		 * System time in milliseconds when the last packet is read
+		 */
+		private long lastReadTime = 0;
+
+		public EventLoopTask(WorkerThread worker) {
+			this.worker = worker;
+		}
+
+		@Override
+		public void run() {
+			try {
+				if (!opened) {
+					opened = true;
+					//opening may block until the timeout so it does not run on the loop threads
+					eventLoop.executeOpen(this::open);
+					return;
+				}
+
+				for (int i = 0; i < StreamFetcherEventLoop.PACKETS_PER_RUN; i++) 
+				{
+					if (worker.isStopRequestReceived()) {
+						logger.warn("Stop request received, leaving the event loop for {} ", stream.getStreamId());
+						finish();
+						return;
+					}
+
+					int ret = worker.readPacket();
+					if (ret == AVERROR_EAGAIN()) {
+						if (System.currentTimeMillis() - lastReadTime > EVENT_LOOP_STALL_TIMEOUT_MS) {
+							logger.warn("No packet is read from {} in {}ms, leaving the event loop", stream.getStreamUrl(), EVENT_LOOP_STALL_TIMEOUT_MS);
+							finish();
+							return;
 						}
-						i++;
+						submit(this, StreamFetcherEventLoop.NO_PACKET_DELAY_MS);
+						return;
+					}
+					else if (ret < 0) {
+						logger.info("Leaving the event loop for {}", stream.getStreamId());
+						finish();
+						return;
 					}
-					Thread.sleep(2000);
-				} catch (InterruptedException e) {
-					logger.error(e.getMessage());
-					Thread.currentThread().interrupt();
+					lastReadTime = System.currentTimeMillis();
 				}
+				submit(this, 0);
+			}
+			catch (OutOfMemoryError | Exception e) {
+				logger.error(ExceptionUtils.getStackTrace(e));
+				exceptionInThread  = true;
+				finish();
+			}
+		}
 
-				exceptionInThread = false;
-				thread = new WorkerThread();
-				thread.start();
-				logger.info("StartStream called, new thread is started for {}", stream.getStreamId());
+		/**
+		 * Opens the stream on the open pool and submits the reading to the loop
+		 */
+		private void open() {
+			try {
+				if (!worker.openStream()) {
+					finish();
+					return;
+				}
+				lastReadTime = System.currentTimeMillis();
+				submit(this, 0);
+			}
+			catch (OutOfMemoryError | Exception e) {
+				logger.error(ExceptionUtils.getStackTrace(e));
+				exceptionInThread  = true;
+				finish();
+			}
+		}
+
+		/**
+		 * Submits the task to the loop. If the loop is shut down, 
+		 * stream is closed because it cannot be read anymore
+		 */
+		private void submit(Runnable task, long delayMs) {
+			try {
+				if (delayMs > 0) {
+					eventLoop.schedule(task, delayMs);
+				}
+				else {
+					eventLoop.execute(task);
+				}
+			}
+			catch (RejectedExecutionException e) {
+				logger.info("Event loop is shut down, closing the stream {}", stream.getStreamId());
+				worker.closeStream();
+				workerFinished();
+			}
+		}
+
+		private void finish() {
+			worker.closeStream();
+			long delay = getReconnectDelayMs();
+			if (!worker.isStopRequestReceived() && restartStream && delay > 0) {
+				logger.info("Reconnecting to {} after {}ms", stream.getStreamUrl(), delay);
+				submit(this::reconnect, delay);
+			}
+			else {
+				reconnect();
 			}
-		}.start();
+		}
+
+		private void reconnect() {
+			boolean startRequested = workerFinished();
+			if(!startRequested && !worker.isStopRequestReceived() && restartStream) {
+				startWorker();
+			}
+		}
+	}
+
+	private void openAttemptFinished(boolean opened) {
+		if (opened) {
+			consecutiveOpenFailureCount = 0;
+		}
+		else {
+			openFailureCount.incrementAndGet();
+			consecutiveOpenFailureCount++;
+			lastOpenFailureTime = System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * Calculates the delay before reconnecting to the stream. It's zero if the last attempt to open
+	 * the stream is successful, otherwise it increases exponentially with the consecutive failures
+	 * 
+	 * @return delay in milliseconds
+	 */
+	public long getReconnectDelayMs() {
+		int failureCount = consecutiveOpenFailureCount;
+		if (failureCount == 0) {
+			return 0;
+		}
+		long delay = (long)RECONNECT_BACKOFF_BASE_MS << Math.min(failureCount - 1, 16);
+		return Math.min(delay, RECONNECT_BACKOFF_MAX_MS);
+	}
+
+	/**
+	 * @return remaining time in milliseconds to try to open the stream again after the last failure
+	 */
+	public long getReconnectDelayRemainingMs() {
+		long remaining = getReconnectDelayMs() - (System.currentTimeMillis() - lastOpenFailureTime);
+		return Math.max(remaining, 0);
+	}
+
+	/**
+	 * Set the permits that the next attempt to open the stream acquires one of. Permit is held
+	 * only while the stream is being opened, so it limits the number of streams opened at the same time
+	 * @param permits
+	 */
+	public void setOpenPermits(Semaphore permits) {
+		openPermits.set(permits);
+	}
 
+	public int incrementRestartCount() {
+		return restartCount.incrementAndGet();
 	}
 
+	public int getRestartCount() {
+		return restartCount.get();
+	}
 
+	public int getOpenFailureCount() {
+		return openFailureCount.get();
+	}
+
+	public int getConsecutiveOpenFailureCount() {
+		return consecutiveOpenFailureCount;
+	}
 
+	public long getLastOpenFailureTime() {
+		return lastOpenFailureTime;
+	}
 
 	public AVPacket getAVPacket() {
-		if (!availableBufferQueue.isEmpty()) {
-			return availableBufferQueue.poll();
-		}
-		return new AVPacket();
+		return packetPool.borrow();
+	}
+
+	public AVPacketPool getPacketPool() {
+		return packetPool;
 	}
 
 	/**
@@ -494,6 +1153,10 @@ public class StreamFetcher {
 		return ((System.currentTimeMillis() - lastPacketReceivedTime) < PACKET_RECEIVED_INTERVAL_TIMEOUT);
 	}
 
+	public long getLastPacketReceivedTime() {
+		return lastPacketReceivedTime;
+	}
+
 	public boolean isStopped() {
 		return thread.isInterrupted();
 	}
@@ -525,25 +1188,12 @@ public class StreamFetcher {
 		return stream;
 	}
 
+	/**
+	 * Stops the running worker and starts a new one after it finishes
+	 */
 	public void restart() {
 		stopStream();
-		new Thread() {
-			@Override
-			public void run() {
-				try {
-					while (threadActive) {
-						Thread.sleep(100);
-					}
-
-					Thread.sleep(2000);
-				} catch (InterruptedException e) {
-					logger.error(e.getMessage());
-					Thread.currentThread().interrupt();
-				}
-				startStream();
-			}
-		}.start();
-
+		startStream();
 	}
 	/**
 	 * Set timeout when establishing connection
@@ -614,6 +1264,47 @@ public class StreamFetcher {
 		this.bufferTime = bufferTime;
 	}
 
+	public StreamFetcherEventLoop getEventLoop() {
+		return eventLoop;
+	}
+
+	/**
+	 * Set the event loop to fetch the stream in a shared thread pool.
+	 * If it's null, stream is fetched in a dedicated thread
+	 * @param eventLoop
+	 */
+	public void setEventLoop(StreamFetcherEventLoop eventLoop) {
+		this.eventLoop = eventLoop;
+	}
+
+	public int getMaxBufferedPacketCount() {
+		return maxBufferedPacketCount;
+	}
+
+	public void setMaxBufferedPacketCount(int maxBufferedPacketCount) {
+		this.maxBufferedPacketCount = maxBufferedPacketCount;
+	}
+
+	public int getBufferedPacketCount() {
+		return bufferedPacketCount.get();
+	}
+
+	public int getBufferedPacketCountPeak() {
+		return bufferedPacketCountPeak;
+	}
+
+	public long getDroppedPacketCount() {
+		return droppedPacketCount.get();
+	}
+
+	public long getBufferedPacketWriteCount() {
+		return bufferedPacketWriteCount.get();
+	}
+
+	public int getLastWriteBatchSize() {
+		return lastWriteBatchSize;
+	}
+
 	private AppSettings getAppSettings() {
 		if (appSettings == null) {
 			appSettings = (AppSettings) scope.getContext().getApplicationContext().getBean(AppSettings.BEAN_NAME);
@@ -0,0 +1,150 @@
+package io.antmedia.streamsource;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs stream fetchers on a fixed number of threads instead of a thread per stream source.
+ * 
+ * Each stream fetcher reads at most {@link #PACKETS_PER_RUN} packets in a run and then 
+ * schedules itself again so that other stream fetchers can use the thread. 
+ * Waiting for reconnection is also scheduled on this loop instead of sleeping threads.
+ * 
+ * Opening a stream source may block until the connection timeout so opens run on a separate
+ * bounded pool and an unreachable source does not hold the threads that read other streams.
+ */
+public class StreamFetcherEventLoop {
+
+	protected static Logger logger = LoggerFactory.getLogger(StreamFetcherEventLoop.class);
+
+	/**
+	 * Maximum number of packets read by a stream fetcher before giving the thread to others
+	 */
+	public static final int PACKETS_PER_RUN = 32;
+
+	/**
+	 * Delay in milliseconds to check a stream fetcher again when there is no packet available
+	 */
+	public static final int NO_PACKET_DELAY_MS = 5;
+
+	private ScheduledThreadPoolExecutor executor;
+
+	private ThreadPoolExecutor openExecutor;
+
+	private int threadCount;
+
+	public StreamFetcherEventLoop() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @param threadCount number of threads in the loop. 
+	 * If it's zero or negative, number of available processors is used
+	 */
+	public StreamFetcherEventLoop(int threadCount) {
+		if (threadCount <= 0) {
+			threadCount = Runtime.getRuntime().availableProcessors();
+		}
+		this.threadCount = threadCount;
+		AtomicInteger threadNumber = new AtomicInteger(0);
+		executor = new ScheduledThreadPoolExecutor(threadCount, runnable -> {
+			Thread thread = new Thread(runnable, "StreamFetcherLoop-" + threadNumber.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+		executor.setRemoveOnCancelPolicy(true);
+
+		AtomicInteger openThreadNumber = new AtomicInteger(0);
+		openExecutor = new ThreadPoolExecutor(threadCount, threadCount, 0L, TimeUnit.MILLISECONDS, 
+				new LinkedBlockingQueue<>(), runnable -> {
+			Thread thread = new Thread(runnable, "StreamFetcherOpen-" + openThreadNumber.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+		logger.info("Stream fetcher event loop is created with {} threads", threadCount);
+	}
+
+	/**
+	 * Runs the task as soon as a thread is available. 
+	 * Tasks are executed in the order they are submitted
+	 * @param task
+	 */
+	public void execute(Runnable task) {
+		executor.execute(task);
+	}
+
+	/**
+	 * Runs the task after the delay
+	 * @param task
+	 * @param delayMs delay in milliseconds
+	 */
+	public void schedule(Runnable task, long delayMs) {
+		executor.schedule(task, delayMs, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Runs the task on the pool that is used for opening stream sources. 
+	 * Task should submit the reading back to the loop with {@link #execute(Runnable)}
+	 * @param task
+	 */
+	public void executeOpen(Runnable task) {
+		openExecutor.execute(task);
+	}
+
+	public int getThreadCount() {
+		return threadCount;
+	}
+
+	/**
+	 * @return number of tasks waiting to be run
+	 */
+	public int getQueuedTaskCount() {
+		return executor.getQueue().size();
+	}
+
+	/**
+	 * Stops accepting new tasks. Tasks that are already submitted are still run, 
+	 * stream fetchers close their streams when they cannot schedule themselves again
+	 */
+	public void shutdown() {
+		executor.shutdown();
+		openExecutor.shutdown();
+	}
+
+	/**
+	 * Shuts down the loop and waits for the submitted tasks to finish. 
+	 * Tasks that are still waiting after the timeout are cancelled
+	 * 
+	 * @param timeoutMs maximum time in milliseconds to wait
+	 * @return true if all tasks are finished before the timeout
+	 */
+	public boolean shutdown(long timeoutMs) {
+		shutdown();
+		boolean terminated = false;
+		try {
+			long endTime = System.currentTimeMillis() + timeoutMs;
+			terminated = openExecutor.awaitTermination(timeoutMs, TimeUnit.MILLISECONDS)
+					&& executor.awaitTermination(Math.max(0, endTime - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			logger.error(e.getMessage());
+			Thread.currentThread().interrupt();
+		}
+
+		if (!terminated) {
+			logger.warn("Stream fetcher event loop is not terminated in {}ms, cancelling remaining tasks", timeoutMs);
+			openExecutor.shutdownNow();
+			executor.shutdownNow();
+		}
+		return terminated;
+	}
+
+	public boolean isShutdown() {
+		return executor.isShutdown();
+	}
+}
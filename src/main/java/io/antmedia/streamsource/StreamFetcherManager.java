@@ -1,9 +1,15 @@
 package io.antmedia.streamsource;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
 
 import javax.annotation.Nonnull;
 
@@ -14,6 +20,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import io.antmedia.datastore.db.DataStore;
+import io.antmedia.datastore.db.IBatchUpdateDataStore;
 import io.antmedia.datastore.db.types.Broadcast;
 import io.antmedia.muxer.MuxAdaptor;
 import io.antmedia.rest.model.Result;
@@ -30,7 +37,20 @@ public class StreamFetcherManager {
 
 	private int streamCheckerCount = 0;
 
-	private Queue<StreamFetcher> streamFetcherList = new ConcurrentLinkedQueue<>();
+	/**
+	 * Stream fetchers mapped by their stream id. Map does not accept null keys so a stream 
+	 * without an id is kept with {@link #NULL_STREAM_ID_KEY}
+	 */
+	private Map<String, StreamFetcher> streamFetcherMap = new ConcurrentHashMap<>();
+
+	private static final String NULL_STREAM_ID_KEY = "";
+
+	/**
+	 * Last packet received times of the stream fetchers mapped by stream id when their quality is set to poor 
+	 * in the datastore. It's used to not update the datastore in every check for the same stream. 
+	 * If a stream receives packets after that time, its quality may have been updated so it's set to poor again
+	 */
+	private Map<String, Long> poorQualityStreams = new ConcurrentHashMap<>();
 
 	/**
 	 * Time period in milli seconds for checking stream fetchers status, restart issues etc. 
@@ -54,6 +74,32 @@ public class StreamFetcherManager {
 	 */
 	private int restartStreamFetcherPeriodSeconds;
 
+	/**
+	 * If it's not null, stream fetchers run in this shared event loop 
+	 * instead of a thread per stream
+	 */
+	private StreamFetcherEventLoop eventLoop;
+
+	/**
+	 * Maximum number of restarted stream fetchers that are opening their streams at the same time.
+	 * Permit is acquired and released by the attempt to open the stream after the restart.
+	 * If it's zero or negative, there is no limit
+	 */
+	private int maxConcurrentRestarts = 10;
+
+	/**
+	 * Stream fetcher restarts are spread randomly in this time period in milliseconds.
+	 * If it's negative, half of the restart period is used. If it's zero, all of them are restarted at once
+	 */
+	private int restartSpreadMs = -1;
+
+	private Semaphore restartPermits = new Semaphore(maxConcurrentRestarts);
+
+	/**
+	 * Delay in milliseconds to try again a restart that is blocked by the concurrency limit
+	 */
+	private static final int RESTART_RETRY_DELAY_MS = 1000;
+
 	public StreamFetcherManager(ISchedulingService schedulingService, DataStore datastore,IScope scope) {
 		this.schedulingService = schedulingService;
 		this.datastore = datastore;
@@ -93,31 +139,32 @@ public class StreamFetcherManager {
 	public StreamFetcher startStreaming(@Nonnull Broadcast broadcast) {	
 
 		//check if broadcast is already being fetching
-		boolean alreadyFetching = false;
-		for (StreamFetcher streamFetcher : streamFetcherList) {
-			if (streamFetcher.getStream().getStreamId().equals(broadcast.getStreamId())) {
-				alreadyFetching = true;
-				break;
-			}
-		}
-		
 		StreamFetcher streamScheduler = null;
-		if (!alreadyFetching) {
+		String key = getKey(broadcast.getStreamId());
+		if (!streamFetcherMap.containsKey(key)) {
 			
 			try {
 				streamScheduler =  make(broadcast, scope, schedulingService);
 				streamScheduler.setRestartStream(restartStreamAutomatically);
-				streamScheduler.startStream();
+				streamScheduler.setEventLoop(eventLoop);
 
-				if(!streamFetcherList.contains(streamScheduler)) {
-					streamFetcherList.add(streamScheduler);
-				}
+				if (streamFetcherMap.putIfAbsent(key, streamScheduler) == null) 
+				{
+					streamScheduler.startStream();
 
-				if (streamFetcherScheduleJobName == null) {
-					scheduleStreamFetcherJob();
+					if (streamFetcherScheduleJobName == null) {
+						scheduleStreamFetcherJob();
+					}
+				}
+				else {
+					//another call has started fetching the same stream
+					streamScheduler = null;
 				}
 			}
 			catch (Exception e) {
+				if (streamScheduler != null) {
+					streamFetcherMap.remove(key, streamScheduler);
+				}
 				streamScheduler = null;
 				logger.error(e.getMessage());
 			}
@@ -130,13 +177,12 @@ public class StreamFetcherManager {
 		logger.warn("inside of stopStreaming for {}", stream.getStreamId());
 		Result result = new Result(false);
 
-		for (StreamFetcher scheduler : streamFetcherList) {
-			if (scheduler.getStream().getStreamId().equals(stream.getStreamId())) {
-				scheduler.stopStream();
-				streamFetcherList.remove(scheduler);
-				result.setSuccess(true);
-				break;
-			}
+		String key = getKey(stream.getStreamId());
+		StreamFetcher scheduler = streamFetcherMap.remove(key);
+		if (scheduler != null) {
+			scheduler.stopStream();
+			poorQualityStreams.remove(key);
+			result.setSuccess(true);
 		}
 		return result;
 	}
@@ -169,7 +215,7 @@ public class StreamFetcherManager {
 			@Override
 			public void execute(ISchedulingService service) throws CloneNotSupportedException {
 
-				if (!streamFetcherList.isEmpty()) {
+				if (!streamFetcherMap.isEmpty()) {
 
 					streamCheckerCount++;
 
@@ -198,31 +244,135 @@ public class StreamFetcherManager {
 		logger.info("StreamFetcherSchedule job name {}", streamFetcherScheduleJobName);
 	}
 
+	/**
+	 * Checks the stream fetchers in parallel and sets the quality of the streams that are not alive to poor.
+	 * Quality is written to the datastore only once until the stream receives packets again. 
+	 * Quality of the streams are written in one batch if datastore supports it
+	 */
 	public void checkStreamFetchersStatus() {
-		for (StreamFetcher streamScheduler : streamFetcherList) {
+		Map<Boolean, List<StreamFetcher>> streamFetchersByAlive = streamFetcherMap.values().parallelStream()
+				.filter(streamScheduler -> streamScheduler.getStream().getStreamId() != null)
+				.collect(Collectors.partitioningBy(StreamFetcher::isStreamAlive));
+
+		for (StreamFetcher streamScheduler : streamFetchersByAlive.get(true)) {
+			poorQualityStreams.remove(streamScheduler.getStream().getStreamId());
+		}
+
+		List<String> poorStreamIds = new ArrayList<>();
+		for (StreamFetcher streamScheduler : streamFetchersByAlive.get(false)) {
 			Broadcast stream = streamScheduler.getStream();
-			if (!streamScheduler.isStreamAlive() && datastore != null && stream.getStreamId() != null) 
-			{
+			long lastPacketReceivedTime = streamScheduler.getLastPacketReceivedTime();
+			Long poorQualityTime = poorQualityStreams.get(stream.getStreamId());
+			if (poorQualityTime == null || lastPacketReceivedTime > poorQualityTime) {
 				logger.info("Stream is not alive and setting quality to poor of stream: {} url: {}", stream.getStreamId(), stream.getStreamUrl());
-				datastore.updateSourceQualityParameters(stream.getStreamId(), MuxAdaptor.QUALITY_POOR, 0, 0);
+				poorQualityStreams.put(stream.getStreamId(), lastPacketReceivedTime);
+				poorStreamIds.add(stream.getStreamId());
+			}
+		}
+
+		if (datastore != null && !poorStreamIds.isEmpty()) 
+		{
+			if (datastore instanceof IBatchUpdateDataStore) {
+				((IBatchUpdateDataStore) datastore).updateSourceQualityParameters(poorStreamIds, MuxAdaptor.QUALITY_POOR, 0, 0);
+			}
+			else {
+				for (String streamId : poorStreamIds) {
+					datastore.updateSourceQualityParameters(streamId, MuxAdaptor.QUALITY_POOR, 0, 0);
+				}
 			}
 		}
 	}
 
+	/**
+	 * Schedules restart of the stream fetchers at random times in the restart spread period.
+	 * Number of restarts at the same time is limited by {@link #maxConcurrentRestarts}. 
+	 * Stream fetchers that failed to open the stream recently are skipped 
+	 * until their reconnect backoff time is elapsed.
+	 */
 	public void restartStreamFetchers() {
-		for (StreamFetcher streamScheduler : streamFetcherList) {
+		long spreadMs = restartSpreadMs >= 0 ? restartSpreadMs : (restartStreamFetcherPeriodSeconds * 1000L) / 2;
+		for (StreamFetcher streamScheduler : streamFetcherMap.values()) {
 
-			if (streamScheduler.isStreamAlive()) 
-			{
-				logger.info("Calling stop stream {}", streamScheduler.getStream().getStreamId());
-				streamScheduler.stopStream();
+			long backoffRemaining = streamScheduler.getReconnectDelayRemainingMs();
+			if (backoffRemaining > 0) {
+				logger.info("Skipping restart of {} for reconnect backoff. Remaining time: {}ms", streamScheduler.getStream().getStreamId(), backoffRemaining);
+				continue;
 			}
-			else {
-				logger.info("Stream is not alive {}", streamScheduler.getStream().getStreamId());
+
+			long delay = spreadMs > 0 ? ThreadLocalRandom.current().nextLong(spreadMs) : 0;
+			scheduleRestart(streamScheduler, delay);
+		}
+	}
+
+	private void scheduleRestart(StreamFetcher streamScheduler, long delayMs) {
+		schedulingService.addScheduledOnceJob(delayMs, new IScheduledJob() {
+			@Override
+			public void execute(ISchedulingService service) throws CloneNotSupportedException {
+				restartStreamFetcher(streamScheduler);
 			}
+		});
+	}
+
+	/**
+	 * Restarts the stream fetcher if the number of restarted streams being opened is below the limit. 
+	 * Otherwise it schedules the restart again
+	 * @param streamScheduler
+	 */
+	public void restartStreamFetcher(StreamFetcher streamScheduler) 
+	{
+		String streamId = streamScheduler.getStream().getStreamId();
+		if (streamFetcherMap.get(getKey(streamId)) != streamScheduler) {
+			logger.info("Stream fetcher is stopped before its restart {}", streamId);
+			return;
+		}
+
+		if (maxConcurrentRestarts > 0 && restartPermits.availablePermits() == 0) 
+		{
+			//stream keeps running until other restarts finish opening their streams
+			scheduleRestart(streamScheduler, RESTART_RETRY_DELAY_MS);
+			return;
+		}
+
+		if (streamScheduler.isStreamAlive()) 
+		{
+			logger.info("Calling stop stream {}", streamId);
+			streamScheduler.stopStream();
+		}
+		else {
+			logger.info("Stream is not alive {}", streamId);
+		}
 
-			streamScheduler.startStream();
+		int restartCount = streamScheduler.incrementRestartCount();
+		logger.info("Restarting stream {} restart count: {}", streamId, restartCount);
+		if (maxConcurrentRestarts > 0) {
+			//permit is held while the new worker opens the stream
+			streamScheduler.setOpenPermits(restartPermits);
 		}
+		streamScheduler.startStream();
+	}
+
+	public int getMaxConcurrentRestarts() {
+		return maxConcurrentRestarts;
+	}
+
+	public void setMaxConcurrentRestarts(int maxConcurrentRestarts) {
+		this.maxConcurrentRestarts = maxConcurrentRestarts;
+		this.restartPermits = new Semaphore(Math.max(maxConcurrentRestarts, 0));
+	}
+
+	/**
+	 * @return number of restarts that can be started now
+	 */
+	public int getAvailableRestartPermits() {
+		return restartPermits.availablePermits();
+	}
+
+	public int getRestartSpreadMs() {
+		return restartSpreadMs;
+	}
+
+	public void setRestartSpreadMs(int restartSpreadMs) {
+		this.restartSpreadMs = restartSpreadMs;
 	}
 
 	public DataStore getDatastore() {
@@ -233,15 +383,55 @@ public class StreamFetcherManager {
 		this.datastore = datastore;
 	}
 
-	public Queue<StreamFetcher> getStreamFetcherList() {
-		return streamFetcherList;
+	/**
+	 * @return the stream fetchers. Removing an element from the returned collection 
+	 * removes it from the manager as well
+	 */
+	public Collection<StreamFetcher> getStreamFetcherList() {
+		return streamFetcherMap.values();
 	}
 
+	/**
+	 * @param streamId
+	 * @return the stream fetcher of the stream or null if stream is not being fetched
+	 */
+	public StreamFetcher getStreamFetcher(String streamId) {
+		return streamFetcherMap.get(getKey(streamId));
+	}
+
+	/**
+	 * Replaces the stream fetchers with the ones in the list. 
+	 * If there are more than one fetcher for the same stream, the last one is kept
+	 * @param streamFetcherList
+	 */
 	public void setStreamFetcherList(Queue<StreamFetcher> streamFetcherList) {
-		this.streamFetcherList = streamFetcherList;
+		Map<String, StreamFetcher> fetcherMap = new ConcurrentHashMap<>();
+		for (StreamFetcher streamFetcher : streamFetcherList) {
+			fetcherMap.put(getKey(streamFetcher.getStream().getStreamId()), streamFetcher);
+		}
+		this.streamFetcherMap = fetcherMap;
+	}
+
+	public void setStreamFetcherMap(Map<String, StreamFetcher> streamFetcherMap) {
+		this.streamFetcherMap = streamFetcherMap;
+	}
+
+	private static String getKey(String streamId) {
+		return streamId != null ? streamId : NULL_STREAM_ID_KEY;
 	}
 
+	public StreamFetcherEventLoop getEventLoop() {
+		return eventLoop;
+	}
 
+	/**
+	 * Set the event loop that stream fetchers run. It's used for the stream fetchers 
+	 * that are started after this call. If it's null, each stream fetcher runs in its own thread
+	 * @param eventLoop
+	 */
+	public void setEventLoop(StreamFetcherEventLoop eventLoop) {
+		this.eventLoop = eventLoop;
+	}
 
 	public boolean isRestartStreamAutomatically() {
 		return restartStreamAutomatically;
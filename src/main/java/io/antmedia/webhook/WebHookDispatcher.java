@@ -0,0 +1,556 @@
+package io.antmedia.webhook;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.apache.http.HttpEntity;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.entity.UrlEncodedFormEntity;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+
+/**
+ * Sends webhook notifications on its own threads so that callers never wait for the HTTP endpoints.
+ *
+ * Connections are kept alive in a shared pool. Number of concurrent requests to the same URL is limited
+ * by {@link #setMaxConcurrentPerUrl(int)}, other events to the URL wait in its queue. If batch size is
+ * greater than 1, events waiting for the same URL are sent in a single request as a JSON array.
+ *
+ * Failed events are retried with exponential backoff. Retry queue is bounded and it's saved
+ * to the retry queue file, if it's set, so that events are not lost when the server restarts.
+ */
+public class WebHookDispatcher {
+
+	protected static Logger logger = LoggerFactory.getLogger(WebHookDispatcher.class);
+
+	public static final String USER_AGENT = "Daaavuuuuuttttt https://www.youtube.com/watch?v=cbyTDRgW4Jg";
+
+	/**
+	 * Period in milliseconds to check the retry queue
+	 */
+	public static final int RETRY_CHECK_PERIOD_MS = 500;
+
+	public static class WebHookEvent {
+		private String url;
+		private Map<String, String> variables;
+		private int attempt;
+		private long nextAttemptTime;
+
+		public WebHookEvent(String url, Map<String, String> variables) {
+			this.url = url;
+			this.variables = variables;
+		}
+
+		public String getUrl() {
+			return url;
+		}
+
+		public Map<String, String> getVariables() {
+			return variables;
+		}
+
+		public int getAttempt() {
+			return attempt;
+		}
+	}
+
+	private static class EndpointQueue {
+		private final String url;
+		private final ConcurrentLinkedQueue<WebHookEvent> events = new ConcurrentLinkedQueue<>();
+		private final AtomicInteger inFlight = new AtomicInteger();
+
+		private EndpointQueue(String url) {
+			this.url = url;
+		}
+	}
+
+	private static final Type EVENT_LIST_TYPE = new TypeToken<List<WebHookEvent>>(){}.getType();
+
+	private final Gson gson = new Gson();
+
+	private final ConcurrentHashMap<String, EndpointQueue> endpoints = new ConcurrentHashMap<>();
+
+	/**
+	 * Failed events waiting for their next attempt in the order they failed
+	 */
+	private final ArrayDeque<WebHookEvent> retryQueue = new ArrayDeque<>();
+
+	private boolean retryQueueChanged = false;
+
+	private volatile ScheduledThreadPoolExecutor executor;
+
+	private PoolingHttpClientConnectionManager connectionManager;
+
+	private CloseableHttpClient httpClient;
+
+	private int threadCount;
+	private int maxConnections = 200;
+	private int maxConcurrentPerUrl = 4;
+	private int batchSize = 1;
+	private int maxPendingEvents = 10000;
+	private int retryQueueSize = 1000;
+	private int maxRetryCount = 3;
+	private long retryDelayMs = 1000;
+	private int timeoutMs = 5000;
+	private File retryQueueFile;
+
+	private final AtomicInteger pendingCount = new AtomicInteger();
+	/**
+	 * Number of events that are taken from the queues and being sent
+	 */
+	private final AtomicInteger sendingCount = new AtomicInteger();
+	private final AtomicLong sentCount = new AtomicLong();
+	private final AtomicLong failedCount = new AtomicLong();
+	private final AtomicLong retriedCount = new AtomicLong();
+	private final AtomicLong droppedCount = new AtomicLong();
+	private final AtomicLong requestCount = new AtomicLong();
+	private final AtomicLong totalLatencyMs = new AtomicLong();
+	private final AtomicLong maxLatencyMs = new AtomicLong();
+
+	/**
+	 * @param threadCount number of threads sending the requests.
+	 * If it's zero or negative, number of available processors is used
+	 */
+	public WebHookDispatcher(int threadCount) {
+		if (threadCount <= 0) {
+			threadCount = Runtime.getRuntime().availableProcessors();
+		}
+		this.threadCount = threadCount;
+	}
+
+	/**
+	 * Creates the connection pool and threads. Events in the retry queue file are loaded and sent again.
+	 */
+	public synchronized void start() {
+		if (executor != null) {
+			return;
+		}
+		connectionManager = new PoolingHttpClientConnectionManager();
+		connectionManager.setMaxTotal(maxConnections);
+		connectionManager.setDefaultMaxPerRoute(Math.max(maxConcurrentPerUrl, 1));
+
+		RequestConfig requestConfig = RequestConfig.custom()
+				.setConnectTimeout(timeoutMs)
+				.setSocketTimeout(timeoutMs)
+				.setConnectionRequestTimeout(timeoutMs)
+				.build();
+
+		httpClient = HttpClients.custom()
+				.setConnectionManager(connectionManager)
+				.setKeepAliveStrategy(DefaultConnectionKeepAliveStrategy.INSTANCE)
+				.setDefaultRequestConfig(requestConfig)
+				.setUserAgent(USER_AGENT)
+				.build();
+
+		AtomicInteger threadNumber = new AtomicInteger(0);
+		executor = new ScheduledThreadPoolExecutor(threadCount, runnable -> {
+			Thread thread = new Thread(runnable, "WebHookDispatcher-" + threadNumber.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+		executor.scheduleWithFixedDelay(this::checkRetryQueue, RETRY_CHECK_PERIOD_MS, RETRY_CHECK_PERIOD_MS, TimeUnit.MILLISECONDS);
+
+		loadRetryQueue();
+		logger.info("Webhook dispatcher is started with {} threads", threadCount);
+	}
+
+	/**
+	 * Stops the threads and closes the connections. Requests being sent are waited for the timeout, then
+	 * the threads are interrupted and the results of these requests are lost.
+	 * Events that are not sent yet are saved to the retry queue file if it's set
+	 */
+	public synchronized void stop() {
+		if (executor == null) {
+			return;
+		}
+		//senders that are already queued run, new ones are not started and their events stay in the queues
+		executor.shutdown();
+		try {
+			if (!executor.awaitTermination(timeoutMs, TimeUnit.MILLISECONDS)) {
+				int lostCount = sendingCount.get();
+				executor.shutdownNow();
+				logger.warn("Webhook dispatcher is not stopped in {} ms, {} events being sent are lost", timeoutMs, lostCount);
+			}
+		} catch (InterruptedException e) {
+			logger.error(ExceptionUtils.getStackTrace(e));
+			executor.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+		executor = null;
+
+		synchronized (retryQueue) {
+			for (EndpointQueue endpoint : endpoints.values()) {
+				WebHookEvent event;
+				while ((event = endpoint.events.poll()) != null) {
+					pendingCount.decrementAndGet();
+					addToRetryQueue(event);
+				}
+			}
+			saveRetryQueue();
+		}
+
+		try {
+			httpClient.close();
+		} catch (IOException e) {
+			logger.error(ExceptionUtils.getStackTrace(e));
+		}
+		logger.info("Webhook dispatcher is stopped");
+	}
+
+	/**
+	 * Queues the event and returns immediately.
+	 * @param url
+	 * @param variables parameters of the POST request
+	 * @return false if the event is dropped because there are too many pending events
+	 */
+	public boolean dispatch(String url, Map<String, String> variables) {
+		return dispatch(new WebHookEvent(url, variables));
+	}
+
+	private boolean dispatch(WebHookEvent event) {
+		if (pendingCount.incrementAndGet() > maxPendingEvents) {
+			pendingCount.decrementAndGet();
+			droppedCount.incrementAndGet();
+			logger.warn("Webhook event to {} is dropped because there are {} pending events", event.url, maxPendingEvents);
+			return false;
+		}
+		EndpointQueue endpoint = endpoints.computeIfAbsent(event.url, EndpointQueue::new);
+		endpoint.events.add(event);
+		drain(endpoint);
+		return true;
+	}
+
+	/**
+	 * Starts a new sender for the endpoint as long as the concurrency limit of the URL lets
+	 */
+	private void drain(EndpointQueue endpoint) {
+		while (!endpoint.events.isEmpty()) {
+			int current = endpoint.inFlight.get();
+			if (current >= maxConcurrentPerUrl) {
+				return;
+			}
+			if (endpoint.inFlight.compareAndSet(current, current + 1)) {
+				ScheduledThreadPoolExecutor localExecutor = executor;
+				try {
+					if (localExecutor == null) {
+						throw new RejectedExecutionException();
+					}
+					localExecutor.execute(() -> process(endpoint));
+				}
+				catch (RejectedExecutionException e) {
+					//dispatcher is stopped, events are saved in stop
+					endpoint.inFlight.decrementAndGet();
+					return;
+				}
+			}
+		}
+	}
+
+	private void process(EndpointQueue endpoint) {
+		try {
+			List<WebHookEvent> batch = new ArrayList<>();
+			WebHookEvent event;
+			while (batch.size() < batchSize && (event = endpoint.events.poll()) != null) {
+				batch.add(event);
+			}
+			if (!batch.isEmpty()) {
+				pendingCount.addAndGet(-batch.size());
+				sendingCount.addAndGet(batch.size());
+				try {
+					deliver(endpoint.url, batch);
+				}
+				finally {
+					sendingCount.addAndGet(-batch.size());
+				}
+			}
+		}
+		finally {
+			endpoint.inFlight.decrementAndGet();
+			//events may be added while this sender was finishing
+			drain(endpoint);
+		}
+	}
+
+	private void deliver(String url, List<WebHookEvent> batch) {
+		long startTime = System.currentTimeMillis();
+		boolean success = false;
+		try {
+			int statusCode = send(url, batch);
+			success = statusCode >= 200 && statusCode < 300;
+			if (!success) {
+				logger.warn("Webhook {} returned status code {}", url, statusCode);
+			}
+		}
+		catch (Exception e) {
+			logger.warn("Webhook {} cannot be sent: {}", url, e.getMessage());
+		}
+
+		long latency = System.currentTimeMillis() - startTime;
+		requestCount.incrementAndGet();
+		totalLatencyMs.addAndGet(latency);
+		maxLatencyMs.accumulateAndGet(latency, Math::max);
+
+		if (success) {
+			sentCount.addAndGet(batch.size());
+		}
+		else {
+			failedCount.addAndGet(batch.size());
+			for (WebHookEvent event : batch) {
+				retry(event);
+			}
+		}
+	}
+
+	/**
+	 * Sends the events in a single request. A single event is sent as a form, multiple events are sent as JSON array
+	 * @return status code of the response
+	 */
+	protected int send(String url, List<WebHookEvent> batch) throws IOException {
+		HttpPost httpPost = new HttpPost(url);
+		HttpEntity postParams;
+		if (batch.size() == 1) {
+			List<NameValuePair> urlParameters = new ArrayList<>();
+			for (Entry<String, String> entry : batch.get(0).variables.entrySet()) {
+				urlParameters.add(new BasicNameValuePair(entry.getKey(), entry.getValue()));
+			}
+			postParams = new UrlEncodedFormEntity(urlParameters);
+		}
+		else {
+			List<Map<String, String>> variablesList = new ArrayList<>();
+			for (WebHookEvent event : batch) {
+				variablesList.add(event.variables);
+			}
+			postParams = new StringEntity(gson.toJson(variablesList), ContentType.APPLICATION_JSON);
+		}
+		httpPost.setEntity(postParams);
+
+		try (CloseableHttpResponse httpResponse = httpClient.execute(httpPost)) {
+			//consume the entity so that connection is returned to the pool
+			EntityUtils.consume(httpResponse.getEntity());
+			return httpResponse.getStatusLine().getStatusCode();
+		}
+	}
+
+	private void retry(WebHookEvent event) {
+		event.attempt++;
+		if (event.attempt > maxRetryCount) {
+			droppedCount.incrementAndGet();
+			logger.warn("Webhook event to {} is dropped after {} attempts", event.url, event.attempt);
+			return;
+		}
+		event.nextAttemptTime = System.currentTimeMillis() + (retryDelayMs << Math.min(event.attempt - 1, 16));
+		synchronized (retryQueue) {
+			addToRetryQueue(event);
+		}
+	}
+
+	private void addToRetryQueue(WebHookEvent event) {
+		if (retryQueue.size() >= retryQueueSize) {
+			WebHookEvent oldest = retryQueue.poll();
+			droppedCount.incrementAndGet();
+			logger.warn("Webhook event to {} is dropped because retry queue is full", oldest.url);
+		}
+		retryQueue.add(event);
+		retryQueueChanged = true;
+	}
+
+	private void checkRetryQueue() {
+		try {
+			List<WebHookEvent> readyEvents = new ArrayList<>();
+			long now = System.currentTimeMillis();
+			synchronized (retryQueue) {
+				retryQueue.removeIf(event -> {
+					if (event.nextAttemptTime <= now) {
+						readyEvents.add(event);
+						return true;
+					}
+					return false;
+				});
+				if (!readyEvents.isEmpty()) {
+					retryQueueChanged = true;
+				}
+				if (retryQueueChanged) {
+					saveRetryQueue();
+				}
+			}
+
+			for (WebHookEvent event : readyEvents) {
+				retriedCount.incrementAndGet();
+				dispatch(event);
+			}
+			connectionManager.closeIdleConnections(30, TimeUnit.SECONDS);
+		}
+		catch (Exception e) {
+			logger.error(ExceptionUtils.getStackTrace(e));
+		}
+	}
+
+	/**
+	 * Should be called while holding the lock of retry queue
+	 */
+	private void saveRetryQueue() {
+		retryQueueChanged = false;
+		if (retryQueueFile == null) {
+			return;
+		}
+		try {
+			if (retryQueue.isEmpty()) {
+				Files.deleteIfExists(retryQueueFile.toPath());
+			}
+			else {
+				File tempFile = new File(retryQueueFile.getAbsolutePath() + ".tmp");
+				Files.write(tempFile.toPath(), gson.toJson(new ArrayList<>(retryQueue), EVENT_LIST_TYPE).getBytes(StandardCharsets.UTF_8));
+				Files.move(tempFile.toPath(), retryQueueFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		} catch (IOException e) {
+			logger.error(ExceptionUtils.getStackTrace(e));
+		}
+	}
+
+	private void loadRetryQueue() {
+		if (retryQueueFile == null || !retryQueueFile.exists()) {
+			return;
+		}
+		try {
+			String content = new String(Files.readAllBytes(retryQueueFile.toPath()), StandardCharsets.UTF_8);
+			List<WebHookEvent> events = gson.fromJson(content, EVENT_LIST_TYPE);
+			if (events != null) {
+				synchronized (retryQueue) {
+					for (WebHookEvent event : events) {
+						if (event != null && event.url != null && event.variables != null) {
+							//send as soon as possible after restart
+							event.nextAttemptTime = 0;
+							addToRetryQueue(event);
+						}
+					}
+				}
+				logger.info("{} webhook events are loaded from {}", events.size(), retryQueueFile);
+			}
+		} catch (Exception e) {
+			logger.error(ExceptionUtils.getStackTrace(e));
+		}
+	}
+
+	public void setMaxConnections(int maxConnections) {
+		this.maxConnections = maxConnections;
+	}
+
+	public void setMaxConcurrentPerUrl(int maxConcurrentPerUrl) {
+		this.maxConcurrentPerUrl = Math.max(maxConcurrentPerUrl, 1);
+	}
+
+	/**
+	 * @param batchSize maximum number of events sent in a request. 1 disables batching.
+	 * If it's greater than 1, the body is a JSON array of the events instead of form-encoded parameters
+	 * and it's not compatible with the receivers of the form-encoded body
+	 */
+	public void setBatchSize(int batchSize) {
+		this.batchSize = Math.max(batchSize, 1);
+	}
+
+	public void setMaxPendingEvents(int maxPendingEvents) {
+		this.maxPendingEvents = maxPendingEvents;
+	}
+
+	public void setRetryQueueSize(int retryQueueSize) {
+		this.retryQueueSize = Math.max(retryQueueSize, 1);
+	}
+
+	public void setMaxRetryCount(int maxRetryCount) {
+		this.maxRetryCount = maxRetryCount;
+	}
+
+	/**
+	 * @param retryDelayMs delay before the first retry. It's doubled on each retry
+	 */
+	public void setRetryDelayMs(long retryDelayMs) {
+		this.retryDelayMs = retryDelayMs;
+	}
+
+	public void setTimeoutMs(int timeoutMs) {
+		this.timeoutMs = timeoutMs;
+	}
+
+	public void setRetryQueueFile(File retryQueueFile) {
+		this.retryQueueFile = retryQueueFile;
+	}
+
+	public int getThreadCount() {
+		return threadCount;
+	}
+
+	public int getPendingCount() {
+		return pendingCount.get();
+	}
+
+	public int getRetryQueueLength() {
+		synchronized (retryQueue) {
+			return retryQueue.size();
+		}
+	}
+
+	/**
+	 * @return number of events delivered successfully
+	 */
+	public long getSentCount() {
+		return sentCount.get();
+	}
+
+	/**
+	 * @return number of failed event deliveries including the retries
+	 */
+	public long getFailedCount() {
+		return failedCount.get();
+	}
+
+	public long getRetriedCount() {
+		return retriedCount.get();
+	}
+
+	/**
+	 * @return number of events dropped because queues are full or retry count is exceeded
+	 */
+	public long getDroppedCount() {
+		return droppedCount.get();
+	}
+
+	public long getAverageLatencyMs() {
+		long count = requestCount.get();
+		return count > 0 ? totalLatencyMs.get() / count : 0;
+	}
+
+	public long getMaxLatencyMs() {
+		return maxLatencyMs.get();
+	}
+}
@@ -0,0 +1,340 @@
+package io.antmedia.webrtc.adaptor;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs the encoding tasks of all WebRTC adaptors on a fixed number of threads.
+ *
+ * Tasks of a stream are submitted to its {@link Lane}. Tasks of a lane run one by one in the order they are submitted
+ * but different lanes run in parallel. Lanes are bounded; if a lane is full, new task is dropped instead of
+ * retaining more frames.
+ *
+ * Audio of all adaptors is pulled by a single 10 ms tick instead of a timer per adaptor.
+ */
+public class EncoderScheduler {
+
+	protected static Logger logger = LoggerFactory.getLogger(EncoderScheduler.class);
+
+	/**
+	 * Period of the audio tick. Each audio frame is 10 ms in WebRTC
+	 */
+	public static final int AUDIO_TICK_PERIOD_MS = 10;
+
+	/**
+	 * Maximum number of tasks a lane runs before giving the thread to other lanes
+	 */
+	public static final int TASKS_PER_RUN = 8;
+
+	private static EncoderScheduler instance;
+
+	private final ThreadPoolExecutor workers;
+	private final ScheduledThreadPoolExecutor tickExecutor;
+	private final CopyOnWriteArrayList<TickHandle> tickListeners = new CopyOnWriteArrayList<>();
+	private final int threadCount;
+
+	/**
+	 * Handle of a registered audio tick listener
+	 */
+	public class TickHandle {
+		private final Runnable listener;
+		private volatile boolean cancelled = false;
+
+		private TickHandle(Runnable listener) {
+			this.listener = listener;
+		}
+
+		public void cancel() {
+			cancelled = true;
+			tickListeners.remove(this);
+		}
+
+		public boolean isCancelled() {
+			return cancelled;
+		}
+	}
+
+	/**
+	 * Serialized task queue of a stream
+	 */
+	public class Lane implements Runnable {
+		private final String name;
+		private final int maxQueueSize;
+		private final ConcurrentLinkedQueue<Task> tasks = new ConcurrentLinkedQueue<>();
+		private final AtomicInteger queueSize = new AtomicInteger();
+		private final AtomicBoolean scheduled = new AtomicBoolean(false);
+		private final Object runLock = new Object();
+		private volatile boolean closed = false;
+		private volatile boolean running = false;
+
+		private volatile int maxQueueDepth = 0;
+		private final AtomicLong executedCount = new AtomicLong();
+		private final AtomicLong droppedCount = new AtomicLong();
+		private final AtomicLong totalWaitTimeNs = new AtomicLong();
+		private final AtomicLong totalRunTimeNs = new AtomicLong();
+
+		private Lane(String name, int maxQueueSize) {
+			this.name = name;
+			this.maxQueueSize = maxQueueSize;
+		}
+
+		/**
+		 * Submits the task to the lane.
+		 * @param task
+		 * @param dropHandler is called if the task is not run because lane is full or closed. It may be null
+		 * @return false if the task is dropped
+		 */
+		public boolean execute(Runnable task, Runnable dropHandler) {
+			if (closed) {
+				drop(new Task(task, dropHandler));
+				return false;
+			}
+			if (queueSize.incrementAndGet() > maxQueueSize) {
+				queueSize.decrementAndGet();
+				drop(new Task(task, dropHandler));
+				return false;
+			}
+			int depth = queueSize.get();
+			if (depth > maxQueueDepth) {
+				maxQueueDepth = depth;
+			}
+			tasks.add(new Task(task, dropHandler));
+			schedule();
+			return true;
+		}
+
+		private void schedule() {
+			if (!tasks.isEmpty() && scheduled.compareAndSet(false, true)) {
+				workers.execute(this);
+			}
+		}
+
+		@Override
+		public void run() {
+			synchronized (runLock) {
+				running = true;
+			}
+			try {
+				Task task;
+				int count = 0;
+				while (count < TASKS_PER_RUN && !closed && (task = tasks.poll()) != null) {
+					queueSize.decrementAndGet();
+					count++;
+					long startTime = System.nanoTime();
+					totalWaitTimeNs.addAndGet(startTime - task.submitTime);
+					try {
+						task.task.run();
+					}
+					catch (Exception e) {
+						logger.error(ExceptionUtils.getStackTrace(e));
+					}
+					totalRunTimeNs.addAndGet(System.nanoTime() - startTime);
+					executedCount.incrementAndGet();
+				}
+			}
+			finally {
+				synchronized (runLock) {
+					running = false;
+					runLock.notifyAll();
+				}
+				scheduled.set(false);
+				if (closed) {
+					dropAll();
+				}
+				else {
+					//tasks may be added after the loop or the lane gave the thread to other lanes
+					schedule();
+				}
+			}
+		}
+
+		private void drop(Task task) {
+			droppedCount.incrementAndGet();
+			if (task.dropHandler != null) {
+				try {
+					task.dropHandler.run();
+				}
+				catch (Exception e) {
+					logger.error(ExceptionUtils.getStackTrace(e));
+				}
+			}
+		}
+
+		private void dropAll() {
+			Task task;
+			while ((task = tasks.poll()) != null) {
+				queueSize.decrementAndGet();
+				drop(task);
+			}
+		}
+
+		/**
+		 * Stops accepting tasks. Waiting tasks are dropped, running task is not interrupted
+		 */
+		public void close() {
+			closed = true;
+			if (!scheduled.get()) {
+				dropAll();
+			}
+		}
+
+		/**
+		 * Waits for the running task to finish
+		 * @return true if there is no running task
+		 */
+		public boolean awaitIdle(long timeout, TimeUnit unit) throws InterruptedException {
+			long deadline = System.nanoTime() + unit.toNanos(timeout);
+			synchronized (runLock) {
+				while (running) {
+					long remaining = deadline - System.nanoTime();
+					if (remaining <= 0) {
+						return false;
+					}
+					TimeUnit.NANOSECONDS.timedWait(runLock, remaining);
+				}
+			}
+			return true;
+		}
+
+		public boolean isClosed() {
+			return closed;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public int getQueueDepth() {
+			return Math.max(queueSize.get(), 0);
+		}
+
+		public int getMaxQueueDepth() {
+			return maxQueueDepth;
+		}
+
+		public long getExecutedCount() {
+			return executedCount.get();
+		}
+
+		public long getDroppedCount() {
+			return droppedCount.get();
+		}
+
+		/**
+		 * @return average time in milliseconds tasks wait in the queue
+		 */
+		public double getAverageWaitTimeMs() {
+			long count = executedCount.get();
+			return count > 0 ? totalWaitTimeNs.get() / 1e6 / count : 0;
+		}
+
+		/**
+		 * @return average time in milliseconds tasks take to run
+		 */
+		public double getAverageRunTimeMs() {
+			long count = executedCount.get();
+			return count > 0 ? totalRunTimeNs.get() / 1e6 / count : 0;
+		}
+	}
+
+	private static class Task {
+		private final Runnable task;
+		private final Runnable dropHandler;
+		private final long submitTime = System.nanoTime();
+
+		private Task(Runnable task, Runnable dropHandler) {
+			this.task = task;
+			this.dropHandler = dropHandler;
+		}
+	}
+
+	/**
+	 * @param threadCount number of encoder threads.
+	 * If it's zero or negative, number of available processors is used
+	 */
+	public EncoderScheduler(int threadCount) {
+		if (threadCount <= 0) {
+			threadCount = Runtime.getRuntime().availableProcessors();
+		}
+		this.threadCount = threadCount;
+
+		AtomicInteger threadNumber = new AtomicInteger(0);
+		workers = new ThreadPoolExecutor(threadCount, threadCount, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), runnable -> {
+			Thread thread = new Thread(runnable, "EncoderWorker-" + threadNumber.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+
+		tickExecutor = new ScheduledThreadPoolExecutor(1, runnable -> {
+			Thread thread = new Thread(runnable, "AudioTick");
+			thread.setDaemon(true);
+			return thread;
+		});
+		tickExecutor.scheduleAtFixedRate(this::tick, AUDIO_TICK_PERIOD_MS, AUDIO_TICK_PERIOD_MS, TimeUnit.MILLISECONDS);
+		logger.info("Encoder scheduler is created with {} threads", threadCount);
+	}
+
+	/**
+	 * @return scheduler shared by all adaptors in the JVM
+	 */
+	public static synchronized EncoderScheduler getInstance() {
+		if (instance == null) {
+			instance = new EncoderScheduler(0);
+		}
+		return instance;
+	}
+
+	/**
+	 * Creates a new lane. Lanes do not have threads so they do not need to be removed, just close them
+	 * @param name name of the lane for logging
+	 * @param maxQueueSize maximum number of tasks waiting in the lane
+	 */
+	public Lane createLane(String name, int maxQueueSize) {
+		return new Lane(name, maxQueueSize);
+	}
+
+	/**
+	 * Calls the listener every {@link #AUDIO_TICK_PERIOD_MS} in the tick thread.
+	 * Listener should not block, it should submit the work to a lane.
+	 */
+	public TickHandle addTickListener(Runnable listener) {
+		TickHandle handle = new TickHandle(listener);
+		tickListeners.add(handle);
+		return handle;
+	}
+
+	private void tick() {
+		for (TickHandle handle : tickListeners) {
+			try {
+				handle.listener.run();
+			}
+			catch (Exception e) {
+				logger.error(ExceptionUtils.getStackTrace(e));
+			}
+		}
+	}
+
+	public int getThreadCount() {
+		return threadCount;
+	}
+
+	public int getTickListenerCount() {
+		return tickListeners.size();
+	}
+
+	public void shutdown() {
+		tickExecutor.shutdownNow();
+		workers.shutdown();
+	}
+}
@@ -0,0 +1,93 @@
+package io.antmedia.webrtc.adaptor;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Recycles the direct buffers that raw video frames are copied into.
+ *
+ * Frames of a stream have the same size as long as the resolution does not change, so buffers
+ * are pooled for the last requested size only. Buffers of other sizes are dropped when they are released.
+ */
+public class FrameBufferPool {
+
+	private final ConcurrentLinkedQueue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger pooledCount = new AtomicInteger();
+	private final int maxPooledBuffers;
+	private volatile int bufferSize = 0;
+
+	private final AtomicLong hitCount = new AtomicLong();
+	private final AtomicLong missCount = new AtomicLong();
+
+	/**
+	 * @param maxPooledBuffers maximum number of buffers kept in the pool
+	 */
+	public FrameBufferPool(int maxPooledBuffers) {
+		this.maxPooledBuffers = maxPooledBuffers;
+	}
+
+	/**
+	 * @param size size of the frame in bytes
+	 * @return a direct buffer whose position is 0 and limit is size
+	 */
+	public ByteBuffer acquire(int size) {
+		if (size != bufferSize) {
+			//resolution is changed
+			bufferSize = size;
+			clear();
+		}
+
+		ByteBuffer buffer = buffers.poll();
+		if (buffer != null) {
+			pooledCount.decrementAndGet();
+			if (buffer.capacity() == size) {
+				hitCount.incrementAndGet();
+				buffer.clear();
+				return buffer;
+			}
+		}
+		missCount.incrementAndGet();
+		return ByteBuffer.allocateDirect(size);
+	}
+
+	/**
+	 * Returns the buffer to the pool. It should not be used after it's released
+	 */
+	public void release(ByteBuffer buffer) {
+		if (buffer != null && buffer.capacity() == bufferSize && pooledCount.incrementAndGet() <= maxPooledBuffers) {
+			buffers.add(buffer);
+		}
+		else if (buffer != null && buffer.capacity() == bufferSize) {
+			pooledCount.decrementAndGet();
+		}
+	}
+
+	public void clear() {
+		while (buffers.poll() != null) {
+			pooledCount.decrementAndGet();
+		}
+	}
+
+	public long getHitCount() {
+		return hitCount.get();
+	}
+
+	public long getMissCount() {
+		return missCount.get();
+	}
+
+	/**
+	 * @return ratio of the acquires served from the pool, between 0 and 1
+	 */
+	public double getHitRate() {
+		long hits = hitCount.get();
+		long total = hits + missCount.get();
+		return total > 0 ? (double) hits / total : 0;
+	}
+
+	public int getPooledCount() {
+		return pooledCount.get();
+	}
+}
@@ -0,0 +1,466 @@
+package io.antmedia.webrtc.adaptor;
+
+import static org.bytedeco.javacpp.avcodec.AV_CODEC_FLAG_GLOBAL_HEADER;
+import static org.bytedeco.javacpp.avcodec.av_packet_alloc;
+import static org.bytedeco.javacpp.avcodec.av_packet_free;
+import static org.bytedeco.javacpp.avcodec.av_packet_rescale_ts;
+import static org.bytedeco.javacpp.avcodec.av_packet_unref;
+import static org.bytedeco.javacpp.avcodec.avcodec_alloc_context3;
+import static org.bytedeco.javacpp.avcodec.avcodec_find_encoder;
+import static org.bytedeco.javacpp.avcodec.avcodec_free_context;
+import static org.bytedeco.javacpp.avcodec.avcodec_open2;
+import static org.bytedeco.javacpp.avcodec.avcodec_parameters_from_context;
+import static org.bytedeco.javacpp.avcodec.avcodec_receive_packet;
+import static org.bytedeco.javacpp.avcodec.avcodec_send_frame;
+import static org.bytedeco.javacpp.avformat.avformat_alloc_context;
+import static org.bytedeco.javacpp.avformat.avformat_free_context;
+import static org.bytedeco.javacpp.avformat.avformat_new_stream;
+import static org.bytedeco.javacpp.avutil.AVERROR_EAGAIN;
+import static org.bytedeco.javacpp.avutil.AVERROR_EOF;
+import static org.bytedeco.javacpp.avutil.AV_PIX_FMT_YUV420P;
+import static org.bytedeco.javacpp.avutil.AV_SAMPLE_FMT_FLTP;
+import static org.bytedeco.javacpp.avutil.AV_SAMPLE_FMT_S16;
+import static org.bytedeco.javacpp.avutil.av_audio_fifo_alloc;
+import static org.bytedeco.javacpp.avutil.av_audio_fifo_free;
+import static org.bytedeco.javacpp.avutil.av_audio_fifo_read;
+import static org.bytedeco.javacpp.avutil.av_audio_fifo_size;
+import static org.bytedeco.javacpp.avutil.av_audio_fifo_write;
+import static org.bytedeco.javacpp.avutil.av_dict_free;
+import static org.bytedeco.javacpp.avutil.av_dict_set;
+import static org.bytedeco.javacpp.avutil.av_frame_alloc;
+import static org.bytedeco.javacpp.avutil.av_frame_free;
+import static org.bytedeco.javacpp.avutil.av_frame_get_buffer;
+import static org.bytedeco.javacpp.avutil.av_frame_make_writable;
+import static org.bytedeco.javacpp.avutil.av_get_default_channel_layout;
+import static org.bytedeco.javacpp.swresample.swr_alloc_set_opts;
+import static org.bytedeco.javacpp.swresample.swr_free;
+import static org.bytedeco.javacpp.swresample.swr_get_out_samples;
+import static org.bytedeco.javacpp.swresample.swr_init;
+import static org.bytedeco.javacpp.swresample.swr_convert;
+import static org.bytedeco.javacpp.swscale.SWS_BILINEAR;
+import static org.bytedeco.javacpp.swscale.sws_freeContext;
+import static org.bytedeco.javacpp.swscale.sws_getCachedContext;
+import static org.bytedeco.javacpp.swscale.sws_scale;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+
+import org.bytedeco.javacpp.BytePointer;
+import org.bytedeco.javacpp.DoublePointer;
+import org.bytedeco.javacpp.PointerPointer;
+import org.bytedeco.javacpp.ShortPointer;
+import org.bytedeco.javacpp.avcodec.AVCodec;
+import org.bytedeco.javacpp.avcodec.AVCodecContext;
+import org.bytedeco.javacpp.avcodec.AVPacket;
+import org.bytedeco.javacpp.avformat.AVFormatContext;
+import org.bytedeco.javacpp.avformat.AVStream;
+import org.bytedeco.javacpp.avutil.AVAudioFifo;
+import org.bytedeco.javacpp.avutil.AVDictionary;
+import org.bytedeco.javacpp.avutil.AVFrame;
+import org.bytedeco.javacpp.avutil.AVRational;
+import org.bytedeco.javacpp.swresample.SwrContext;
+import org.bytedeco.javacpp.swscale.SwsContext;
+import org.red5.server.api.scope.IScope;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.antmedia.AntMediaApplicationAdapter;
+import io.antmedia.muxer.MuxAdaptor;
+import io.antmedia.recorder.FFmpegFrameRecorder;
+
+/**
+ * Encodes the WebRTC frames and writes the encoded packets directly to a {@link MuxAdaptor}
+ * of the application like {@link io.antmedia.streamsource.StreamFetcher} does.
+ *
+ * {@link FFmpegFrameRecorder} sends the packets to the RTMP server in FLV format over a loopback socket and
+ * they are parsed by the RTMP stack and demuxed again. This recorder skips the socket, FLV muxing/demuxing
+ * and the RTMP connection. Settings of the recorder like image size, frame rate and sample rate are used as they are.
+ */
+public class MuxAdaptorRecorder extends FFmpegFrameRecorder {
+
+	private static Logger logger = LoggerFactory.getLogger(MuxAdaptorRecorder.class);
+
+	private final String streamId;
+	private final AntMediaApplicationAdapter appAdaptor;
+
+	private MuxAdaptor muxAdaptor;
+	private AVFormatContext inputFormatContext;
+	private AVStream videoStream;
+	private AVStream audioStream;
+
+	private AVCodecContext videoCodecContext;
+	private AVCodecContext audioCodecContext;
+
+	private AVFrame inputPicture;
+	private AVFrame scaledPicture;
+	private SwsContext swsContext;
+	private AVPacket videoPacket;
+
+	private SwrContext swrContext;
+	private int swrInputSampleRate;
+	private int swrInputChannels;
+	private AVAudioFifo audioFifo;
+	private AVFrame convertedSamples;
+	private AVFrame audioFrame;
+	private AVPacket audioPacket;
+	private long audioPts = 0;
+
+	private final Object videoLock = new Object();
+	private final Object audioLock = new Object();
+	private final Object muxLock = new Object();
+
+	public MuxAdaptorRecorder(String streamId, AntMediaApplicationAdapter appAdaptor, int imageWidth, int imageHeight) {
+		super("inprocess://" + streamId, imageWidth, imageHeight, 1);
+		this.streamId = streamId;
+		this.appAdaptor = appAdaptor;
+	}
+
+	@Override
+	public void start() throws Exception {
+		try {
+			openVideoEncoder();
+			openAudioEncoder();
+		}
+		catch (Exception e) {
+			releaseResources();
+			throw e;
+		}
+
+		//streams of this context describe the encoded packets to the mux adaptor
+		inputFormatContext = avformat_alloc_context();
+		videoStream = newStream(videoCodecContext);
+		audioStream = newStream(audioCodecContext);
+
+		IScope scope = appAdaptor.getScope();
+		MuxAdaptor localMuxAdaptor = MuxAdaptor.initializeMuxAdaptor(null, true, scope);
+		localMuxAdaptor.init(scope, streamId, false);
+
+		if (!localMuxAdaptor.prepareInternal(inputFormatContext)) {
+			releaseResources();
+			throw new Exception("MuxAdaptor cannot be prepared for stream: " + streamId);
+		}
+		localMuxAdaptor.setStartTime(System.currentTimeMillis());
+		synchronized (muxLock) {
+			muxAdaptor = localMuxAdaptor;
+		}
+
+		appAdaptor.startPublish(streamId);
+		logger.info("In process recorder is started for stream: {}", streamId);
+	}
+
+	private void openVideoEncoder() throws Exception {
+		AVCodec codec = avcodec_find_encoder(getVideoCodec());
+		if (codec == null) {
+			throw new Exception("Video encoder cannot be found for stream: " + streamId);
+		}
+		videoCodecContext = avcodec_alloc_context3(codec);
+		videoCodecContext.width(getImageWidth());
+		videoCodecContext.height(getImageHeight());
+		videoCodecContext.pix_fmt(AV_PIX_FMT_YUV420P);
+		videoCodecContext.time_base(new AVRational().num(1).den((int) Math.round(getFrameRate())));
+		videoCodecContext.gop_size(getGopSize());
+		videoCodecContext.max_b_frames(0);
+		videoCodecContext.flags(videoCodecContext.flags() | AV_CODEC_FLAG_GLOBAL_HEADER);
+
+		AVDictionary options = new AVDictionary(null);
+		av_dict_set(options, "preset", "veryfast", 0);
+		av_dict_set(options, "tune", "zerolatency", 0);
+		if (getVideoQuality() >= 0) {
+			av_dict_set(options, "crf", String.valueOf(getVideoQuality()), 0);
+		}
+		int ret = avcodec_open2(videoCodecContext, codec, options);
+		av_dict_free(options);
+		if (ret < 0) {
+			throw new Exception("Video encoder cannot be opened for stream: " + streamId + " error: " + ret);
+		}
+
+		inputPicture = av_frame_alloc();
+		videoPacket = av_packet_alloc();
+	}
+
+	private void openAudioEncoder() throws Exception {
+		AVCodec codec = avcodec_find_encoder(getAudioCodec());
+		if (codec == null) {
+			throw new Exception("Audio encoder cannot be found for stream: " + streamId);
+		}
+		audioCodecContext = avcodec_alloc_context3(codec);
+		audioCodecContext.sample_fmt(AV_SAMPLE_FMT_FLTP);
+		audioCodecContext.sample_rate(getSampleRate());
+		audioCodecContext.channels(getAudioChannels());
+		audioCodecContext.channel_layout(av_get_default_channel_layout(getAudioChannels()));
+		audioCodecContext.bit_rate(getAudioBitrate() > 0 ? getAudioBitrate() : 64000);
+		audioCodecContext.time_base(new AVRational().num(1).den(getSampleRate()));
+		audioCodecContext.flags(audioCodecContext.flags() | AV_CODEC_FLAG_GLOBAL_HEADER);
+
+		int ret = avcodec_open2(audioCodecContext, codec, (AVDictionary) null);
+		if (ret < 0) {
+			throw new Exception("Audio encoder cannot be opened for stream: " + streamId + " error: " + ret);
+		}
+
+		audioFifo = av_audio_fifo_alloc(AV_SAMPLE_FMT_FLTP, getAudioChannels(), audioCodecContext.frame_size());
+		audioFrame = allocAudioFrame(audioCodecContext.frame_size());
+		audioPacket = av_packet_alloc();
+	}
+
+	private AVStream newStream(AVCodecContext codecContext) {
+		AVStream stream = avformat_new_stream(inputFormatContext, null);
+		avcodec_parameters_from_context(stream.codecpar(), codecContext);
+		stream.time_base(codecContext.time_base());
+		return stream;
+	}
+
+	private AVFrame allocAudioFrame(int sampleCount) {
+		AVFrame frame = av_frame_alloc();
+		frame.format(AV_SAMPLE_FMT_FLTP);
+		frame.channels(getAudioChannels());
+		frame.channel_layout(av_get_default_channel_layout(getAudioChannels()));
+		frame.sample_rate(getSampleRate());
+		frame.nb_samples(sampleCount);
+		av_frame_get_buffer(frame, 0);
+		return frame;
+	}
+
+	/**
+	 * Encodes the I420 image whose planes are in image[0] one after another.
+	 * Frame number should be set before calling this method and it's used as the timestamp
+	 */
+	@Override
+	public boolean recordImage(int width, int height, int depth, int channels, int[] stride, int pixelFormat, Buffer... image) throws Exception {
+		synchronized (videoLock) {
+			if (videoCodecContext == null || image == null || image.length == 0) {
+				return false;
+			}
+
+			BytePointer data = new BytePointer((ByteBuffer) image[0]).position(0);
+			int chromaHeight = (height + 1) / 2;
+			inputPicture.format(pixelFormat);
+			inputPicture.width(width);
+			inputPicture.height(height);
+			inputPicture.data(0, data);
+			inputPicture.data(1, new BytePointer(data).position((long) stride[0] * height));
+			inputPicture.data(2, new BytePointer(data).position((long) stride[0] * height + (long) stride[1] * chromaHeight));
+			for (int i = 0; i < 3; i++) {
+				inputPicture.linesize(i, stride[i]);
+			}
+
+			AVFrame picture = inputPicture;
+			if (width != videoCodecContext.width() || height != videoCodecContext.height() || pixelFormat != AV_PIX_FMT_YUV420P) {
+				picture = scale(width, height, pixelFormat);
+			}
+			picture.pts(getFrameNumber());
+
+			return encode(videoCodecContext, picture, videoStream, videoPacket);
+		}
+	}
+
+	private AVFrame scale(int width, int height, int pixelFormat) throws Exception {
+		swsContext = sws_getCachedContext(swsContext, width, height, pixelFormat,
+				videoCodecContext.width(), videoCodecContext.height(), AV_PIX_FMT_YUV420P,
+				SWS_BILINEAR, null, null, (DoublePointer)null);
+		if (swsContext == null) {
+			throw new Exception("Scale context cannot be created for stream: " + streamId);
+		}
+		if (scaledPicture == null) {
+			scaledPicture = av_frame_alloc();
+			scaledPicture.format(AV_PIX_FMT_YUV420P);
+			scaledPicture.width(videoCodecContext.width());
+			scaledPicture.height(videoCodecContext.height());
+			av_frame_get_buffer(scaledPicture, 32);
+		}
+		//encoder may still have a reference to the previous frame
+		av_frame_make_writable(scaledPicture);
+		sws_scale(swsContext, inputPicture.data(), inputPicture.linesize(), 0, height,
+				scaledPicture.data(), scaledPicture.linesize());
+		return scaledPicture;
+	}
+
+	/**
+	 * Encodes interleaved 16 bit samples. They are resampled to the sample rate and channel count of the recorder
+	 */
+	@Override
+	public boolean recordSamples(int sampleRate, int audioChannels, Buffer... samples) throws Exception {
+		synchronized (audioLock) {
+			if (audioCodecContext == null || samples == null || samples.length == 0) {
+				return false;
+			}
+
+			if (swrContext == null || swrInputSampleRate != sampleRate || swrInputChannels != audioChannels) {
+				if (swrContext != null) {
+					swr_free(swrContext);
+				}
+				swrContext = swr_alloc_set_opts(null,
+						av_get_default_channel_layout(getAudioChannels()), AV_SAMPLE_FMT_FLTP, getSampleRate(),
+						av_get_default_channel_layout(audioChannels), AV_SAMPLE_FMT_S16, sampleRate, 0, null);
+				if (swrContext == null || swr_init(swrContext) < 0) {
+					throw new Exception("Resample context cannot be created for stream: " + streamId);
+				}
+				swrInputSampleRate = sampleRate;
+				swrInputChannels = audioChannels;
+			}
+
+			ShortBuffer buffer = (ShortBuffer) samples[0];
+			ShortPointer input;
+			if (buffer.isDirect()) {
+				input = new ShortPointer(buffer);
+			}
+			else {
+				input = new ShortPointer(buffer.remaining());
+				input.put(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+			}
+			int inputSampleCount = buffer.remaining() / audioChannels;
+
+			int outputSampleCount = swr_get_out_samples(swrContext, inputSampleCount);
+			if (convertedSamples == null || convertedSamples.nb_samples() < outputSampleCount) {
+				if (convertedSamples != null) {
+					av_frame_free(convertedSamples);
+				}
+				convertedSamples = allocAudioFrame(outputSampleCount);
+			}
+
+			int convertedCount = swr_convert(swrContext, convertedSamples.data(), outputSampleCount,
+					new PointerPointer(input), inputSampleCount);
+			if (convertedCount < 0) {
+				return false;
+			}
+			av_audio_fifo_write(audioFifo, convertedSamples.data(), convertedCount);
+
+			boolean result = true;
+			int frameSize = audioCodecContext.frame_size();
+			while (av_audio_fifo_size(audioFifo) >= frameSize) {
+				av_frame_make_writable(audioFrame);
+				av_audio_fifo_read(audioFifo, audioFrame.data(), frameSize);
+				audioFrame.pts(audioPts);
+				audioPts += frameSize;
+				result &= encode(audioCodecContext, audioFrame, audioStream, audioPacket);
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * Sends the frame to the encoder and writes the encoded packets to the mux adaptor.
+	 * Null frame flushes the encoder
+	 */
+	private boolean encode(AVCodecContext codecContext, AVFrame frame, AVStream stream, AVPacket packet) {
+		int ret = avcodec_send_frame(codecContext, frame);
+		if (ret < 0 && ret != AVERROR_EOF) {
+			logger.warn("Frame cannot be sent to the encoder for stream: {} error: {}", streamId, ret);
+			return false;
+		}
+		while ((ret = avcodec_receive_packet(codecContext, packet)) >= 0) {
+			packet.stream_index(stream.index());
+			av_packet_rescale_ts(packet, codecContext.time_base(), stream.time_base());
+			synchronized (muxLock) {
+				if (muxAdaptor != null) {
+					muxAdaptor.writePacket(stream, packet);
+				}
+			}
+			av_packet_unref(packet);
+		}
+		return ret == AVERROR_EAGAIN() || ret == AVERROR_EOF;
+	}
+
+	/**
+	 * Flushes the encoders, finishes the mux adaptor and closes the broadcast
+	 */
+	@Override
+	public void stop() throws Exception {
+		synchronized (videoLock) {
+			if (videoCodecContext != null) {
+				encode(videoCodecContext, null, videoStream, videoPacket);
+			}
+		}
+		synchronized (audioLock) {
+			if (audioCodecContext != null) {
+				encode(audioCodecContext, null, audioStream, audioPacket);
+			}
+		}
+
+		boolean published = false;
+		synchronized (muxLock) {
+			if (muxAdaptor != null) {
+				logger.info("Writing trailer in MuxAdaptor for stream: {}", streamId);
+				muxAdaptor.writeTrailer(inputFormatContext);
+				appAdaptor.muxAdaptorRemoved(muxAdaptor);
+				muxAdaptor = null;
+				published = true;
+			}
+		}
+		releaseResources();
+
+		if (published) {
+			appAdaptor.closeBroadcast(streamId);
+		}
+	}
+
+	private void releaseResources() {
+		synchronized (videoLock) {
+			if (videoCodecContext != null) {
+				avcodec_free_context(videoCodecContext);
+				videoCodecContext = null;
+			}
+			if (inputPicture != null) {
+				av_frame_free(inputPicture);
+				inputPicture = null;
+			}
+			if (scaledPicture != null) {
+				av_frame_free(scaledPicture);
+				scaledPicture = null;
+			}
+			if (swsContext != null) {
+				sws_freeContext(swsContext);
+				swsContext = null;
+			}
+			if (videoPacket != null) {
+				av_packet_free(videoPacket);
+				videoPacket = null;
+			}
+		}
+		synchronized (audioLock) {
+			if (audioCodecContext != null) {
+				avcodec_free_context(audioCodecContext);
+				audioCodecContext = null;
+			}
+			if (swrContext != null) {
+				swr_free(swrContext);
+				swrContext = null;
+			}
+			if (audioFifo != null) {
+				av_audio_fifo_free(audioFifo);
+				audioFifo = null;
+			}
+			if (convertedSamples != null) {
+				av_frame_free(convertedSamples);
+				convertedSamples = null;
+			}
+			if (audioFrame != null) {
+				av_frame_free(audioFrame);
+				audioFrame = null;
+			}
+			if (audioPacket != null) {
+				av_packet_free(audioPacket);
+				audioPacket = null;
+			}
+		}
+		synchronized (muxLock) {
+			if (inputFormatContext != null) {
+				avformat_free_context(inputFormatContext);
+				inputFormatContext = null;
+			}
+		}
+	}
+
+	@Override
+	public void release() throws Exception {
+		releaseResources();
+	}
+
+	public MuxAdaptor getMuxAdaptor() {
+		return muxAdaptor;
+	}
+
+	public String getStreamId() {
+		return streamId;
+	}
+}
@@ -8,11 +8,10 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.bytedeco.javacpp.BytePointer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.webrtc.IceCandidate;
@@ -51,20 +50,48 @@ public class RTMPAdaptor extends Adaptor {
 
 	private static Logger logger = LoggerFactory.getLogger(RTMPAdaptor.class);
 
-	private ExecutorService videoEncoderExecutor; 
+	/**
+	 * Maximum number of video frames waiting to be encoded. About 1 second at 30 fps
+	 */
+	public static final int MAX_VIDEO_QUEUE_SIZE = 30;
 
-	private ExecutorService audioEncoderExecutor;
+	/**
+	 * Maximum number of audio frames waiting to be encoded. Each one is 10 ms
+	 */
+	public static final int MAX_AUDIO_QUEUE_SIZE = 100;
+
+	private EncoderScheduler encoderScheduler = EncoderScheduler.getInstance();
+
+	private EncoderScheduler.Lane videoEncoderLane; 
+
+	private EncoderScheduler.Lane audioEncoderLane;
 	private volatile boolean isStopped = false;
-	private ScheduledExecutorService signallingExecutor;
+	private ExecutorService signallingExecutor;
 	private boolean enableAudio = false;
 
 	private volatile int audioFrameCount = 0;
 	private boolean started = false;
-	private ScheduledFuture<?> audioDataSchedulerFuture;
+	private EncoderScheduler.TickHandle audioDataSchedulerFuture;
 	private WebRtcAudioTrack webRtcAudioTrack;
 
 	public static final String DTLS_SRTP_KEY_AGREEMENT_CONSTRAINT = "DtlsSrtpKeyAgreement";
 
+	/**
+	 * Frames are encoded one by one so a few buffers are enough
+	 */
+	private static final int MAX_POOLED_FRAME_BUFFERS = 4;
+	private final FrameBufferPool frameBufferPool = new FrameBufferPool(MAX_POOLED_FRAME_BUFFERS);
+	private volatile long zeroCopyFrameCount = 0;
+
+	/**
+	 * WebRTC takes the frames from its own buffer pool, so the same memory is used again after a few frames.
+	 * Views of the contiguous planes are cached by address and they are only used in the video encoder lane
+	 */
+	private static final int MAX_CACHED_PLANE_VIEWS = 8;
+	private final long[] planeViewAddresses = new long[MAX_CACHED_PLANE_VIEWS];
+	private final ByteBuffer[] planeViews = new ByteBuffer[MAX_CACHED_PLANE_VIEWS];
+	private int nextPlaneView = 0;
+
 	private String stunServerUri ="stun:stun.l.google.com:19302";
 	private int portRangeMin = 0; 
 	private int portRangeMax = 0;
@@ -133,9 +160,9 @@ public class RTMPAdaptor extends Adaptor {
 
 	@Override
 	public void start() {
-		videoEncoderExecutor = Executors.newSingleThreadExecutor();
-		audioEncoderExecutor = Executors.newSingleThreadExecutor();
-		signallingExecutor = Executors.newSingleThreadScheduledExecutor();
+		videoEncoderLane = encoderScheduler.createLane(getStreamId() + "-video", MAX_VIDEO_QUEUE_SIZE);
+		audioEncoderLane = encoderScheduler.createLane(getStreamId() + "-audio", MAX_AUDIO_QUEUE_SIZE);
+		signallingExecutor = Executors.newSingleThreadExecutor();
 
 		signallingExecutor.execute(() -> {
 
@@ -180,7 +207,7 @@ public class RTMPAdaptor extends Adaptor {
 		isStopped  = true;
 
 		if (audioDataSchedulerFuture != null) {
-			audioDataSchedulerFuture.cancel(false);
+			audioDataSchedulerFuture.cancel();
 		}
 
 		signallingExecutor.execute(() -> {
@@ -188,11 +215,17 @@ public class RTMPAdaptor extends Adaptor {
 			webSocketCommunityHandler.sendPublishFinishedMessage(getStreamId(), getSession());
 
 
-			audioEncoderExecutor.shutdownNow();
-			videoEncoderExecutor.shutdownNow();
+			audioEncoderLane.close();
+			videoEncoderLane.close();
+
+			logger.info("Encoder queue stats for stream: {} video dropped: {} max depth: {} average wait: {}ms "
+					+ "audio dropped: {} max depth: {} average wait: {}ms", getStreamId(),
+					videoEncoderLane.getDroppedCount(), videoEncoderLane.getMaxQueueDepth(), videoEncoderLane.getAverageWaitTimeMs(),
+					audioEncoderLane.getDroppedCount(), audioEncoderLane.getMaxQueueDepth(), audioEncoderLane.getAverageWaitTimeMs());
 
 			try {
-				videoEncoderExecutor.awaitTermination(10, TimeUnit.SECONDS);
+				videoEncoderLane.awaitIdle(10, TimeUnit.SECONDS);
+				audioEncoderLane.awaitIdle(10, TimeUnit.SECONDS);
 			} catch (InterruptedException e1) {
 				logger.error(ExceptionUtils.getStackTrace(e1));
 				Thread.currentThread().interrupt();
@@ -217,34 +250,38 @@ public class RTMPAdaptor extends Adaptor {
 		return signallingExecutor;
 	}
 
+	/**
+	 * Registers to the shared audio tick of the encoder scheduler. 
+	 * Audio is pulled from WebRTC and encoded in the audio lane of this adaptor
+	 */
 	public void initAudioTrackExecutor() {
-		audioDataSchedulerFuture = signallingExecutor.scheduleAtFixedRate(() -> {
+		audioDataSchedulerFuture = encoderScheduler.addTickListener(() -> {
 
 			if (startTime == 0) {
 				startTime = System.currentTimeMillis();
 			}
 
-			if (audioEncoderExecutor == null || audioEncoderExecutor.isShutdown()) {
+			if (audioEncoderLane == null || audioEncoderLane.isClosed()) {
 				return;
 			}
 
-			audioFrameCount++;
-			ByteBuffer playoutData = webRtcAudioTrack.getPlayoutData();
-
-			audioEncoderExecutor.execute(() -> {
+			audioEncoderLane.execute(() -> {
 
+				ByteBuffer playoutData = webRtcAudioTrack.getPlayoutData();
 				ShortBuffer audioBuffer = playoutData.asShortBuffer();
 				try {
 					boolean result = recorder.recordSamples(webRtcAudioTrack.getSampleRate(), webRtcAudioTrack.getChannels(), audioBuffer);
+					//count only the frames that are encoded, dropped tasks should not move the video pts
+					audioFrameCount++;
 					if (!result) {
 						logger.info("could not audio sample for stream Id {}", getStreamId());
 					}
 				} catch (FrameRecorder.Exception e) {
 					logger.error(ExceptionUtils.getStackTrace(e));
 				}
-			});
+			}, null);
 
-		}, 0, 10, TimeUnit.MILLISECONDS);
+		});
 	}
 
 
@@ -261,98 +298,188 @@ public class RTMPAdaptor extends Adaptor {
 			VideoTrack videoTrack = stream.videoTracks.get(0);
 			if (videoTrack != null) {
 
-				videoTrack.addSink(new VideoSink() {
+				videoTrack.addSink(createVideoSink());
+			}
+		}
+		else {
+			logger.warn("There is no video track for stream: {}", getStreamId());
+		}
 
-					private int frameCount;
-					private int dropFrameCount = 0;
-					private long pts;
-					private int frameNumber;
-					private int videoFrameLogCounter = 0;
-					private int lastFrameNumber = -1;
 
-					@Override
-					public void onFrame(VideoFrame frame) {
-						if (startTime == 0) {
-							startTime = System.currentTimeMillis();
-						}
+		webSocketCommunityHandler.sendPublishStartedMessage(getStreamId(), getSession(), null);
 
-						if (videoEncoderExecutor == null || videoEncoderExecutor.isShutdown()) {
-							return;
-						}
+	}
 
-						frame.retain();
-						frameCount++;
-						videoFrameLogCounter++;
+	/**
+	 * Creates the sink that retains the frames of the video track and encodes them in the video encoder lane.
+	 * Frames are released after they are encoded or dropped
+	 */
+	public VideoSink createVideoSink() {
+		return new VideoSink() {
+
+			private int frameCount;
+			private int dropFrameCount = 0;
+			private long pts;
+			private int frameNumber;
+			private int videoFrameLogCounter = 0;
+			private int lastFrameNumber = -1;
+			private final int[] stride = new int[3];
+
+			@Override
+			public void onFrame(VideoFrame frame) {
+				if (startTime == 0) {
+					startTime = System.currentTimeMillis();
+				}
 
-						if (videoFrameLogCounter % 100 == 0) {
-							logger.info("Received total video frames: {}  received fps: {}" , 
-									frameCount, frameCount/((System.currentTimeMillis() - startTime)/1000));
-							videoFrameLogCounter = 0;
+				if (videoEncoderLane == null || videoEncoderLane.isClosed()) {
+					return;
+				}
 
-						}
+				frame.retain();
+				frameCount++;
+				videoFrameLogCounter++;
 
-						videoEncoderExecutor.execute(() -> {
-							if (enableAudio) {
-								//each audio frame is 10 ms 
-								pts = (long)audioFrameCount * 10;
-								logger.trace("audio frame count: {}", audioFrameCount);
-							}
-							else {
-								pts = (System.currentTimeMillis() - startTime);
-							}
+				if (videoFrameLogCounter % 100 == 0) {
+					logger.info("Received total video frames: {}  received fps: {} zero copy frames: {} frame buffer pool hit rate: {}" , 
+							frameCount, frameCount/((System.currentTimeMillis() - startTime)/1000), 
+							zeroCopyFrameCount, frameBufferPool.getHitRate());
+					logger.info("Video encoder queue depth: {} dropped: {} average wait: {}ms average encode: {}ms for stream: {}",
+							videoEncoderLane.getQueueDepth(), videoEncoderLane.getDroppedCount(),
+							videoEncoderLane.getAverageWaitTimeMs(), videoEncoderLane.getAverageRunTimeMs(), getStreamId());
+					videoFrameLogCounter = 0;
 
-							frameNumber = (int)(pts * recorder.getFrameRate() / 1000f);
+				}
 
-							if (frameNumber > lastFrameNumber) {
+				//frame is released if it's dropped because the encoder is behind
+				videoEncoderLane.execute(() -> {
+					if (enableAudio) {
+						//each audio frame is 10 ms 
+						pts = (long)audioFrameCount * 10;
+						logger.trace("audio frame count: {}", audioFrameCount);
+					}
+					else {
+						pts = (System.currentTimeMillis() - startTime);
+					}
 
-								recorder.setFrameNumber(frameNumber);
-								lastFrameNumber = frameNumber;
+					frameNumber = (int)(pts * recorder.getFrameRate() / 1000f);
 
-								Frame frameCV = new Frame(frame.getRotatedWidth(), frame.getRotatedHeight(), Frame.DEPTH_UBYTE, 2);
+					if (frameNumber > lastFrameNumber) {
 
-								Buffer buffer = frame.getBuffer();
-								int[] stride = new int[3];
-								if (buffer instanceof WrappedNativeI420Buffer) {
-									WrappedNativeI420Buffer wrappedBuffer = (WrappedNativeI420Buffer) buffer;
-									((ByteBuffer)(frameCV.image[0].position(0))).put(wrappedBuffer.getDataY());
-									((ByteBuffer)(frameCV.image[0])).put(wrappedBuffer.getDataU());
-									((ByteBuffer)(frameCV.image[0])).put(wrappedBuffer.getDataV());
+						recorder.setFrameNumber(frameNumber);
+						lastFrameNumber = frameNumber;
 
-									stride[0] = wrappedBuffer.getStrideY();
-									stride[1] = wrappedBuffer.getStrideU();
-									stride[2] = wrappedBuffer.getStrideV();
+						Buffer buffer = frame.getBuffer();
+						if (buffer instanceof WrappedNativeI420Buffer) {
+							WrappedNativeI420Buffer wrappedBuffer = (WrappedNativeI420Buffer) buffer;
+							stride[0] = wrappedBuffer.getStrideY();
+							stride[1] = wrappedBuffer.getStrideU();
+							stride[2] = wrappedBuffer.getStrideV();
 
-									try {
-										recorder.recordImage(frameCV.imageWidth, frameCV.imageHeight, frameCV.imageDepth,
-												frameCV.imageChannels, stride, AV_PIX_FMT_YUV420P, frameCV.image);
+							ByteBuffer planes = getContiguousPlanes(wrappedBuffer, stride);
+							boolean copied = planes == null;
+							if (copied) {
+								planes = copyPlanes(wrappedBuffer, stride);
+							}
 
-									} catch (FrameRecorder.Exception e) {
-										logger.error(ExceptionUtils.getStackTrace(e));
-									}
-								}
-								else {
-									logger.error("Buffer is not type of WrappedNativeI420Buffer for stream: {}", recorder.getFilename());
-								}
+							try {
+								recorder.recordImage(frame.getRotatedWidth(), frame.getRotatedHeight(), Frame.DEPTH_UBYTE,
+										2, stride, AV_PIX_FMT_YUV420P, planes);
+
+							} catch (FrameRecorder.Exception e) {
+								logger.error(ExceptionUtils.getStackTrace(e));
 							}
-							else {
-								dropFrameCount ++;
-								logger.debug("dropping video, total drop count: {} frame number: {} recorder frame number: {}", 
-										dropFrameCount, frameNumber, lastFrameNumber);
+							finally {
+								if (copied) {
+									//recorder does not keep a reference to the image after it returns
+									frameBufferPool.release(planes);
+								}
 							}
-							frame.release();
-						});
-
+						}
+						else {
+							logger.error("Buffer is not type of WrappedNativeI420Buffer for stream: {}", recorder.getFilename());
+						}
 					}
-				});
+					else {
+						dropFrameCount ++;
+						logger.debug("dropping video, total drop count: {} frame number: {} recorder frame number: {}", 
+								dropFrameCount, frameNumber, lastFrameNumber);
+					}
+					frame.release();
+				}, frame::release);
+
 			}
+		};
+	}
+
+	/**
+	 * WebRTC allocates Y, U and V planes of a frame in a single block most of the time. 
+	 * If they are one after another in the memory, recorder reads the planes directly from the frame.
+	 * Pointers are still created to get the addresses of the planes but the view covering the planes 
+	 * is reused for the frames in the same memory
+	 * 
+	 * @return buffer covering all planes or null if planes are not contiguous
+	 */
+	public ByteBuffer getContiguousPlanes(WrappedNativeI420Buffer buffer, int[] stride) {
+		int chromaHeight = (buffer.getHeight() + 1) / 2;
+		long ySize = (long) stride[0] * buffer.getHeight();
+		long uSize = (long) stride[1] * chromaHeight;
+		long vSize = (long) stride[2] * chromaHeight;
+
+		BytePointer dataY = new BytePointer(buffer.getDataY());
+		BytePointer dataU = new BytePointer(buffer.getDataU());
+		BytePointer dataV = new BytePointer(buffer.getDataV());
+		long yAddress = dataY.address() + dataY.position();
+		long uAddress = dataU.address() + dataU.position();
+		long vAddress = dataV.address() + dataV.position();
+
+		if (uAddress == yAddress + ySize && vAddress == uAddress + uSize 
+				&& ySize + uSize + vSize <= Integer.MAX_VALUE) 
+		{
+			zeroCopyFrameCount++;
+			return getPlaneView(dataY, yAddress, ySize + uSize + vSize);
 		}
-		else {
-			logger.warn("There is no video track for stream: {}", getStreamId());
+		return null;
+	}
+
+	/**
+	 * @return cached view of the memory at the address or a new view which replaces the oldest one in the cache
+	 */
+	private ByteBuffer getPlaneView(BytePointer dataY, long address, long size) {
+		for (int i = 0; i < planeViews.length; i++) {
+			ByteBuffer view = planeViews[i];
+			if (view != null && planeViewAddresses[i] == address && view.capacity() == size) {
+				view.clear();
+				return view;
+			}
 		}
+		ByteBuffer view = dataY.limit(dataY.position() + size).asByteBuffer();
+		planeViewAddresses[nextPlaneView] = address;
+		planeViews[nextPlaneView] = view;
+		nextPlaneView = (nextPlaneView + 1) % planeViews.length;
+		return view;
+	}
 
+	/**
+	 * Copies the planes into a buffer from the pool. Buffer should be released to the pool after it's used
+	 */
+	public ByteBuffer copyPlanes(WrappedNativeI420Buffer buffer, int[] stride) {
+		int chromaHeight = (buffer.getHeight() + 1) / 2;
+		int size = stride[0] * buffer.getHeight() + (stride[1] + stride[2]) * chromaHeight;
+		ByteBuffer planes = frameBufferPool.acquire(Math.max(size, 
+				buffer.getDataY().remaining() + buffer.getDataU().remaining() + buffer.getDataV().remaining()));
+		planes.put(buffer.getDataY());
+		planes.put(buffer.getDataU());
+		planes.put(buffer.getDataV());
+		planes.position(0);
+		return planes;
+	}
 
-		webSocketCommunityHandler.sendPublishStartedMessage(getStreamId(), getSession(), null);
+	public FrameBufferPool getFrameBufferPool() {
+		return frameBufferPool;
+	}
 
+	public long getZeroCopyFrameCount() {
+		return zeroCopyFrameCount;
 	}
 
 	@Override
@@ -386,7 +513,7 @@ public class RTMPAdaptor extends Adaptor {
 		return isStopped;
 	}
 
-	public ScheduledFuture getAudioDataSchedulerFuture() {
+	public EncoderScheduler.TickHandle getAudioDataSchedulerFuture() {
 		return audioDataSchedulerFuture;
 	}
 
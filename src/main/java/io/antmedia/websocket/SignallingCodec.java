@@ -0,0 +1,114 @@
+package io.antmedia.websocket;
+
+import org.json.simple.parser.ContentHandler;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+/**
+ * Decodes signalling messages into {@link SignallingMessage}.
+ *
+ * json-simple parsers are not thread safe, so each thread has its own parser.
+ * Message is decoded with the streaming API of the parser, no intermediate JSONObject is created.
+ */
+public class SignallingCodec {
+
+	private static final ThreadLocal<JSONParser> parser = ThreadLocal.withInitial(JSONParser::new);
+
+	private static final ThreadLocal<MessageHandler> handler = ThreadLocal.withInitial(MessageHandler::new);
+
+	private SignallingCodec() {
+		//hide public constructor
+	}
+
+	/**
+	 * Fills top level primitive fields of the message. Nested objects and arrays are skipped.
+	 */
+	private static class MessageHandler implements ContentHandler {
+
+		private SignallingMessage message;
+		private String key;
+		private int depth;
+
+		private void reset(SignallingMessage message) {
+			this.message = message;
+			this.key = null;
+			this.depth = 0;
+		}
+
+		@Override
+		public void startJSON() {
+			//no need to implement
+		}
+
+		@Override
+		public void endJSON() {
+			//no need to implement
+		}
+
+		@Override
+		public boolean startObject() {
+			depth++;
+			return true;
+		}
+
+		@Override
+		public boolean endObject() {
+			depth--;
+			return true;
+		}
+
+		@Override
+		public boolean startObjectEntry(String key) {
+			if (depth == 1) {
+				this.key = key;
+			}
+			return true;
+		}
+
+		@Override
+		public boolean endObjectEntry() {
+			if (depth == 1) {
+				key = null;
+			}
+			return true;
+		}
+
+		@Override
+		public boolean startArray() {
+			depth++;
+			return true;
+		}
+
+		@Override
+		public boolean endArray() {
+			depth--;
+			return true;
+		}
+
+		@Override
+		public boolean primitive(Object value) {
+			if (depth == 1 && key != null) {
+				message.setField(key, value);
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * @param text signalling message in JSON
+	 * @return decoded message. If text is not an object, message does not have any field
+	 * @throws ParseException if text is not a valid JSON
+	 */
+	public static SignallingMessage decode(String text) throws ParseException {
+		SignallingMessage message = new SignallingMessage();
+		MessageHandler messageHandler = handler.get();
+		messageHandler.reset(message);
+		try {
+			parser.get().parse(text, messageHandler);
+		}
+		finally {
+			messageHandler.reset(null);
+		}
+		return message;
+	}
+}
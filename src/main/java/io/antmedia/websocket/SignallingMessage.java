@@ -0,0 +1,134 @@
+package io.antmedia.websocket;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Typed signalling message decoded by {@link SignallingCodec}.
+ *
+ * Fields that are used by the community handler are kept in typed fields,
+ * other top level fields are kept in a map that is created only if there are any.
+ */
+public class SignallingMessage {
+
+	public enum Command {
+		PUBLISH(WebSocketConstants.PUBLISH_COMMAND),
+		TAKE_CONFIGURATION(WebSocketConstants.TAKE_CONFIGURATION_COMMAND),
+		TAKE_CANDIDATE(WebSocketConstants.TAKE_CANDIDATE_COMMAND),
+		STOP(WebSocketConstants.STOP_COMMAND),
+		PING(WebSocketConstants.PING_COMMAND),
+		/**
+		 * Command is specified but it's not handled by the community handler
+		 */
+		OTHER(null);
+
+		private static final Map<String, Command> commands = new HashMap<>();
+
+		static {
+			for (Command command : values()) {
+				if (command.name != null) {
+					commands.put(command.name, command);
+				}
+			}
+		}
+
+		private final String name;
+
+		private Command(String name) {
+			this.name = name;
+		}
+
+		public static Command of(String name) {
+			Command command = commands.get(name);
+			return command != null ? command : OTHER;
+		}
+	}
+
+	private String commandName;
+	private Command command;
+	private String streamId;
+	private String type;
+	private String sdp;
+	private String candidateId;
+	private String candidateSdp;
+	private Long candidateLabel;
+	private Map<String, Object> otherFields;
+
+	void setField(String key, Object value) {
+		switch (key) {
+		case WebSocketConstants.COMMAND:
+			if (value instanceof String) {
+				commandName = (String) value;
+				command = Command.of(commandName);
+			}
+			break;
+		case WebSocketConstants.STREAM_ID:
+			streamId = value instanceof String ? (String) value : null;
+			break;
+		case WebSocketConstants.TYPE:
+			type = value instanceof String ? (String) value : null;
+			break;
+		case WebSocketConstants.SDP:
+			sdp = value instanceof String ? (String) value : null;
+			break;
+		case WebSocketConstants.CANDIDATE_ID:
+			candidateId = value instanceof String ? (String) value : null;
+			break;
+		case WebSocketConstants.CANDIDATE_SDP:
+			candidateSdp = value instanceof String ? (String) value : null;
+			break;
+		case WebSocketConstants.CANDIDATE_LABEL:
+			candidateLabel = value instanceof Number ? ((Number) value).longValue() : null;
+			break;
+		default:
+			if (otherFields == null) {
+				otherFields = new HashMap<>();
+			}
+			otherFields.put(key, value);
+			break;
+		}
+	}
+
+	/**
+	 * @return command of the message or null if message does not have a command
+	 */
+	public Command getCommand() {
+		return command;
+	}
+
+	public String getCommandName() {
+		return commandName;
+	}
+
+	public String getStreamId() {
+		return streamId;
+	}
+
+	public String getType() {
+		return type;
+	}
+
+	public String getSdp() {
+		return sdp;
+	}
+
+	public String getCandidateId() {
+		return candidateId;
+	}
+
+	public String getCandidateSdp() {
+		return candidateSdp;
+	}
+
+	public Long getCandidateLabel() {
+		return candidateLabel;
+	}
+
+	/**
+	 * @param key name of a top level field that does not have a typed getter
+	 * @return value of the field. Nested objects and arrays are not decoded so they return null
+	 */
+	public Object get(String key) {
+		return otherFields != null ? otherFields.get(key) : null;
+	}
+}
@@ -13,7 +13,6 @@ import org.apache.commons.lang3.exception.ExceptionUtils;
 import org.bytedeco.javacpp.avcodec;
 import org.bytedeco.javacpp.avutil;
 import org.json.simple.JSONObject;
-import org.json.simple.parser.JSONParser;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.context.ApplicationContext;
@@ -21,18 +20,18 @@ import org.webrtc.IceCandidate;
 import org.webrtc.SessionDescription;
 import org.webrtc.SessionDescription.Type;
 
+import io.antmedia.AntMediaApplicationAdapter;
 import io.antmedia.AppSettings;
 import io.antmedia.StreamIdValidator;
 import io.antmedia.recorder.FFmpegFrameRecorder;
 import io.antmedia.recorder.FrameRecorder;
+import io.antmedia.webrtc.adaptor.MuxAdaptorRecorder;
 import io.antmedia.webrtc.adaptor.RTMPAdaptor;
 
 public abstract class WebSocketCommunityHandler {
 
 	private static Logger logger = LoggerFactory.getLogger(WebSocketCommunityHandler.class);
 
-	private JSONParser jsonParser = new JSONParser();
-
 	private AppSettings appSettings;
 	
 	@OnOpen
@@ -66,17 +65,17 @@ public abstract class WebSocketCommunityHandler {
 				return;
 			}
 			
-			JSONObject jsonObject = (JSONObject) jsonParser.parse(message);
+			SignallingMessage signallingMessage = SignallingCodec.decode(message);
 
-			String cmd = (String) jsonObject.get(WebSocketConstants.COMMAND);
+			SignallingMessage.Command cmd = signallingMessage.getCommand();
 			if (cmd == null) {
 				logger.error("Received message does not contain any command for session id: {}" , session.getId());
 				return;
 			}				
 
-			final String streamId = (String) jsonObject.get(WebSocketConstants.STREAM_ID);
+			final String streamId = signallingMessage.getStreamId();
 			if ((streamId == null || streamId.isEmpty())
-					&& !cmd.equals(WebSocketConstants.PING_COMMAND)) 
+					&& cmd != SignallingMessage.Command.PING) 
 			{
 				sendNoStreamIdSpecifiedError(session);
 				return;
@@ -87,45 +86,37 @@ public abstract class WebSocketCommunityHandler {
 				return;
 			}
 
-			if (cmd.equals(WebSocketConstants.PUBLISH_COMMAND)) 
-			{
+			RTMPAdaptor connectionContext;
+			switch (cmd) {
+			case PUBLISH:
 				//get scope and use its name
 				startRTMPAdaptor(session, streamId);
-			}
-			else if (cmd.equals(WebSocketConstants.TAKE_CONFIGURATION_COMMAND))  
-			{
-
-				RTMPAdaptor connectionContext = (RTMPAdaptor) session.getUserProperties().get(session.getId());
-				String typeString = (String)jsonObject.get(WebSocketConstants.TYPE);
-				String sdpDescription = (String)jsonObject.get(WebSocketConstants.SDP);
-				setRemoteDescription(connectionContext, typeString, sdpDescription, streamId);
-
-			}
-			else if (cmd.equals(WebSocketConstants.TAKE_CANDIDATE_COMMAND)) {
-
-				RTMPAdaptor connectionContext = (RTMPAdaptor) session.getUserProperties().get(session.getId());
-				String sdpMid = (String) jsonObject.get(WebSocketConstants.CANDIDATE_ID);
-				String sdp = (String) jsonObject.get(WebSocketConstants.CANDIDATE_SDP);
-				long sdpMLineIndex = (long)jsonObject.get(WebSocketConstants.CANDIDATE_LABEL);
-
-				addICECandidate(streamId, connectionContext, sdpMid, sdp, sdpMLineIndex);
-
-			}
-			else if (cmd.equals(WebSocketConstants.STOP_COMMAND)) {
-				RTMPAdaptor connectionContext = (RTMPAdaptor) session.getUserProperties().get(session.getId());
+				break;
+			case TAKE_CONFIGURATION:
+				connectionContext = (RTMPAdaptor) session.getUserProperties().get(session.getId());
+				setRemoteDescription(connectionContext, signallingMessage.getType(), signallingMessage.getSdp(), streamId);
+				break;
+			case TAKE_CANDIDATE:
+				connectionContext = (RTMPAdaptor) session.getUserProperties().get(session.getId());
+				long sdpMLineIndex = signallingMessage.getCandidateLabel();
+				addICECandidate(streamId, connectionContext, signallingMessage.getCandidateId(), signallingMessage.getCandidateSdp(), sdpMLineIndex);
+				break;
+			case STOP:
+				connectionContext = (RTMPAdaptor) session.getUserProperties().get(session.getId());
 				if (connectionContext != null) {
 					connectionContext.stop();
 				}
 				else {
 					logger.warn("Connection context is null for stop. Wrong message order for stream: {}", streamId);
-
 				}
-			}
-			else if (cmd.equals(WebSocketConstants.PING_COMMAND)) {
+				break;
+			case PING:
 				sendPongMessage(session);
+				break;
+			default:
+				break;
 			}
 
-
 		}
 		catch (Exception e) {
 			logger.error(ExceptionUtils.getStackTrace(e));
@@ -135,10 +126,17 @@ public abstract class WebSocketCommunityHandler {
 
 	private void startRTMPAdaptor(Session session, final String streamId) {
 
-		//get scope and use its name
-		String outputURL = "rtmp://127.0.0.1/WebRTCApp/" + streamId;
+		RTMPAdaptor connectionContext = null;
+		AntMediaApplicationAdapter appAdaptor = getAppAdaptor();
+		if (appAdaptor != null && appAdaptor.isWebRTCInProcessIngestEnabled()) {
+			connectionContext = getNewInProcessRTMPAdaptor(streamId, appAdaptor);
+		}
 
-		RTMPAdaptor connectionContext = getNewRTMPAdaptor(outputURL);
+		if (connectionContext == null) {
+			//get scope and use its name
+			String outputURL = "rtmp://127.0.0.1/WebRTCApp/" + streamId;
+			connectionContext = getNewRTMPAdaptor(outputURL);
+		}
 
 		session.getUserProperties().put(session.getId(), connectionContext);
 
@@ -155,6 +153,31 @@ public abstract class WebSocketCommunityHandler {
 		return new RTMPAdaptor(getNewRecorder(outputURL), this);
 	}
 
+	/**
+	 * Creates an adaptor whose packets are written directly to the mux adaptor of the application 
+	 * instead of sending them to the RTMP server over loopback
+	 * @return null if in process recorder cannot be started
+	 */
+	public RTMPAdaptor getNewInProcessRTMPAdaptor(String streamId, AntMediaApplicationAdapter appAdaptor) {
+		MuxAdaptorRecorder recorder = new MuxAdaptorRecorder(streamId, appAdaptor, 640, 480);
+		setRecorderSettings(recorder);
+		try {
+			recorder.start();
+		} catch (FrameRecorder.Exception e) {
+			logger.error("In process recorder cannot be started for stream: {} so RTMP is used. {}", streamId, ExceptionUtils.getStackTrace(e));
+			return null;
+		}
+		return new RTMPAdaptor(recorder, this);
+	}
+
+	public AntMediaApplicationAdapter getAppAdaptor() {
+		ApplicationContext appContext = getAppContext();
+		if (appContext != null && appContext.containsBean(AntMediaApplicationAdapter.BEAN_NAME)) {
+			return (AntMediaApplicationAdapter) appContext.getBean(AntMediaApplicationAdapter.BEAN_NAME);
+		}
+		return null;
+	}
+
 	public void addICECandidate(final String streamId, RTMPAdaptor connectionContext, String sdpMid, String sdp,
 			long sdpMLineIndex) {
 		if (connectionContext != null) {
@@ -257,6 +280,11 @@ public abstract class WebSocketCommunityHandler {
 
 	public static FFmpegFrameRecorder initRecorder(String outputURL, int width, int height) {
 		FFmpegFrameRecorder recorder = new FFmpegFrameRecorder(outputURL, width, height, 1);
+		setRecorderSettings(recorder);
+		return recorder;
+	}
+
+	public static void setRecorderSettings(FFmpegFrameRecorder recorder) {
 		recorder.setFormat("flv");
 		recorder.setSampleRate(44100);
 		// Set in the surface changed method
@@ -267,7 +295,6 @@ public abstract class WebSocketCommunityHandler {
 		recorder.setAudioChannels(2);
 		recorder.setGopSize(40);
 		recorder.setVideoQuality(29);
-		return recorder;
 	}
 
 	@SuppressWarnings("unchecked")
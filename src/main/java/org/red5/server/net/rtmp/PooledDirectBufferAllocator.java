@@ -0,0 +1,534 @@
+/*
+ * RED5 Open Source Media Server - https://github.com/Red5/
+ *
+ * Copyright 2006-2016 by respective authors (see below). All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.red5.server.net.rtmp;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.mina.core.buffer.AbstractIoBuffer;
+import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.buffer.IoBufferAllocator;
+import org.apache.mina.core.filterchain.IoFilterAdapter;
+import org.apache.mina.core.session.IoSession;
+import org.apache.mina.core.write.WriteRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Direct buffer allocator with size classes for the RTMP transport.
+ *
+ * Capacities are rounded up to a power of two starting from {@link #MIN_POOLED_CAPACITY}. Freed buffers are kept
+ * in a small cache of the thread that allocated them, then in a global pool bounded by total bytes. Buffers bigger
+ * than the largest class and heap buffers are not pooled.
+ * <br>
+ * Mina does not free the buffers it reads or writes, so the {@link BufferReleaseFilter} should be added to the filter
+ * chain to give them back after they are handled. A buffer which is not freed is collected by the GC as before; a sample
+ * of the allocations is tracked to report such buffers as leaks.
+ * <br>
+ * Derived buffers (duplicate, slice and read only views) share the memory of their parent, so they keep a reference to it.
+ * Memory is given back only after the parent and all of its derived buffers are freed. Memory of a derived buffer that is
+ * never freed is not reused, it's collected by the GC with the buffer.
+ *
+ * @author The Red5 Project
+ */
+public class PooledDirectBufferAllocator implements IoBufferAllocator {
+
+    private static final Logger log = LoggerFactory.getLogger(PooledDirectBufferAllocator.class);
+
+    public static final int MIN_POOLED_CAPACITY = 256;
+
+    private final int maxPooledCapacity;
+
+    private final long maxPoolBytes;
+
+    private final int threadCacheSize;
+
+    private final int leakSampleInterval;
+
+    private final int classCount;
+
+    private final ConcurrentLinkedQueue<ByteBuffer>[] globalPool;
+
+    private final AtomicLong pooledBytes = new AtomicLong();
+
+    private final ThreadLocal<ThreadCache> threadCache;
+
+    private final ReferenceQueue<PooledBuffer> leakQueue = new ReferenceQueue<>();
+
+    private final Set<LeakReference> trackedBuffers = ConcurrentHashMap.newKeySet();
+
+    private final AtomicLong allocationCount = new AtomicLong();
+
+    private final AtomicLong threadCacheHitCount = new AtomicLong();
+
+    private final AtomicLong globalPoolHitCount = new AtomicLong();
+
+    private final AtomicLong missCount = new AtomicLong();
+
+    private final AtomicLong unpooledCount = new AtomicLong();
+
+    private final AtomicLong releaseCount = new AtomicLong();
+
+    private final AtomicLong discardCount = new AtomicLong();
+
+    private final AtomicLong leakCount = new AtomicLong();
+
+    private final BufferReleaseFilter releaseFilter = new BufferReleaseFilter();
+
+    /**
+     * @param maxPooledCapacity buffers bigger than this are not pooled, it's rounded up to a power of two
+     * @param maxPoolBytes maximum total capacity of the buffers in the global pool
+     * @param threadCacheSize number of buffers kept for each size class in the cache of a thread
+     * @param leakSampleInterval one of this many allocations is tracked for leaks, 0 disables tracking
+     */
+    @SuppressWarnings("unchecked")
+    public PooledDirectBufferAllocator(int maxPooledCapacity, long maxPoolBytes, int threadCacheSize, int leakSampleInterval) {
+        this.maxPooledCapacity = normalizeCapacity(Math.max(maxPooledCapacity, MIN_POOLED_CAPACITY));
+        this.maxPoolBytes = maxPoolBytes;
+        this.threadCacheSize = threadCacheSize;
+        this.leakSampleInterval = leakSampleInterval;
+        classCount = sizeClass(this.maxPooledCapacity) + 1;
+        globalPool = new ConcurrentLinkedQueue[classCount];
+        for (int i = 0; i < classCount; i++) {
+            globalPool[i] = new ConcurrentLinkedQueue<>();
+        }
+        threadCache = ThreadLocal.withInitial(() -> new ThreadCache(classCount));
+    }
+
+    public PooledDirectBufferAllocator() {
+        this(65536, 32 * 1024 * 1024, 8, 128);
+    }
+
+    /**
+     * Buffers freed by the thread that allocated them
+     */
+    private static class ThreadCache {
+        private final ArrayDeque<ByteBuffer>[] buffers;
+
+        @SuppressWarnings("unchecked")
+        private ThreadCache(int classCount) {
+            buffers = new ArrayDeque[classCount];
+            for (int i = 0; i < classCount; i++) {
+                buffers[i] = new ArrayDeque<>();
+            }
+        }
+    }
+
+    private static class LeakReference extends WeakReference<PooledBuffer> {
+        private final int capacity;
+
+        private LeakReference(PooledBuffer referent, ReferenceQueue<PooledBuffer> queue) {
+            super(referent, queue);
+            this.capacity = referent.capacity();
+        }
+    }
+
+    private static int normalizeCapacity(int capacity) {
+        if (capacity <= MIN_POOLED_CAPACITY) {
+            return MIN_POOLED_CAPACITY;
+        }
+        return Integer.highestOneBit(capacity - 1) << 1;
+    }
+
+    private static int sizeClass(int normalizedCapacity) {
+        return Integer.numberOfTrailingZeros(normalizedCapacity) - Integer.numberOfTrailingZeros(MIN_POOLED_CAPACITY);
+    }
+
+    /** {@inheritDoc} */
+    public IoBuffer allocate(int capacity, boolean direct) {
+        allocationCount.incrementAndGet();
+        if (!direct || capacity > maxPooledCapacity) {
+            unpooledCount.incrementAndGet();
+            ByteBuffer nioBuffer = direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+            return new PooledBuffer(nioBuffer, false);
+        }
+        ByteBuffer nioBuffer = take(capacity);
+        nioBuffer.limit(capacity);
+        PooledBuffer buffer = new PooledBuffer(nioBuffer, true);
+        trackLeak(buffer);
+        return buffer;
+    }
+
+    /** {@inheritDoc} */
+    public ByteBuffer allocateNioBuffer(int capacity, boolean direct) {
+        // used when a buffer expands, new nio buffer replaces the old one in the same IoBuffer
+        if (!direct || capacity > maxPooledCapacity) {
+            unpooledCount.incrementAndGet();
+            return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+        }
+        return take(capacity);
+    }
+
+    /** {@inheritDoc} */
+    public IoBuffer wrap(ByteBuffer nioBuffer) {
+        // wrapped buffers are owned by the caller
+        return new PooledBuffer(nioBuffer, false);
+    }
+
+    /** {@inheritDoc} */
+    public void dispose() {
+        for (ConcurrentLinkedQueue<ByteBuffer> pool : globalPool) {
+            pool.clear();
+        }
+        pooledBytes.set(0);
+        trackedBuffers.clear();
+    }
+
+    private ByteBuffer take(int capacity) {
+        int normalizedCapacity = normalizeCapacity(capacity);
+        int sizeClass = sizeClass(normalizedCapacity);
+        ByteBuffer nioBuffer = threadCache.get().buffers[sizeClass].pollFirst();
+        if (nioBuffer != null) {
+            threadCacheHitCount.incrementAndGet();
+        } else {
+            nioBuffer = globalPool[sizeClass].poll();
+            if (nioBuffer != null) {
+                pooledBytes.addAndGet(-normalizedCapacity);
+                globalPoolHitCount.incrementAndGet();
+            } else {
+                missCount.incrementAndGet();
+                nioBuffer = ByteBuffer.allocateDirect(normalizedCapacity);
+            }
+        }
+        nioBuffer.clear();
+        nioBuffer.order(ByteOrder.BIG_ENDIAN);
+        return nioBuffer;
+    }
+
+    private void release(ByteBuffer nioBuffer, Thread ownerThread) {
+        int capacity = nioBuffer.capacity();
+        if (!nioBuffer.isDirect() || nioBuffer.isReadOnly() || capacity > maxPooledCapacity || capacity != normalizeCapacity(capacity)) {
+            return;
+        }
+        releaseCount.incrementAndGet();
+        int sizeClass = sizeClass(capacity);
+        if (Thread.currentThread() == ownerThread) {
+            ArrayDeque<ByteBuffer> cache = threadCache.get().buffers[sizeClass];
+            if (cache.size() < threadCacheSize) {
+                cache.offerFirst(nioBuffer);
+                return;
+            }
+        }
+        if (pooledBytes.addAndGet(capacity) <= maxPoolBytes) {
+            globalPool[sizeClass].offer(nioBuffer);
+        } else {
+            pooledBytes.addAndGet(-capacity);
+            discardCount.incrementAndGet();
+        }
+    }
+
+    private void trackLeak(PooledBuffer buffer) {
+        if (leakSampleInterval <= 0) {
+            return;
+        }
+        LeakReference leaked;
+        while ((leaked = (LeakReference) leakQueue.poll()) != null) {
+            if (trackedBuffers.remove(leaked)) {
+                long count = leakCount.incrementAndGet();
+                if (count == 1 || count % 1000 == 0) {
+                    log.warn("Pooled buffer of {} bytes is collected without being freed, leaked buffer count: {}", leaked.capacity, count);
+                }
+            }
+        }
+        if (allocationCount.get() % leakSampleInterval == 0) {
+            buffer.leakReference = new LeakReference(buffer, leakQueue);
+            trackedBuffers.add(buffer.leakReference);
+        }
+    }
+
+    /**
+     * Returns a filter that frees the buffers read from and written to the socket after they are handled. Buffers are freed
+     * on the next event of the I/O thread because Mina still uses a written buffer when the sent event returns.
+     *
+     * @return release filter for this allocator
+     */
+    public BufferReleaseFilter getReleaseFilter() {
+        return releaseFilter;
+    }
+
+    private static class ReleaseState {
+        private final List<IoBuffer> pending = new ArrayList<>();
+        private int depth;
+    }
+
+    public class BufferReleaseFilter extends IoFilterAdapter {
+
+        private final ThreadLocal<ReleaseState> releaseState = ThreadLocal.withInitial(ReleaseState::new);
+
+        /** {@inheritDoc} */
+        @Override
+        public void messageReceived(NextFilter nextFilter, IoSession session, Object message) throws Exception {
+            ReleaseState state = enter();
+            try {
+                nextFilter.messageReceived(session, message);
+            } finally {
+                state.depth--;
+            }
+            addPending(state, message);
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public void messageSent(NextFilter nextFilter, IoSession session, WriteRequest writeRequest) throws Exception {
+            ReleaseState state = enter();
+            try {
+                nextFilter.messageSent(session, writeRequest);
+            } finally {
+                state.depth--;
+            }
+            addPending(state, writeRequest.getMessage());
+        }
+
+        private ReleaseState enter() {
+            ReleaseState state = releaseState.get();
+            if (state.depth == 0 && !state.pending.isEmpty()) {
+                // buffers of the previous events are not used by mina anymore
+                for (IoBuffer buffer : state.pending) {
+                    buffer.free();
+                }
+                state.pending.clear();
+            }
+            state.depth++;
+            return state;
+        }
+
+        private void addPending(ReleaseState state, Object message) {
+            // derived buffers may still be used by their creator, they are freed by it
+            if (message instanceof PooledBuffer && ((PooledBuffer) message).pooled && ((PooledBuffer) message).root == message) {
+                state.pending.add((IoBuffer) message);
+            }
+        }
+    }
+
+    /**
+     * Returns the total count of the buffer allocations.
+     *
+     * @return allocation count
+     */
+    public long getAllocationCount() {
+        return allocationCount.get();
+    }
+
+    /**
+     * Returns the count of the allocations served from a thread cache or the global pool.
+     *
+     * @return hit count
+     */
+    public long getHitCount() {
+        return threadCacheHitCount.get() + globalPoolHitCount.get();
+    }
+
+    public long getThreadCacheHitCount() {
+        return threadCacheHitCount.get();
+    }
+
+    public long getGlobalPoolHitCount() {
+        return globalPoolHitCount.get();
+    }
+
+    /**
+     * Returns the count of the new direct buffers allocated for a pooled size class.
+     *
+     * @return miss count
+     */
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * Returns the count of the heap and oversized allocations which are not pooled.
+     *
+     * @return unpooled allocation count
+     */
+    public long getUnpooledCount() {
+        return unpooledCount.get();
+    }
+
+    public long getReleaseCount() {
+        return releaseCount.get();
+    }
+
+    /**
+     * Returns the count of the freed buffers dropped because the global pool is full.
+     *
+     * @return discard count
+     */
+    public long getDiscardCount() {
+        return discardCount.get();
+    }
+
+    /**
+     * Returns the count of the tracked buffers collected without being freed.
+     *
+     * @return leak count
+     */
+    public long getLeakCount() {
+        return leakCount.get();
+    }
+
+    /**
+     * Returns the total capacity of the buffers in the global pool.
+     *
+     * @return pooled bytes
+     */
+    public long getPooledBytes() {
+        return pooledBytes.get();
+    }
+
+    private class PooledBuffer extends AbstractIoBuffer {
+
+        private final Thread ownerThread;
+
+        /**
+         * true if the nio buffer is taken from the pool and it can be given back
+         */
+        private final boolean pooled;
+
+        /**
+         * Buffer that owns the memory, it's this buffer if it's not derived
+         */
+        private final PooledBuffer root;
+
+        /**
+         * Count of the buffers which use the memory of the root and are not freed yet, including the root itself.
+         * It's used only in the root
+         */
+        private final AtomicInteger referenceCount;
+
+        /**
+         * Memory of the root which is given back to the pool when the reference count drops to zero
+         */
+        private ByteBuffer memory;
+
+        private ByteBuffer buf;
+
+        private LeakReference leakReference;
+
+        protected PooledBuffer(ByteBuffer buf, boolean pooled) {
+            super(PooledDirectBufferAllocator.this, buf.capacity());
+            this.ownerThread = Thread.currentThread();
+            this.pooled = pooled;
+            this.root = this;
+            this.referenceCount = new AtomicInteger(1);
+            this.memory = buf;
+            this.buf = buf;
+            buf.order(ByteOrder.BIG_ENDIAN);
+        }
+
+        protected PooledBuffer(PooledBuffer parent, ByteBuffer buf) {
+            super(parent);
+            this.ownerThread = Thread.currentThread();
+            // derived buffers share the memory of the parent and keep it from going back to the pool
+            this.pooled = parent.pooled;
+            this.root = parent.root;
+            this.referenceCount = null;
+            this.buf = buf;
+            root.referenceCount.incrementAndGet();
+        }
+
+        @Override
+        public ByteBuffer buf() {
+            ByteBuffer nioBuffer = buf;
+            if (nioBuffer == null) {
+                throw new IllegalStateException("Buffer has been freed already.");
+            }
+            return nioBuffer;
+        }
+
+        @Override
+        protected void buf(ByteBuffer newBuf) {
+            ByteBuffer oldBuf = this.buf;
+            this.buf = newBuf;
+            if (pooled && oldBuf != null && root == this) {
+                // buffer is expanded
+                memory = newBuf;
+                if (referenceCount.get() == 1) {
+                    release(oldBuf, ownerThread);
+                }
+                // otherwise derived buffers still use the old memory, it's left to the GC
+            }
+        }
+
+        @Override
+        protected IoBuffer duplicate0() {
+            return new PooledBuffer(this, buf().duplicate());
+        }
+
+        @Override
+        protected IoBuffer slice0() {
+            return new PooledBuffer(this, buf().slice());
+        }
+
+        @Override
+        protected IoBuffer asReadOnlyBuffer0() {
+            return new PooledBuffer(this, buf().asReadOnlyBuffer());
+        }
+
+        @Override
+        public byte[] array() {
+            return buf().array();
+        }
+
+        @Override
+        public int arrayOffset() {
+            return buf().arrayOffset();
+        }
+
+        @Override
+        public boolean hasArray() {
+            return buf().hasArray();
+        }
+
+        @Override
+        public void free() {
+            if (!pooled) {
+                // same as the simple allocator, buffer stays usable
+                return;
+            }
+            synchronized (this) {
+                if (buf == null) {
+                    return;
+                }
+                buf = null;
+            }
+            if (leakReference != null) {
+                trackedBuffers.remove(leakReference);
+                leakReference.clear();
+            }
+            root.releaseReference();
+        }
+
+        private void releaseReference() {
+            if (referenceCount.decrementAndGet() == 0) {
+                release(memory, ownerThread);
+            }
+        }
+    }
+
+}
@@ -22,19 +22,24 @@ import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Iterator;
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.management.JMX;
 import javax.management.ObjectName;
+import javax.management.StandardMBean;
 
 import org.apache.mina.core.session.IoSession;
 import org.red5.server.api.Red5;
 import org.red5.server.api.scope.IBasicScope;
+import org.red5.server.jmx.mxbeans.RTMPConnManagerMXBean;
 import org.red5.server.jmx.mxbeans.RTMPMinaTransportMXBean;
 import org.red5.server.net.IConnectionManager;
 import org.red5.server.net.rtmp.codec.RTMP;
@@ -53,7 +58,7 @@ import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
  * 
  * @author The Red5 Project
  */
-public class RTMPConnManager implements IConnectionManager<RTMPConnection>, ApplicationContextAware, DisposableBean {
+public class RTMPConnManager implements IConnectionManager<RTMPConnection>, RTMPConnManagerMXBean, ApplicationContextAware, DisposableBean {
 
     private static final Logger log = LoggerFactory.getLogger(RTMPConnManager.class);
 
@@ -69,92 +74,210 @@ public class RTMPConnManager implements IConnectionManager<RTMPConnection>, Appl
 
     protected boolean debug;
 
+    /**
+     * Connections by client id
+     */
+    protected ConcurrentMap<Integer, RTMPConnection> connIdMap = new ConcurrentHashMap<Integer, RTMPConnection>();
+
+    /**
+     * Reaper tick in milliseconds
+     */
+    protected static final long TICK_MS = 1000;
+
+    /**
+     * Connections are put into the slot of the tick their inactivity deadline is in. A slot is used again after a full turn,
+     * so entries keep their deadline tick and stay in the slot until it comes.
+     */
+    @SuppressWarnings("unchecked")
+    private final ConcurrentLinkedQueue<ReaperEntry>[] wheel = new ConcurrentLinkedQueue[512];
+
+    private long lastReapedTick = -1;
+
+    private final AtomicInteger trackedConnections = new AtomicInteger();
+
+    private final AtomicLong checkedConnections = new AtomicLong();
+
+    private final AtomicLong inactiveConnections = new AtomicLong();
+
+    private final AtomicLong ghostConnections = new AtomicLong();
+
+    private volatile long lastReapTimeNanos;
+
+    private ObjectName mbeanObjectName;
+
+    private static class ReaperEntry {
+        private final String sessionId;
+
+        private final long deadlineTick;
+
+        private ReaperEntry(String sessionId, long deadlineTick) {
+            this.sessionId = sessionId;
+            this.deadlineTick = deadlineTick;
+        }
+    }
+
     {
-        // create a scheduled job to check for dead or hung connections
+        for (int i = 0; i < wheel.length; i++) {
+            wheel[i] = new ConcurrentLinkedQueue<ReaperEntry>();
+        }
+        // create a scheduled job to check the connections whose inactivity deadline has come
         executor.scheduleAtFixedRate(new Runnable() {
             public void run() {
-                // count the connections that need closing
-                int closedConnections = 0;
-                // get all the current connections
-                Collection<RTMPConnection> allConns = getAllConnections();
-                log.debug("Checking {} connections", allConns.size());
-                for (RTMPConnection conn : allConns) {
-                    if (log.isTraceEnabled()) {
-                        log.trace("{} session: {} state: {} keep-alive running: {}", new Object[] { conn.getClass().getSimpleName(), conn.getSessionId(), RTMP.states[conn.getStateCode()], conn.running });
-                        log.trace("Decoder lock - permits: {} queue length: {}", conn.decoderLock.availablePermits(), conn.decoderLock.getQueueLength());
-                        log.trace("Encoder lock - permits: {} queue length: {}", conn.encoderLock.availablePermits(), conn.encoderLock.getQueueLength());
-                        log.trace("Client streams: {} used: {}", conn.getStreams().size(), conn.getUsedStreamCount());
-                        if (!conn.getAttributes().isEmpty()) {
-                            log.trace("Attributes: {}", conn.getAttributes());
+                try {
+                    reap(System.currentTimeMillis());
+                } catch (Exception e) {
+                    log.warn("Exception checking connections", e);
+                }
+            }
+        }, TICK_MS, TICK_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Adds the connection to the reaper to be checked at the deadline.
+     * 
+     * @param sessionId
+     *            session id of the connection
+     * @param deadline
+     *            time in milliseconds
+     */
+    private void schedule(String sessionId, long deadline) {
+        // tick is rounded up so that slot is processed after the deadline
+        long deadlineTick = (deadline + TICK_MS - 1) / TICK_MS;
+        wheel[(int) (deadlineTick % wheel.length)].add(new ReaperEntry(sessionId, deadlineTick));
+    }
+
+    /**
+     * Checks the connections whose deadline is in the ticks passed since the last call.
+     * 
+     * @param now
+     *            current time in milliseconds
+     * @return number of connections checked
+     */
+    int reap(long now) {
+        long startTime = System.nanoTime();
+        long currentTick = now / TICK_MS;
+        int checked = 0;
+        synchronized (wheel) {
+            long firstTick = lastReapedTick == -1 ? currentTick : lastReapedTick + 1;
+            // a full turn processes every slot once
+            firstTick = Math.max(firstTick, currentTick - wheel.length + 1);
+            for (long tick = firstTick; tick <= currentTick; tick++) {
+                checked += reapSlot(wheel[(int) (tick % wheel.length)], currentTick, now);
+            }
+            lastReapedTick = Math.max(lastReapedTick, currentTick);
+        }
+        if (checked > 0) {
+            checkedConnections.addAndGet(checked);
+            log.debug("Checked {} connections", checked);
+        }
+        lastReapTimeNanos = System.nanoTime() - startTime;
+        return checked;
+    }
+
+    private int reapSlot(ConcurrentLinkedQueue<ReaperEntry> slot, long currentTick, long now) {
+        // take the entries first because entries may be scheduled into the same slot again
+        List<ReaperEntry> entries = new ArrayList<ReaperEntry>();
+        ReaperEntry entry;
+        while ((entry = slot.poll()) != null) {
+            entries.add(entry);
+        }
+        int checked = 0;
+        for (ReaperEntry item : entries) {
+            if (item.deadlineTick > currentTick) {
+                // deadline is in a later turn
+                slot.add(item);
+                continue;
+            }
+            RTMPConnection conn = connMap.get(item.sessionId);
+            if (conn == null) {
+                // already removed
+                trackedConnections.decrementAndGet();
+                continue;
+            }
+            checked++;
+            long deadline = checkConnection(conn, now);
+            if (deadline == -1) {
+                trackedConnections.decrementAndGet();
+            } else {
+                schedule(item.sessionId, deadline);
+            }
+        }
+        return checked;
+    }
+
+    /**
+     * Closes the connection if it has exceeded the max inactivity and removes it if it's disconnected.
+     * 
+     * @param conn
+     *            connection
+     * @param now
+     *            current time in milliseconds
+     * @return next time to check the connection or -1 if it is not tracked anymore
+     */
+    private long checkConnection(RTMPConnection conn, long now) {
+        if (log.isTraceEnabled()) {
+            log.trace("{} session: {} state: {} keep-alive running: {}", new Object[] { conn.getClass().getSimpleName(), conn.getSessionId(), RTMP.states[conn.getStateCode()], conn.running });
+            log.trace("Decoder lock - permits: {} queue length: {}", conn.decoderLock.availablePermits(), conn.decoderLock.getQueueLength());
+            log.trace("Encoder lock - permits: {} queue length: {}", conn.encoderLock.availablePermits(), conn.encoderLock.getQueueLength());
+            log.trace("Client streams: {} used: {}", conn.getStreams().size(), conn.getUsedStreamCount());
+            if (!conn.getAttributes().isEmpty()) {
+                log.trace("Attributes: {}", conn.getAttributes());
+            }
+            Iterator<IBasicScope> scopes = conn.getBasicScopes();
+            while (scopes.hasNext()) {
+                IBasicScope scope = scopes.next();
+                log.trace("Scope: {}", scope);
+            }
+        }
+        String sessionId = conn.getSessionId();
+        RTMP rtmp = conn.getState();
+        switch (rtmp.getState()) {
+            case RTMP.STATE_DISCONNECTED:
+            case RTMP.STATE_DISCONNECTING:
+                // ghost connection, it's not removed when it's closed
+                ghostConnections.incrementAndGet();
+                removeConnection(sessionId);
+                return -1;
+            default:
+                long lastIoTime = now;
+                IoSession session = conn.getIoSession();
+                if (conn instanceof RTMPMinaConnection) {
+                    if (session != null) {
+                        lastIoTime = session.getLastIoTime();
+                        if (log.isTraceEnabled()) {
+                            log.trace("Session - write queue: {} session count: {}", session.getWriteRequestQueue().size(), session.getService().getManagedSessionCount());
                         }
-                        Iterator<IBasicScope> scopes = conn.getBasicScopes();
-                        while (scopes.hasNext()) {
-                            IBasicScope scope = scopes.next();
-                            log.trace("Scope: {}", scope);
+                    }
+                } else if (conn instanceof RTMPTConnection) {
+                    lastIoTime = ((RTMPTConnection) conn).getLastDataReceived();
+                }
+                long ioTime = now - lastIoTime;
+                if (log.isDebugEnabled()) {
+                    log.debug("Session last io time: {} ms", ioTime);
+                }
+                // if exceeds max inactivity kill and clean up
+                if (ioTime >= conn.maxInactivity) {
+                    log.warn("Connection {} has exceeded the max inactivity threshold of {} ms", sessionId, conn.maxInactivity);
+                    if (session != null) {
+                        if (log.isDebugEnabled()) {
+                            log.debug("Prepared to clear write queue, if session is connected: {}; closing? {}", session.isConnected(), session.isClosing());
+                        }
+                        if (session.isConnected()) {
+                            // clear the write queue
+                            session.getWriteRequestQueue().clear(session);
                         }
                     }
-                    String sessionId = conn.getSessionId();
-                    RTMP rtmp = conn.getState();
-                    switch (rtmp.getState()) {
-                        case RTMP.STATE_DISCONNECTED:
-                        case RTMP.STATE_DISCONNECTING:
-                            removeConnection(sessionId);
-                            break;
-                        default:
-                            // XXX implement as a task and fix logic
-                            // ghost clean up 
-//                            if (max time allowed for no response from client exceeded, ping)
-//                                // Ping client
-//                                conn.ping();
-//                                // FIXME: getLastPingTime doesn't get updated right after ping
-//                                // wait x time for lastPingTime and if exceeded, disconnect
-//                                if (conn.getLastPingTime() > clientTTL * 1000) {
-//                                    log.info("TTL exceeded, disconnecting {}", conn);
-//                                    conn.close();
-//                                }
-//                            }
-                            long ioTime = 0L;
-                            IoSession session = conn.getIoSession();
-                            if (conn instanceof RTMPMinaConnection) {
-                                // get io time
-                                ioTime = System.currentTimeMillis() - session.getLastIoTime();
-                                if (log.isTraceEnabled()) {
-                                    log.trace("Session - write queue: {} session count: {}", session.getWriteRequestQueue().size(), session.getService().getManagedSessionCount());
-                                }
-                            } else if (conn instanceof RTMPTConnection) {
-                                ioTime = System.currentTimeMillis() - ((RTMPTConnection) conn).getLastDataReceived();
-                            }
-                            if (log.isDebugEnabled()) {
-                                log.debug("Session last io time: {} ms", ioTime);
-                            }
-                            // if exceeds max inactivity kill and clean up
-                            if (ioTime >= conn.maxInactivity) {
-                                log.warn("Connection {} has exceeded the max inactivity threshold of {} ms", conn.getSessionId(), conn.maxInactivity);
-                                if (session != null) {
-                                    if (log.isDebugEnabled()) {
-                                        log.debug("Prepared to clear write queue, if session is connected: {}; closing? {}", session.isConnected(), session.isClosing());
-                                    }
-                                    if (session.isConnected()) {
-                                        // clear the write queue
-                                        session.getWriteRequestQueue().clear(session);
-                                    }
-                                }
-                                // call onInactive on the connection, this should cleanly close everything out
-                                conn.onInactive();
-                                if (!conn.isClosed()) {
-                                    log.debug("Connection {} is not closed", conn.getSessionId());
-                                } else {
-                                    closedConnections++;
-                                }
-                            }
+                    // call onInactive on the connection, this should cleanly close everything out
+                    conn.onInactive();
+                    inactiveConnections.incrementAndGet();
+                    if (!conn.isClosed()) {
+                        log.debug("Connection {} is not closed", sessionId);
                     }
+                    // check again, it is removed then if it's disconnected
+                    return now + Math.max(conn.maxInactivity, TICK_MS);
                 }
-                // if there is more than one connection that needed to be closed, request a GC to clean up memory.
-                if (closedConnections > 0) {
-                    System.gc();
-                }
-            }
-        }, 7000, 30000, TimeUnit.MILLISECONDS);
+                return Math.max(lastIoTime + conn.maxInactivity, now + TICK_MS);
+        }
     }
 
     public static IConnectionManager<RTMPConnection> getInstance() {
@@ -181,6 +304,9 @@ public class RTMPConnManager implements IConnectionManager<RTMPConnection>, Appl
                 // add to local map
                 connMap.put(conn.getSessionId(), conn);
                 log.trace("Connections: {}", conns.incrementAndGet());
+                // check the connection when it may exceed the max inactivity
+                trackedConnections.incrementAndGet();
+                schedule(conn.getSessionId(), System.currentTimeMillis() + Math.max(conn.maxInactivity, TICK_MS));
                 // set the scheduler
                 if (applicationContext.containsBean("rtmpScheduler") && conn.getScheduler() == null) {
                     conn.setScheduler((ThreadPoolTaskScheduler) applicationContext.getBean("rtmpScheduler"));
@@ -212,6 +338,9 @@ public class RTMPConnManager implements IConnectionManager<RTMPConnection>, Appl
             id = conn.getSessionId().hashCode();
         }
         log.debug("Connection id: {} session id hash: {}", conn.getId(), conn.getSessionId().hashCode());
+        if (conn.getId() != -1) {
+            connIdMap.put(conn.getId(), conn);
+        }
         if (debug) {
             log.info("Connection count (map): {}", connMap.size());
             try {
@@ -234,10 +363,9 @@ public class RTMPConnManager implements IConnectionManager<RTMPConnection>, Appl
      */
     public RTMPConnection getConnection(int clientId) {
         log.trace("Getting connection by client id: {}", clientId);
-        for (RTMPConnection conn : connMap.values()) {
-            if (conn.getId() == clientId) {
-                return connMap.get(conn.getSessionId());
-            }
+        RTMPConnection conn = connIdMap.get(clientId);
+        if (conn != null && conn.getId() == clientId) {
+            return connMap.get(conn.getSessionId());
         }
         return null;
     }
@@ -264,11 +392,10 @@ public class RTMPConnManager implements IConnectionManager<RTMPConnection>, Appl
     public RTMPConnection removeConnection(int clientId) {
         log.trace("Removing connection with id: {}", clientId);
         // remove from map
-        for (RTMPConnection conn : connMap.values()) {
-            if (conn.getId() == clientId) {
-                // remove the conn
-                return removeConnection(conn.getSessionId());
-            }
+        RTMPConnection conn = connIdMap.get(clientId);
+        if (conn != null && conn.getId() == clientId) {
+            // remove the conn
+            return removeConnection(conn.getSessionId());
         }
         log.warn("Connection was not removed by id: {}", clientId);
         return null;
@@ -283,6 +410,7 @@ public class RTMPConnManager implements IConnectionManager<RTMPConnection>, Appl
         // remove from map
         RTMPConnection conn = connMap.remove(sessionId);
         if (conn != null) {
+            connIdMap.remove(conn.getId(), conn);
             log.trace("Connections: {}", conns.decrementAndGet());
             Red5.setConnectionLocal(null);
         }
@@ -301,6 +429,7 @@ public class RTMPConnManager implements IConnectionManager<RTMPConnection>, Appl
         ArrayList<RTMPConnection> list = new ArrayList<RTMPConnection>(connMap.size());
         list.addAll(connMap.values());
         connMap.clear();
+        connIdMap.clear();
         conns.set(0);
         return list;
     }
@@ -334,12 +463,72 @@ public class RTMPConnManager implements IConnectionManager<RTMPConnection>, Appl
         this.debug = debug;
     }
 
+    public int getConnectionCount() {
+        return connMap.size();
+    }
+
+    /**
+     * Returns the number of connections waiting in the reaper.
+     * 
+     * @return tracked connection count
+     */
+    public int getTrackedConnectionCount() {
+        return trackedConnections.get();
+    }
+
+    /**
+     * Returns the number of connections checked at their deadline.
+     * 
+     * @return checked connection count
+     */
+    public long getCheckedConnectionCount() {
+        return checkedConnections.get();
+    }
+
+    /**
+     * Returns the number of connections closed for exceeding the max inactivity.
+     * 
+     * @return inactive connection count
+     */
+    public long getInactiveConnectionCount() {
+        return inactiveConnections.get();
+    }
+
+    /**
+     * Returns the number of disconnected connections removed by the reaper.
+     * 
+     * @return ghost connection count
+     */
+    public long getGhostConnectionCount() {
+        return ghostConnections.get();
+    }
+
+    public long getLastReapTimeNanos() {
+        return lastReapTimeNanos;
+    }
+
     public void setApplicationContext(ApplicationContext applicationContext) throws BeansException {
         RTMPConnManager.applicationContext = applicationContext;
+        if (mbeanObjectName == null) {
+            try {
+                mbeanObjectName = new ObjectName("org.red5.server:type=RTMPConnManager");
+                ManagementFactory.getPlatformMBeanServer().registerMBean(new StandardMBean(this, RTMPConnManagerMXBean.class, true), mbeanObjectName);
+            } catch (Exception e) {
+                log.warn("Error on jmx registration", e);
+                mbeanObjectName = null;
+            }
+        }
     }
 
     public void destroy() throws Exception {
         executor.shutdownNow();
+        if (mbeanObjectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanObjectName);
+            } catch (Exception e) {
+                log.warn("Error on jmx unregistration", e);
+            }
+        }
     }
 
 }
@@ -20,6 +20,7 @@ package org.red5.server.net.rtmp;
 
 import java.lang.management.ManagementFactory;
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -44,7 +45,7 @@ import org.apache.mina.transport.socket.SocketSessionConfig;
 import org.apache.mina.transport.socket.nio.NioProcessor;
 import org.apache.mina.transport.socket.nio.NioSession;
 import org.apache.mina.transport.socket.nio.NioSocketAcceptor;
-import org.red5.server.jmx.mxbeans.RTMPMinaTransportMXBean;
+import org.red5.server.jmx.mxbeans.RTMPMinaTransportBufferPoolMXBean;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -57,7 +58,7 @@ import org.slf4j.LoggerFactory;
  * @author Luke Hubbard
  * @author Paul Gregoire
  */
-public class RTMPMinaTransport implements RTMPMinaTransportMXBean {
+public class RTMPMinaTransport implements RTMPMinaTransportBufferPoolMXBean {
 
     private static final Logger log = LoggerFactory.getLogger(RTMPMinaTransport.class);
 
@@ -66,6 +67,12 @@ public class RTMPMinaTransport implements RTMPMinaTransportMXBean {
 
     protected SocketAcceptor acceptor;
 
+    // all acceptors, more than one when sharded acceptors listen on the same port
+    protected List<SocketAcceptor> acceptors = new ArrayList<SocketAcceptor>();
+
+    // number of accept loops, sharding is disabled when it's less than 2
+    protected int acceptorShards;
+
     protected Set<String> addresses = new HashSet<String>();
 
     protected IoHandlerAdapter ioHandler;
@@ -89,6 +96,19 @@ public class RTMPMinaTransport implements RTMPMinaTransportMXBean {
 
     protected boolean useHeapBuffers = true;
 
+    // pooled direct buffers, takes precedence over useHeapBuffers
+    protected boolean useBufferPool;
+
+    protected int bufferPoolMaxCapacity = 65536;
+
+    protected long bufferPoolMaxBytes = 32 * 1024 * 1024;
+
+    protected int bufferPoolThreadCacheSize = 8;
+
+    protected int bufferPoolLeakSampleInterval = 128;
+
+    protected PooledDirectBufferAllocator bufferAllocator;
+
     protected int sendBufferSize = 65536;
 
     protected int receiveBufferSize = 65536;
@@ -123,27 +143,109 @@ public class RTMPMinaTransport implements RTMPMinaTransportMXBean {
 
     public void start() throws Exception {
         initIOHandler();
-        IoBuffer.setUseDirectBuffer(!useHeapBuffers); // this is global, oh well
-        if (useHeapBuffers) {
-            // dont pool for heap buffers
-            IoBuffer.setAllocator(new SimpleBufferAllocator());
+        if (useBufferPool) {
+            // size classed direct buffers, freed buffers are reused instead of allocating a new one for each chunk
+            bufferAllocator = new PooledDirectBufferAllocator(bufferPoolMaxCapacity, bufferPoolMaxBytes, bufferPoolThreadCacheSize, bufferPoolLeakSampleInterval);
+            IoBuffer.setUseDirectBuffer(true); // this is global, oh well
+            // also global, buffers of other users are safe because memory is reused only after the buffer and its views are freed
+            IoBuffer.setAllocator(bufferAllocator);
+        } else {
+            IoBuffer.setUseDirectBuffer(!useHeapBuffers); // this is global, oh well
+            if (useHeapBuffers) {
+                // dont pool for heap buffers
+                IoBuffer.setAllocator(new SimpleBufferAllocator());
+            }
         }
-        log.info("RTMP Mina Transport Settings\nAcceptor style: {} I/O threads: {}\nTCP no-delay: {} keep-alive: {}", new Object[] { (enableDefaultAcceptor ? "default" : "blocking-queue"), ioThreads, tcpNoDelay, keepAlive });
-        // use the defaults
-        if (enableDefaultAcceptor) {
+        log.info("RTMP Mina Transport Settings\nAcceptor style: {} I/O threads: {}\nTCP no-delay: {} keep-alive: {} buffers: {}", new Object[] { (acceptorShards > 1 ? "sharded" : (enableDefaultAcceptor ? "default" : "blocking-queue")), ioThreads, tcpNoDelay, keepAlive, (useBufferPool ? "pooled" : (useHeapBuffers ? "heap" : "direct")) });
+        if (acceptorShards > 1) {
+            createShardedAcceptors();
+        } else if (enableDefaultAcceptor) {
+            // use the defaults
             //constructs an acceptor using default parameters, and given number of NioProcessor for multithreading I/O operations.
-            acceptor = new NioSocketAcceptor(ioThreads);
+            acceptors.add(new NioSocketAcceptor(ioThreads));
         } else {
             // simple pool for i/o processors
             SimpleIoProcessorPool<NioSession> pool = new SimpleIoProcessorPool<NioSession>(NioProcessor.class, maxProcessorPoolSize);
             // executor for acceptors, defaults to 32k for work queue
             executor = new ThreadPoolExecutor(initialPoolSize, maxPoolSize, executorKeepAliveTime, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(Short.MAX_VALUE));
             // our adjusted socket acceptor with tweaked executor and pool
-            acceptor = new NioSocketAcceptor(executor, pool);
+            acceptors.add(new NioSocketAcceptor(executor, pool));
+        }
+        acceptor = acceptors.get(0);
+        for (SocketAcceptor socketAcceptor : acceptors) {
+            configureAcceptor(socketAcceptor);
+        }
+        try {
+            // loop through the addresses and bind
+            Set<InetSocketAddress> socketAddresses = new HashSet<InetSocketAddress>();
+            for (String addr : addresses) {
+                if (addr.indexOf(':') != -1) {
+                    String[] parts = addr.split(":");
+                    socketAddresses.add(new InetSocketAddress(parts[0], Integer.valueOf(parts[1])));
+                } else {
+                    socketAddresses.add(new InetSocketAddress(addr, 1935));
+                }
+            }
+            log.debug("Binding to {}", socketAddresses.toString());
+            for (SocketAcceptor socketAcceptor : acceptors) {
+                socketAcceptor.bind(socketAddresses);
+            }
+            // create a new mbean for this instance RTMPMinaTransport
+            String cName = this.getClass().getName();
+            if (cName.indexOf('.') != -1) {
+                cName = cName.substring(cName.lastIndexOf('.')).replaceFirst("[\\.]", "");
+            }
+            //enable only if user wants it
+            if (enableMinaMonitor || useBufferPool) {
+                if (enableMinaMonitor) {
+                    //add a stats to allow for more introspection into the workings of mina
+                    stats = new IoServiceStatistics((AbstractIoService) acceptor);
+                    //poll every second
+                    stats.setThroughputCalculationInterval(minaPollInterval);
+                }
+                MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+                try {
+                    serviceManagerObjectName = new ObjectName("org.red5.server:type=RTMPMinaTransport");
+                    mbs.registerMBean(new StandardMBean(this, RTMPMinaTransportBufferPoolMXBean.class, true), serviceManagerObjectName);
+                } catch (Exception e) {
+                    log.warn("Error on jmx registration", e);
+                }
+            }
+        } catch (Exception e) {
+            log.error("Exception occurred during resolve / bind", e);
+        }
+    }
+
+    /**
+     * Creates the acceptors of the sharded mode. Each acceptor has its own accept loop and I/O processors, and a session stays
+     * on the processor it's given to, so reading, decoding and writing of a connection are done by one thread. When
+     * SO_REUSEPORT is available, acceptors listen on the same port and the kernel distributes the connections. Otherwise one
+     * acceptor hands the connections over to its processors in turn.
+     */
+    private void createShardedAcceptors() {
+        if (ReusePortSelectorProvider.isSupported()) {
+            int processorsPerShard = Math.max(1, ioThreads / acceptorShards);
+            log.info("Sharded acceptors: {} with {} I/O threads each", acceptorShards, processorsPerShard);
+            ReusePortSelectorProvider selectorProvider = new ReusePortSelectorProvider();
+            for (int i = 0; i < acceptorShards; i++) {
+                acceptors.add(new NioSocketAcceptor(processorsPerShard, selectorProvider));
+            }
+        } else {
+            log.info("SO_REUSEPORT is not available, connections are handed over to {} I/O threads in turn", ioThreads);
+            // processors are assigned to sessions by session id, that is in turn
+            SimpleIoProcessorPool<NioSession> pool = new SimpleIoProcessorPool<NioSession>(NioProcessor.class, ioThreads);
+            acceptors.add(new NioSocketAcceptor(pool));
+        }
+    }
+
+    private void configureAcceptor(SocketAcceptor socketAcceptor) {
+        if (bufferAllocator != null) {
+            // gives the read and written buffers back to the pool
+            socketAcceptor.getFilterChain().addFirst("bufferRelease", bufferAllocator.getReleaseFilter());
         }
         // use only for low level debugging
         if (enableMinaLogFilter) {
-            DefaultIoFilterChainBuilder chain = acceptor.getFilterChain();
+            DefaultIoFilterChainBuilder chain = socketAcceptor.getFilterChain();
             LoggingFilter logFilter = new LoggingFilter(RTMPMinaTransport.class);
             //logFilter.setExceptionCaughtLogLevel(LogLevel.TRACE);
             //logFilter.setMessageReceivedLogLevel(LogLevel.TRACE);
@@ -155,13 +257,13 @@ public class RTMPMinaTransport implements RTMPMinaTransportMXBean {
             chain.addLast("logger", logFilter);
         }
         // close sessions when the acceptor is stopped
-        acceptor.setCloseOnDeactivation(true);
+        socketAcceptor.setCloseOnDeactivation(true);
         // set acceptor props
-        acceptor.setHandler(ioHandler);
+        socketAcceptor.setHandler(ioHandler);
         // requested maximum length of the queue of incoming connections
-        acceptor.setBacklog(backlog);
+        socketAcceptor.setBacklog(backlog);
         // get the current session config that would be used during create
-        SocketSessionConfig sessionConf = acceptor.getSessionConfig();
+        SocketSessionConfig sessionConf = socketAcceptor.getSessionConfig();
         // reuse the addresses
         sessionConf.setReuseAddress(true);
         sessionConf.setTcpNoDelay(tcpNoDelay);
@@ -188,54 +290,24 @@ public class RTMPMinaTransport implements RTMPMinaTransportMXBean {
         // get info
         log.info("Send buffer size: {} recv buffer size: {} so linger: {} traffic class: {}", new Object[] { sessionConf.getSendBufferSize(), sessionConf.getReceiveBufferSize(), sessionConf.getSoLinger(), sessionConf.getTrafficClass() });
         // set reuse address on the socket acceptor as well
-        acceptor.setReuseAddress(true);
-        try {
-            // loop through the addresses and bind
-            Set<InetSocketAddress> socketAddresses = new HashSet<InetSocketAddress>();
-            for (String addr : addresses) {
-                if (addr.indexOf(':') != -1) {
-                    String[] parts = addr.split(":");
-                    socketAddresses.add(new InetSocketAddress(parts[0], Integer.valueOf(parts[1])));
-                } else {
-                    socketAddresses.add(new InetSocketAddress(addr, 1935));
-                }
-            }
-            log.debug("Binding to {}", socketAddresses.toString());
-            acceptor.bind(socketAddresses);
-            // create a new mbean for this instance RTMPMinaTransport
-            String cName = this.getClass().getName();
-            if (cName.indexOf('.') != -1) {
-                cName = cName.substring(cName.lastIndexOf('.')).replaceFirst("[\\.]", "");
-            }
-            //enable only if user wants it
-            if (enableMinaMonitor) {
-                //add a stats to allow for more introspection into the workings of mina
-                stats = new IoServiceStatistics((AbstractIoService) acceptor);
-                //poll every second
-                stats.setThroughputCalculationInterval(minaPollInterval);
-                MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
-                try {
-                    serviceManagerObjectName = new ObjectName("org.red5.server:type=RTMPMinaTransport");
-                    mbs.registerMBean(new StandardMBean(this, RTMPMinaTransportMXBean.class, true), serviceManagerObjectName);
-                } catch (Exception e) {
-                    log.warn("Error on jmx registration", e);
-                }
-            }
-        } catch (Exception e) {
-            log.error("Exception occurred during resolve / bind", e);
-        }
+        socketAcceptor.setReuseAddress(true);
     }
 
     public void stop() {
         log.info("RTMP Mina Transport stop");
         // first we unbind to prevent new connections
-        acceptor.unbind();
+        for (SocketAcceptor socketAcceptor : acceptors) {
+            socketAcceptor.unbind();
+        }
         // second we shutdown the customized executor, if we used it
-        if (!enableDefaultAcceptor) {
+        if (executor != null) {
             executor.shutdownNow();
         }
-        // lastly dispose the acceptor without allowing for deadlocks
-        acceptor.dispose(false);
+        // lastly dispose the acceptors without allowing for deadlocks
+        for (SocketAcceptor socketAcceptor : acceptors) {
+            socketAcceptor.dispose(false);
+        }
+        acceptors.clear();
         // deregister with jmx
         if (serviceManagerObjectName != null) {
             MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
@@ -315,6 +387,27 @@ public class RTMPMinaTransport implements RTMPMinaTransportMXBean {
         this.executorKeepAliveTime = executorKeepAliveTime;
     }
 
+    /**
+     * @param acceptorShards
+     *            number of accept loops with their own I/O processors, 0 or 1 disables sharding
+     */
+    public void setAcceptorShards(int acceptorShards) {
+        this.acceptorShards = acceptorShards;
+    }
+
+    public int getAcceptorShards() {
+        return acceptorShards;
+    }
+
+    /**
+     * Returns the number of acceptors listening for connections.
+     * 
+     * @return acceptor count
+     */
+    public int getAcceptorCount() {
+        return acceptors.size();
+    }
+
     public void setEnableDefaultAcceptor(boolean enableDefaultAcceptor) {
         this.enableDefaultAcceptor = enableDefaultAcceptor;
     }
@@ -351,6 +444,86 @@ public class RTMPMinaTransport implements RTMPMinaTransportMXBean {
         this.useHeapBuffers = useHeapBuffers;
     }
 
+    /**
+     * @param useBufferPool
+     *            use pooled direct buffers instead of allocating a new buffer for each read and write
+     */
+    public void setUseBufferPool(boolean useBufferPool) {
+        this.useBufferPool = useBufferPool;
+    }
+
+    public boolean isUseBufferPool() {
+        return useBufferPool;
+    }
+
+    /**
+     * @param bufferPoolMaxCapacity
+     *            buffers bigger than this are not pooled
+     */
+    public void setBufferPoolMaxCapacity(int bufferPoolMaxCapacity) {
+        this.bufferPoolMaxCapacity = bufferPoolMaxCapacity;
+    }
+
+    /**
+     * @param bufferPoolMaxBytes
+     *            maximum total capacity of the buffers kept in the global pool
+     */
+    public void setBufferPoolMaxBytes(long bufferPoolMaxBytes) {
+        this.bufferPoolMaxBytes = bufferPoolMaxBytes;
+    }
+
+    /**
+     * @param bufferPoolThreadCacheSize
+     *            number of buffers of each size kept by a thread
+     */
+    public void setBufferPoolThreadCacheSize(int bufferPoolThreadCacheSize) {
+        this.bufferPoolThreadCacheSize = bufferPoolThreadCacheSize;
+    }
+
+    /**
+     * @param bufferPoolLeakSampleInterval
+     *            one of this many allocations is tracked for leaks, 0 disables leak tracking
+     */
+    public void setBufferPoolLeakSampleInterval(int bufferPoolLeakSampleInterval) {
+        this.bufferPoolLeakSampleInterval = bufferPoolLeakSampleInterval;
+    }
+
+    public PooledDirectBufferAllocator getBufferAllocator() {
+        return bufferAllocator;
+    }
+
+    public long getBufferAllocationCount() {
+        return bufferAllocator != null ? bufferAllocator.getAllocationCount() : 0;
+    }
+
+    public long getBufferPoolHitCount() {
+        return bufferAllocator != null ? bufferAllocator.getHitCount() : 0;
+    }
+
+    public long getBufferPoolMissCount() {
+        return bufferAllocator != null ? bufferAllocator.getMissCount() : 0;
+    }
+
+    public long getUnpooledBufferCount() {
+        return bufferAllocator != null ? bufferAllocator.getUnpooledCount() : 0;
+    }
+
+    public long getBufferReleaseCount() {
+        return bufferAllocator != null ? bufferAllocator.getReleaseCount() : 0;
+    }
+
+    public long getBufferDiscardCount() {
+        return bufferAllocator != null ? bufferAllocator.getDiscardCount() : 0;
+    }
+
+    public long getBufferLeakCount() {
+        return bufferAllocator != null ? bufferAllocator.getLeakCount() : 0;
+    }
+
+    public long getBufferPoolBytes() {
+        return bufferAllocator != null ? bufferAllocator.getPooledBytes() : 0;
+    }
+
     /**
      * @return the enableMinaLogFilter
      */
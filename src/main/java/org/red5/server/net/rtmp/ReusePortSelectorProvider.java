@@ -0,0 +1,113 @@
+/*
+ * RED5 Open Source Media Server - https://github.com/Red5/
+ *
+ * Copyright 2006-2016 by respective authors (see below). All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.red5.server.net.rtmp;
+
+import java.io.IOException;
+import java.net.ProtocolFamily;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.Pipe;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.spi.AbstractSelector;
+import java.nio.channels.spi.SelectorProvider;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Selector provider which opens the server socket channels with SO_REUSEPORT so that more than one acceptor can listen on
+ * the same port and the kernel distributes the incoming connections between them. Everything else is delegated to the default
+ * provider.
+ * <br>
+ * SO_REUSEPORT is available as a standard socket option since Java 9 and only on some platforms, use {@link #isSupported()}
+ * before using this provider.
+ *
+ * @author The Red5 Project
+ */
+public class ReusePortSelectorProvider extends SelectorProvider {
+
+    private static final Logger log = LoggerFactory.getLogger(ReusePortSelectorProvider.class);
+
+    private static final SocketOption<Boolean> SO_REUSEPORT = findReusePortOption();
+
+    private final SelectorProvider provider = SelectorProvider.provider();
+
+    @SuppressWarnings("unchecked")
+    private static SocketOption<Boolean> findReusePortOption() {
+        try {
+            // not referenced directly to keep compiling for java 8
+            SocketOption<Boolean> option = (SocketOption<Boolean>) StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+            try (ServerSocketChannel channel = ServerSocketChannel.open()) {
+                if (channel.supportedOptions().contains(option)) {
+                    return option;
+                }
+            }
+            log.info("SO_REUSEPORT is not supported on this platform");
+        } catch (NoSuchFieldException e) {
+            log.info("SO_REUSEPORT is not available in this java version");
+        } catch (Exception e) {
+            log.warn("SO_REUSEPORT could not be checked", e);
+        }
+        return null;
+    }
+
+    /**
+     * @return true if server socket channels can be opened with SO_REUSEPORT
+     */
+    public static boolean isSupported() {
+        return SO_REUSEPORT != null;
+    }
+
+    @Override
+    public ServerSocketChannel openServerSocketChannel() throws IOException {
+        ServerSocketChannel channel = provider.openServerSocketChannel();
+        if (SO_REUSEPORT != null) {
+            channel.setOption(SO_REUSEPORT, Boolean.TRUE);
+        }
+        return channel;
+    }
+
+    @Override
+    public DatagramChannel openDatagramChannel() throws IOException {
+        return provider.openDatagramChannel();
+    }
+
+    @Override
+    public DatagramChannel openDatagramChannel(ProtocolFamily family) throws IOException {
+        return provider.openDatagramChannel(family);
+    }
+
+    @Override
+    public Pipe openPipe() throws IOException {
+        return provider.openPipe();
+    }
+
+    @Override
+    public AbstractSelector openSelector() throws IOException {
+        return provider.openSelector();
+    }
+
+    @Override
+    public SocketChannel openSocketChannel() throws IOException {
+        return provider.openSocketChannel();
+    }
+
+}
@@ -19,6 +19,7 @@
 package org.red5.server.net.rtmpe;
 
 import javax.crypto.Cipher;
+import javax.crypto.ShortBufferException;
 
 import org.apache.mina.core.buffer.IoBuffer;
 import org.apache.mina.core.filterchain.IoFilterAdapter;
@@ -162,12 +163,8 @@ public class RTMPEIoFilter extends IoFilterAdapter {
                             if (log.isDebugEnabled()) {
                                 log.debug("Decrypting message: {}", message);
                             }
-                            byte[] encrypted = new byte[message.remaining()];
-                            message.get(encrypted);
-                            message.clear();
-                            message.free();
-                            byte[] plain = cipher.update(encrypted);
-                            IoBuffer messageDecrypted = IoBuffer.wrap(plain);
+                            // MINA allocates a new buffer for each read, so the received buffer is decrypted in place
+                            IoBuffer messageDecrypted = update(cipher, message, true);
                             if (log.isDebugEnabled()) {
                                 log.debug("Receiving decrypted message: {}", messageDecrypted);
                             }
@@ -206,13 +203,8 @@ public class RTMPEIoFilter extends IoFilterAdapter {
                 if (log.isDebugEnabled()) {
                     log.debug("Encrypting message: {}", message);
                 }
-                byte[] plain = new byte[message.remaining()];
-                message.get(plain);
-                message.clear();
-                message.free();
-                //encrypt and write
-                byte[] encrypted = cipher.update(plain);
-                IoBuffer messageEncrypted = IoBuffer.wrap(encrypted);
+                // written message may be shared or retained by the caller, so it's encrypted to a new buffer
+                IoBuffer messageEncrypted = update(cipher, message, false);
                 if (log.isDebugEnabled()) {
                     log.debug("Writing encrypted message: {}", messageEncrypted);
                 }
@@ -221,6 +213,40 @@ public class RTMPEIoFilter extends IoFilterAdapter {
         }
     }
 
+    /**
+     * Encrypts or decrypts the remaining bytes of the message. The position of the message is not changed.
+     * 
+     * If inPlace is true and the message is a writable heap buffer, RC4 output replaces the input in the backing array of
+     * the message and the message is returned. It should only be used for the buffers that are owned by the filter.
+     * Otherwise the result is written to a new heap buffer. Cipher copies a direct input to a temporary array internally,
+     * so a direct message is not processed in place.
+     * 
+     * @param cipher
+     *            RC4 cipher of the direction
+     * @param message
+     *            message
+     * @param inPlace
+     *            whether the message can be overwritten
+     * @return message or the new buffer containing the result
+     * @throws ShortBufferException
+     *             if the cipher output is larger than the input
+     */
+    static IoBuffer update(Cipher cipher, IoBuffer message, boolean inPlace) throws ShortBufferException {
+        int position = message.position();
+        int length = message.remaining();
+        if (inPlace && message.hasArray() && !message.isReadOnly()) {
+            // cipher accepts the same array for input and output
+            byte[] array = message.array();
+            int offset = message.arrayOffset() + position;
+            cipher.update(array, offset, length, array, offset);
+            return message;
+        }
+        IoBuffer result = IoBuffer.allocate(length, false);
+        cipher.update(message.buf(), result.buf());
+        message.position(position);
+        return result.flip();
+    }
+
     private static class EncryptedWriteRequest extends WriteRequestWrapper {
         private final IoBuffer encryptedMessage;
 
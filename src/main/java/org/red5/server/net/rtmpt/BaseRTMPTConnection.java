@@ -24,20 +24,28 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.commons.lang3.ArrayUtils;
 import org.apache.mina.core.buffer.IoBuffer;
 import org.red5.server.api.Red5;
+import org.red5.server.net.rtmp.PooledDirectBufferAllocator;
 import org.red5.server.net.rtmp.RTMPConnection;
 import org.red5.server.net.rtmp.codec.RTMP;
 import org.red5.server.net.rtmp.codec.RTMPProtocolDecoder;
 import org.red5.server.net.rtmp.codec.RTMPProtocolEncoder;
+import org.red5.server.net.rtmp.event.IRTMPEvent;
+import org.red5.server.net.rtmp.event.VideoData;
+import org.red5.server.net.rtmp.event.VideoData.FrameType;
+import org.red5.server.net.rtmp.message.Constants;
 import org.red5.server.net.rtmp.message.Packet;
 import org.red5.server.net.rtmpt.codec.RTMPTProtocolDecoder;
 import org.red5.server.net.rtmpt.codec.RTMPTProtocolEncoder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
 
 /**
  * Base RTMPT client / session.
@@ -49,6 +57,12 @@ public abstract class BaseRTMPTConnection extends RTMPConnection {
 
     private static final Logger log = LoggerFactory.getLogger(BaseRTMPTConnection.class);
 
+    /**
+     * Allocator of the buffers that pending messages are gathered into for a response when {@link #pooledResponseBuffers}
+     * or {@link #nonBlockingWrite} is enabled. Buffers are given back when the response is written.
+     */
+    private static final PooledDirectBufferAllocator responseBufferAllocator = new PooledDirectBufferAllocator(65536, 8 * 1024 * 1024, 4, 0);
+
     /**
      * Protocol decoder
      */
@@ -99,6 +113,38 @@ public abstract class BaseRTMPTConnection extends RTMPConnection {
      */
     protected int maxQueueOfferAttempts = 4;
 
+    /**
+     * Whether to fail offers to a full out queue immediately instead of waiting for the client to poll
+     */
+    protected boolean nonBlockingWrite;
+
+    /**
+     * Whether responses are gathered into pooled direct buffers instead of a new buffer for each response. It's enabled by
+     * the servlet in async polling mode
+     */
+    protected boolean pooledResponseBuffers;
+
+    /**
+     * Number of audio and video messages dropped because the out queue was full
+     */
+    private AtomicLong droppedMessages = new AtomicLong(0);
+
+    /**
+     * Whether video is dropped until a key frame because a video message was dropped. Inter frames cannot be decoded
+     * without the dropped one
+     */
+    private volatile boolean waitingForKeyFrame;
+
+    /**
+     * Whether the connection is closed because the out queue was full
+     */
+    private AtomicBoolean closingOnFullQueue = new AtomicBoolean(false);
+
+    /**
+     * Runs once when a message is added to the out queue or the connection is closed
+     */
+    private AtomicReference<Runnable> pendingMessageListener = new AtomicReference<Runnable>();
+
     public BaseRTMPTConnection(String type) {
         super(type);
         this.buffer = IoBuffer.allocate(0).setAutoExpand(true);
@@ -129,6 +175,8 @@ public abstract class BaseRTMPTConnection extends RTMPConnection {
             buffer = null;
         }
         super.close();
+        // let a waiting poll send the close notification
+        notifyPendingMessageListener();
     }
 
     /**
@@ -220,21 +268,7 @@ public abstract class BaseRTMPTConnection extends RTMPConnection {
                 if (data != null) {
                     // add to pending
                     log.debug("Adding outgoing message packet");
-                    PendingData pendingData = new PendingData(data, packet);
-                    try {
-                        int attempt = 0;
-                        while (!pendingOutMessages.offer(pendingData, maxQueueOfferTime, TimeUnit.MILLISECONDS)) {
-                            log.trace("Packet was not added to out queue");
-                            attempt++;
-                            if (attempt >= maxQueueOfferAttempts) {
-                                break;
-                            }
-                        }
-                    } catch (InterruptedException ex) {
-                        log.warn("Offering packet to out queue failed", ex);
-						ex.printStackTrace();
-						Thread.currentThread().interrupt();
-                    }
+                    offerPendingData(new PendingData(data, packet));
                 } else {
                     log.warn("Response buffer was null after encoding");
                 }
@@ -255,20 +289,124 @@ public abstract class BaseRTMPTConnection extends RTMPConnection {
         if (log.isDebugEnabled()) {
             log.debug("write - io buffer: {}", packet);
         }
-        PendingData pendingData = new PendingData(packet);
-        try {
-            int attempt = 0;
-            while (!pendingOutMessages.offer(pendingData, maxQueueOfferTime, TimeUnit.MILLISECONDS)) {
-                log.trace("Packet was not added to out queue");
-                attempt++;
-                if (attempt >= maxQueueOfferAttempts) {
-                    break;
+        offerPendingData(new PendingData(packet));
+    }
+
+    /**
+     * Adds the data to the out queue. In non-blocking mode the offer fails immediately if the queue is full, otherwise it
+     * waits for the client to poll up to the max offer attempts.
+     *
+     * @param pendingData
+     *            data to send
+     */
+    private void offerPendingData(PendingData pendingData) {
+        if (nonBlockingWrite) {
+            FrameType frameType = getVideoFrameType(pendingData);
+            if (waitingForKeyFrame && frameType != null && frameType != FrameType.KEYFRAME) {
+                long dropped = droppedMessages.incrementAndGet();
+                log.debug("Waiting for a key frame, dropped video message total dropped: {}", dropped);
+                return;
+            }
+            if (!pendingOutMessages.offer(pendingData)) {
+                onOutQueueFull(pendingData);
+                return;
+            }
+            if (frameType == FrameType.KEYFRAME) {
+                waitingForKeyFrame = false;
+            }
+        } else {
+            try {
+                int attempt = 0;
+                while (!pendingOutMessages.offer(pendingData, maxQueueOfferTime, TimeUnit.MILLISECONDS)) {
+                    log.trace("Packet was not added to out queue");
+                    attempt++;
+                    if (attempt >= maxQueueOfferAttempts) {
+                        break;
+                    }
                 }
+            } catch (InterruptedException ex) {
+                log.warn("Offering packet to out queue failed", ex);
+                Thread.currentThread().interrupt();
             }
-        } catch (InterruptedException ex) {
-            log.warn("Offering io buffer to out queue failed", ex);
-			ex.printStackTrace();
-			Thread.currentThread().interrupt();
+        }
+        notifyPendingMessageListener();
+    }
+
+    /**
+     * Handles data which does not fit in the out queue in non-blocking mode. Audio and video messages are dropped. Losing
+     * any other message breaks the session, so the connection is closed.
+     *
+     * @param pendingData
+     *            data which was not added
+     */
+    private void onOutQueueFull(PendingData pendingData) {
+        Packet packet = pendingData.getPacket();
+        if (packet != null) {
+            byte dataType = packet.getHeader().getDataType();
+            if (dataType == Constants.TYPE_AUDIO_DATA || dataType == Constants.TYPE_VIDEO_DATA) {
+                if (dataType == Constants.TYPE_VIDEO_DATA) {
+                    waitingForKeyFrame = true;
+                }
+                long dropped = droppedMessages.incrementAndGet();
+                log.debug("Out queue is full, dropped message type: {} total dropped: {}", dataType, dropped);
+                return;
+            }
+        }
+        if (closingOnFullQueue.compareAndSet(false, true)) {
+            log.warn("Out queue is full, closing connection: {}", sessionId);
+            // close on another thread to not hold the writer
+            ThreadPoolTaskScheduler scheduler = getScheduler();
+            if (scheduler != null) {
+                scheduler.execute(() -> close());
+            } else {
+                close();
+            }
+        }
+    }
+
+    /**
+     * Returns the frame type of the video message.
+     *
+     * @param pendingData
+     *            data to send
+     * @return frame type or null if the data is not a video message
+     */
+    private static FrameType getVideoFrameType(PendingData pendingData) {
+        Packet packet = pendingData.getPacket();
+        if (packet != null && packet.getHeader().getDataType() == Constants.TYPE_VIDEO_DATA) {
+            IRTMPEvent message = packet.getMessage();
+            return message instanceof VideoData ? ((VideoData) message).getFrameType() : FrameType.UNKNOWN;
+        }
+        return null;
+    }
+
+    /**
+     * Sets the listener to run once when a message is added to the out queue or the connection is closed. It replaces the
+     * previous listener, which is returned without running so that the caller can complete it.
+     *
+     * @param listener
+     *            listener
+     * @return the replaced listener or null if there is none
+     */
+    public Runnable setPendingMessageListener(Runnable listener) {
+        return pendingMessageListener.getAndSet(listener);
+    }
+
+    /**
+     * Removes the listener if it has not run yet.
+     *
+     * @param listener
+     *            listener
+     * @return true if the listener was removed, false if it has already run or was replaced
+     */
+    public boolean removePendingMessageListener(Runnable listener) {
+        return pendingMessageListener.compareAndSet(listener, null);
+    }
+
+    private void notifyPendingMessageListener() {
+        Runnable listener = pendingMessageListener.getAndSet(null);
+        if (listener != null) {
+            listener.run();
         }
     }
 
@@ -280,7 +418,16 @@ public abstract class BaseRTMPTConnection extends RTMPConnection {
             // create list to hold outgoing data
             LinkedList<PendingData> sendList = new LinkedList<PendingData>();
             pendingOutMessages.drainTo(sendList, Math.min(164, available));
-            result = IoBuffer.allocate(targetSize).setAutoExpand(true);
+            if (pooledResponseBuffers || nonBlockingWrite) {
+                // size the buffer to the drained data, an expanding buffer would leave the pool's size class
+                int size = 0;
+                for (PendingData pendingMessage : sendList) {
+                    size += pendingMessage.getBufferSize();
+                }
+                result = responseBufferAllocator.allocate(size, true);
+            } else {
+                result = IoBuffer.allocate(targetSize).setAutoExpand(true);
+            }
             for (PendingData pendingMessage : sendList) {
                 result.put(pendingMessage.getBuffer());
                 Packet packet = pendingMessage.getPacket();
@@ -338,6 +485,29 @@ public abstract class BaseRTMPTConnection extends RTMPConnection {
         this.maxQueueOfferAttempts = maxQueueOfferAttempts;
     }
 
+    /**
+     * @param nonBlockingWrite
+     *            the nonBlockingWrite to set
+     */
+    public void setNonBlockingWrite(boolean nonBlockingWrite) {
+        this.nonBlockingWrite = nonBlockingWrite;
+    }
+
+    /**
+     * @param pooledResponseBuffers
+     *            whether responses are gathered into pooled direct buffers
+     */
+    public void setPooledResponseBuffers(boolean pooledResponseBuffers) {
+        this.pooledResponseBuffers = pooledResponseBuffers;
+    }
+
+    /**
+     * @return number of audio and video messages dropped because the out queue was full or a key frame was awaited
+     */
+    public long getDroppedMessageCount() {
+        return droppedMessages.get();
+    }
+
     /**
      * Holder for data destined for a requester that is not ready to be sent.
      */
@@ -380,7 +550,6 @@ public abstract class BaseRTMPTConnection extends RTMPConnection {
             return packet;
         }
 
-        @SuppressWarnings("unused")
         public int getBufferSize() {
             if (byteBuffer != null) {
                 return byteBuffer.length;
@@ -21,7 +21,11 @@ package org.red5.server.net.rtmpt;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.ServletContext;
 import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServlet;
@@ -74,6 +78,11 @@ public class RTMPTServlet extends HttpServlet {
      */
     private static final String CONTENT_TYPE = "application/x-fcs";
 
+    /**
+     * Tomcat request attribute which enables async processing for servlets that are not declared with async support.
+     */
+    private static final String ASYNC_SUPPORTED_ATTRIBUTE = "org.apache.catalina.ASYNC_SUPPORTED";
+
     /**
      * Connection manager.
      */
@@ -95,6 +104,17 @@ public class RTMPTServlet extends HttpServlet {
      */
     private static String ident2;
 
+    /**
+     * Whether idle requests without pending data wait for data instead of returning immediately (long-poll). Requires servlet 3
+     * async support.
+     */
+    private static boolean asyncPolling;
+
+    /**
+     * Maximum time in milliseconds an idle request waits for data in async polling mode.
+     */
+    private static long maxPollWait = 1000L;
+
     // Whether or not to enforce content type checking for requests
     private boolean enforceContentTypeCheck;
 
@@ -289,6 +309,7 @@ public class RTMPTServlet extends HttpServlet {
                 // using "Exception" is meant to catch any exception that would occur when doing a write
                 // this can be an IOException or a container specific one like ClientAbortException from catalina
                 log.warn("Exception returning outgoing data", ex);
+                data.free();
                 conn.close();
             }
         } else {
@@ -338,6 +359,8 @@ public class RTMPTServlet extends HttpServlet {
             conn.setHandler(handler);
             conn.setDecoder(handler.getCodecFactory().getRTMPDecoder());
             conn.setEncoder(handler.getCodecFactory().getRTMPEncoder());
+            // pooled buffers are given back when the response is written
+            conn.setPooledResponseBuffers(asyncPolling);
             handler.connectionOpened(conn);
             conn.dataReceived();
             conn.updateReadBytes(req.getContentLength());
@@ -513,6 +536,10 @@ public class RTMPTServlet extends HttpServlet {
         if (conn != null) {
             conn.dataReceived();
             conn.updateReadBytes(req.getContentLength());
+            // wait for data if there is nothing to send yet
+            if (asyncPolling && !conn.isClosing() && conn.getPendingMessages() == 0 && startPoll(conn, req, resp)) {
+                return;
+            }
             // return pending
             returnPendingMessages(conn, resp);
         } else {
@@ -520,6 +547,44 @@ public class RTMPTServlet extends HttpServlet {
         }
     }
 
+    /**
+     * Puts the request in async mode to be completed when data is available, the connection is closing or the max poll wait
+     * passes. The request thread is released.
+     * 
+     * @param conn
+     *            RTMP connection
+     * @param req
+     *            Servlet request
+     * @param resp
+     *            Servlet response
+     * @return true if the request is in async mode, false if it should be answered now
+     */
+    protected boolean startPoll(RTMPTConnection conn, HttpServletRequest req, HttpServletResponse resp) {
+        if (!req.isAsyncSupported()) {
+            req.setAttribute(ASYNC_SUPPORTED_ATTRIBUTE, Boolean.TRUE);
+        }
+        AsyncContext asyncContext;
+        try {
+            asyncContext = req.startAsync(req, resp);
+        } catch (IllegalStateException e) {
+            log.debug("Async polling is not supported for the request", e);
+            return false;
+        }
+        asyncContext.setTimeout(maxPollWait);
+        PendingPoll poll = new PendingPoll(conn, asyncContext);
+        asyncContext.addListener(poll);
+        Runnable displacedPoll = conn.setPendingMessageListener(poll);
+        if (displacedPoll != null) {
+            // previous poll of the client is answered now instead of waiting for its timeout
+            displacedPoll.run();
+        }
+        // data may have been added before the listener was set
+        if ((conn.isClosing() || conn.getPendingMessages() > 0) && conn.removePendingMessageListener(poll)) {
+            poll.run();
+        }
+        return true;
+    }
+
     /**
      * Main entry point for the servlet.
      * 
@@ -716,6 +781,22 @@ public class RTMPTServlet extends HttpServlet {
         RTMPTServlet.targetResponseSize = targetResponseSize;
     }
 
+    /**
+     * @param asyncPolling
+     *            the asyncPolling to set
+     */
+    public void setAsyncPolling(boolean asyncPolling) {
+        RTMPTServlet.asyncPolling = asyncPolling;
+    }
+
+    /**
+     * @param maxPollWait
+     *            the maxPollWait to set
+     */
+    public void setMaxPollWait(long maxPollWait) {
+        RTMPTServlet.maxPollWait = maxPollWait;
+    }
+
     /**
      * @return the enforceContentTypeCheck
      */
@@ -731,6 +812,73 @@ public class RTMPTServlet extends HttpServlet {
         this.enforceContentTypeCheck = enforceContentTypeCheck;
     }
 
+    /**
+     * Idle request waiting for data in async polling mode.
+     */
+    private final class PendingPoll implements Runnable, AsyncListener {
+
+        private final RTMPTConnection conn;
+
+        private final AsyncContext asyncContext;
+
+        private final AtomicBoolean completed = new AtomicBoolean(false);
+
+        PendingPoll(RTMPTConnection conn, AsyncContext asyncContext) {
+            this.conn = conn;
+            this.asyncContext = asyncContext;
+        }
+
+        /**
+         * Runs on the thread which added the data, so the response is written on a container thread.
+         */
+        public void run() {
+            if (!completed.get()) {
+                try {
+                    asyncContext.start(() -> complete());
+                } catch (IllegalStateException e) {
+                    log.debug("Poll was completed already", e);
+                }
+            }
+        }
+
+        private void complete() {
+            if (completed.compareAndSet(false, true)) {
+                Red5.setConnectionLocal(conn);
+                try {
+                    returnPendingMessages(conn, (HttpServletResponse) asyncContext.getResponse());
+                } finally {
+                    Red5.setConnectionLocal(null);
+                    asyncContext.complete();
+                }
+            }
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) throws IOException {
+            conn.removePendingMessageListener(this);
+            complete();
+        }
+
+        @Override
+        public void onError(AsyncEvent event) throws IOException {
+            log.debug("Poll failed", event.getThrowable());
+            conn.removePendingMessageListener(this);
+            if (completed.compareAndSet(false, true)) {
+                asyncContext.complete();
+            }
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) throws IOException {
+            conn.removePendingMessageListener(this);
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) throws IOException {
+        }
+
+    }
+
     /**
      * Used to store request information per thread.
      */
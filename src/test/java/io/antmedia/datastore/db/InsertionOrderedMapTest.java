@@ -0,0 +1,66 @@
+package io.antmedia.datastore.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Test;
+
+public class InsertionOrderedMapTest {
+
+	@Test
+	public void testDeepPagingDoesNotWalkFromStart() {
+		InsertionOrderedMap<Integer> map = new InsertionOrderedMap<>();
+		int count = 10000;
+		for (int i = 0; i < count; i++) {
+			map.put("key" + i, i);
+		}
+
+		int pageSize = 50;
+		for (int offset = 0; offset < count; offset += pageSize) {
+			List<Integer> page = map.getRange(offset, pageSize);
+			assertEquals(pageSize, page.size());
+			assertEquals(offset, (int)page.get(0));
+			assertEquals(offset + pageSize - 1, (int)page.get(pageSize - 1));
+		}
+		//each page continues from the end of the previous one, walking from the start would visit ~1M nodes
+		assertTrue("visited node count: " + map.getVisitedNodeCount(), map.getVisitedNodeCount() <= 2L * count);
+
+		//a page between the recent pages starts from the closest recorded position
+		long visited = map.getVisitedNodeCount();
+		List<Integer> page = map.getRange(9010, 10);
+		assertEquals(9010, (int)page.get(0));
+		assertTrue(map.getVisitedNodeCount() - visited <= pageSize + 10 + 1);
+
+		//appending keys does not change the positions
+		map.put("key" + count, count);
+		page = map.getRange(count - pageSize, pageSize + 10);
+		assertEquals(pageSize + 1, page.size());
+		assertEquals(count, (int)page.get(pageSize));
+	}
+
+	@Test
+	public void testPagingAfterRemove() {
+		InsertionOrderedMap<Integer> map = new InsertionOrderedMap<>();
+		for (int i = 0; i < 100; i++) {
+			map.put("key" + i, i);
+		}
+		assertEquals(10, (int)map.getRange(10, 10).get(0));
+		assertEquals(20, (int)map.getRange(20, 10).get(0));
+
+		//recorded positions are shifted by the removal, they should not be used
+		map.remove("key5");
+		List<Integer> page = map.getRange(20, 10);
+		assertEquals(21, (int)page.get(0));
+		assertEquals(30, (int)page.get(9));
+
+		//replacing a value keeps its position
+		map.put("key25", 125);
+		page = map.getRange(20, 10);
+		assertEquals(125, (int)page.get(4));
+
+		map.clear();
+		assertTrue(map.getRange(20, 10).isEmpty());
+	}
+}
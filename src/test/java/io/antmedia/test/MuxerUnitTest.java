@@ -12,6 +12,8 @@ import io.antmedia.muxer.Mp4Muxer;
 import io.antmedia.muxer.MuxAdaptor;
 import io.antmedia.muxer.Muxer;
 import io.antmedia.social.endpoint.VideoServiceEndpoint;
+import io.antmedia.webrtc.adaptor.MuxAdaptorRecorder;
+import io.antmedia.websocket.WebSocketCommunityHandler;
 import org.apache.mina.core.buffer.IoBuffer;
 import org.apache.tika.io.IOUtils;
 import org.awaitility.Awaitility;
@@ -46,13 +48,16 @@ import java.io.FileInputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
 
+import static org.bytedeco.javacpp.avcodec.AV_CODEC_ID_AAC;
 import static org.bytedeco.javacpp.avcodec.AV_CODEC_ID_H264;
 import static org.bytedeco.javacpp.avformat.*;
+import static org.bytedeco.javacpp.avutil.AVMEDIA_TYPE_AUDIO;
 import static org.bytedeco.javacpp.avutil.AVMEDIA_TYPE_VIDEO;
 import static org.bytedeco.javacpp.avutil.av_dict_get;
 import static org.junit.Assert.*;
@@ -1253,6 +1258,97 @@ public class MuxerUnitTest extends AbstractJUnit4SpringContextTests {
         return appSettings;
     }
 
+    @Test
+    public void testMuxAdaptorRecorder() {
+        if (appScope == null) {
+            appScope = (WebScope) applicationContext.getBean("web.scope");
+            assertTrue(appScope.getDepth() == 1);
+        }
+        AntMediaApplicationAdapter app = (AntMediaApplicationAdapter) applicationContext.getBean("web.handler");
+        getAppSettings().setMp4MuxingEnabled(true);
+        getAppSettings().setHlsMuxingEnabled(false);
+
+        String streamId = "recorder" + (int) (Math.random() * 91000);
+        MuxAdaptorRecorder recorder = new MuxAdaptorRecorder(streamId, app, 640, 480);
+        WebSocketCommunityHandler.setRecorderSettings(recorder);
+
+        try {
+            recorder.start();
+            MuxAdaptor muxAdaptor = recorder.getMuxAdaptor();
+            assertNotNull(muxAdaptor);
+
+            int width = 640;
+            int height = 480;
+            int[] stride = new int[] { width, width / 2, width / 2 };
+            ByteBuffer image = ByteBuffer.allocateDirect(width * height * 3 / 2);
+            // 10 ms of stereo audio at 48 kHz like WebRTC delivers, it's resampled to 44.1 kHz
+            ShortBuffer samples = ShortBuffer.allocate(480 * 2);
+
+            // 5 seconds, a video frame for every 5 audio frames at 20 fps
+            for (int i = 0; i < 500; i++) {
+                samples.clear();
+                for (int j = 0; j < 480; j++) {
+                    short value = (short) (Math.sin(2 * Math.PI * 440 * (i * 480 + j) / 48000.0) * 8000);
+                    samples.put(value);
+                    samples.put(value);
+                }
+                samples.flip();
+                assertTrue(recorder.recordSamples(48000, 2, samples));
+
+                if (i % 5 == 0) {
+                    image.clear();
+                    while (image.hasRemaining()) {
+                        image.put((byte) (i + image.position() / width));
+                    }
+                    image.flip();
+                    recorder.setFrameNumber(i / 5);
+                    // half of the frames are smaller to be scaled to the recorder size
+                    if (i < 250) {
+                        assertTrue(recorder.recordImage(width, height, 8, 2, stride, avutil.AV_PIX_FMT_YUV420P, image));
+                    }
+                    else {
+                        int[] smallStride = new int[] { width / 2, width / 4, width / 4 };
+                        assertTrue(recorder.recordImage(width / 2, height / 2, 8, 2, smallStride, avutil.AV_PIX_FMT_YUV420P, image));
+                    }
+                }
+            }
+
+            recorder.stop();
+            assertNull(recorder.getMuxAdaptor());
+
+            File file = muxAdaptor.getMuxerList().get(0).getFile();
+            Awaitility.await().atMost(20, TimeUnit.SECONDS).until(file::exists);
+            assertTrue(MuxingTest.testFile(file.getAbsolutePath(), 5000, true));
+
+            // muxed file has the encoded h264 and aac streams
+            AVFormatContext inputFormatContext = avformat.avformat_alloc_context();
+            assertTrue(avformat_open_input(inputFormatContext, file.getAbsolutePath(), null, (AVDictionary) null) >= 0);
+            assertTrue(avformat_find_stream_info(inputFormatContext, (AVDictionary) null) >= 0);
+            boolean videoFound = false;
+            boolean audioFound = false;
+            for (int i = 0; i < inputFormatContext.nb_streams(); i++) {
+                AVCodecContext codecContext = inputFormatContext.streams(i).codec();
+                if (codecContext.codec_type() == AVMEDIA_TYPE_VIDEO) {
+                    assertEquals(AV_CODEC_ID_H264, codecContext.codec_id());
+                    assertEquals(640, codecContext.width());
+                    assertEquals(480, codecContext.height());
+                    videoFound = true;
+                }
+                else if (codecContext.codec_type() == AVMEDIA_TYPE_AUDIO) {
+                    assertEquals(AV_CODEC_ID_AAC, codecContext.codec_id());
+                    assertEquals(44100, codecContext.sample_rate());
+                    audioFound = true;
+                }
+            }
+            avformat_close_input(inputFormatContext);
+            assertTrue(videoFound);
+            assertTrue(audioFound);
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail("exception:" + e);
+        }
+    }
+
     @Test
     public void testRecording() {
         testRecording("dasss", true);
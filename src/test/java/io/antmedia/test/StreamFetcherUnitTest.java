@@ -2,6 +2,7 @@ package io.antmedia.test;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
@@ -16,12 +17,29 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 
 import org.awaitility.Awaitility;
+import org.bytedeco.javacpp.avcodec;
+import org.bytedeco.javacpp.avcodec.AVPacket;
 import org.bytedeco.javacpp.avformat;
+import org.bytedeco.javacpp.avformat.AVFormatContext;
+import org.bytedeco.javacpp.avformat.AVStream;
 import org.bytedeco.javacpp.avutil;
 import org.junit.After;
 import org.junit.Before;
@@ -31,7 +49,10 @@ import org.junit.Test;
 import org.junit.rules.TestRule;
 import org.junit.rules.TestWatcher;
 import org.junit.runner.Description;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mockito;
+import org.red5.server.api.scheduling.IScheduledJob;
+import org.red5.server.api.scheduling.ISchedulingService;
 import org.red5.server.scheduling.QuartzSchedulingService;
 import org.red5.server.scope.WebScope;
 import org.slf4j.Logger;
@@ -53,7 +74,9 @@ import io.antmedia.integration.MuxingTest;
 import io.antmedia.ipcamera.OnvifCamera;
 import io.antmedia.muxer.MuxAdaptor;
 import io.antmedia.rest.model.Result;
+import io.antmedia.streamsource.AVPacketPool;
 import io.antmedia.streamsource.StreamFetcher;
+import io.antmedia.streamsource.StreamFetcherEventLoop;
 import io.antmedia.streamsource.StreamFetcherManager;
 
 @ContextConfiguration(locations = { "test.xml" })
@@ -287,6 +310,9 @@ public class StreamFetcherUnitTest extends AbstractJUnit4SpringContextTests {
 			//set restart period to 5 seconds
 			fetcherManager.setRestartStreamFetcherPeriod(5);
 
+			//restart all of them at once to check the restart period
+			fetcherManager.setRestartSpreadMs(0);
+
 			//Start stream fetcher
 			StreamFetcher result = fetcherManager.startStreaming(stream);
 			assertNotNull(result);
@@ -381,26 +407,23 @@ public class StreamFetcherUnitTest extends AbstractJUnit4SpringContextTests {
 			assertFalse(fetcher.isStreamAlive());
 			assertFalse(fetcher.isThreadActive());
 
-			//change the flag that shows thread is still running
-			fetcher.setThreadActive(true);
-
 			//start thread
 			fetcher.startStream();
 
 			Thread.sleep(6000);
-			//check that thread is not started because thread active is true
-			assertFalse(fetcher.isStreamAlive());
+			assertTrue(fetcher.isStreamAlive());
 			assertTrue(fetcher.isThreadActive());
 
+			//restart while the worker is running. New worker is started by the finishing worker, 
+			//there is no other thread waiting for it
+			Thread firstWorker = fetcher.getThread();
+			fetcher.restart();
 
-			logger.info("Change the flag that previous thread is stopped");
-			//change the flag that previous thread is stopped
-			fetcher.setThreadActive(false);
-
-			//wait a little
-			Thread.sleep(5000);
+			Thread.sleep(6000);
 
-			//check that thread is started
+			//check that new thread is started
+			assertFalse(firstWorker.isAlive());
+			assertNotEquals(firstWorker, fetcher.getThread());
 			assertTrue(fetcher.isStreamAlive());
 			assertTrue(fetcher.isThreadActive());
 
@@ -599,6 +622,12 @@ public class StreamFetcherUnitTest extends AbstractJUnit4SpringContextTests {
 			}
 			assertFalse(fetcher.isThreadActive());
 
+			//all buffered packets should be written when stream is stopped
+			assertEquals(0, fetcher.getBufferedPacketCount());
+			assertTrue(fetcher.getBufferedPacketCountPeak() > 0);
+			assertEquals(0, fetcher.getPacketPool().getOutstandingCount());
+			assertTrue(fetcher.getPacketPool().getHitCount() > 0);
+
 			logger.info("before test m3u8 file");
 
 			assertTrue(MuxingTest.testFile("webapps/junit/streams/"+newCam.getStreamId() +".m3u8"));
@@ -639,6 +668,522 @@ public class StreamFetcherUnitTest extends AbstractJUnit4SpringContextTests {
 
 	}
 
+	@Test
+	public void testCheckStreamFetchersStatus() throws Exception {
+		DataStore dataStore = Mockito.mock(DataStore.class);
+		StreamFetcherManager manager = new StreamFetcherManager(scheduler, dataStore, appScope);
+
+		StreamFetcher aliveFetcher = Mockito.mock(StreamFetcher.class);
+		Broadcast aliveStream = new Broadcast("alive");
+		aliveStream.setStreamId("alive");
+		when(aliveFetcher.getStream()).thenReturn(aliveStream);
+		when(aliveFetcher.isStreamAlive()).thenReturn(true);
+
+		StreamFetcher deadFetcher = Mockito.mock(StreamFetcher.class);
+		Broadcast deadStream = new Broadcast("dead");
+		deadStream.setStreamId("dead");
+		when(deadFetcher.getStream()).thenReturn(deadStream);
+		when(deadFetcher.isStreamAlive()).thenReturn(false);
+
+		Map<String, StreamFetcher> fetcherMap = new ConcurrentHashMap<>();
+		fetcherMap.put("alive", aliveFetcher);
+		fetcherMap.put("dead", deadFetcher);
+		manager.setStreamFetcherMap(fetcherMap);
+
+		assertEquals(deadFetcher, manager.getStreamFetcher("dead"));
+		assertNull(manager.getStreamFetcher("not_exists"));
+
+		manager.checkStreamFetchersStatus();
+		manager.checkStreamFetchersStatus();
+
+		//quality should be written once until stream is alive again
+		verify(dataStore, times(1)).updateSourceQualityParameters("dead", MuxAdaptor.QUALITY_POOR, 0, 0);
+		verify(dataStore, Mockito.never()).updateSourceQualityParameters(Mockito.eq("alive"), Mockito.anyString(), Mockito.anyDouble(), Mockito.anyInt());
+
+		when(deadFetcher.isStreamAlive()).thenReturn(true);
+		manager.checkStreamFetchersStatus();
+
+		when(deadFetcher.isStreamAlive()).thenReturn(false);
+		manager.checkStreamFetchersStatus();
+		verify(dataStore, times(2)).updateSourceQualityParameters("dead", MuxAdaptor.QUALITY_POOR, 0, 0);
+
+		assertTrue(manager.stopStreaming(deadStream).isSuccess());
+		assertFalse(manager.stopStreaming(deadStream).isSuccess());
+		assertEquals(1, manager.getStreamFetcherList().size());
+
+		//stream without an id should not break the checks
+		StreamFetcher noIdFetcher = Mockito.mock(StreamFetcher.class);
+		Broadcast noIdStream = Mockito.mock(Broadcast.class);
+		when(noIdFetcher.getStream()).thenReturn(noIdStream);
+		when(noIdFetcher.isStreamAlive()).thenReturn(false);
+
+		Queue<StreamFetcher> fetcherList = new ConcurrentLinkedQueue<>();
+		fetcherList.add(aliveFetcher);
+		fetcherList.add(noIdFetcher);
+		manager.setStreamFetcherList(fetcherList);
+		assertEquals(2, manager.getStreamFetcherList().size());
+		assertEquals(noIdFetcher, manager.getStreamFetcher(null));
+
+		manager.checkStreamFetchersStatus();
+		verify(dataStore, Mockito.never()).updateSourceQualityParameters(Mockito.isNull(), Mockito.anyString(), Mockito.anyDouble(), Mockito.anyInt());
+
+		assertTrue(manager.stopStreaming(noIdStream).isSuccess());
+		assertEquals(1, manager.getStreamFetcherList().size());
+	}
+
+	@Test
+	public void testCheckStreamFetchersStatusBatchUpdate() throws Exception {
+		InMemoryDataStore dataStore = Mockito.mock(InMemoryDataStore.class);
+		StreamFetcherManager manager = new StreamFetcherManager(scheduler, dataStore, appScope);
+
+		Map<String, StreamFetcher> fetcherMap = new ConcurrentHashMap<>();
+		StreamFetcher[] fetchers = new StreamFetcher[3];
+		for (int i = 0; i < fetchers.length; i++) {
+			fetchers[i] = Mockito.mock(StreamFetcher.class);
+			Broadcast stream = new Broadcast("stream" + i);
+			stream.setStreamId("stream" + i);
+			when(fetchers[i].getStream()).thenReturn(stream);
+			when(fetchers[i].isStreamAlive()).thenReturn(i == 0);
+			when(fetchers[i].getLastPacketReceivedTime()).thenReturn(1000L);
+			fetcherMap.put(stream.getStreamId(), fetchers[i]);
+		}
+		manager.setStreamFetcherMap(fetcherMap);
+
+		manager.checkStreamFetchersStatus();
+		manager.checkStreamFetchersStatus();
+
+		//not alive streams are written in one batch and only once
+		ArgumentCaptor<Collection> streamIds = ArgumentCaptor.forClass(Collection.class);
+		verify(dataStore, times(1)).updateSourceQualityParameters(streamIds.capture(), Mockito.eq(MuxAdaptor.QUALITY_POOR), Mockito.eq(0d), Mockito.eq(0));
+		assertEquals(2, streamIds.getValue().size());
+		assertTrue(streamIds.getValue().containsAll(Arrays.asList("stream1", "stream2")));
+		verify(dataStore, Mockito.never()).updateSourceQualityParameters(Mockito.anyString(), Mockito.anyString(), Mockito.anyDouble(), Mockito.anyInt());
+
+		//stream1 received packets between the checks and died again before a check sees it alive
+		when(fetchers[1].getLastPacketReceivedTime()).thenReturn(5000L);
+		manager.checkStreamFetchersStatus();
+
+		verify(dataStore, times(2)).updateSourceQualityParameters(streamIds.capture(), Mockito.eq(MuxAdaptor.QUALITY_POOR), Mockito.eq(0d), Mockito.eq(0));
+		assertEquals(1, streamIds.getValue().size());
+		assertTrue(streamIds.getValue().contains("stream1"));
+
+		manager.checkStreamFetchersStatus();
+		verify(dataStore, times(2)).updateSourceQualityParameters(Mockito.anyCollection(), Mockito.anyString(), Mockito.anyDouble(), Mockito.anyInt());
+	}
+
+	@Test
+	public void testRestartConcurrencyLimit() throws Exception {
+		ISchedulingService schedulingService = Mockito.mock(ISchedulingService.class);
+		StreamFetcherManager manager = new StreamFetcherManager(schedulingService, Mockito.mock(DataStore.class), appScope);
+		manager.setMaxConcurrentRestarts(1);
+
+		Map<String, StreamFetcher> fetcherMap = new ConcurrentHashMap<>();
+		StreamFetcher[] fetchers = new StreamFetcher[2];
+		for (int i = 0; i < fetchers.length; i++) {
+			Broadcast stream = new Broadcast("stream" + i);
+			stream.setStreamId("stream" + i);
+			fetchers[i] = Mockito.mock(StreamFetcher.class);
+			when(fetchers[i].getStream()).thenReturn(stream);
+			fetcherMap.put(stream.getStreamId(), fetchers[i]);
+		}
+		manager.setStreamFetcherMap(fetcherMap);
+
+		manager.restartStreamFetcher(fetchers[0]);
+		verify(fetchers[0]).startStream();
+		ArgumentCaptor<Semaphore> permitsCaptor = ArgumentCaptor.forClass(Semaphore.class);
+		verify(fetchers[0]).setOpenPermits(permitsCaptor.capture());
+
+		//first one is opening its stream
+		assertTrue(permitsCaptor.getValue().tryAcquire());
+		assertEquals(0, manager.getAvailableRestartPermits());
+
+		//second one should wait for the first one
+		manager.restartStreamFetcher(fetchers[1]);
+		verify(fetchers[1], Mockito.never()).stopStream();
+		verify(fetchers[1], Mockito.never()).startStream();
+		verify(schedulingService).addScheduledOnceJob(Mockito.eq(1000L), Mockito.any(IScheduledJob.class));
+
+		//first one finished opening its stream
+		permitsCaptor.getValue().release();
+		manager.restartStreamFetcher(fetchers[1]);
+		verify(fetchers[1]).startStream();
+		assertEquals(1, manager.getAvailableRestartPermits());
+
+		//stopped stream fetchers should not be restarted
+		manager.stopStreaming(fetchers[1].getStream());
+		manager.restartStreamFetcher(fetchers[1]);
+		verify(fetchers[1], times(1)).startStream();
+	}
+
+	@Test
+	public void testOpenPermitIsHeldDuringOpenAttempt() {
+		Broadcast newCam = new Broadcast("streamSource", "127.0.0.1:8080", "admin", "admin", 
+				"rtsp://127.0.0.1:6554/not_exists",
+				AntMediaApplicationAdapter.STREAM_SOURCE);
+		newCam.setStreamId("open_permit_stream");
+
+		StreamFetcher fetcher = new StreamFetcher(newCam, appScope, scheduler);
+		fetcher.setRestartStream(false);
+		Semaphore permits = new Semaphore(0);
+		fetcher.setOpenPermits(permits);
+
+		fetcher.startStream();
+
+		//open attempt waits for a permit
+		Awaitility.await().pollDelay(1, TimeUnit.SECONDS).atMost(5, TimeUnit.SECONDS).until(() -> permits.hasQueuedThreads());
+		assertEquals(0, fetcher.getOpenFailureCount());
+
+		permits.release();
+		Awaitility.await().atMost(20, TimeUnit.SECONDS).pollInterval(1, TimeUnit.SECONDS).until(() ->  {
+			return fetcher.getOpenFailureCount() == 1 && !fetcher.isThreadActive();
+		});
+
+		//permit is released by the same attempt
+		assertEquals(1, permits.availablePermits());
+
+		//next attempt does not use the permits
+		fetcher.startStream();
+		Awaitility.await().atMost(20, TimeUnit.SECONDS).pollInterval(1, TimeUnit.SECONDS).until(() ->  {
+			return fetcher.getOpenFailureCount() == 2 && !fetcher.isThreadActive();
+		});
+		assertEquals(1, permits.availablePermits());
+	}
+
+	@Test
+	public void testReconnectBackoff() {
+		Broadcast newCam = new Broadcast("streamSource", "127.0.0.1:8080", "admin", "admin", 
+				"rtsp://127.0.0.1:6554/not_exists",
+				AntMediaApplicationAdapter.STREAM_SOURCE);
+		newCam.setStreamId("backoff_stream");
+
+		StreamFetcher fetcher = new StreamFetcher(newCam, appScope, scheduler);
+		fetcher.setRestartStream(false);
+		assertEquals(0, fetcher.getReconnectDelayMs());
+
+		fetcher.startStream();
+
+		Awaitility.await().atMost(20, TimeUnit.SECONDS).pollInterval(1, TimeUnit.SECONDS).until(() ->  {
+			return fetcher.getOpenFailureCount() == 1 && !fetcher.isThreadActive();
+		});
+
+		assertEquals(1, fetcher.getConsecutiveOpenFailureCount());
+		assertEquals(StreamFetcher.RECONNECT_BACKOFF_BASE_MS, fetcher.getReconnectDelayMs());
+		assertTrue(fetcher.getReconnectDelayRemainingMs() <= StreamFetcher.RECONNECT_BACKOFF_BASE_MS);
+	}
+
+	@Test
+	public void testBufferedPacketPacingAndOverflow() {
+		Broadcast newCam = new Broadcast("streamSource", "127.0.0.1:8080", "admin", "admin", 
+				"rtsp://127.0.0.1:6554/test.flv",
+				AntMediaApplicationAdapter.STREAM_SOURCE);
+		newCam.setStreamId("buffered_stream");
+
+		StreamFetcher fetcher = new StreamFetcher(newCam, appScope, scheduler);
+		fetcher.setBufferTime(1000);
+		fetcher.setMaxBufferedPacketCount(100);
+
+		List<Long> writtenPackets = new ArrayList<>();
+		MuxAdaptor muxAdaptor = Mockito.mock(MuxAdaptor.class);
+		Mockito.doAnswer(invocation -> {
+			writtenPackets.add(((AVPacket)invocation.getArgument(1)).dts());
+			return null;
+		}).when(muxAdaptor).writePacket(Mockito.any(AVStream.class), Mockito.any(AVPacket.class));
+		fetcher.setMuxAdaptor(muxAdaptor);
+
+		AVFormatContext context = avformat.avformat_alloc_context();
+		AVStream videoStream = avformat.avformat_new_stream(context, null);
+		videoStream.time_base(new avutil.AVRational().num(1).den(1000));
+		videoStream.codecpar().codec_type(avutil.AVMEDIA_TYPE_VIDEO);
+
+		StreamFetcher.WorkerThread worker = fetcher.new WorkerThread();
+		worker.setInputFormatContext(context);
+
+		//25 fps, a key frame in every second
+		AVPacket pkt = avcodec.av_packet_alloc();
+		for (int i = 0; i < 10; i++) {
+			bufferPacket(worker, pkt, i);
+		}
+		assertEquals(10, fetcher.getBufferedPacketCount());
+
+		long now = System.currentTimeMillis();
+		//first packet is the anchor
+		assertEquals(1, worker.writeDuePackets(now));
+		assertEquals(0, worker.writeDuePackets(now + 39));
+		assertEquals(2, worker.writeDuePackets(now + 100));
+		assertEquals(7, worker.writeDuePackets(now + 400));
+		assertEquals(Arrays.asList(0L, 40L, 80L, 120L, 160L, 200L, 240L, 280L, 320L, 360L), writtenPackets);
+		assertEquals(0, fetcher.getDroppedPacketCount());
+
+		//buffer is 2.5 seconds, which is more than twice of the buffer time
+		for (int i = 10; i < 73; i++) {
+			bufferPacket(worker, pkt, i);
+		}
+		writtenPackets.clear();
+
+		//packets older than 880ms are dropped and video waits for the key frame at 1000ms 
+		//instead of writing the overflowing packets at once
+		assertEquals(1, worker.writeDuePackets(now + 500));
+		assertEquals(Arrays.asList(1000L), writtenPackets);
+		assertEquals(15, fetcher.getDroppedPacketCount());
+		assertEquals(47, fetcher.getBufferedPacketCount());
+
+		//pacing continues from the key frame
+		assertEquals(2, worker.writeDuePackets(now + 580));
+		assertEquals(Arrays.asList(1000L, 1040L, 1080L), writtenPackets);
+
+		//packets are dropped when the buffer has more packets than the limit
+		fetcher.setMaxBufferedPacketCount(0);
+		assertEquals(0, worker.writeDuePackets(now + 600));
+		assertEquals(0, fetcher.getBufferedPacketCount());
+		assertEquals(60, fetcher.getDroppedPacketCount());
+		assertEquals(3, writtenPackets.size());
+
+		avcodec.av_packet_free(pkt);
+		avformat.avformat_free_context(context);
+	}
+
+	private void bufferPacket(StreamFetcher.WorkerThread worker, AVPacket pkt, int index) {
+		pkt.dts(index * 40L);
+		pkt.pts(index * 40L);
+		pkt.flags(index % 25 == 0 ? avcodec.AV_PKT_FLAG_KEY : 0);
+		worker.bufferPacket(pkt);
+	}
+
+	@Test
+	public void testAVPacketPool() {
+		AVPacketPool pool = new AVPacketPool("test", 2, 1);
+
+		AVPacket packet1 = pool.borrow();
+		AVPacket packet2 = pool.borrow();
+		AVPacket packet3 = pool.borrow();
+		assertEquals(3, pool.getMissCount());
+		assertEquals(0, pool.getHitCount());
+		assertEquals(3, pool.getOutstandingCount());
+
+		pool.release(packet1);
+		pool.release(packet2);
+		//pool is above high watermark, it should be freed
+		pool.release(packet3);
+		assertEquals(2, pool.getPooledCount());
+		assertEquals(1, pool.getFreeCount());
+
+		AVPacket packet = pool.borrow();
+		assertEquals(1, pool.getHitCount());
+		assertEquals(1, pool.getPooledCount());
+		pool.release(packet);
+
+		pool.trim();
+		assertEquals(1, pool.getPooledCount());
+
+		packet = pool.borrow();
+		//one packet is not returned
+		assertEquals(1, pool.clear());
+		assertEquals(0, pool.getPooledCount());
+
+		pool.release(packet);
+		assertEquals(0, pool.clear());
+	}
+
+	@Test
+	public void testStreamFetcherEventLoop() {
+
+		StreamFetcherEventLoop eventLoop = new StreamFetcherEventLoop(2);
+		try {
+			assertEquals(2, eventLoop.getThreadCount());
+
+			Broadcast newCam = new Broadcast("streamSource", "127.0.0.1:8080", "admin", "admin", 
+					"src/test/resources/test_video_360p.flv",
+					AntMediaApplicationAdapter.STREAM_SOURCE);
+
+			String id = getInstance().getDataStore().save(newCam);
+
+			StreamFetcher fetcher = new StreamFetcher(newCam, appScope, scheduler);
+			fetcher.setEventLoop(eventLoop);
+			fetcher.setRestartStream(false);
+
+			assertFalse(fetcher.isThreadActive());
+
+			fetcher.startStream();
+
+			Awaitility.await().atMost(10, TimeUnit.SECONDS).pollInterval(1, TimeUnit.SECONDS).until(() ->  {
+				return fetcher.isThreadActive() && fetcher.isStreamAlive();
+			});
+
+			//worker should not be started as a separate thread
+			assertFalse(fetcher.getThread().isAlive());
+
+			fetcher.stopStream();
+
+			Awaitility.await().atMost(10, TimeUnit.SECONDS).pollInterval(1, TimeUnit.SECONDS).until(() ->  {
+				return !fetcher.isThreadActive();
+			});
+
+			assertEquals(0, getInstance().getMuxAdaptors().size());
+
+			getInstance().getDataStore().delete(id);
+		}
+		finally {
+			eventLoop.shutdown();
+		}
+	}
+
+	@Test
+	public void testStalledSourceInEventLoop() throws Exception {
+
+		byte[] flv = Files.readAllBytes(new File("src/test/resources/test_short.flv").toPath());
+		//it sends first 8 seconds at once and then stops sending without closing the connection
+		ServerSocket stalledServer = startLiveFlvServer(flv, 8000, 8000);
+		//it sends first 2 seconds at once and the rest in real time
+		ServerSocket liveServer = startLiveFlvServer(flv, 2000, Integer.MAX_VALUE);
+
+		//single thread so that a read blocked on the stalled source would delay the other one
+		StreamFetcherEventLoop eventLoop = new StreamFetcherEventLoop(1);
+		try {
+			Broadcast stalledStream = new Broadcast("stalledSource", "127.0.0.1:8080", "admin", "admin", 
+					"http://127.0.0.1:" + stalledServer.getLocalPort() + "/stalled.flv",
+					AntMediaApplicationAdapter.STREAM_SOURCE);
+			String stalledId = getInstance().getDataStore().save(stalledStream);
+
+			Broadcast liveStream = new Broadcast("liveSource", "127.0.0.1:8080", "admin", "admin", 
+					"http://127.0.0.1:" + liveServer.getLocalPort() + "/live.flv",
+					AntMediaApplicationAdapter.STREAM_SOURCE);
+			String liveId = getInstance().getDataStore().save(liveStream);
+
+			StreamFetcher stalledFetcher = new StreamFetcher(stalledStream, appScope, scheduler);
+			stalledFetcher.setEventLoop(eventLoop);
+			stalledFetcher.setRestartStream(false);
+
+			StreamFetcher liveFetcher = new StreamFetcher(liveStream, appScope, scheduler);
+			liveFetcher.setEventLoop(eventLoop);
+			liveFetcher.setRestartStream(false);
+
+			stalledFetcher.startStream();
+			liveFetcher.startStream();
+
+			//wait until the stalled source has sent all its data
+			Awaitility.await().atMost(20, TimeUnit.SECONDS).pollInterval(100, TimeUnit.MILLISECONDS).until(() -> 
+				stalledFetcher.getLastPacketReceivedTime() > 0 && liveFetcher.isStreamAlive()
+					&& System.currentTimeMillis() - stalledFetcher.getLastPacketReceivedTime() > 500
+			);
+
+			long maxGap = 0;
+			long endTime = System.currentTimeMillis() + 2000;
+			while (System.currentTimeMillis() < endTime) {
+				maxGap = Math.max(maxGap, System.currentTimeMillis() - liveFetcher.getLastPacketReceivedTime());
+				Thread.sleep(10);
+			}
+
+			//reads of the stalled source are interrupted after a short time, 
+			//so packets of the live source are read without waiting for the stalled one
+			assertTrue("Maximum time without a packet: " + maxGap, maxGap < 1000);
+			assertTrue(stalledFetcher.isThreadActive());
+
+			//stalled source is closed when it does not send a packet for the stall timeout
+			Awaitility.await().atMost(StreamFetcher.EVENT_LOOP_STALL_TIMEOUT_MS + 5000, TimeUnit.MILLISECONDS)
+				.pollInterval(100, TimeUnit.MILLISECONDS).until(() -> !stalledFetcher.isThreadActive());
+
+			liveFetcher.stopStream();
+			Awaitility.await().atMost(10, TimeUnit.SECONDS).pollInterval(100, TimeUnit.MILLISECONDS)
+				.until(() -> !liveFetcher.isThreadActive());
+
+			getInstance().getDataStore().delete(stalledId);
+			getInstance().getDataStore().delete(liveId);
+		}
+		finally {
+			eventLoop.shutdown();
+			stalledServer.close();
+			liveServer.close();
+		}
+	}
+
+	/**
+	 * Serves the FLV data over HTTP like a live source. Tags are sent at their timestamps 
+	 * after the tags in the burst time are sent at once. Tags after the stall time are not sent 
+	 * and the connection is kept open until the server socket is closed
+	 */
+	private ServerSocket startLiveFlvServer(byte[] flv, int burstMs, int stallAfterMs) throws IOException {
+		ServerSocket serverSocket = new ServerSocket(0);
+		Thread serverThread = new Thread(() -> {
+			try (Socket socket = serverSocket.accept()) {
+				BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+				String line;
+				while ((line = reader.readLine()) != null && !line.isEmpty()) {
+					//skip the request headers
+				}
+				OutputStream out = socket.getOutputStream();
+				out.write("HTTP/1.1 200 OK\r\nContent-Type: video/x-flv\r\nConnection: close\r\n\r\n".getBytes());
+
+				//header and the first previous tag size
+				int offset = ByteBuffer.wrap(flv, 5, 4).getInt() + 4;
+				out.write(flv, 0, offset);
+				long startTime = System.currentTimeMillis();
+				while (offset + 11 <= flv.length) {
+					int size = ((flv[offset + 1] & 0xFF) << 16) | ((flv[offset + 2] & 0xFF) << 8) | (flv[offset + 3] & 0xFF);
+					int timestamp = (((flv[offset + 4] & 0xFF) << 16) | ((flv[offset + 5] & 0xFF) << 8) | (flv[offset + 6] & 0xFF))
+							| ((flv[offset + 7] & 0xFF) << 24);
+					if (timestamp >= stallAfterMs) {
+						break;
+					}
+					long sendTime = startTime + Math.max(0, timestamp - burstMs);
+					long waitTime = sendTime - System.currentTimeMillis();
+					if (waitTime > 0) {
+						Thread.sleep(waitTime);
+					}
+					int length = Math.min(11 + size + 4, flv.length - offset);
+					out.write(flv, offset, length);
+					out.flush();
+					offset += length;
+				}
+
+				while (!serverSocket.isClosed()) {
+					Thread.sleep(100);
+				}
+			}
+			catch (IOException e) {
+				logger.info("Live flv server is closed: {}", e.getMessage());
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		});
+		serverThread.setDaemon(true);
+		serverThread.start();
+		return serverSocket;
+	}
+
+	@Test
+	public void testStreamFetcherEventLoopShutdown() {
+
+		StreamFetcherEventLoop eventLoop = new StreamFetcherEventLoop(2);
+
+		Broadcast newCam = new Broadcast("streamSource", "127.0.0.1:8080", "admin", "admin", 
+				"src/test/resources/test_video_360p.flv",
+				AntMediaApplicationAdapter.STREAM_SOURCE);
+
+		String id = getInstance().getDataStore().save(newCam);
+
+		StreamFetcher fetcher = new StreamFetcher(newCam, appScope, scheduler);
+		fetcher.setEventLoop(eventLoop);
+
+		fetcher.startStream();
+
+		Awaitility.await().atMost(10, TimeUnit.SECONDS).pollInterval(1, TimeUnit.SECONDS).until(() ->  {
+			return fetcher.isThreadActive() && fetcher.isStreamAlive();
+		});
+
+		//stream should be closed when the loop is shut down even if it's not stopped
+		assertTrue(eventLoop.shutdown(5000));
+		assertTrue(eventLoop.isShutdown());
+		assertFalse(fetcher.isThreadActive());
+		assertEquals(0, getInstance().getMuxAdaptors().size());
+
+		//it should not be started on a loop that is shut down
+		fetcher.startStream();
+		assertFalse(fetcher.isThreadActive());
+
+		getInstance().getDataStore().delete(id);
+	}
+
 	@Test
 	public void testCameraStartedProperly() {
 
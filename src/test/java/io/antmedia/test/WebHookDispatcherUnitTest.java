@@ -0,0 +1,242 @@
+package io.antmedia.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.awaitility.Awaitility;
+import org.junit.Test;
+
+import io.antmedia.webhook.WebHookDispatcher;
+import io.antmedia.webhook.WebHookDispatcher.WebHookEvent;
+
+public class WebHookDispatcherUnitTest {
+
+	private static Map<String, String> variables(String id) {
+		Map<String, String> variables = new HashMap<>();
+		variables.put("id", id);
+		variables.put("action", "liveStreamStarted");
+		return variables;
+	}
+
+	@Test
+	public void testConcurrencyLimitPerUrl() throws InterruptedException {
+		AtomicInteger concurrent = new AtomicInteger();
+		AtomicInteger maxConcurrent = new AtomicInteger();
+		CountDownLatch latch = new CountDownLatch(1);
+
+		WebHookDispatcher dispatcher = new WebHookDispatcher(8) {
+			@Override
+			protected int send(String url, List<WebHookEvent> batch) throws IOException {
+				maxConcurrent.accumulateAndGet(concurrent.incrementAndGet(), Math::max);
+				try {
+					latch.await(5, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				concurrent.decrementAndGet();
+				return 200;
+			}
+		};
+		dispatcher.setMaxConcurrentPerUrl(2);
+		dispatcher.start();
+
+		for (int i = 0; i < 20; i++) {
+			assertTrue(dispatcher.dispatch("http://localhost/hook", variables("stream" + i)));
+		}
+
+		Awaitility.await().atMost(5, TimeUnit.SECONDS).until(() -> concurrent.get() == 2);
+		//other events wait for the URL
+		assertEquals(18, dispatcher.getPendingCount());
+
+		latch.countDown();
+		Awaitility.await().atMost(5, TimeUnit.SECONDS).until(() -> dispatcher.getSentCount() == 20);
+		assertEquals(2, maxConcurrent.get());
+		assertEquals(0, dispatcher.getPendingCount());
+		assertEquals(0, dispatcher.getFailedCount());
+
+		dispatcher.stop();
+	}
+
+	@Test
+	public void testBatching() {
+		AtomicInteger requestCount = new AtomicInteger();
+		AtomicInteger maxBatchSize = new AtomicInteger();
+		CountDownLatch latch = new CountDownLatch(1);
+
+		WebHookDispatcher dispatcher = new WebHookDispatcher(2) {
+			@Override
+			protected int send(String url, List<WebHookEvent> batch) throws IOException {
+				requestCount.incrementAndGet();
+				maxBatchSize.accumulateAndGet(batch.size(), Math::max);
+				try {
+					latch.await(5, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				return 200;
+			}
+		};
+		dispatcher.setMaxConcurrentPerUrl(1);
+		dispatcher.setBatchSize(10);
+		dispatcher.start();
+
+		dispatcher.dispatch("http://localhost/hook", variables("stream0"));
+		Awaitility.await().atMost(5, TimeUnit.SECONDS).until(() -> requestCount.get() == 1);
+
+		//these are queued while the first request is in flight and sent together
+		for (int i = 1; i <= 5; i++) {
+			dispatcher.dispatch("http://localhost/hook", variables("stream" + i));
+		}
+		latch.countDown();
+
+		Awaitility.await().atMost(5, TimeUnit.SECONDS).until(() -> dispatcher.getSentCount() == 6);
+		assertEquals(2, requestCount.get());
+		assertEquals(5, maxBatchSize.get());
+
+		dispatcher.stop();
+	}
+
+	@Test
+	public void testRetryAndPersistence() throws IOException {
+		File retryQueueFile = File.createTempFile("webhook_retry_queue", ".json");
+		retryQueueFile.delete();
+
+		AtomicInteger attempts = new AtomicInteger();
+		WebHookDispatcher failingDispatcher = new WebHookDispatcher(2) {
+			@Override
+			protected int send(String url, List<WebHookEvent> batch) throws IOException {
+				attempts.incrementAndGet();
+				throw new IOException("connection refused");
+			}
+		};
+		failingDispatcher.setRetryDelayMs(10);
+		failingDispatcher.setMaxRetryCount(2);
+		failingDispatcher.setRetryQueueFile(retryQueueFile);
+		failingDispatcher.start();
+
+		failingDispatcher.dispatch("http://localhost/hook", variables("dropped"));
+
+		//first attempt and 2 retries
+		Awaitility.await().atMost(10, TimeUnit.SECONDS).until(() -> failingDispatcher.getDroppedCount() == 1);
+		assertEquals(3, attempts.get());
+		assertEquals(3, failingDispatcher.getFailedCount());
+		assertEquals(2, failingDispatcher.getRetriedCount());
+		assertEquals(0, failingDispatcher.getSentCount());
+
+		failingDispatcher.setRetryDelayMs(60000);
+		failingDispatcher.dispatch("http://localhost/hook", variables("persisted"));
+		Awaitility.await().atMost(5, TimeUnit.SECONDS).until(() -> failingDispatcher.getRetryQueueLength() == 1);
+		failingDispatcher.stop();
+		assertTrue(retryQueueFile.exists());
+
+		Map<String, String> received = new HashMap<>();
+		WebHookDispatcher dispatcher = new WebHookDispatcher(2) {
+			@Override
+			protected int send(String url, List<WebHookEvent> batch) throws IOException {
+				for (WebHookEvent event : batch) {
+					received.putAll(event.getVariables());
+				}
+				return 200;
+			}
+		};
+		dispatcher.setRetryDelayMs(10);
+		dispatcher.setRetryQueueFile(retryQueueFile);
+		dispatcher.start();
+
+		Awaitility.await().atMost(10, TimeUnit.SECONDS).until(() -> dispatcher.getSentCount() == 1);
+		assertEquals("persisted", received.get("id"));
+		Awaitility.await().atMost(5, TimeUnit.SECONDS).until(() -> !retryQueueFile.exists());
+
+		dispatcher.stop();
+		assertFalse(retryQueueFile.exists());
+	}
+
+	@Test
+	public void testRetryQueueIsBounded() {
+		WebHookDispatcher dispatcher = new WebHookDispatcher(2) {
+			@Override
+			protected int send(String url, List<WebHookEvent> batch) throws IOException {
+				return 500;
+			}
+		};
+		dispatcher.setRetryDelayMs(60000);
+		dispatcher.setRetryQueueSize(5);
+		dispatcher.start();
+
+		for (int i = 0; i < 8; i++) {
+			dispatcher.dispatch("http://localhost/hook" + i, variables("stream" + i));
+		}
+
+		Awaitility.await().atMost(5, TimeUnit.SECONDS).until(() -> dispatcher.getDroppedCount() == 3);
+		assertEquals(8, dispatcher.getFailedCount());
+		assertEquals(5, dispatcher.getRetryQueueLength());
+
+		dispatcher.stop();
+	}
+
+	@Test
+	public void testStopWaitsForEventsBeingSent() {
+		CountDownLatch sending = new CountDownLatch(1);
+		WebHookDispatcher dispatcher = new WebHookDispatcher(2) {
+			@Override
+			protected int send(String url, List<WebHookEvent> batch) throws IOException {
+				sending.countDown();
+				try {
+					Thread.sleep(300);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException(e);
+				}
+				return 200;
+			}
+		};
+		dispatcher.start();
+
+		dispatcher.dispatch("http://localhost/hook", variables("stream1"));
+		Awaitility.await().atMost(5, TimeUnit.SECONDS).until(() -> sending.getCount() == 0);
+
+		//request is not interrupted
+		dispatcher.stop();
+		assertEquals(1, dispatcher.getSentCount());
+		assertEquals(0, dispatcher.getFailedCount());
+	}
+
+	@Test
+	public void testStopTimeout() {
+		CountDownLatch sending = new CountDownLatch(1);
+		CountDownLatch latch = new CountDownLatch(1);
+		WebHookDispatcher dispatcher = new WebHookDispatcher(2) {
+			@Override
+			protected int send(String url, List<WebHookEvent> batch) throws IOException {
+				sending.countDown();
+				try {
+					latch.await(10, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException(e);
+				}
+				return 200;
+			}
+		};
+		dispatcher.setTimeoutMs(200);
+		dispatcher.start();
+
+		dispatcher.dispatch("http://localhost/hook", variables("stream1"));
+		Awaitility.await().atMost(5, TimeUnit.SECONDS).until(() -> sending.getCount() == 0);
+
+		long startTime = System.currentTimeMillis();
+		dispatcher.stop();
+		assertTrue(System.currentTimeMillis() - startTime < 5000);
+		assertEquals(0, dispatcher.getSentCount());
+	}
+}
@@ -13,6 +13,7 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 
@@ -20,17 +21,24 @@ import org.apache.commons.lang3.RandomStringUtils;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import org.mapdb.BTreeMap;
+import org.mapdb.DB;
+import org.mapdb.DBMaker;
+import org.mapdb.Serializer;
 import org.mongodb.morphia.Datastore;
 import org.mongodb.morphia.query.Query;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.gson.Gson;
+
 import io.antmedia.AntMediaApplicationAdapter;
 import io.antmedia.AppSettings;
 import io.antmedia.cluster.StreamInfo;
 import io.antmedia.datastore.DBUtils;
 import io.antmedia.datastore.db.DataStore;
 import io.antmedia.datastore.db.DataStoreFactory;
+import io.antmedia.datastore.db.IKeysetPaginatedDataStore;
 import io.antmedia.datastore.db.InMemoryDataStore;
 import io.antmedia.datastore.db.MapDBStore;
 import io.antmedia.datastore.db.MongoStore;
@@ -94,11 +102,260 @@ public class DBStoresUnitTest {
 		testRTMPViewerCount(dataStore);
 		testTokenOperations(dataStore);
 		testConferenceRoom(dataStore);
+		testKeysetPagination(dataStore);
+
+	}
+
+	@Test
+	public void testMapDBStoreBinary() {
+
+		DataStore dataStore = new MapDBStore("testdb", true);
+		testBugGetExternalStreamsList(dataStore);
+		testGetPagination(dataStore);
+		testNullCheck(dataStore);
+		testSimpleOperations(dataStore);
+		testRemoveEndpoint(dataStore);
+		testRTMPURL(dataStore);
+		testStreamWithId(dataStore);
+		testSaveDetection(dataStore);
+		testFilterSearchOperations(dataStore);
+		testAddSocialEndpointCredentials(dataStore);
+		testVoDFunctions(dataStore);
+		testSaveStreamInDirectory(dataStore);
+		testEditCameraInfo(dataStore);
+		testGetActiveBroadcastCount(dataStore);
+		testUpdateHLSViewerCount(dataStore);
+		testWebRTCViewerCount(dataStore);
+		testRTMPViewerCount(dataStore);
+		testTokenOperations(dataStore);
+		testConferenceRoom(dataStore);
+		testKeysetPagination(dataStore);
 
 	}
 
+	@Test
+	public void testMapDBStoreMigration() {
+
+		//create a db having legacy string maps
+		DB db = DBMaker.fileDB("testdb").fileMmapEnableIfSupported().transactionEnable().make();
+		BTreeMap<String, String> legacyMap = db.treeMap("BROADCAST").keySerializer(Serializer.STRING)
+				.valueSerializer(Serializer.STRING).counterEnable().createOrOpen();
+		Broadcast broadcast = new Broadcast("legacy");
+		broadcast.setStreamId("legacyStreamId");
+		broadcast.setStatus(AntMediaApplicationAdapter.BROADCAST_STATUS_BROADCASTING);
+		broadcast.setDuration(1234567890123L);
+		legacyMap.put(broadcast.getStreamId(), new Gson().toJson(broadcast));
+		db.commit();
+		db.close();
+
+		MapDBStore dataStore = new MapDBStore("testdb");
+		assertFalse(dataStore.isBinarySerialization());
+		Broadcast migrated = dataStore.get("legacyStreamId");
+		assertNotNull(migrated);
+		assertEquals("legacy", migrated.getName());
+		assertEquals(1234567890123L, migrated.getDuration());
+		assertEquals(1, dataStore.getBroadcastCount());
+
+		Token token = new Token();
+		token.setStreamId("legacyStreamId");
+		token.setTokenId("tokenId");
+		token.setType(Token.PLAY_TOKEN);
+		token.setExpireDate(Instant.now().getEpochSecond() + 100);
+		assertTrue(dataStore.saveToken(token));
+
+		Token token2 = new Token();
+		token2.setStreamId("legacyStreamId");
+		token2.setTokenId("tokenId2");
+		token2.setType(Token.PLAY_TOKEN);
+		token2.setExpireDate(Instant.now().getEpochSecond() + 100);
+		assertTrue(dataStore.saveToken(token2));
+		dataStore.close();
+
+		//json mode should use the legacy maps as they are
+		db = DBMaker.fileDB("testdb").fileMmapEnableIfSupported().transactionEnable().make();
+		assertFalse(db.exists(MapDBStore.ACTIVE_MAPS_MAP_NAME));
+		assertFalse(db.exists(MapDBStore.MAP_NAME + MapDBStore.BINARY_MAP_SUFFIX));
+		BTreeMap<String, String> legacyTokenMap = db.treeMap(MapDBStore.TOKEN).keySerializer(Serializer.STRING)
+				.valueSerializer(Serializer.STRING).open();
+		assertEquals(2, legacyTokenMap.size());
+		db.close();
+
+		//open in binary mode, records should be copied to binary maps
+		dataStore = new MapDBStore("testdb", true);
+		assertTrue(dataStore.isBinarySerialization());
+		migrated = dataStore.get("legacyStreamId");
+		assertNotNull(migrated);
+		assertEquals("legacy", migrated.getName());
+		assertEquals(AntMediaApplicationAdapter.BROADCAST_STATUS_BROADCASTING, migrated.getStatus());
+		assertEquals(1234567890123L, migrated.getDuration());
+		assertEquals(1, dataStore.getBroadcastCount());
+		assertNotNull(dataStore.getToken("tokenId"));
+		assertTrue(dataStore.updateStatus("legacyStreamId", AntMediaApplicationAdapter.BROADCAST_STATUS_FINISHED));
+		assertTrue(dataStore.deleteToken("tokenId2"));
+		dataStore.close();
+
+		//open in json mode again, records should be copied back to the legacy maps
+		dataStore = new MapDBStore("testdb");
+		migrated = dataStore.get("legacyStreamId");
+		assertNotNull(migrated);
+		assertEquals(AntMediaApplicationAdapter.BROADCAST_STATUS_FINISHED, migrated.getStatus());
+		assertEquals(1, dataStore.getBroadcastCount());
+		assertEquals("legacyStreamId", dataStore.getToken("tokenId").getStreamId());
+		//old copy in the legacy map should not be used
+		assertNull(dataStore.getToken("tokenId2"));
+		dataStore.close();
+
+		//legacy map should have the current records so that an older version reads them
+		db = DBMaker.fileDB("testdb").fileMmapEnableIfSupported().transactionEnable().make();
+		legacyMap = db.treeMap("BROADCAST").keySerializer(Serializer.STRING)
+				.valueSerializer(Serializer.STRING).open();
+		assertEquals(1, legacyMap.size());
+		Broadcast legacyBroadcast = new Gson().fromJson(legacyMap.get("legacyStreamId"), Broadcast.class);
+		assertEquals("legacy", legacyBroadcast.getName());
+		assertEquals(AntMediaApplicationAdapter.BROADCAST_STATUS_FINISHED, legacyBroadcast.getStatus());
+		db.close();
+
+		//opening in json mode again should not copy anything
+		dataStore = new MapDBStore("testdb");
+		assertNull(dataStore.getToken("tokenId2"));
+		assertEquals(1, dataStore.getBroadcastCount());
+		dataStore.close();
+	}
+
 
 
+	@Test
+	public void testMapDBStoreGroupCommit() {
+
+		MapDBStore dataStore = new MapDBStore("testdb");
+		dataStore.setGroupCommit(60000, 5, null);
+		assertTrue(dataStore.getLazyCommitGroups().contains(MapDBStore.STATS_GROUP));
+		assertFalse(dataStore.getLazyCommitGroups().contains(MapDBStore.MAP_NAME));
+
+		String streamId = dataStore.save(new Broadcast("group commit"));
+		assertNotNull(streamId);
+		long commitCount = dataStore.getCommitCount();
+
+		//stats updates are coalesced
+		for (int i = 0; i < 4; i++) {
+			assertTrue(dataStore.updateHLSViewerCount(streamId, 1));
+		}
+		assertEquals(commitCount, dataStore.getCommitCount());
+		assertEquals(4, dataStore.getPendingCommitCount());
+		assertEquals(4, dataStore.get(streamId).getHlsViewerCount());
+
+		//max ops triggers commit
+		assertTrue(dataStore.updateHLSViewerCount(streamId, 1));
+		assertEquals(commitCount + 1, dataStore.getCommitCount());
+		assertEquals(0, dataStore.getPendingCommitCount());
+
+		//strict mutation commits the pending ones as well
+		assertTrue(dataStore.updateHLSViewerCount(streamId, 1));
+		assertEquals(1, dataStore.getPendingCommitCount());
+		assertTrue(dataStore.updateStatus(streamId, AntMediaApplicationAdapter.BROADCAST_STATUS_BROADCASTING));
+		assertEquals(0, dataStore.getPendingCommitCount());
+		assertEquals(commitCount + 2, dataStore.getCommitCount());
+
+		//pending mutations are committed while closing
+		assertTrue(dataStore.updateHLSViewerCount(streamId, 1));
+		assertEquals(1, dataStore.getPendingCommitCount());
+		dataStore.close();
+
+		dataStore = new MapDBStore("testdb");
+		assertEquals(7, dataStore.get(streamId).getHlsViewerCount());
+		assertEquals(AntMediaApplicationAdapter.BROADCAST_STATUS_BROADCASTING, dataStore.get(streamId).getStatus());
+
+		//disabling group commit commits every mutation
+		dataStore.setGroupCommit(0, 5, null);
+		commitCount = dataStore.getCommitCount();
+		assertTrue(dataStore.updateHLSViewerCount(streamId, 1));
+		assertEquals(commitCount + 1, dataStore.getCommitCount());
+		assertEquals(0, dataStore.getPendingCommitCount());
+		dataStore.close();
+
+		//closing while flushes are scheduled frequently should not fail and lose the pending mutations
+		for (int i = 0; i < 20; i++) {
+			dataStore = new MapDBStore("testdb");
+			dataStore.setGroupCommit(1, 1000, null);
+			assertTrue(dataStore.updateHLSViewerCount(streamId, 1));
+			dataStore.close();
+		}
+		dataStore = new MapDBStore("testdb");
+		assertEquals(28, dataStore.get(streamId).getHlsViewerCount());
+		dataStore.close();
+	}
+
+	@Test
+	public void testMapDBStoreIndexes() {
+
+		MapDBStore dataStore = new MapDBStore("testdb", true);
+
+		Broadcast ipCamera = new Broadcast("camera");
+		ipCamera.setType(AntMediaApplicationAdapter.IP_CAMERA);
+		String ipCameraId = dataStore.save(ipCamera);
+
+		Broadcast streamSource = new Broadcast("source");
+		streamSource.setType(AntMediaApplicationAdapter.STREAM_SOURCE);
+		String streamSourceId = dataStore.save(streamSource);
+
+		Broadcast liveStream = new Broadcast("live");
+		liveStream.setType(AntMediaApplicationAdapter.LIVE_STREAM);
+		String liveStreamId = dataStore.save(liveStream);
+
+		assertEquals(2, dataStore.getExternalStreamsList().size());
+		assertEquals(1, dataStore.filterBroadcastList(0, 10, AntMediaApplicationAdapter.LIVE_STREAM).size());
+
+		assertTrue(dataStore.updateStatus(liveStreamId, AntMediaApplicationAdapter.BROADCAST_STATUS_BROADCASTING));
+		assertTrue(dataStore.updateStatus(ipCameraId, AntMediaApplicationAdapter.BROADCAST_STATUS_BROADCASTING));
+		assertEquals(2, dataStore.getActiveBroadcastCount());
+
+		//updating the same status does not change the count
+		assertTrue(dataStore.updateStatus(liveStreamId, AntMediaApplicationAdapter.BROADCAST_STATUS_BROADCASTING));
+		assertEquals(2, dataStore.getActiveBroadcastCount());
+
+		for (int i = 0; i < 5; i++) {
+			Token token = new Token();
+			token.setStreamId(i < 3 ? liveStreamId : streamSourceId);
+			token.setTokenId("token" + i);
+			token.setType(Token.PLAY_TOKEN);
+			token.setExpireDate(Instant.now().getEpochSecond() + 100);
+			assertTrue(dataStore.saveToken(token));
+		}
+		assertEquals(3, dataStore.listAllTokens(liveStreamId, 0, 10).size());
+		assertEquals(1, dataStore.listAllTokens(liveStreamId, 2, 10).size());
+		assertEquals("token2", dataStore.listAllTokens(liveStreamId, 2, 10).get(0).getTokenId());
+		assertEquals(2, dataStore.listAllTokens(streamSourceId, 0, 10).size());
+
+		//indexes are built again after reopening
+		dataStore.close();
+		dataStore = new MapDBStore("testdb", true);
+
+		assertEquals(2, dataStore.getActiveBroadcastCount());
+		assertEquals(2, dataStore.getExternalStreamsList().size());
+		assertEquals(3, dataStore.listAllTokens(liveStreamId, 0, 10).size());
+
+		assertTrue(dataStore.delete(ipCameraId));
+		assertEquals(1, dataStore.getActiveBroadcastCount());
+		assertEquals(1, dataStore.getExternalStreamsList().size());
+		assertEquals(streamSourceId, dataStore.getExternalStreamsList().get(0).getStreamId());
+
+		assertTrue(dataStore.updateStatus(liveStreamId, AntMediaApplicationAdapter.BROADCAST_STATUS_FINISHED));
+		assertEquals(0, dataStore.getActiveBroadcastCount());
+
+		assertTrue(dataStore.revokeTokens(liveStreamId));
+		assertEquals(0, dataStore.listAllTokens(liveStreamId, 0, 10).size());
+		assertEquals(2, dataStore.listAllTokens(streamSourceId, 0, 10).size());
+
+		//token moved to another stream
+		Token token = dataStore.getToken("token3");
+		token.setStreamId(liveStreamId);
+		assertTrue(dataStore.saveToken(token));
+		assertEquals(1, dataStore.listAllTokens(liveStreamId, 0, 10).size());
+		assertEquals(1, dataStore.listAllTokens(streamSourceId, 0, 10).size());
+
+		dataStore.close();
+	}
+
 	@Test
 	public void testMemoryDataStore() {
 
@@ -122,9 +379,95 @@ public class DBStoresUnitTest {
 		testRTMPViewerCount(dataStore);
 		testTokenOperations(dataStore);
 		testConferenceRoom(dataStore);
+		testKeysetPagination(dataStore);
 
 	}
 
+	@Test
+	public void testMemoryDataStoreConcurrency() throws InterruptedException {
+
+		DataStore dataStore = new InMemoryDataStore("testdb");
+
+		List<String> streamIds = new ArrayList<>();
+		for (int i = 0; i < 200; i++) {
+			streamIds.add(dataStore.save(new Broadcast("stream" + i)));
+		}
+
+		//pages return the items in insertion order
+		for (int offset = 0; offset < 200; offset += 50) {
+			List<Broadcast> page = dataStore.getBroadcastList(offset, 50);
+			assertEquals(50, page.size());
+			for (int i = 0; i < 50; i++) {
+				assertEquals(streamIds.get(offset + i), page.get(i).getStreamId());
+			}
+		}
+
+		//removing an item shifts the following pages
+		assertTrue(dataStore.delete(streamIds.get(10)));
+		streamIds.remove(10);
+		List<Broadcast> page = dataStore.getBroadcastList(50, 50);
+		assertEquals(streamIds.get(50), page.get(0).getStreamId());
+
+		//new items are appended to the end
+		String newStreamId = dataStore.save(new Broadcast("new stream"));
+		streamIds.add(newStreamId);
+		page = dataStore.getBroadcastList(150, 50);
+		assertEquals(50, page.size());
+		assertEquals(newStreamId, page.get(49).getStreamId());
+
+		//concurrent updates on the same stream are not lost
+		String streamId = streamIds.get(0);
+		int threadCount = 8;
+		int updateCount = 1000;
+		Thread[] threads = new Thread[threadCount];
+		for (int i = 0; i < threadCount; i++) {
+			threads[i] = new Thread(() -> {
+				for (int j = 0; j < updateCount; j++) {
+					dataStore.updateHLSViewerCount(streamId, 1);
+					dataStore.getBroadcastList(0, 50);
+					dataStore.save(new Broadcast("concurrent"));
+				}
+			});
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(threadCount * updateCount, dataStore.get(streamId).getHlsViewerCount());
+		assertEquals(200 + threadCount * updateCount, dataStore.getBroadcastCount());
+
+		//keyset pages start from the key that is passed, interleaved readers do not affect each other
+		IKeysetPaginatedDataStore keysetDataStore = (IKeysetPaginatedDataStore) dataStore;
+		List<Broadcast> firstPage = keysetDataStore.getBroadcastListAfter(null, 50);
+		List<Broadcast> otherPage = keysetDataStore.getBroadcastListAfter(firstPage.get(9).getStreamId(), 10);
+		List<Broadcast> nextPage = keysetDataStore.getBroadcastListAfter(firstPage.get(49).getStreamId(), 50);
+		assertEquals(firstPage.get(10).getStreamId(), otherPage.get(0).getStreamId());
+		assertTrue(nextPage.get(0).getStreamId().compareTo(firstPage.get(49).getStreamId()) > 0);
+
+		//readers walking the pages while items are removed and added see the keys in increasing order
+		List<Broadcast> all = dataStore.getBroadcastList(0, 100);
+		Thread writer = new Thread(() -> {
+			for (Broadcast broadcast : all) {
+				dataStore.delete(broadcast.getStreamId());
+				dataStore.save(new Broadcast("replacement"));
+			}
+		});
+		writer.start();
+		for (int i = 0; i < 10; i++) {
+			String lastKey = null;
+			List<Broadcast> keysetPage;
+			do {
+				keysetPage = keysetDataStore.getBroadcastListAfter(lastKey, 50);
+				for (Broadcast broadcast : keysetPage) {
+					assertTrue(lastKey == null || broadcast.getStreamId().compareTo(lastKey) > 0);
+					lastKey = broadcast.getStreamId();
+				}
+			} while (!keysetPage.isEmpty());
+		}
+		writer.join();
+		assertEquals(200 + threadCount * updateCount, dataStore.getBroadcastCount());
+	}
+
 	@Test
 	public void testMongoStore() {
 
@@ -166,10 +509,106 @@ public class DBStoresUnitTest {
 		testClearAtStart(dataStore);
 		testClearAtStartCluster(dataStore);
 		testConferenceRoom(dataStore);
+		testKeysetPagination(dataStore);
 		testStreamSourceList(dataStore);
 
 	}
 
+	public void testKeysetPagination(DataStore dataStore) {
+
+		assertTrue(dataStore instanceof IKeysetPaginatedDataStore);
+		IKeysetPaginatedDataStore keysetDataStore = (IKeysetPaginatedDataStore) dataStore;
+
+		clear(dataStore);
+		List<String> streamIds = new ArrayList<>();
+		for (int i = 0; i < 120; i++) {
+			Broadcast broadcast = new Broadcast("keyset" + i);
+			streamIds.add(dataStore.save(broadcast));
+		}
+		Collections.sort(streamIds);
+
+		List<String> fetchedIds = new ArrayList<>();
+		String lastStreamId = null;
+		List<Broadcast> page;
+		do {
+			page = keysetDataStore.getBroadcastListAfter(lastStreamId, 50);
+			assertTrue(page.size() <= 50);
+			for (Broadcast broadcast : page) {
+				fetchedIds.add(broadcast.getStreamId());
+			}
+			if (!page.isEmpty()) {
+				lastStreamId = page.get(page.size() - 1).getStreamId();
+			}
+		} while (!page.isEmpty());
+		assertEquals(streamIds, fetchedIds);
+
+		//size is limited
+		assertEquals(DataStore.MAX_ITEM_IN_ONE_LIST, keysetDataStore.getBroadcastListAfter(null, 1000).size());
+		assertEquals(0, keysetDataStore.getBroadcastListAfter(null, 0).size());
+
+		//removed key is still a valid cursor
+		assertTrue(dataStore.delete(streamIds.get(60)));
+		page = keysetDataStore.getBroadcastListAfter(streamIds.get(60), 10);
+		assertEquals(streamIds.get(61), page.get(0).getStreamId());
+
+		//vods
+		List<String> vodIds = new ArrayList<>();
+		for (int i = 0; i < 70; i++) {
+			String vodId = RandomStringUtils.randomNumeric(24);
+			VoD vod = new VoD("streamName", "streamId", "filePath", "vodName", 111, 111, 111, VoD.STREAM_VOD, vodId);
+			assertNotNull(dataStore.addVod(vod));
+			vodIds.add(vodId);
+		}
+		List<String> fetchedVodIds = new ArrayList<>();
+		String lastVodId = null;
+		List<VoD> vodPage;
+		do {
+			vodPage = keysetDataStore.getVodListAfter(lastVodId, 30);
+			for (VoD vod : vodPage) {
+				if (lastVodId != null) {
+					assertTrue(vod.getVodId().compareTo(lastVodId) > 0);
+				}
+				fetchedVodIds.add(vod.getVodId());
+				lastVodId = vod.getVodId();
+			}
+		} while (!vodPage.isEmpty());
+		assertEquals(dataStore.getTotalVodNumber(), fetchedVodIds.size());
+		assertTrue(fetchedVodIds.containsAll(vodIds));
+
+		//tokens
+		String streamId = RandomStringUtils.randomAlphanumeric(12);
+		String otherStreamId = RandomStringUtils.randomAlphanumeric(12);
+		List<String> tokenIds = new ArrayList<>();
+		for (int i = 0; i < 65; i++) {
+			Token token = new Token();
+			token.setStreamId(i % 5 == 0 ? otherStreamId : streamId);
+			token.setTokenId(RandomStringUtils.randomAlphanumeric(16));
+			token.setType(Token.PLAY_TOKEN);
+			token.setExpireDate(Instant.now().getEpochSecond() + 100);
+			assertTrue(dataStore.saveToken(token));
+			if (i % 5 != 0) {
+				tokenIds.add(token.getTokenId());
+			}
+		}
+		Collections.sort(tokenIds);
+		List<String> fetchedTokenIds = new ArrayList<>();
+		String lastTokenId = null;
+		List<Token> tokenPage;
+		do {
+			tokenPage = keysetDataStore.listAllTokensAfter(streamId, lastTokenId, 20);
+			for (Token token : tokenPage) {
+				assertEquals(streamId, token.getStreamId());
+				fetchedTokenIds.add(token.getTokenId());
+				lastTokenId = token.getTokenId();
+			}
+		} while (!tokenPage.isEmpty());
+		assertEquals(tokenIds, fetchedTokenIds);
+
+		assertTrue(dataStore.revokeTokens(streamId));
+		assertTrue(dataStore.revokeTokens(otherStreamId));
+		clear(dataStore);
+	}
+
 	public void clear(DataStore dataStore) 
 	{
 		long numberOfStreams = dataStore.getBroadcastCount();
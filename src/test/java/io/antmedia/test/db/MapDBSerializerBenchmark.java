@@ -0,0 +1,97 @@
+package io.antmedia.test.db;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.mapdb.DataInput2;
+import org.mapdb.DataOutput2;
+import org.mapdb.Serializer;
+import org.mapdb.serializer.GroupSerializerObjectArray;
+
+import com.google.gson.Gson;
+
+import io.antmedia.AntMediaApplicationAdapter;
+import io.antmedia.datastore.db.BinaryValueSerializer;
+import io.antmedia.datastore.db.types.Broadcast;
+import io.antmedia.datastore.db.types.Endpoint;
+
+/**
+ * Compares the serialization time and the stored size of the broadcast records
+ * in JSON and binary modes of MapDBStore. JSON mode converts the records with Gson 
+ * and stores the strings with {@link Serializer#STRING}. It's not run in the test suite because
+ * timings depend on the machine, run its main method to see the results
+ */
+public class MapDBSerializerBenchmark {
+
+	private static final int WARMUP_ITERATIONS = 20000;
+
+	private static final int ITERATIONS = 200000;
+
+	public static void main(String[] args) throws IOException {
+		Broadcast broadcast = createBroadcast();
+
+		Gson gson = new Gson();
+		run("json", new GroupSerializerObjectArray<Broadcast>() {
+			@Override
+			public void serialize(DataOutput2 out, Broadcast value) throws IOException {
+				Serializer.STRING.serialize(out, gson.toJson(value));
+			}
+
+			@Override
+			public Broadcast deserialize(DataInput2 input, int available) throws IOException {
+				return gson.fromJson(Serializer.STRING.deserialize(input, available), Broadcast.class);
+			}
+		}, broadcast);
+		run("binary", new BinaryValueSerializer<>(Broadcast.class), broadcast);
+	}
+
+	private static Broadcast createBroadcast() {
+		Broadcast broadcast = new Broadcast("benchmark stream");
+		broadcast.setStreamId("benchmarkStreamId");
+		broadcast.setStatus(AntMediaApplicationAdapter.BROADCAST_STATUS_BROADCASTING);
+		broadcast.setDate(System.currentTimeMillis());
+		broadcast.setDuration(1234567890L);
+		broadcast.setHlsViewerCount(42);
+		broadcast.setWebRTCViewerCount(7);
+
+		List<Endpoint> endpoints = new ArrayList<>();
+		for (int i = 0; i < 3; i++) {
+			Endpoint endpoint = new Endpoint();
+			endpoint.setRtmpUrl("rtmp://127.0.0.1/LiveApp/endpoint" + i);
+			endpoints.add(endpoint);
+		}
+		broadcast.setEndPointList(endpoints);
+		return broadcast;
+	}
+
+	private static void run(String name, GroupSerializerObjectArray<Broadcast> serializer, Broadcast broadcast) throws IOException {
+		measure(serializer, broadcast, WARMUP_ITERATIONS);
+
+		long[] result = measure(serializer, broadcast, ITERATIONS);
+		System.out.println(name + " size: " + result[0] + " bytes, serialize: " + (result[1] / ITERATIONS)
+				+ " ns/op, deserialize: " + (result[2] / ITERATIONS) + " ns/op");
+	}
+
+	/**
+	 * @return size of the serialized value, total serialize time and total deserialize time in nanoseconds
+	 */
+	private static long[] measure(GroupSerializerObjectArray<Broadcast> serializer, Broadcast broadcast, int iterations) throws IOException {
+		byte[] bytes = null;
+		long startTime = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			DataOutput2 out = new DataOutput2();
+			serializer.serialize(out, broadcast);
+			bytes = out.copyBytes();
+		}
+		long serializeTime = System.nanoTime() - startTime;
+
+		startTime = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			serializer.deserialize(new DataInput2.ByteArray(bytes), bytes.length);
+		}
+		long deserializeTime = System.nanoTime() - startTime;
+
+		return new long[] {bytes.length, serializeTime, deserializeTime};
+	}
+}
@@ -0,0 +1,169 @@
+package io.antmedia.test.filter;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.catalina.util.NetMask;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.antmedia.AppSettings;
+import io.antmedia.filter.CIDRMatcher;
+import io.antmedia.filter.IPFilter;
+
+public class CIDRMatcherTest {
+
+	protected static Logger logger = LoggerFactory.getLogger(CIDRMatcherTest.class);
+
+	@Test
+	public void testParseAddress() throws UnknownHostException {
+		String[] addresses = {"127.0.0.1", "0.0.0.0", "255.255.255.255", "192.168.1.20",
+				"::", "::1", "0:0:0:0:0:0:0:1", "fe80::1%1", "[2001:db8::8a2e:370:7334]", "2001:db8:0:0:1:0:0:1",
+				"1::", "1:2:3:4:5:6:7:8", "::ffff:10.0.0.1", "::ffff:a00:1", "64:ff9b::192.0.2.33"};
+		for (String address : addresses) {
+			String literal = address.startsWith("[") ? address.substring(1, address.length() - 1) : address;
+			assertArrayEquals(address, InetAddress.getByName(literal).getAddress(), CIDRMatcher.parseAddress(address));
+		}
+
+		String[] invalidAddresses = {null, "", "localhost", "1.2.3", "1.2.3.4.5", "256.1.1.1", "1..2.3", "1.2.3.4.",
+				":1", "1:", "1::2::3", "1:2:3:4:5:6:7:8:9", "12345::", "::g", "1:2:3:4:5:6:7:1.2.3.4", "1::2:3:4:5:6:7:8"};
+		for (String address : invalidAddresses) {
+			assertNull(address, CIDRMatcher.parseAddress(address));
+		}
+	}
+
+	@Test
+	public void testMatches() {
+		CIDRMatcher matcher = CIDRMatcher.compile("127.0.0.1/8, 10.10.5.2/16,192.168.1.5,2001:db8::/32,invalid,1.2.3.4/40,::1");
+		assertEquals(5, matcher.getBlockCount());
+
+		assertTrue(matcher.matches("127.255.0.1"));
+		assertTrue(matcher.matches("10.10.200.1"));
+		assertFalse(matcher.matches("10.11.0.1"));
+		assertTrue(matcher.matches("192.168.1.5"));
+		assertFalse(matcher.matches("192.168.1.6"));
+		assertTrue(matcher.matches("2001:db8:1234::1"));
+		assertFalse(matcher.matches("2001:db9::1"));
+		assertTrue(matcher.matches("::1"));
+		assertTrue(matcher.matches("0:0:0:0:0:0:0:1"));
+		assertFalse(matcher.matches("::2"));
+		//IPv4 mapped addresses are matched as IPv4
+		assertTrue(matcher.matches("::ffff:127.0.0.1"));
+		assertFalse(matcher.matches("localhost"));
+
+		assertTrue(CIDRMatcher.compile("0.0.0.0/0").matches("8.8.8.8"));
+		assertFalse(CIDRMatcher.compile("0.0.0.0/0").matches("::2"));
+		assertFalse(CIDRMatcher.compile(null).matches("127.0.0.1"));
+		assertFalse(CIDRMatcher.compile("").matches("127.0.0.1"));
+	}
+
+	@Test
+	public void testCompiledOnlyWhenSettingsChange() {
+		IPFilter ipFilter = Mockito.spy(new IPFilter());
+		AppSettings appSettings = new AppSettings();
+		appSettings.setRemoteAllowedCIDR("127.0.0.1/8");
+		Mockito.doReturn(appSettings).when(ipFilter).getAppSettings();
+
+		assertTrue(ipFilter.isAllowed("127.0.0.1"));
+		CIDRMatcher matcher = ipFilter.getCIDRMatcher(appSettings);
+		assertTrue(ipFilter.isAllowed("127.0.0.2"));
+		assertSame(matcher, ipFilter.getCIDRMatcher(appSettings));
+
+		appSettings.setRemoteAllowedCIDR("10.0.0.0/8");
+		assertFalse(ipFilter.isAllowed("127.0.0.1"));
+		assertTrue(ipFilter.isAllowed("10.1.1.1"));
+		assertNotSame(matcher, ipFilter.getCIDRMatcher(appSettings));
+	}
+
+	/**
+	 * Compares the trie with the NetMask loop for a large allow list
+	 */
+	@Test
+	public void testCompareWithNetMaskLoop() throws UnknownHostException {
+		Random random = new Random(1234);
+		StringBuilder cidrList = new StringBuilder();
+		List<NetMask> netMasks = new ArrayList<>();
+		for (int i = 0; i < 500; i++) {
+			String cidr;
+			if (i % 5 == 0) {
+				cidr = String.format("2001:db8:%x::/%d", random.nextInt(0xffff), 40 + random.nextInt(40));
+			}
+			else {
+				cidr = (10 + random.nextInt(10)) + "." + random.nextInt(256) + "." + random.nextInt(256) + ".0/" + (12 + random.nextInt(20));
+			}
+			if (cidrList.length() > 0) {
+				cidrList.append(",");
+			}
+			cidrList.append(cidr);
+			netMasks.add(new NetMask(cidr));
+		}
+		CIDRMatcher matcher = CIDRMatcher.compile(cidrList.toString());
+		assertEquals(500, matcher.getBlockCount());
+
+		List<String> addresses = new ArrayList<>();
+		for (int i = 0; i < 20000; i++) {
+			if (i % 5 == 0) {
+				addresses.add(String.format("2001:db8:%x::%x", random.nextInt(0xffff), random.nextInt(0xffff)));
+			}
+			else {
+				addresses.add((10 + random.nextInt(10)) + "." + random.nextInt(256) + "." + random.nextInt(256) + "." + random.nextInt(256));
+			}
+		}
+
+		int matchCount = 0;
+		for (String address : addresses) {
+			InetAddress inetAddress = InetAddress.getByName(address);
+			boolean expected = false;
+			for (NetMask netMask : netMasks) {
+				if (netMask.matches(inetAddress)) {
+					expected = true;
+					break;
+				}
+			}
+			assertEquals(address, expected, matcher.matches(address));
+			if (expected) {
+				matchCount++;
+			}
+		}
+		assertTrue(matchCount > 0);
+
+		long startTime = System.nanoTime();
+		int loopMatches = 0;
+		for (String address : addresses) {
+			InetAddress inetAddress = InetAddress.getByName(address);
+			for (NetMask netMask : netMasks) {
+				if (netMask.matches(inetAddress)) {
+					loopMatches++;
+					break;
+				}
+			}
+		}
+		long loopTimeNs = System.nanoTime() - startTime;
+
+		startTime = System.nanoTime();
+		int trieMatches = 0;
+		for (String address : addresses) {
+			if (matcher.matches(address)) {
+				trieMatches++;
+			}
+		}
+		long trieTimeNs = System.nanoTime() - startTime;
+
+		assertEquals(loopMatches, trieMatches);
+		logger.info("{} addresses matched against {} blocks. NetMask loop: {} ms, trie: {} ms", addresses.size(), netMasks.size(),
+				loopTimeNs / 1000000, trieTimeNs / 1000000);
+	}
+}
@@ -1,5 +1,6 @@
 package io.antmedia.test.filter;
 
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.fail;
 import static org.mockito.Mockito.mock;
@@ -29,10 +30,16 @@ import org.junit.runner.Description;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.context.ApplicationContext;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
 import org.springframework.web.context.ConfigurableWebApplicationContext;
 import org.springframework.web.context.WebApplicationContext;
 
+import io.antmedia.AntMediaApplicationAdapter;
+import io.antmedia.AppSettings;
 import io.antmedia.filter.HlsStatisticsFilter;
+import io.antmedia.filter.ViewerKeyResolver;
 import io.antmedia.statistic.HlsViewerStats;
 import io.antmedia.statistic.IStreamStats;
 
@@ -162,8 +169,98 @@ public class HlsStatisticsFilterTest {
 			logger.error(ExceptionUtils.getStackTrace(e));
 			fail(ExceptionUtils.getStackTrace(e));
 		}
-		
-		
+
+
+	}
+
+	@Test
+	public void testDoFilterWithoutSession() {
+		FilterConfig filterconfig = mock(FilterConfig.class);
+		ServletContext servletContext = mock(ServletContext.class);
+		ConfigurableWebApplicationContext context = mock(ConfigurableWebApplicationContext.class);
+
+		when(context.isRunning()).thenReturn(true);
+		IStreamStats streamStats = mock(IStreamStats.class);
+		when(context.getBean(HlsViewerStats.BEAN_NAME)).thenReturn(streamStats);
+
+		AntMediaApplicationAdapter application = mock(AntMediaApplicationAdapter.class);
+		ViewerKeyResolver viewerKeyResolver = new ViewerKeyResolver(ViewerKeyResolver.Mode.CLIENT, null);
+		when(application.getViewerKeyResolver()).thenReturn(viewerKeyResolver);
+		when(context.containsBean(AntMediaApplicationAdapter.BEAN_NAME)).thenReturn(true);
+		when(context.getBean(AntMediaApplicationAdapter.BEAN_NAME)).thenReturn(application);
+
+		when(servletContext.getAttribute(WebApplicationContext.ROOT_WEB_APPLICATION_CONTEXT_ATTRIBUTE))
+				.thenReturn(context);
+		when(filterconfig.getServletContext()).thenReturn(servletContext);
+
+		try {
+			hlsStatisticsFilter.init(filterconfig);
+
+			String streamId = RandomStringUtils.randomAlphanumeric(8);
+			MockHttpServletRequest request = new MockHttpServletRequest("GET", "/LiveApp/streams/"+streamId+".m3u8");
+			request.setRemoteAddr("10.0.0.1");
+			request.addHeader("User-Agent", "player");
+			MockHttpServletResponse response = new MockHttpServletResponse();
+
+			hlsStatisticsFilter.doFilter(request, response, new MockFilterChain());
+
+			String viewerKey = (String) request.getAttribute(ViewerKeyResolver.VIEWER_KEY_ATTRIBUTE);
+			verify(streamStats, times(1)).registerNewViewer(streamId, viewerKey);
+			//no servlet session is created
+			assertNull(request.getSession(false));
+
+		} catch (ServletException|IOException e) {
+			logger.error(ExceptionUtils.getStackTrace(e));
+			fail(ExceptionUtils.getStackTrace(e));
+		}
+	}
+
+	@Test
+	public void testDoFilterWithoutSessionWhenTokenControlEnabled() {
+		FilterConfig filterconfig = mock(FilterConfig.class);
+		ServletContext servletContext = mock(ServletContext.class);
+		ConfigurableWebApplicationContext context = mock(ConfigurableWebApplicationContext.class);
+
+		when(context.isRunning()).thenReturn(true);
+		IStreamStats streamStats = mock(IStreamStats.class);
+		when(context.getBean(HlsViewerStats.BEAN_NAME)).thenReturn(streamStats);
+
+		AppSettings appSettings = mock(AppSettings.class);
+		when(appSettings.isTokenControlEnabled()).thenReturn(true);
+		when(context.getBean(AppSettings.BEAN_NAME)).thenReturn(appSettings);
+
+		AntMediaApplicationAdapter application = mock(AntMediaApplicationAdapter.class);
+		ViewerKeyResolver viewerKeyResolver = new ViewerKeyResolver(ViewerKeyResolver.Mode.CLIENT, null);
+		when(application.getViewerKeyResolver()).thenReturn(viewerKeyResolver);
+		when(context.containsBean(AntMediaApplicationAdapter.BEAN_NAME)).thenReturn(true);
+		when(context.getBean(AntMediaApplicationAdapter.BEAN_NAME)).thenReturn(application);
+
+		when(servletContext.getAttribute(WebApplicationContext.ROOT_WEB_APPLICATION_CONTEXT_ATTRIBUTE))
+				.thenReturn(context);
+		when(filterconfig.getServletContext()).thenReturn(servletContext);
+
+		try {
+			hlsStatisticsFilter.init(filterconfig);
+
+			String streamId = RandomStringUtils.randomAlphanumeric(8);
+			//two viewers behind the same address with the same player
+			for (int i = 0; i < 2; i++) {
+				MockHttpServletRequest request = new MockHttpServletRequest("GET", "/LiveApp/streams/"+streamId+".m3u8");
+				request.setRemoteAddr("10.0.0.1");
+				request.addHeader("User-Agent", "player");
+
+				hlsStatisticsFilter.doFilter(request, new MockHttpServletResponse(), new MockFilterChain());
+
+				//client key is not used because token service removes authenticated viewers with their sessions
+				assertNotNull(request.getSession(false));
+				assertNull(request.getAttribute(ViewerKeyResolver.VIEWER_KEY_ATTRIBUTE));
+				verify(streamStats, times(1)).registerNewViewer(streamId, request.getSession().getId());
+			}
+
+		} catch (ServletException|IOException e) {
+			logger.error(ExceptionUtils.getStackTrace(e));
+			fail(ExceptionUtils.getStackTrace(e));
+		}
 	}
 
 }
@@ -0,0 +1,97 @@
+package io.antmedia.test.filter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import javax.servlet.http.Cookie;
+
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import io.antmedia.filter.ViewerKeyResolver;
+import io.antmedia.filter.ViewerKeyResolver.Mode;
+
+public class ViewerKeyResolverTest {
+
+	@Test
+	public void testModeOf() {
+		assertEquals(Mode.SESSION, Mode.of(null));
+		assertEquals(Mode.SESSION, Mode.of("unknown"));
+		assertEquals(Mode.SIGNED, Mode.of("signed"));
+		assertEquals(Mode.CLIENT, Mode.of(" CLIENT "));
+	}
+
+	@Test
+	public void testSessionMode() {
+		ViewerKeyResolver resolver = new ViewerKeyResolver(Mode.SESSION, null);
+		MockHttpServletRequest request = new MockHttpServletRequest();
+		String key = resolver.getViewerKey(request, new MockHttpServletResponse());
+		assertNotNull(request.getSession(false));
+		assertEquals(request.getSession().getId(), key);
+	}
+
+	@Test
+	public void testClientMode() {
+		ViewerKeyResolver resolver = new ViewerKeyResolver(Mode.CLIENT, null);
+
+		MockHttpServletRequest request = new MockHttpServletRequest();
+		request.setRemoteAddr("10.0.0.1");
+		request.addHeader("User-Agent", "player1");
+		String key = resolver.getViewerKey(request, new MockHttpServletResponse());
+		assertNull(request.getSession(false));
+
+		MockHttpServletRequest sameClientRequest = new MockHttpServletRequest();
+		sameClientRequest.setRemoteAddr("10.0.0.1");
+		sameClientRequest.addHeader("User-Agent", "player1");
+		assertEquals(key, resolver.getViewerKey(sameClientRequest, null));
+
+		MockHttpServletRequest otherClientRequest = new MockHttpServletRequest();
+		otherClientRequest.setRemoteAddr("10.0.0.1");
+		otherClientRequest.addHeader("User-Agent", "player2");
+		assertNotEquals(key, resolver.getViewerKey(otherClientRequest, null));
+	}
+
+	@Test
+	public void testSignedMode() {
+		ViewerKeyResolver resolver = new ViewerKeyResolver(Mode.SIGNED, "secret");
+
+		//new viewer gets a signed id in cookie
+		MockHttpServletRequest request = new MockHttpServletRequest();
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		String key = resolver.getViewerKey(request, response);
+		assertNull(request.getSession(false));
+		Cookie cookie = response.getCookie(ViewerKeyResolver.VIEWER_ID_PARAMETER);
+		assertNotNull(cookie);
+		assertEquals(key, resolver.verify(cookie.getValue()));
+		//same request returns the same key
+		assertEquals(key, resolver.getViewerKey(request, response));
+
+		//viewer sends the cookie back
+		MockHttpServletRequest nextRequest = new MockHttpServletRequest();
+		nextRequest.setCookies(cookie);
+		MockHttpServletResponse nextResponse = new MockHttpServletResponse();
+		assertEquals(key, resolver.getViewerKey(nextRequest, nextResponse));
+		assertNull(nextResponse.getCookie(ViewerKeyResolver.VIEWER_ID_PARAMETER));
+
+		//signed id in query parameter
+		MockHttpServletRequest queryRequest = new MockHttpServletRequest();
+		queryRequest.setParameter(ViewerKeyResolver.VIEWER_ID_PARAMETER, resolver.sign("viewer1"));
+		assertEquals("viewer1", resolver.getViewerKey(queryRequest, new MockHttpServletResponse()));
+
+		//ids signed with other secret are not accepted
+		ViewerKeyResolver otherResolver = new ViewerKeyResolver(Mode.SIGNED, "otherSecret");
+		assertNull(resolver.verify(otherResolver.sign("viewer1")));
+		assertNull(resolver.verify("viewer1"));
+		assertNull(resolver.verify("viewer1.!!"));
+		assertNull(resolver.verify(".abc"));
+
+		MockHttpServletRequest forgedRequest = new MockHttpServletRequest();
+		forgedRequest.setParameter(ViewerKeyResolver.VIEWER_ID_PARAMETER, "viewer1.AAAAAAAAAAAAAAAAAAAAAA");
+		MockHttpServletResponse forgedResponse = new MockHttpServletResponse();
+		assertNotEquals("viewer1", resolver.getViewerKey(forgedRequest, forgedResponse));
+		assertNotNull(forgedResponse.getCookie(ViewerKeyResolver.VIEWER_ID_PARAMETER));
+	}
+}
@@ -22,6 +22,7 @@ import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -74,6 +75,7 @@ import io.antmedia.rest.model.Result;
 import io.antmedia.rest.model.User;
 import io.antmedia.rest.model.Version;
 import io.antmedia.security.ITokenService;
+import io.antmedia.security.TokenValidationCache;
 import io.antmedia.social.LiveComment;
 import io.antmedia.social.ResourceOrigin;
 import io.antmedia.social.endpoint.PeriscopeEndpoint;
@@ -868,6 +870,42 @@ public class BroadcastRestServiceV2UnitTest {
 
 	}
 
+	@Test
+	public void testGetBroadcastListAfter() {
+		DataStore store = new InMemoryDataStore("testdb");
+		restServiceReal.setDataStore(store);
+
+		List<String> streamIds = new ArrayList<>();
+		for (int i = 0; i < 25; i++) {
+			streamIds.add(store.save(new Broadcast("name" + i)));
+
+			Token token = new Token();
+			token.setStreamId("tokenStream");
+			token.setTokenId("token" + (100 + i));
+			token.setType(Token.PLAY_TOKEN);
+			token.setExpireDate(Instant.now().getEpochSecond() + 100);
+			assertTrue(store.saveToken(token));
+		}
+		Collections.sort(streamIds);
+
+		List<Broadcast> firstPage = restServiceReal.getBroadcastListAfterV2(null, 10);
+		assertEquals(10, firstPage.size());
+		assertEquals(streamIds.get(0), firstPage.get(0).getStreamId());
+
+		List<Broadcast> lastPage = restServiceReal.getBroadcastListAfterV2(streamIds.get(19), 10);
+		assertEquals(5, lastPage.size());
+		assertEquals(streamIds.get(20), lastPage.get(0).getStreamId());
+
+		List<Token> tokens = restServiceReal.listTokensAfterV2("tokenStream", "token109", 10);
+		assertEquals(10, tokens.size());
+		assertEquals("token110", tokens.get(0).getTokenId());
+		assertEquals(0, restServiceReal.listTokensAfterV2("otherStream", null, 10).size());
+
+		//datastores not supporting keyset pagination return empty list
+		restServiceReal.setDataStore(mock(DataStore.class));
+		assertEquals(0, restServiceReal.getBroadcastListAfterV2(null, 10).size());
+	}
+
 	@Test
 	public void testGetVersion() {
 		RootRestService rootRestService = new RootRestService();
@@ -1115,6 +1153,10 @@ public class BroadcastRestServiceV2UnitTest {
 		DataStore store = new InMemoryDataStore("testdb");
 		restServiceReal.setDataStore(store);
 
+		TokenValidationCache cache = new TokenValidationCache(100, 60000);
+		AntMediaApplicationAdapter app = Mockito.mock(AntMediaApplicationAdapter.class);
+		when(app.getTokenValidationCache()).thenReturn(cache);
+		restServiceReal.setApplication(app);
 		
 		//create token
 		Token token = new Token();
@@ -1129,9 +1171,14 @@ public class BroadcastRestServiceV2UnitTest {
 
 		assertEquals(1, tokens.size());
 
+		cache.put(token.getTokenId(), token.getStreamId(), "sessionId", 0);
+
 		//revoke tokens
 		restServiceReal.revokeTokensV2(token.getStreamId());
 
+		//validated tokens of the stream should be removed from the cache
+		assertFalse(cache.isValid(token.getTokenId(), token.getStreamId(), "sessionId"));
+
 		//get tokens of stream
 		tokens = restServiceReal.listTokensV2(token.getStreamId(), 0, 10);
 
@@ -1150,6 +1197,7 @@ public class BroadcastRestServiceV2UnitTest {
 		token.setExpireDate(expireDate);
 
 		assertTrue(restServiceReal.getDataStore().saveToken(token));
+		cache.put(token.getTokenId(), token.getStreamId(), "sessionId", 0);
 
 		//validate token
 		Result result = restServiceReal.validateTokenV2(token);
@@ -1157,6 +1205,9 @@ public class BroadcastRestServiceV2UnitTest {
 		//token should be validated and returned
 		assertTrue(result.isSuccess());
 
+		//consumed token should be removed from the cache
+		assertFalse(cache.isValid(token.getTokenId(), token.getStreamId(), "sessionId"));
+
 		//this should be false, because validated token is deleted after consumed
 		result = restServiceReal.validateTokenV2(token);
 
@@ -104,7 +104,10 @@ public class HlsViewerStatsTest {
 			viewerStats.registerNewViewer(streamId, sessionId);
 			viewerStats.registerNewViewer(streamId, sessionId);
 			
-			assertEquals(1, dsf.getDataStore().get(streamId).getHlsViewerCount());
+			//viewer count is written to datastore in the flush period
+			Awaitility.await().atMost(viewerStats.getFlushPeriodMS() * 2, TimeUnit.MILLISECONDS).until(() -> 
+				dsf.getDataStore().get(streamId).getHlsViewerCount() == 1
+			);
 			
 			assertEquals(1000, viewerStats.getTimePeriodMS());
 			
@@ -118,7 +121,9 @@ public class HlsViewerStatsTest {
 			});
 			
 			
-			assertEquals(0, dsf.getDataStore().get(streamId).getHlsViewerCount());
+			Awaitility.await().atMost(viewerStats.getFlushPeriodMS() * 2, TimeUnit.MILLISECONDS).until(() -> 
+				dsf.getDataStore().get(streamId).getHlsViewerCount() == 0
+			);
 			
 			
 			scheduler.destroy();
@@ -132,4 +137,99 @@ public class HlsViewerStatsTest {
 		
 	}
 
+	@Test
+	public void testConcurrentRegisterAndBatchedFlush() throws InterruptedException {
+		HlsViewerStats viewerStats = new HlsViewerStats();
+		DataStore dataStore = spy(new InMemoryDataStore("datastore"));
+		dataStore.setWriteStatsToDatastore(true);
+		viewerStats.setDataStore(dataStore);
+
+		Broadcast broadcast = new Broadcast();
+		broadcast.setName("name");
+		String streamId = dataStore.save(broadcast);
+
+		//first viewers of the stream arrive at the same time
+		int threadCount = 8;
+		int viewerPerThread = 250;
+		Thread[] threads = new Thread[threadCount];
+		for (int i = 0; i < threadCount; i++) {
+			final int threadIndex = i;
+			threads[i] = new Thread(() -> {
+				for (int j = 0; j < viewerPerThread; j++) {
+					viewerStats.registerNewViewer(streamId, "session" + threadIndex + "_" + j);
+					//request again as players do for each segment
+					viewerStats.registerNewViewer(streamId, "session" + threadIndex + "_" + j);
+				}
+			});
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		int viewerCount = threadCount * viewerPerThread;
+		assertEquals(viewerCount, viewerStats.getViewerCount(streamId));
+		assertEquals(viewerCount, viewerStats.getTotalViewerCount());
+
+		//no datastore update before flush
+		verify(dataStore, never()).updateHLSViewerCount(anyString(), anyInt());
+
+		assertEquals(1, viewerStats.flushViewerCountChanges());
+		verify(dataStore, times(1)).updateHLSViewerCount(streamId, viewerCount);
+		assertEquals(viewerCount, dataStore.get(streamId).getHlsViewerCount());
+
+		//nothing changed, nothing is written
+		assertEquals(0, viewerStats.flushViewerCountChanges());
+		verify(dataStore, times(1)).updateHLSViewerCount(anyString(), anyInt());
+	}
+
+	@Test
+	public void testRemoveExpiredViewers() {
+		AppSettings settings = mock(AppSettings.class);
+		when(settings.getHlsTime()).thenReturn("1");
+		ApplicationContext context = mock(ApplicationContext.class);
+		DataStoreFactory dsf = mock(DataStoreFactory.class);
+		when(context.getBean(DataStoreFactory.BEAN_NAME)).thenReturn(dsf);
+		when(context.getBean(ISchedulingService.BEAN_NAME)).thenReturn(mock(ISchedulingService.class));
+		when(context.containsBean(AppSettings.BEAN_NAME)).thenReturn(true);
+		when(context.getBean(AppSettings.BEAN_NAME)).thenReturn(settings);
+
+		HlsViewerStats viewerStats = new HlsViewerStats();
+		viewerStats.setTimePeriodMS(500);
+		viewerStats.setApplicationContext(context);
+		assertEquals(10000, viewerStats.getTimeoutMS());
+
+		DataStore dataStore = new InMemoryDataStore("datastore");
+		dataStore.setWriteStatsToDatastore(true);
+		viewerStats.setDataStore(dataStore);
+		Broadcast broadcast = new Broadcast();
+		broadcast.setName("name");
+		String streamId = dataStore.save(broadcast);
+
+		viewerStats.registerNewViewer(streamId, "activeSession");
+		viewerStats.registerNewViewer(streamId, "leavingSession");
+		assertEquals(2, viewerStats.getViewerCount(streamId));
+		assertEquals(0, viewerStats.removeExpiredViewers());
+
+		long start = System.currentTimeMillis();
+		//active viewer keeps requesting
+		Awaitility.await().atMost(15, TimeUnit.SECONDS).pollInterval(500, TimeUnit.MILLISECONDS).until(() -> {
+			viewerStats.registerNewViewer(streamId, "activeSession");
+			viewerStats.removeExpiredViewers();
+			return viewerStats.getViewerCount(streamId) == 1;
+		});
+		assertTrue(System.currentTimeMillis() - start >= 9000);
+		assertEquals(1, viewerStats.getTotalViewerCount());
+
+		//one update with the net change
+		assertEquals(1, viewerStats.flushViewerCountChanges());
+		assertEquals(1, dataStore.get(streamId).getHlsViewerCount());
+
+		//leaving viewer comes back and it's counted again
+		viewerStats.registerNewViewer(streamId, "leavingSession");
+		assertEquals(2, viewerStats.getViewerCount(streamId));
+		assertEquals(1, viewerStats.flushViewerCountChanges());
+		assertEquals(2, dataStore.get(streamId).getHlsViewerCount());
+	}
+
 }
@@ -0,0 +1,72 @@
+package io.antmedia.test.token;
+
+import java.lang.management.ManagementFactory;
+
+import org.springframework.mock.web.MockHttpServletRequest;
+
+import io.antmedia.filter.TokenFilterManager;
+
+/**
+ * Compares time and allocation of {@link TokenFilterManager#getStreamId(String)} with the regex based parser
+ * and with the result cached in the request. It's not run in the test suite because timings and allocations
+ * depend on the JVM, run its main method to see the results
+ */
+public class TokenFilterStreamIdBenchmark {
+
+	private static final int COUNT = 200000;
+
+	private static final com.sun.management.ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean
+			? (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean() : null;
+
+	public static void main(String[] args) {
+		String[] uris = TokenFilterTest.STREAM_URIS;
+
+		//warm up
+		for (int i = 0; i < COUNT; i++) {
+			TokenFilterTest.getStreamIdWithRegex(uris[i % uris.length]);
+			TokenFilterManager.getStreamId(uris[i % uris.length]);
+		}
+
+		long allocatedBytes = allocatedBytes();
+		long startTime = System.nanoTime();
+		for (int i = 0; i < COUNT; i++) {
+			TokenFilterTest.getStreamIdWithRegex(uris[i % uris.length]);
+		}
+		long regexTimeNs = System.nanoTime() - startTime;
+		long regexBytes = allocatedBytes() - allocatedBytes;
+
+		allocatedBytes = allocatedBytes();
+		startTime = System.nanoTime();
+		for (int i = 0; i < COUNT; i++) {
+			TokenFilterManager.getStreamId(uris[i % uris.length]);
+		}
+		long parserTimeNs = System.nanoTime() - startTime;
+		long parserBytes = allocatedBytes() - allocatedBytes;
+
+		MockHttpServletRequest request = new MockHttpServletRequest();
+		request.setRequestURI(uris[0]);
+		TokenFilterManager.getStreamId(request);
+		allocatedBytes = allocatedBytes();
+		startTime = System.nanoTime();
+		for (int i = 0; i < COUNT; i++) {
+			TokenFilterManager.getStreamId(request);
+		}
+		long cachedTimeNs = System.nanoTime() - startTime;
+		long cachedBytes = allocatedBytes() - allocatedBytes;
+
+		System.out.println("regex parser: " + (regexTimeNs / 1000000) + " ms " + (regexBytes / COUNT) + " bytes/call, single pass parser: "
+				+ (parserTimeNs / 1000000) + " ms " + (parserBytes / COUNT) + " bytes/call, cached: "
+				+ (cachedTimeNs / 1000000) + " ms " + (cachedBytes / COUNT) + " bytes/call"
+				+ (threadMXBean == null ? " (allocation is not measured in this JVM)" : ""));
+	}
+
+	/**
+	 * @return bytes allocated by the current thread or 0 if it's not supported
+	 */
+	private static long allocatedBytes() {
+		if (threadMXBean == null || !threadMXBean.isThreadAllocatedMemorySupported()) {
+			return 0;
+		}
+		return threadMXBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+}
@@ -2,6 +2,8 @@ package io.antmedia.test.token;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.times;
@@ -9,6 +11,8 @@ import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.io.IOException;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
 
 import javax.servlet.FilterChain;
 import javax.servlet.FilterConfig;
@@ -20,6 +24,7 @@ import javax.servlet.http.HttpSession;
 
 import org.apache.commons.lang3.RandomStringUtils;
 import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.awaitility.Awaitility;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Rule;
@@ -31,20 +36,28 @@ import org.mockito.Mockito;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.context.ApplicationContext;
+import org.springframework.mock.web.MockHttpServletRequest;
 import org.springframework.web.context.ConfigurableWebApplicationContext;
 import org.springframework.web.context.WebApplicationContext;
 
+import io.antmedia.AntMediaApplicationAdapter;
 import io.antmedia.AppSettings;
+import io.antmedia.datastore.db.DataStore;
 import io.antmedia.datastore.db.types.Token;
 import io.antmedia.filter.TokenFilterManager;
 import io.antmedia.muxer.MuxAdaptor;
 import io.antmedia.security.ITokenService;
 import io.antmedia.security.MockTokenService;
+import io.antmedia.security.TokenValidationCache;
 
 
 public class TokenFilterTest {
 	protected static Logger logger = LoggerFactory.getLogger(TokenFilterTest.class);
 
+	static final String[] STREAM_URIS = {"/LiveApp/streams/541211332342978513714151_240p0012.ts", "/LiveApp/streams/541211332342978513714151.m3u8",
+			"/LiveApp/streams/541211332342978513714151_adaptive.m3u8", "/LiveApp/streams/541211332342978513714151_480p.m3u8",
+			"/LiveApp/streams/541211332342978513714151.mp4"};
+
 	private TokenFilterManager tokenFilter;
 
 	@Before
@@ -198,6 +211,163 @@ public class TokenFilterTest {
 	}
 
 
+	@Test
+	public void testDoFilterWithTokenValidationCache() {
+
+		FilterConfig filterconfig = mock(FilterConfig.class);
+		ServletContext servletContext = mock(ServletContext.class);
+		ConfigurableWebApplicationContext context = mock(ConfigurableWebApplicationContext.class);
+		when(context.isRunning()).thenReturn(true);
+
+		MockTokenService tokenService = mock(MockTokenService.class);
+		AppSettings settings = new AppSettings();
+		settings.setTokenControlEnabled(true);
+
+		String streamId = RandomStringUtils.randomAlphanumeric(8);
+		String tokenId = RandomStringUtils.randomAlphanumeric(8);
+		String sessionId = RandomStringUtils.randomAlphanumeric(16);
+
+		TokenValidationCache cache = new TokenValidationCache(100, 60000);
+		AntMediaApplicationAdapter application = mock(AntMediaApplicationAdapter.class);
+		when(application.getTokenValidationCache()).thenReturn(cache);
+		DataStore dataStore = mock(DataStore.class);
+		when(application.getDataStore()).thenReturn(dataStore);
+
+		when(context.getBean(ITokenService.BeanName.TOKEN_SERVICE.toString())).thenReturn(tokenService);
+		when(context.getBean(AppSettings.BEAN_NAME)).thenReturn(settings);
+		when(context.containsBean(AntMediaApplicationAdapter.BEAN_NAME)).thenReturn(true);
+		when(context.getBean(AntMediaApplicationAdapter.BEAN_NAME)).thenReturn(application);
+		Token token = new Token();
+		token.setTokenId(tokenId);
+		token.setStreamId(streamId);
+		token.setType(Token.PLAY_TOKEN);
+		token.setExpireDate(Instant.now().getEpochSecond() + 1000);
+		when(tokenService.validateToken(tokenId, streamId, sessionId, Token.PLAY_TOKEN)).thenReturn(token);
+
+		when(servletContext.getAttribute(WebApplicationContext.ROOT_WEB_APPLICATION_CONTEXT_ATTRIBUTE))
+		.thenReturn(context);
+
+		when(filterconfig.getServletContext()).thenReturn(servletContext);
+
+		try {
+			tokenFilter.init(filterconfig);
+
+			HttpServletRequest mockRequest = mock(HttpServletRequest.class);
+			HttpServletResponse mockResponse = mock(HttpServletResponse.class);
+			FilterChain mockChain = mock(FilterChain.class);
+
+			HttpSession session = mock(HttpSession.class);
+			when(session.getId()).thenReturn(sessionId);
+			when(mockRequest.getSession()).thenReturn(session);
+			when(mockRequest.getMethod()).thenReturn("GET");
+			when(mockRequest.getRemoteAddr()).thenReturn("10.0.0.1");
+			when(mockRequest.getParameter("token")).thenReturn(tokenId);
+			when(mockRequest.getRequestURI()).thenReturn("/LiveApp/streams/"+streamId+".m3u8");
+
+			for (int i = 0; i < 5; i++) {
+				tokenFilter.doFilter(mockRequest, mockResponse, mockChain);
+			}
+
+			//only first request goes to the token service
+			verify(tokenService, times(1)).validateToken(tokenId, streamId, sessionId, Token.PLAY_TOKEN);
+			verify(mockChain, times(5)).doFilter(mockRequest, mockResponse);
+			assertEquals(4, cache.getHitCount());
+			assertEquals(1, cache.getMissCount());
+			//cache miss does not read the token from the data store
+			verify(dataStore, Mockito.never()).getToken(Mockito.anyString());
+
+			//token is checked again after tokens of the stream are revoked
+			cache.invalidateStream(streamId);
+			tokenFilter.doFilter(mockRequest, mockResponse, mockChain);
+			verify(tokenService, times(2)).validateToken(tokenId, streamId, sessionId, Token.PLAY_TOKEN);
+
+			//invalid tokens are not cached
+			when(tokenService.validateToken(tokenId, streamId, sessionId, Token.PLAY_TOKEN)).thenReturn(null);
+			cache.clear();
+			tokenFilter.doFilter(mockRequest, mockResponse, mockChain);
+			tokenFilter.doFilter(mockRequest, mockResponse, mockChain);
+			verify(tokenService, times(4)).validateToken(tokenId, streamId, sessionId, Token.PLAY_TOKEN);
+			verify(mockResponse, times(2)).sendError(HttpServletResponse.SC_FORBIDDEN, "Invalid Token");
+
+		} catch (ServletException|IOException e) {
+			logger.error(ExceptionUtils.getStackTrace(e));
+			fail(ExceptionUtils.getStackTrace(e));
+		}
+	}
+
+	@Test
+	public void testTokenExpiresBeforeCacheTtl() {
+
+		FilterConfig filterconfig = mock(FilterConfig.class);
+		ServletContext servletContext = mock(ServletContext.class);
+		ConfigurableWebApplicationContext context = mock(ConfigurableWebApplicationContext.class);
+		when(context.isRunning()).thenReturn(true);
+
+		MockTokenService tokenService = mock(MockTokenService.class);
+		AppSettings settings = new AppSettings();
+		settings.setTokenControlEnabled(true);
+
+		String streamId = RandomStringUtils.randomAlphanumeric(8);
+		String tokenId = RandomStringUtils.randomAlphanumeric(8);
+		String sessionId = RandomStringUtils.randomAlphanumeric(16);
+
+		//ttl of the cache is much longer than the life of the token
+		TokenValidationCache cache = new TokenValidationCache(100, 600000);
+		AntMediaApplicationAdapter application = mock(AntMediaApplicationAdapter.class);
+		when(application.getTokenValidationCache()).thenReturn(cache);
+
+		when(context.getBean(ITokenService.BeanName.TOKEN_SERVICE.toString())).thenReturn(tokenService);
+		when(context.getBean(AppSettings.BEAN_NAME)).thenReturn(settings);
+		when(context.containsBean(AntMediaApplicationAdapter.BEAN_NAME)).thenReturn(true);
+		when(context.getBean(AntMediaApplicationAdapter.BEAN_NAME)).thenReturn(application);
+
+		Token token = new Token();
+		token.setTokenId(tokenId);
+		token.setStreamId(streamId);
+		token.setType(Token.PLAY_TOKEN);
+		token.setExpireDate(Instant.now().getEpochSecond() + 1);
+		when(tokenService.validateToken(tokenId, streamId, sessionId, Token.PLAY_TOKEN)).thenReturn(token);
+
+		when(servletContext.getAttribute(WebApplicationContext.ROOT_WEB_APPLICATION_CONTEXT_ATTRIBUTE))
+		.thenReturn(context);
+
+		when(filterconfig.getServletContext()).thenReturn(servletContext);
+
+		try {
+			tokenFilter.init(filterconfig);
+
+			HttpServletRequest mockRequest = mock(HttpServletRequest.class);
+			HttpServletResponse mockResponse = mock(HttpServletResponse.class);
+			FilterChain mockChain = mock(FilterChain.class);
+
+			HttpSession session = mock(HttpSession.class);
+			when(session.getId()).thenReturn(sessionId);
+			when(mockRequest.getSession()).thenReturn(session);
+			when(mockRequest.getMethod()).thenReturn("GET");
+			when(mockRequest.getRemoteAddr()).thenReturn("10.0.0.1");
+			when(mockRequest.getParameter("token")).thenReturn(tokenId);
+			when(mockRequest.getRequestURI()).thenReturn("/LiveApp/streams/"+streamId+".m3u8");
+
+			tokenFilter.doFilter(mockRequest, mockResponse, mockChain);
+			verify(mockChain, times(1)).doFilter(mockRequest, mockResponse);
+
+			//token is expired and deleted in the token service
+			when(tokenService.validateToken(tokenId, streamId, sessionId, Token.PLAY_TOKEN)).thenReturn(null);
+			Awaitility.await().atMost(5, TimeUnit.SECONDS)
+			.until(() -> System.currentTimeMillis() >= token.getExpireDate() * 1000);
+
+			//cached entry is expired with the token before the ttl of the cache
+			tokenFilter.doFilter(mockRequest, mockResponse, mockChain);
+			verify(tokenService, times(2)).validateToken(tokenId, streamId, sessionId, Token.PLAY_TOKEN);
+			verify(mockResponse, times(1)).sendError(HttpServletResponse.SC_FORBIDDEN, "Invalid Token");
+			verify(mockChain, times(1)).doFilter(mockRequest, mockResponse);
+
+		} catch (ServletException|IOException e) {
+			logger.error(ExceptionUtils.getStackTrace(e));
+			fail(ExceptionUtils.getStackTrace(e));
+		}
+	}
+
 	@Test
 	public void testGetStreamId() {
 		String streamId = "streamId";
@@ -219,8 +389,75 @@ public class TokenFilterTest {
 		String requestURI = "/LiveApp/streams/"+ streamId + ".m3u8"; 
 		assertEquals(streamId, TokenFilterManager.getStreamId(requestURI));
 
+		//segments of adaptive streams
+		assertEquals(streamId, TokenFilterManager.getStreamId("/LiveApp/streams/"+streamId+"_240p0001.ts"));
+		assertEquals(streamId, TokenFilterManager.getStreamId("/LiveApp/streams/"+streamId+"_480p_1.mp4"));
+		//index is appended to the id without separator
+		assertNull(TokenFilterManager.getStreamId("/LiveApp/streams/"+streamId+"0001.ts"));
 
+		//underscore in the directories should not be taken into account
+		assertEquals(streamId, TokenFilterManager.getStreamId("/Live_App/streams/"+streamId+".m3u8"));
+		assertEquals(streamId, TokenFilterManager.getStreamId("/Live_App/streams/"+streamId+"_240p.m3u8"));
+
+		//new line, tab and pipe characters are separators as well
+		assertEquals(streamId, TokenFilterManager.getStreamId("/LiveApp/streams/"+streamId+"\n.m3u8"));
+		assertEquals(streamId, TokenFilterManager.getStreamId("/LiveApp/streams/"+streamId+"|x.m3u8"));
+
+		assertEquals(streamId, TokenFilterManager.getStreamId(streamId+".m3u8"));
+		assertNull(TokenFilterManager.getStreamId("/LiveApp/streams/"));
+		assertNull(TokenFilterManager.getStreamId((String)null));
+	}
 
+	@Test
+	public void testGetStreamIdCachedInRequest() {
+		MockHttpServletRequest request = new MockHttpServletRequest();
+		request.setRequestURI("/LiveApp/streams/stream1_240p0001.ts");
+
+		assertEquals("stream1", TokenFilterManager.getStreamId(request));
+		assertEquals("stream1", request.getAttribute(TokenFilterManager.STREAM_ID_ATTRIBUTE));
+
+		String streamId = TokenFilterManager.getStreamId(request);
+		assertSame(streamId, TokenFilterManager.getStreamId(request));
+	}
+
+	/**
+	 * Checks that the parser gives the same results with the regex based parser
+	 */
+	@Test
+	public void testGetStreamIdMatchesRegexParser() {
+		for (String uri : STREAM_URIS) {
+			assertEquals(getStreamIdWithRegex(uri), TokenFilterManager.getStreamId(uri));
+		}
+		assertEquals("541211332342978513714151", TokenFilterManager.getStreamId(STREAM_URIS[0]));
+	}
+
+	/**
+	 * Previous implementation of {@link TokenFilterManager#getStreamId(String)} for comparison
+	 */
+	static String getStreamIdWithRegex(String requestURI) {
+		requestURI = requestURI.replaceAll("[\n|\r|\t]", "_");
+		int endIndex;
+		int startIndex = requestURI.lastIndexOf('/');
+		if(requestURI.contains("_")) {
+			return requestURI.split("_")[0].substring(startIndex+1);
+		}
+		endIndex = requestURI.lastIndexOf(".mp4");
+		if (endIndex != -1) {
+			return requestURI.substring(startIndex+1, endIndex);
+		}
+		endIndex = requestURI.lastIndexOf(MuxAdaptor.ADAPTIVE_SUFFIX + ".m3u8");
+		if (endIndex != -1) {
+			return requestURI.substring(startIndex+1, endIndex);
+		}
+		if (requestURI.matches("_[0-9]+p\\.m3u8$")) {
+			endIndex = requestURI.lastIndexOf('_');
+			return requestURI.substring(startIndex+1, endIndex);
+		}
+		endIndex = requestURI.lastIndexOf(".m3u8");
+		if (endIndex != -1) {
+			return requestURI.substring(startIndex+1, endIndex);
+		}
+		return null;
 	}
 
 
@@ -0,0 +1,89 @@
+package io.antmedia.test.token;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.awaitility.Awaitility;
+import org.junit.Test;
+
+import io.antmedia.security.TokenValidationCache;
+
+public class TokenValidationCacheTest {
+
+	@Test
+	public void testHitAndMiss() {
+		TokenValidationCache cache = new TokenValidationCache(100, 60000);
+
+		assertFalse(cache.isValid("token1", "stream1", "session1"));
+		cache.put("token1", "stream1", "session1", 0);
+
+		assertTrue(cache.isValid("token1", "stream1", "session1"));
+		//all parts of the key should match
+		assertFalse(cache.isValid("token1", "stream2", "session1"));
+		assertFalse(cache.isValid("token1", "stream1", "session2"));
+		assertFalse(cache.isValid("token2", "stream1", "session1"));
+		assertFalse(cache.isValid(null, "stream1", "session1"));
+
+		assertEquals(1, cache.getHitCount());
+		assertEquals(5, cache.getMissCount());
+		assertEquals(1/6.0, cache.getHitRate(), 0.0001);
+
+		//null tokens are not cached
+		cache.put(null, "stream1", "session1", 0);
+		assertEquals(1, cache.size());
+	}
+
+	@Test
+	public void testExpiry() {
+		TokenValidationCache cache = new TokenValidationCache(100, 200);
+
+		cache.put("token1", "stream1", "session1", 0);
+		assertTrue(cache.isValid("token1", "stream1", "session1"));
+		Awaitility.await().atMost(5, TimeUnit.SECONDS).until(() -> !cache.isValid("token1", "stream1", "session1"));
+		assertEquals(0, cache.size());
+
+		//entry expires with the token even if ttl is longer
+		TokenValidationCache longTtlCache = new TokenValidationCache(100, 60000);
+		longTtlCache.put("token2", "stream1", "session1", System.currentTimeMillis() + 200);
+		assertTrue(longTtlCache.isValid("token2", "stream1", "session1"));
+		Awaitility.await().atMost(5, TimeUnit.SECONDS).until(() -> !longTtlCache.isValid("token2", "stream1", "session1"));
+
+		//expired tokens are not cached
+		longTtlCache.put("token3", "stream1", "session1", System.currentTimeMillis() - 1000);
+		assertFalse(longTtlCache.isValid("token3", "stream1", "session1"));
+	}
+
+	@Test
+	public void testBounded() {
+		TokenValidationCache cache = new TokenValidationCache(10, 60000);
+		for (int i = 0; i < 50; i++) {
+			cache.put("token" + i, "stream1", "session" + i, 0);
+			assertTrue(cache.size() <= 10);
+		}
+		assertEquals(10, cache.size());
+		assertEquals(40, cache.getEvictionCount());
+		assertTrue(cache.isValid("token49", "stream1", "session49"));
+	}
+
+	@Test
+	public void testInvalidation() {
+		TokenValidationCache cache = new TokenValidationCache(100, 60000);
+		cache.put("token1", "stream1", "session1", 0);
+		cache.put("token1", "stream1", "session2", 0);
+		cache.put("token2", "stream2", "session3", 0);
+		cache.put("token3", "stream2", "session4", 0);
+
+		cache.invalidateToken("token1");
+		assertFalse(cache.isValid("token1", "stream1", "session1"));
+		assertFalse(cache.isValid("token1", "stream1", "session2"));
+		assertTrue(cache.isValid("token2", "stream2", "session3"));
+
+		cache.invalidateStream("stream2");
+		assertFalse(cache.isValid("token2", "stream2", "session3"));
+		assertFalse(cache.isValid("token3", "stream2", "session4"));
+		assertEquals(0, cache.size());
+	}
+}
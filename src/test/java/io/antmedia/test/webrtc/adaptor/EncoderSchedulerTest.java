@@ -0,0 +1,110 @@
+package io.antmedia.test.webrtc.adaptor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.awaitility.Awaitility;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import io.antmedia.webrtc.adaptor.EncoderScheduler;
+import io.antmedia.webrtc.adaptor.EncoderScheduler.Lane;
+import io.antmedia.webrtc.adaptor.EncoderScheduler.TickHandle;
+
+public class EncoderSchedulerTest {
+
+	private EncoderScheduler scheduler;
+
+	@Before
+	public void before() {
+		scheduler = new EncoderScheduler(4);
+	}
+
+	@After
+	public void after() {
+		scheduler.shutdown();
+	}
+
+	@Test
+	public void testLaneRunsTasksInOrder() {
+		Lane lane = scheduler.createLane("test", 1000);
+		List<Integer> results = Collections.synchronizedList(new ArrayList<>());
+		AtomicInteger concurrent = new AtomicInteger();
+		AtomicInteger maxConcurrent = new AtomicInteger();
+
+		for (int i = 0; i < 500; i++) {
+			final int value = i;
+			assertTrue(lane.execute(() -> {
+				maxConcurrent.accumulateAndGet(concurrent.incrementAndGet(), Math::max);
+				results.add(value);
+				concurrent.decrementAndGet();
+			}, null));
+		}
+
+		Awaitility.await().atMost(5, TimeUnit.SECONDS).until(() -> lane.getExecutedCount() == 500);
+		assertEquals(1, maxConcurrent.get());
+		for (int i = 0; i < 500; i++) {
+			assertEquals(i, (int)results.get(i));
+		}
+		assertEquals(0, lane.getQueueDepth());
+		assertEquals(0, lane.getDroppedCount());
+	}
+
+	@Test
+	public void testBoundedLaneDropsTasks() throws InterruptedException {
+		Lane lane = scheduler.createLane("test", 5);
+		CountDownLatch latch = new CountDownLatch(1);
+		CountDownLatch started = new CountDownLatch(1);
+		AtomicInteger droppedCount = new AtomicInteger();
+
+		lane.execute(() -> {
+			started.countDown();
+			try {
+				latch.await(5, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}, null);
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+
+		for (int i = 0; i < 8; i++) {
+			lane.execute(() -> {}, droppedCount::incrementAndGet);
+		}
+		assertEquals(5, lane.getQueueDepth());
+		assertEquals(5, lane.getMaxQueueDepth());
+		assertEquals(3, droppedCount.get());
+		assertEquals(3, lane.getDroppedCount());
+
+		//waiting tasks are dropped when lane is closed
+		lane.close();
+		latch.countDown();
+		assertTrue(lane.awaitIdle(5, TimeUnit.SECONDS));
+		Awaitility.await().atMost(5, TimeUnit.SECONDS).until(() -> droppedCount.get() == 8);
+		assertEquals(1, lane.getExecutedCount());
+
+		assertFalse(lane.execute(() -> {}, droppedCount::incrementAndGet));
+		assertEquals(9, droppedCount.get());
+	}
+
+	@Test
+	public void testTickListener() {
+		AtomicInteger tickCount = new AtomicInteger();
+		TickHandle handle = scheduler.addTickListener(tickCount::incrementAndGet);
+		assertEquals(1, scheduler.getTickListenerCount());
+
+		Awaitility.await().atMost(5, TimeUnit.SECONDS).until(() -> tickCount.get() >= 10);
+
+		handle.cancel();
+		assertTrue(handle.isCancelled());
+		assertEquals(0, scheduler.getTickListenerCount());
+	}
+}
@@ -3,12 +3,18 @@ package io.antmedia.test.webrtc.adaptor;
 import static org.bytedeco.javacpp.avutil.AV_PIX_FMT_YUV420P;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -33,10 +39,15 @@ import org.webrtc.MediaStream;
 import org.webrtc.PeerConnectionFactory;
 import org.webrtc.SessionDescription;
 import org.webrtc.SessionDescription.Type;
+import org.webrtc.VideoFrame;
+import org.webrtc.VideoSink;
+import org.webrtc.WrappedNativeI420Buffer;
 
 import io.antmedia.integration.MuxingTest;
 import io.antmedia.recorder.FFmpegFrameRecorder;
 import io.antmedia.recorder.Frame;
+import io.antmedia.recorder.FrameRecorder;
+import io.antmedia.webrtc.adaptor.FrameBufferPool;
 import io.antmedia.webrtc.adaptor.RTMPAdaptor;
 import io.antmedia.websocket.WebSocketCommunityHandler;
 import io.antmedia.websocket.WebSocketConstants;
@@ -404,4 +415,120 @@ public class RTMPAdaptorTest {
 
 	}
 
+	@Test
+	public void testFrameBufferPool() {
+		FrameBufferPool pool = new FrameBufferPool(2);
+
+		ByteBuffer buffer = pool.acquire(640*480*3/2);
+		assertTrue(buffer.isDirect());
+		assertEquals(640*480*3/2, buffer.limit());
+		assertEquals(0, pool.getHitCount());
+		assertEquals(1, pool.getMissCount());
+
+		buffer.put((byte)1);
+		pool.release(buffer);
+		assertEquals(1, pool.getPooledCount());
+
+		ByteBuffer buffer2 = pool.acquire(640*480*3/2);
+		assertTrue(buffer == buffer2);
+		assertEquals(0, buffer2.position());
+		assertEquals(1, pool.getHitCount());
+		assertEquals(0.5, pool.getHitRate(), 0.0001);
+
+		//pool is bounded
+		ByteBuffer buffer3 = pool.acquire(640*480*3/2);
+		ByteBuffer buffer4 = pool.acquire(640*480*3/2);
+		pool.release(buffer2);
+		pool.release(buffer3);
+		pool.release(buffer4);
+		assertEquals(2, pool.getPooledCount());
+
+		//resolution change drops the buffers of the old size
+		ByteBuffer buffer5 = pool.acquire(480*360*3/2);
+		assertEquals(480*360*3/2, buffer5.capacity());
+		assertEquals(0, pool.getPooledCount());
+		pool.release(buffer4);
+		assertEquals(0, pool.getPooledCount());
+		pool.release(buffer5);
+		assertEquals(1, pool.getPooledCount());
+	}
+
+	private static WrappedNativeI420Buffer createContiguousI420Buffer(ByteBuffer memory, int width, int height) {
+		int ySize = width * height;
+		int chromaSize = (width / 2) * (height / 2);
+		WrappedNativeI420Buffer buffer = mock(WrappedNativeI420Buffer.class);
+		when(buffer.getWidth()).thenReturn(width);
+		when(buffer.getHeight()).thenReturn(height);
+		when(buffer.getStrideY()).thenReturn(width);
+		when(buffer.getStrideU()).thenReturn(width / 2);
+		when(buffer.getStrideV()).thenReturn(width / 2);
+		when(buffer.getDataY()).thenAnswer(invocation -> slice(memory, 0, ySize));
+		when(buffer.getDataU()).thenAnswer(invocation -> slice(memory, ySize, chromaSize));
+		when(buffer.getDataV()).thenAnswer(invocation -> slice(memory, ySize + chromaSize, chromaSize));
+		return buffer;
+	}
+
+	private static ByteBuffer slice(ByteBuffer memory, int offset, int length) {
+		ByteBuffer duplicate = memory.duplicate();
+		duplicate.position(offset);
+		duplicate.limit(offset + length);
+		return duplicate.slice();
+	}
+
+	@Test
+	public void testContiguousPlaneViewsAreReused() {
+		RTMPAdaptor rtmpAdaptor = new RTMPAdaptor(mock(FFmpegFrameRecorder.class), mock(WebSocketCommunityHandler.class));
+		ByteBuffer memory = ByteBuffer.allocateDirect(16 * 16 * 3 / 2);
+		int[] stride = {16, 8, 8};
+
+		//WebRTC creates new buffer objects for each frame in the same memory
+		ByteBuffer planes = rtmpAdaptor.getContiguousPlanes(createContiguousI420Buffer(memory, 16, 16), stride);
+		assertNotNull(planes);
+		assertEquals(16 * 16 * 3 / 2, planes.remaining());
+		planes.position(10);
+
+		ByteBuffer planes2 = rtmpAdaptor.getContiguousPlanes(createContiguousI420Buffer(memory, 16, 16), stride);
+		assertSame(planes, planes2);
+		assertEquals(0, planes2.position());
+		assertEquals(2, rtmpAdaptor.getZeroCopyFrameCount());
+
+		ByteBuffer otherMemory = ByteBuffer.allocateDirect(16 * 16 * 3 / 2);
+		ByteBuffer planes3 = rtmpAdaptor.getContiguousPlanes(createContiguousI420Buffer(otherMemory, 16, 16), stride);
+		assertNotSame(planes, planes3);
+	}
+
+	@Test
+	public void testVideoFrameRetainedUntilEncoded() throws FrameRecorder.Exception {
+		FFmpegFrameRecorder recorder = mock(FFmpegFrameRecorder.class);
+		WebSocketCommunityHandler webSocketHandler = mock(WebSocketCommunityHandler.class);
+
+		RTMPAdaptor rtmpAdaptor = spy(new RTMPAdaptor(recorder, webSocketHandler));
+		rtmpAdaptor.setStreamId("stream" + (int)(Math.random()*10000));
+		rtmpAdaptor.setSession(mock(Session.class));
+		doReturn(mock(PeerConnectionFactory.class)).when(rtmpAdaptor).createPeerConnectionFactory();
+
+		rtmpAdaptor.start();
+		Awaitility.await().atMost(5, TimeUnit.SECONDS).until(rtmpAdaptor::isStarted);
+
+		VideoSink videoSink = rtmpAdaptor.createVideoSink();
+		ByteBuffer memory = ByteBuffer.allocateDirect(16 * 16 * 3 / 2);
+		WrappedNativeI420Buffer buffer = createContiguousI420Buffer(memory, 16, 16);
+		videoSink.onFrame(new VideoFrame(buffer, 0, 0));
+
+		//frame is retained before the lane task and released after it's encoded
+		verify(buffer).retain();
+		verify(buffer, timeout(5000)).release();
+		verify(recorder).recordImage(eq(16), eq(16), eq(Frame.DEPTH_UBYTE), eq(2), any(), eq(AV_PIX_FMT_YUV420P), any());
+		assertEquals(1, rtmpAdaptor.getZeroCopyFrameCount());
+		assertEquals(0, rtmpAdaptor.getFrameBufferPool().getMissCount());
+
+		rtmpAdaptor.stop();
+		Awaitility.await().atMost(5, TimeUnit.SECONDS).until(() -> rtmpAdaptor.getSignallingExecutor().isTerminated());
+
+		//frames are not retained after the lane is closed
+		WrappedNativeI420Buffer buffer2 = createContiguousI420Buffer(memory, 16, 16);
+		videoSink.onFrame(new VideoFrame(buffer2, 0, 0));
+		verify(buffer2, never()).retain();
+		verify(buffer2, never()).release();
+	}
 }
@@ -0,0 +1,86 @@
+package io.antmedia.test.webrtc.adaptor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+
+import io.antmedia.websocket.SignallingCodec;
+import io.antmedia.websocket.WebSocketConstants;
+
+/**
+ * Compares decoding ICE candidates with {@link SignallingCodec} and with parsing into JSONObject
+ * from several threads as in mass reconnects. It's not run in the test suite because timings 
+ * depend on the machine, run its main method to see the results
+ */
+public class SignallingCodecBenchmark {
+
+	private static final int THREAD_COUNT = 8;
+
+	private static final int MESSAGE_COUNT = 200000;
+
+	public static void main(String[] args) throws Exception {
+		List<String> messages = new ArrayList<>();
+		for (int i = 0; i < MESSAGE_COUNT; i++) {
+			messages.add(SignallingCodecTest.candidateMessage("stream" + (i % 100), i));
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(THREAD_COUNT);
+		try {
+			//warm up
+			measure(executor, messages, true);
+			measure(executor, messages, false);
+
+			long codecTimeNs = measure(executor, messages, true);
+			long jsonObjectTimeNs = measure(executor, messages, false);
+
+			System.out.println(MESSAGE_COUNT + " candidates decoded in " + (codecTimeNs / 1000000) + " ms with codec ("
+					+ (long)(MESSAGE_COUNT / (codecTimeNs / 1e9)) + " msg/s), in " + (jsonObjectTimeNs / 1000000) + " ms with JSONObject ("
+					+ (long)(MESSAGE_COUNT / (jsonObjectTimeNs / 1e9)) + " msg/s)");
+		}
+		finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * @return time in nanoseconds to decode all messages
+	 */
+	private static long measure(ExecutorService executor, List<String> messages, boolean codec) throws Exception {
+		long startTime = System.nanoTime();
+		List<Future<Integer>> futures = new ArrayList<>();
+		for (int t = 0; t < THREAD_COUNT; t++) {
+			final int threadIndex = t;
+			futures.add(executor.submit(() -> {
+				int count = 0;
+				JSONParser jsonParser = new JSONParser();
+				for (int i = threadIndex; i < messages.size(); i += THREAD_COUNT) {
+					if (codec) {
+						if (SignallingCodec.decode(messages.get(i)).getCandidateSdp() != null) {
+							count++;
+						}
+					}
+					else {
+						JSONObject jsonObject = (JSONObject) jsonParser.parse(messages.get(i));
+						if (jsonObject.get(WebSocketConstants.CANDIDATE_SDP) != null) {
+							count++;
+						}
+					}
+				}
+				return count;
+			}));
+		}
+		int total = 0;
+		for (Future<Integer> future : futures) {
+			total += future.get();
+		}
+		if (total != messages.size()) {
+			throw new IllegalStateException("Decoded " + total + " candidates out of " + messages.size());
+		}
+		return System.nanoTime() - startTime;
+	}
+}
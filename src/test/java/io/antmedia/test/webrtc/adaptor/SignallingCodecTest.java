@@ -0,0 +1,137 @@
+package io.antmedia.test.webrtc.adaptor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+import org.junit.Test;
+
+import io.antmedia.websocket.SignallingCodec;
+import io.antmedia.websocket.SignallingMessage;
+import io.antmedia.websocket.SignallingMessage.Command;
+import io.antmedia.websocket.WebSocketCommunityHandler;
+import io.antmedia.websocket.WebSocketConstants;
+
+public class SignallingCodecTest {
+
+	static String candidateMessage(String streamId, int index) {
+		return WebSocketCommunityHandler.getTakeCandidateJSON(index % 2, "audio" + index,
+				"candidate:" + index + " 1 udp 2122260223 192.168.1." + (index % 255) + " " + (50000 + index) + " typ host generation 0",
+				streamId).toJSONString();
+	}
+
+	@Test
+	public void testDecode() throws ParseException {
+		SignallingMessage message = SignallingCodec.decode(candidateMessage("stream1", 3));
+		assertEquals(Command.TAKE_CANDIDATE, message.getCommand());
+		assertEquals(WebSocketConstants.TAKE_CANDIDATE_COMMAND, message.getCommandName());
+		assertEquals("stream1", message.getStreamId());
+		assertEquals("audio3", message.getCandidateId());
+		assertTrue(message.getCandidateSdp().startsWith("candidate:3 "));
+		assertEquals(1L, (long)message.getCandidateLabel());
+
+		message = SignallingCodec.decode(WebSocketCommunityHandler.getSDPConfigurationJSON("v=0", "offer", "stream2").toJSONString());
+		assertEquals(Command.TAKE_CONFIGURATION, message.getCommand());
+		assertEquals("v=0", message.getSdp());
+		assertEquals("offer", message.getType());
+		assertEquals("stream2", message.getStreamId());
+
+		//unknown commands and fields are kept, nested values are skipped
+		JSONObject jsonObject = new JSONObject();
+		jsonObject.put(WebSocketConstants.COMMAND, WebSocketConstants.JOIN_ROOM_COMMAND);
+		jsonObject.put("room", "room1");
+		JSONObject nested = new JSONObject();
+		nested.put(WebSocketConstants.STREAM_ID, "nestedStream");
+		jsonObject.put("nested", nested);
+		JSONArray array = new JSONArray();
+		array.add("item");
+		jsonObject.put("array", array);
+		message = SignallingCodec.decode(jsonObject.toJSONString());
+		assertEquals(Command.OTHER, message.getCommand());
+		assertEquals(WebSocketConstants.JOIN_ROOM_COMMAND, message.getCommandName());
+		assertEquals("room1", message.get("room"));
+		assertNull(message.getStreamId());
+		assertNull(message.get("nested"));
+
+		message = SignallingCodec.decode("{\"" + WebSocketConstants.STREAM_ID + "\":\"stream1\"}");
+		assertNull(message.getCommand());
+
+		message = SignallingCodec.decode("[]");
+		assertNull(message.getCommand());
+
+		try {
+			SignallingCodec.decode("{\"command\":");
+			fail("it should throw exception");
+		}
+		catch (ParseException e) {
+			//expected
+		}
+
+		//codec should work properly after invalid message
+		assertEquals(Command.PING, SignallingCodec.decode("{\"command\":\"ping\"}").getCommand());
+	}
+
+	/**
+	 * Decodes ICE candidates from several threads as in mass reconnects
+	 * and compares the decoded fields with parsing into JSONObject
+	 */
+	@Test
+	public void testCandidateStorm() throws Exception {
+		int threadCount = 8;
+		int messageCount = 4000;
+
+		List<String> messages = new ArrayList<>();
+		for (int i = 0; i < messageCount; i++) {
+			messages.add(candidateMessage("stream" + (i % 100), i));
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+		try {
+			List<Future<Integer>> futures = new ArrayList<>();
+			for (int t = 0; t < threadCount; t++) {
+				final int threadIndex = t;
+				futures.add(executor.submit(() -> {
+					int count = 0;
+					JSONParser jsonParser = new JSONParser();
+					for (int i = threadIndex; i < messageCount; i += threadCount) {
+						SignallingMessage message = SignallingCodec.decode(messages.get(i));
+						JSONObject jsonObject = (JSONObject) jsonParser.parse(messages.get(i));
+
+						assertEquals(Command.TAKE_CANDIDATE, message.getCommand());
+						assertEquals(jsonObject.get(WebSocketConstants.COMMAND), message.getCommandName());
+						//messages should not be mixed between threads
+						assertEquals("stream" + (i % 100), message.getStreamId());
+						assertEquals(jsonObject.get(WebSocketConstants.STREAM_ID), message.getStreamId());
+						assertEquals("audio" + i, message.getCandidateId());
+						assertEquals(jsonObject.get(WebSocketConstants.CANDIDATE_ID), message.getCandidateId());
+						assertEquals(i % 2, (long)message.getCandidateLabel());
+						assertEquals(jsonObject.get(WebSocketConstants.CANDIDATE_LABEL), message.getCandidateLabel());
+						assertEquals(jsonObject.get(WebSocketConstants.CANDIDATE_SDP), message.getCandidateSdp());
+						count++;
+					}
+					return count;
+				}));
+			}
+			int total = 0;
+			for (Future<Integer> future : futures) {
+				total += future.get(60, TimeUnit.SECONDS);
+			}
+			assertEquals(messageCount, total);
+		}
+		finally {
+			executor.shutdownNow();
+		}
+	}
+}
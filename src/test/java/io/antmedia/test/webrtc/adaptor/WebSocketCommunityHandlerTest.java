@@ -26,6 +26,7 @@ import org.webrtc.IceCandidate;
 import org.webrtc.SessionDescription;
 import org.webrtc.SessionDescription.Type;
 
+import io.antmedia.AntMediaApplicationAdapter;
 import io.antmedia.AppSettings;
 import io.antmedia.webrtc.adaptor.RTMPAdaptor;
 import io.antmedia.websocket.WebSocketCommunityHandler;
@@ -255,4 +256,53 @@ public class WebSocketCommunityHandlerTest {
 		
 	}
 	
+	@Test
+	public void testInProcessIngest() {
+		String sessionId = String.valueOf((int)(Math.random()*10000));
+		when(session.getId()).thenReturn(sessionId);
+		wsHandler.onOpen(session, null);
+
+		AntMediaApplicationAdapter appAdaptor = mock(AntMediaApplicationAdapter.class);
+		when(appAdaptor.isWebRTCInProcessIngestEnabled()).thenReturn(true);
+		when(appContext.containsBean(AntMediaApplicationAdapter.BEAN_NAME)).thenReturn(true);
+		when(appContext.getBean(AntMediaApplicationAdapter.BEAN_NAME)).thenReturn(appAdaptor);
+
+		String streamId = "streamId" + (int)(Math.random()*1000);
+		RTMPAdaptor rtmpAdaptor = mock(RTMPAdaptor.class);
+		doReturn(rtmpAdaptor).when(wsHandler).getNewInProcessRTMPAdaptor(streamId, appAdaptor);
+
+		JSONObject publishObject = new JSONObject();
+		publishObject.put(WebSocketConstants.COMMAND, WebSocketConstants.PUBLISH_COMMAND);
+		publishObject.put(WebSocketConstants.STREAM_ID, streamId);
+		wsHandler.onMessage(session, publishObject.toJSONString());
+
+		verify(wsHandler, Mockito.never()).getNewRTMPAdaptor(Mockito.anyString());
+		verify(rtmpAdaptor).setStreamId(streamId);
+		verify(rtmpAdaptor).start();
+
+		//fall back to RTMP if in process recorder cannot be started
+		String streamId2 = "streamId" + (int)(Math.random()*1000) + "_2";
+		RTMPAdaptor rtmpAdaptor2 = mock(RTMPAdaptor.class);
+		doReturn(null).when(wsHandler).getNewInProcessRTMPAdaptor(streamId2, appAdaptor);
+		doReturn(rtmpAdaptor2).when(wsHandler).getNewRTMPAdaptor("rtmp://127.0.0.1/WebRTCApp/" + streamId2);
+
+		publishObject.put(WebSocketConstants.STREAM_ID, streamId2);
+		wsHandler.onMessage(session, publishObject.toJSONString());
+
+		verify(rtmpAdaptor2).setStreamId(streamId2);
+		verify(rtmpAdaptor2).start();
+
+		//disabled
+		when(appAdaptor.isWebRTCInProcessIngestEnabled()).thenReturn(false);
+		String streamId3 = "streamId" + (int)(Math.random()*1000) + "_3";
+		RTMPAdaptor rtmpAdaptor3 = mock(RTMPAdaptor.class);
+		doReturn(rtmpAdaptor3).when(wsHandler).getNewRTMPAdaptor("rtmp://127.0.0.1/WebRTCApp/" + streamId3);
+
+		publishObject.put(WebSocketConstants.STREAM_ID, streamId3);
+		wsHandler.onMessage(session, publishObject.toJSONString());
+
+		verify(wsHandler, Mockito.never()).getNewInProcessRTMPAdaptor(streamId3, appAdaptor);
+		verify(rtmpAdaptor3).start();
+	}
+
 }
@@ -0,0 +1,238 @@
+package org.red5.server.net.rtmp;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.filterchain.IoFilter.NextFilter;
+import org.apache.mina.core.session.IoSession;
+import org.apache.mina.core.write.WriteRequest;
+import org.junit.Assert;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class PooledDirectBufferAllocatorTest {
+
+    private Logger log = LoggerFactory.getLogger(PooledDirectBufferAllocatorTest.class);
+
+    @Test
+    public void testReuseFromThreadCache() {
+        PooledDirectBufferAllocator allocator = new PooledDirectBufferAllocator(65536, 1024 * 1024, 8, 0);
+        IoBuffer buffer = allocator.allocate(1000, true);
+        Assert.assertTrue(buffer.isDirect());
+        Assert.assertEquals(1000, buffer.limit());
+        Assert.assertEquals(1024, buffer.capacity());
+        buffer.putInt(12345);
+        buffer.free();
+        Assert.assertEquals(1, allocator.getReleaseCount());
+
+        // same size class is served from the cache of the thread
+        IoBuffer next = allocator.allocate(900, true);
+        Assert.assertEquals(900, next.limit());
+        Assert.assertEquals(0, next.position());
+        Assert.assertEquals(1, allocator.getThreadCacheHitCount());
+        Assert.assertEquals(1, allocator.getMissCount());
+
+        // freeing twice does not put the buffer into the pool again
+        next.free();
+        next.free();
+        Assert.assertEquals(2, allocator.getReleaseCount());
+        try {
+            next.get();
+            Assert.fail("freed buffer should not be usable");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testUnpooledBuffers() {
+        PooledDirectBufferAllocator allocator = new PooledDirectBufferAllocator(4096, 1024 * 1024, 8, 0);
+        IoBuffer heap = allocator.allocate(100, false);
+        Assert.assertFalse(heap.isDirect());
+        IoBuffer big = allocator.allocate(10000, true);
+        Assert.assertEquals(10000, big.capacity());
+        Assert.assertEquals(2, allocator.getUnpooledCount());
+
+        // wrapped and unpooled buffers stay usable after free like the simple allocator
+        IoBuffer wrapped = allocator.wrap(java.nio.ByteBuffer.wrap(new byte[] { 1, 2, 3 }));
+        wrapped.free();
+        heap.free();
+        big.free();
+        Assert.assertEquals(1, wrapped.get());
+        Assert.assertEquals(0, allocator.getReleaseCount());
+
+        // memory is given back after both the parent and the derived buffer are freed
+        IoBuffer pooled = allocator.allocate(512, true);
+        IoBuffer duplicate = pooled.duplicate();
+        duplicate.free();
+        Assert.assertEquals(0, allocator.getReleaseCount());
+        pooled.free();
+        Assert.assertEquals(1, allocator.getReleaseCount());
+    }
+
+    @Test
+    public void testFreeWhileSliceInUse() {
+        PooledDirectBufferAllocator allocator = new PooledDirectBufferAllocator(65536, 1024 * 1024, 8, 0);
+        IoBuffer buffer = allocator.allocate(1024, true);
+        for (int i = 0; i < 256; i++) {
+            buffer.putInt(i);
+        }
+        buffer.flip();
+        buffer.position(512);
+        IoBuffer slice = buffer.slice();
+        IoBuffer readOnly = slice.asReadOnlyBuffer();
+
+        // parent is freed while its views are still in use, memory should not be given to another buffer
+        buffer.free();
+        Assert.assertEquals(0, allocator.getReleaseCount());
+        IoBuffer other = allocator.allocate(1024, true);
+        Assert.assertEquals(0, allocator.getThreadCacheHitCount());
+        for (int i = 0; i < 256; i++) {
+            other.putInt(-1);
+        }
+        for (int i = 128; i < 256; i++) {
+            Assert.assertEquals(i, slice.getInt());
+            Assert.assertEquals(i, readOnly.getInt());
+        }
+
+        // memory is given back after the last view is freed
+        slice.free();
+        Assert.assertEquals(0, allocator.getReleaseCount());
+        readOnly.free();
+        Assert.assertEquals(1, allocator.getReleaseCount());
+        try {
+            slice.get();
+            Assert.fail("freed slice should not be usable");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        allocator.allocate(1024, true);
+        Assert.assertEquals(1, allocator.getThreadCacheHitCount());
+        other.free();
+    }
+
+    @Test
+    public void testExpandWhileSliceInUse() {
+        PooledDirectBufferAllocator allocator = new PooledDirectBufferAllocator(65536, 1024 * 1024, 8, 0);
+        IoBuffer buffer = allocator.allocate(256, true);
+        buffer.setAutoExpand(true);
+        buffer.putInt(12345);
+        IoBuffer duplicate = buffer.duplicate();
+        for (int i = 0; i < 100; i++) {
+            buffer.putInt(i);
+        }
+        // old memory is used by the duplicate so it's not given back
+        Assert.assertEquals(0, allocator.getReleaseCount());
+        duplicate.rewind();
+        Assert.assertEquals(12345, duplicate.getInt());
+
+        duplicate.free();
+        buffer.free();
+        Assert.assertEquals(1, allocator.getReleaseCount());
+    }
+
+    @Test
+    public void testExpandReleasesOldBuffer() {
+        PooledDirectBufferAllocator allocator = new PooledDirectBufferAllocator(65536, 1024 * 1024, 8, 0);
+        IoBuffer buffer = allocator.allocate(256, true);
+        buffer.setAutoExpand(true);
+        for (int i = 0; i < 1000; i++) {
+            buffer.putInt(i);
+        }
+        buffer.flip();
+        for (int i = 0; i < 1000; i++) {
+            Assert.assertEquals(i, buffer.getInt());
+        }
+        // 256 -> 512 -> 1024 -> 2048 -> 4096
+        Assert.assertTrue(allocator.getReleaseCount() > 0);
+        buffer.free();
+    }
+
+    @Test
+    public void testGlobalPoolBounded() throws Exception {
+        PooledDirectBufferAllocator allocator = new PooledDirectBufferAllocator(65536, 4096, 0, 0);
+        List<IoBuffer> buffers = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            buffers.add(allocator.allocate(1024, true));
+        }
+        for (IoBuffer buffer : buffers) {
+            buffer.free();
+        }
+        Assert.assertEquals(4096, allocator.getPooledBytes());
+        Assert.assertEquals(4, allocator.getDiscardCount());
+
+        // buffers freed by one thread are used by others through the global pool
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        executor.submit(() -> allocator.allocate(1024, true)).get();
+        executor.shutdown();
+        executor.awaitTermination(5, TimeUnit.SECONDS);
+        Assert.assertEquals(1, allocator.getGlobalPoolHitCount());
+        Assert.assertEquals(3072, allocator.getPooledBytes());
+    }
+
+    @Test
+    public void testLeakTracking() {
+        PooledDirectBufferAllocator allocator = new PooledDirectBufferAllocator(65536, 1024 * 1024, 8, 1);
+        for (int i = 0; i < 100; i++) {
+            // dropped without free
+            allocator.allocate(512, true);
+        }
+        long deadline = System.currentTimeMillis() + 10000;
+        while (allocator.getLeakCount() == 0 && System.currentTimeMillis() < deadline) {
+            System.gc();
+            allocator.allocate(512, true).free();
+        }
+        log.info("Leaked buffer count: {}", allocator.getLeakCount());
+        Assert.assertTrue(allocator.getLeakCount() > 0);
+    }
+
+    @Test
+    public void testReleaseFilter() throws Exception {
+        PooledDirectBufferAllocator allocator = new PooledDirectBufferAllocator(65536, 1024 * 1024, 8, 0);
+        PooledDirectBufferAllocator.BufferReleaseFilter filter = allocator.getReleaseFilter();
+        NextFilter nextFilter = mock(NextFilter.class);
+        IoSession session = mock(IoSession.class);
+
+        IoBuffer received = allocator.allocate(1024, true);
+        filter.messageReceived(nextFilter, session, received);
+        // buffer is not freed in the same event
+        Assert.assertEquals(0, allocator.getReleaseCount());
+        received.position(0);
+
+        IoBuffer written = allocator.allocate(2048, true);
+        WriteRequest writeRequest = mock(WriteRequest.class);
+        when(writeRequest.getMessage()).thenReturn(written);
+        filter.messageSent(nextFilter, session, writeRequest);
+        // previous event's buffer is freed when the next event starts
+        Assert.assertEquals(1, allocator.getReleaseCount());
+        // written buffer is still usable as mina resets its position after the sent event
+        written.position(0);
+
+        filter.messageReceived(nextFilter, session, allocator.wrap(java.nio.ByteBuffer.allocate(10)));
+        Assert.assertEquals(2, allocator.getReleaseCount());
+    }
+
+    @Test
+    public void testAllocationRate() {
+        PooledDirectBufferAllocator allocator = new PooledDirectBufferAllocator();
+        int count = 1000000;
+        long startTime = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            IoBuffer buffer = allocator.allocate(4096, true);
+            buffer.putInt(i);
+            buffer.free();
+        }
+        long pooledTime = System.nanoTime() - startTime;
+        Assert.assertEquals(1, allocator.getMissCount());
+        log.info("{} pooled direct allocations took {} ms, hit count: {}", count, pooledTime / 1000000, allocator.getHitCount());
+    }
+
+}
@@ -0,0 +1,128 @@
+package org.red5.server.net.rtmp;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+import java.util.Collections;
+import java.util.UUID;
+
+import org.apache.mina.core.service.IoService;
+import org.apache.mina.core.session.IoSession;
+import org.apache.mina.core.write.WriteRequestQueue;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.red5.server.api.scope.IBasicScope;
+import org.red5.server.net.rtmp.codec.RTMP;
+import org.springframework.context.ApplicationContext;
+
+public class RTMPConnManagerTest {
+
+    private RTMPConnManager manager;
+
+    private ApplicationContext applicationContext;
+
+    @Before
+    public void before() {
+        manager = new RTMPConnManager();
+        applicationContext = mock(ApplicationContext.class);
+        manager.setApplicationContext(applicationContext);
+    }
+
+    @After
+    public void after() throws Exception {
+        manager.destroy();
+    }
+
+    private RTMPMinaConnection createConnection(int clientId, int maxInactivity, IoSession session) {
+        RTMPMinaConnection conn = mock(RTMPMinaConnection.class, withSettings().useConstructor());
+        RTMP rtmp = new RTMP();
+        rtmp.setState(RTMP.STATE_CONNECTED);
+        String sessionId = UUID.randomUUID().toString();
+        when(conn.getSessionId()).thenReturn(sessionId);
+        when(conn.getId()).thenReturn(clientId);
+        when(conn.getState()).thenReturn(rtmp);
+        when(conn.getStateCode()).thenAnswer(invocation -> rtmp.getState());
+        when(conn.getIoSession()).thenReturn(session);
+        when(conn.getBasicScopes()).thenAnswer(invocation -> Collections.<IBasicScope> emptyIterator());
+        conn.maxInactivity = maxInactivity;
+
+        when(applicationContext.getBean(RTMPMinaConnection.class)).thenReturn(conn);
+        Assert.assertSame(conn, manager.createConnection(RTMPMinaConnection.class));
+        manager.setConnection(conn);
+        return conn;
+    }
+
+    private IoSession createSession(long lastIoTime) {
+        IoSession session = mock(IoSession.class);
+        when(session.getLastIoTime()).thenReturn(lastIoTime);
+        when(session.getWriteRequestQueue()).thenReturn(mock(WriteRequestQueue.class));
+        when(session.getService()).thenReturn(mock(IoService.class));
+        return session;
+    }
+
+    @Test
+    public void testConnectionIndex() {
+        RTMPMinaConnection conn1 = createConnection(5, 60000, createSession(System.currentTimeMillis()));
+        RTMPMinaConnection conn2 = createConnection(6, 60000, createSession(System.currentTimeMillis()));
+        Assert.assertEquals(2, manager.getConnectionCount());
+
+        Assert.assertSame(conn1, manager.getConnection(5));
+        Assert.assertSame(conn2, manager.getConnection(6));
+        Assert.assertSame(conn2, manager.getConnectionBySessionId(conn2.getSessionId()));
+        Assert.assertNull(manager.getConnection(7));
+
+        Assert.assertSame(conn1, manager.removeConnection(5));
+        Assert.assertNull(manager.getConnection(5));
+        Assert.assertNull(manager.removeConnection(5));
+
+        // removed by session id is not found by client id either
+        manager.removeConnection(conn2.getSessionId());
+        Assert.assertNull(manager.getConnection(6));
+        Assert.assertEquals(0, manager.getConnectionCount());
+    }
+
+    @Test
+    public void testReapInactiveAndGhostConnections() {
+        long now = System.currentTimeMillis();
+        IoSession activeSession = createSession(now);
+        RTMPMinaConnection inactive = createConnection(1, 2000, createSession(now));
+        RTMPMinaConnection active = createConnection(2, 2000, activeSession);
+        Assert.assertEquals(2, manager.getTrackedConnectionCount());
+
+        // nothing is checked before the deadline
+        Assert.assertEquals(0, manager.reap(now));
+        Assert.assertEquals(0, manager.getCheckedConnectionCount());
+
+        // active connection has io in the meantime
+        when(activeSession.getLastIoTime()).thenReturn(now + 2500);
+        Assert.assertEquals(2, manager.reap(now + 4000));
+        verify(inactive, times(1)).onInactive();
+        verify(active, never()).onInactive();
+        Assert.assertEquals(1, manager.getInactiveConnectionCount());
+        Assert.assertEquals(2, manager.getTrackedConnectionCount());
+
+        // inactive connection is not removed from the manager, it is found as a ghost at the next check
+        inactive.getState().setState(RTMP.STATE_DISCONNECTED);
+        manager.reap(now + 7000);
+        Assert.assertEquals(1, manager.getGhostConnectionCount());
+        Assert.assertNull(manager.getConnection(1));
+        Assert.assertSame(active, manager.getConnection(2));
+        Assert.assertEquals(1, manager.getTrackedConnectionCount());
+        // active connection is closed after its own deadline
+        verify(active, times(1)).onInactive();
+        Assert.assertEquals(2, manager.getInactiveConnectionCount());
+
+        // removed connections leave the reaper
+        manager.removeConnection(2);
+        manager.reap(now + 12000);
+        Assert.assertEquals(0, manager.getTrackedConnectionCount());
+        Assert.assertEquals(0, manager.getConnectionCount());
+    }
+
+}
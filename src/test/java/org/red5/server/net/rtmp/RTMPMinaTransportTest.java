@@ -0,0 +1,101 @@
+package org.red5.server.net.rtmp;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.mina.core.service.IoHandlerAdapter;
+import org.apache.mina.core.session.IoSession;
+import org.awaitility.Awaitility;
+import org.junit.Assert;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class RTMPMinaTransportTest {
+
+    private Logger log = LoggerFactory.getLogger(RTMPMinaTransportTest.class);
+
+    private static int getFreePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    @Test
+    public void testShardedAcceptors() throws Exception {
+        final AtomicInteger openedCount = new AtomicInteger();
+        // threads that read from the sessions
+        final Set<String> receivedThreads = ConcurrentHashMap.newKeySet();
+        final Set<String> sessionThreads = ConcurrentHashMap.newKeySet();
+        final AtomicInteger threadChanges = new AtomicInteger();
+
+        RTMPMinaTransport transport = new RTMPMinaTransport();
+        transport.setIoHandler(new IoHandlerAdapter() {
+            @Override
+            public void sessionOpened(IoSession session) throws Exception {
+                openedCount.incrementAndGet();
+            }
+
+            @Override
+            public void messageReceived(IoSession session, Object message) throws Exception {
+                String threadName = Thread.currentThread().getName();
+                Object previous = session.setAttribute("thread", threadName);
+                if (previous != null && !previous.equals(threadName)) {
+                    threadChanges.incrementAndGet();
+                }
+                receivedThreads.add(threadName);
+                sessionThreads.add(session.getId() + threadName);
+            }
+        });
+        int port = getFreePort();
+        transport.setAddress("127.0.0.1:" + port);
+        transport.setIoThreads(4);
+        transport.setAcceptorShards(2);
+        transport.setTrafficClass(-1);
+        transport.start();
+        try {
+            if (ReusePortSelectorProvider.isSupported()) {
+                Assert.assertEquals(2, transport.getAcceptorCount());
+            } else {
+                Assert.assertEquals(1, transport.getAcceptorCount());
+            }
+
+            int clientCount = 32;
+            List<Socket> sockets = new ArrayList<>();
+            for (int i = 0; i < clientCount; i++) {
+                sockets.add(new Socket("127.0.0.1", port));
+            }
+            Awaitility.await().atMost(10, TimeUnit.SECONDS).until(() -> openedCount.get() == clientCount);
+
+            for (int round = 0; round < 10; round++) {
+                for (Socket socket : sockets) {
+                    socket.getOutputStream().write(new byte[] { 1, 2, 3 });
+                    socket.getOutputStream().flush();
+                }
+                Thread.sleep(10);
+            }
+            Awaitility.await().atMost(10, TimeUnit.SECONDS).until(() -> sessionThreads.size() >= clientCount);
+            log.info("Sessions are read by {} threads", receivedThreads.size());
+
+            // each session is always read by the same processor thread
+            Assert.assertEquals(0, threadChanges.get());
+            Assert.assertEquals(clientCount, sessionThreads.size());
+            Assert.assertTrue(receivedThreads.size() > 1);
+
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+        } finally {
+            transport.stop();
+        }
+        Assert.assertEquals(0, transport.getAcceptorCount());
+    }
+
+}
@@ -0,0 +1,62 @@
+package org.red5.server.net.rtmpe;
+
+import javax.crypto.Cipher;
+
+import org.apache.mina.core.buffer.IoBuffer;
+
+/**
+ * Compares the encryption paths of {@link RTMPEIoFilter} on a single thread for the chunk sizes of publish (incoming)
+ * and play (outgoing) traffic. It's not run in the test suite because timings depend on the machine, run its main
+ * method to see the results.
+ */
+public class RTMPEIoFilterBenchmark {
+
+    private static final long TOTAL_BYTES = 256L * 1024 * 1024;
+
+    public static void main(String[] args) throws Exception {
+        for (int size : new int[] { 4096, 65536 }) {
+            for (boolean direct : new boolean[] { false, true }) {
+                IoBuffer message = IoBuffer.allocate(size, direct);
+                message.put(RTMPEIoFilterTest.randomBytes(size)).flip();
+
+                long arrayCopyTime = measureArrayCopy(message);
+                long copyTime = measureUpdate(message, false);
+                long inPlaceTime = measureUpdate(message, true);
+
+                System.out.println(size + " byte " + (direct ? "direct" : "heap") + " messages - array copy: " + throughput(arrayCopyTime)
+                        + " MB/s, copy: " + throughput(copyTime) + " MB/s, in place: " + throughput(inPlaceTime) + " MB/s");
+            }
+        }
+    }
+
+    /**
+     * Copies the message to an array and wraps the array returned by the cipher
+     */
+    private static long measureArrayCopy(IoBuffer message) throws Exception {
+        Cipher cipher = RTMPEIoFilterTest.createCipher(Cipher.ENCRYPT_MODE);
+        int count = (int) (TOTAL_BYTES / message.remaining());
+        long startTime = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            byte[] plain = new byte[message.remaining()];
+            message.get(plain);
+            message.rewind();
+            IoBuffer.wrap(cipher.update(plain));
+        }
+        return System.nanoTime() - startTime;
+    }
+
+    private static long measureUpdate(IoBuffer message, boolean inPlace) throws Exception {
+        Cipher cipher = RTMPEIoFilterTest.createCipher(Cipher.ENCRYPT_MODE);
+        int count = (int) (TOTAL_BYTES / message.remaining());
+        long startTime = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            RTMPEIoFilter.update(cipher, message, inPlace);
+        }
+        return System.nanoTime() - startTime;
+    }
+
+    private static long throughput(long timeNs) {
+        return TOTAL_BYTES / Math.max(timeNs / 1000L, 1);
+    }
+
+}
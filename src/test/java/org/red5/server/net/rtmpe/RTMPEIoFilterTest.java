@@ -0,0 +1,131 @@
+package org.red5.server.net.rtmpe;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.filterchain.IoFilter.NextFilter;
+import org.apache.mina.core.session.IoSession;
+import org.apache.mina.core.write.DefaultWriteRequest;
+import org.apache.mina.core.write.WriteRequest;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+import org.red5.server.net.rtmp.RTMPConnection;
+
+public class RTMPEIoFilterTest {
+
+    private static final byte[] KEY = "0123456789abcdef".getBytes();
+
+    static Cipher createCipher(int mode) throws Exception {
+        Cipher cipher = Cipher.getInstance("RC4");
+        cipher.init(mode, new SecretKeySpec(KEY, "RC4"));
+        return cipher;
+    }
+
+    static byte[] randomBytes(int size) {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        return data;
+    }
+
+    @Test
+    public void testInPlaceUpdate() throws Exception {
+        Cipher arrayCipher = createCipher(Cipher.ENCRYPT_MODE);
+        Cipher heapCipher = createCipher(Cipher.ENCRYPT_MODE);
+        Cipher directCipher = createCipher(Cipher.ENCRYPT_MODE);
+        for (int size : new int[] { 1, 128, 4096, 70000 }) {
+            byte[] plain = randomBytes(size);
+            byte[] expected = arrayCipher.update(plain);
+
+            for (boolean direct : new boolean[] { false, true }) {
+                // message does not start at the beginning of the buffer
+                IoBuffer message = IoBuffer.allocate(size + 10, direct);
+                message.position(10);
+                message.put(plain);
+                message.flip();
+                message.position(10);
+                IoBuffer result = RTMPEIoFilter.update(direct ? directCipher : heapCipher, message, true);
+                // direct buffers are not processed in place
+                if (direct) {
+                    Assert.assertNotSame(message, result);
+                    Assert.assertFalse(result.isDirect());
+                } else {
+                    Assert.assertSame(message, result);
+                    Assert.assertEquals(10, result.position());
+                }
+                Assert.assertEquals(10, message.position());
+                Assert.assertEquals(size, result.remaining());
+                byte[] actual = new byte[size];
+                result.get(actual);
+                Assert.assertArrayEquals(expected, actual);
+            }
+        }
+    }
+
+    @Test
+    public void testCopyUpdate() throws Exception {
+        byte[] plain = randomBytes(1000);
+        byte[] expected = createCipher(Cipher.ENCRYPT_MODE).update(plain);
+        IoBuffer message = IoBuffer.wrap(plain.clone());
+        IoBuffer result = RTMPEIoFilter.update(createCipher(Cipher.ENCRYPT_MODE), message, false);
+        Assert.assertNotSame(message, result);
+        byte[] actual = new byte[result.remaining()];
+        result.get(actual);
+        Assert.assertArrayEquals(expected, actual);
+        // message is not changed
+        Assert.assertEquals(0, message.position());
+        Assert.assertArrayEquals(plain, message.array());
+    }
+
+    @Test
+    public void testReadOnlyMessage() throws Exception {
+        byte[] plain = randomBytes(1000);
+        byte[] expected = createCipher(Cipher.ENCRYPT_MODE).update(plain);
+        IoBuffer message = IoBuffer.wrap(plain.clone()).asReadOnlyBuffer();
+        IoBuffer result = RTMPEIoFilter.update(createCipher(Cipher.ENCRYPT_MODE), message, true);
+        Assert.assertNotSame(message, result);
+        byte[] actual = new byte[result.remaining()];
+        result.get(actual);
+        Assert.assertArrayEquals(expected, actual);
+        // read-only message is not changed
+        byte[] original = new byte[message.remaining()];
+        message.get(original);
+        Assert.assertArrayEquals(plain, original);
+    }
+
+    @Test
+    public void testFilterWrite() throws Exception {
+        IoSession session = mock(IoSession.class);
+        when(session.getAttribute(RTMPConnection.RTMPE_CIPHER_OUT)).thenReturn(createCipher(Cipher.ENCRYPT_MODE));
+        NextFilter nextFilter = mock(NextFilter.class);
+        byte[] plain = randomBytes(5000);
+        IoBuffer message = IoBuffer.wrap(plain.clone());
+        WriteRequest request = new DefaultWriteRequest(message);
+        new RTMPEIoFilter().filterWrite(nextFilter, session, request);
+
+        // buffer of the caller is not changed, encrypted copy is written
+        Assert.assertEquals(0, message.position());
+        Assert.assertArrayEquals(plain, message.array());
+        ArgumentCaptor<WriteRequest> captor = ArgumentCaptor.forClass(WriteRequest.class);
+        verify(nextFilter).filterWrite(Mockito.eq(session), captor.capture());
+        Assert.assertSame(request, captor.getValue().getOriginalRequest());
+        IoBuffer encryptedMessage = (IoBuffer) captor.getValue().getMessage();
+        Assert.assertNotSame(message, encryptedMessage);
+
+        Cipher peer = createCipher(Cipher.DECRYPT_MODE);
+        byte[] encrypted = new byte[encryptedMessage.remaining()];
+        encryptedMessage.get(encrypted);
+        Assert.assertFalse(Arrays.equals(plain, encrypted));
+        Assert.assertArrayEquals(plain, peer.update(encrypted));
+    }
+
+}
@@ -0,0 +1,169 @@
+package org.red5.server.net.rtmpt;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.junit.Assert;
+import org.junit.Test;
+import org.red5.server.net.rtmp.event.VideoData;
+import org.red5.server.net.rtmp.event.VideoData.FrameType;
+import org.red5.server.net.rtmp.message.Constants;
+import org.red5.server.net.rtmp.message.Header;
+import org.red5.server.net.rtmp.message.Packet;
+import org.red5.server.net.rtmpt.codec.RTMPTProtocolEncoder;
+
+public class RTMPTConnectionTest {
+
+    private static Packet createPacket(byte dataType) {
+        Header header = new Header();
+        header.setDataType(dataType);
+        Packet packet = mock(Packet.class);
+        when(packet.getHeader()).thenReturn(header);
+        return packet;
+    }
+
+    private static Packet createVideoPacket(FrameType frameType) {
+        Packet packet = createPacket(Constants.TYPE_VIDEO_DATA);
+        VideoData video = mock(VideoData.class);
+        when(video.getFrameType()).thenReturn(frameType);
+        when(packet.getMessage()).thenReturn(video);
+        return packet;
+    }
+
+    private static RTMPTConnection createConnection() {
+        RTMPTConnection conn = new RTMPTConnection();
+        RTMPTProtocolEncoder encoder = mock(RTMPTProtocolEncoder.class);
+        when(encoder.encodePacket(any(Packet.class))).thenAnswer(invocation -> IoBuffer.wrap(new byte[] { 1, 2, 3, 4 }));
+        conn.setEncoder(encoder);
+        return conn;
+    }
+
+    @Test
+    public void testPendingMessageListener() {
+        RTMPTConnection conn = createConnection();
+        AtomicInteger notified = new AtomicInteger();
+        Runnable listener = () -> notified.incrementAndGet();
+        conn.setPendingMessageListener(listener);
+        conn.writeRaw(IoBuffer.wrap(new byte[] { 1 }));
+        Assert.assertEquals(1, notified.get());
+        // listener runs once
+        conn.writeRaw(IoBuffer.wrap(new byte[] { 2 }));
+        Assert.assertEquals(1, notified.get());
+        Assert.assertFalse(conn.removePendingMessageListener(listener));
+
+        // pending messages are gathered into one buffer
+        IoBuffer data = conn.getPendingMessages(1024);
+        Assert.assertEquals(2, data.remaining());
+        Assert.assertEquals(1, data.get());
+        Assert.assertEquals(2, data.get());
+        data.free();
+        Assert.assertNull(conn.getPendingMessages(1024));
+
+        // replaced listener is returned to be completed by the caller
+        AtomicInteger replacedNotified = new AtomicInteger();
+        Runnable replacedListener = () -> replacedNotified.incrementAndGet();
+        Assert.assertNull(conn.setPendingMessageListener(replacedListener));
+        Assert.assertSame(replacedListener, conn.setPendingMessageListener(listener));
+        Assert.assertFalse(conn.removePendingMessageListener(replacedListener));
+
+        // closing wakes up the listener
+        conn.close();
+        Assert.assertEquals(2, notified.get());
+        Assert.assertEquals(0, replacedNotified.get());
+    }
+
+    @Test
+    public void testFoldPendingMessages() {
+        RTMPTConnection conn = createConnection();
+        conn.setPooledResponseBuffers(true);
+        // bigger than the max pooled capacity of the response buffers
+        byte[] large = new byte[70000];
+        large[large.length - 1] = 5;
+        conn.writeRaw(IoBuffer.wrap(large));
+        conn.writeRaw(IoBuffer.wrap(new byte[] { 6 }));
+
+        // buffer is sized to the pending data, not to the target size
+        IoBuffer data = conn.getPendingMessages(1024);
+        Assert.assertEquals(large.length + 1, data.remaining());
+        Assert.assertEquals(large.length + 1, data.capacity());
+        Assert.assertEquals(5, data.get(large.length - 1));
+        Assert.assertEquals(6, data.get(large.length));
+        data.free();
+
+        conn.writeRaw(IoBuffer.wrap(new byte[] { 1, 2, 3 }));
+        data = conn.getPendingMessages(4096);
+        Assert.assertEquals(3, data.remaining());
+        data.free();
+
+        // pooled buffers are not used if async polling and non-blocking write are disabled
+        conn.setPooledResponseBuffers(false);
+        conn.writeRaw(IoBuffer.wrap(new byte[] { 1, 2, 3 }));
+        data = conn.getPendingMessages(4096);
+        Assert.assertEquals(3, data.remaining());
+        Assert.assertEquals(4096, data.capacity());
+        Assert.assertTrue(data.isAutoExpand());
+        data.free();
+    }
+
+    @Test
+    public void testNonBlockingWriteOnFullQueue() {
+        RTMPTConnection conn = createConnection();
+        conn.setNonBlockingWrite(true);
+        Packet video = createPacket(Constants.TYPE_VIDEO_DATA);
+        int capacity = conn.pendingOutMessages.remainingCapacity();
+        for (int i = 0; i < capacity; i++) {
+            conn.write(video);
+        }
+        Assert.assertEquals(capacity, conn.getPendingMessages());
+
+        // media is dropped without waiting for the client
+        long startTime = System.currentTimeMillis();
+        conn.write(video);
+        conn.write(createPacket(Constants.TYPE_AUDIO_DATA));
+        Assert.assertTrue(System.currentTimeMillis() - startTime < 500);
+        Assert.assertEquals(2, conn.getDroppedMessageCount());
+        Assert.assertFalse(conn.isClosing());
+
+        // other messages can't be dropped, so the connection is closed
+        conn.write(createPacket(Constants.TYPE_INVOKE));
+        Assert.assertTrue(conn.isClosing());
+        Assert.assertEquals(2, conn.getDroppedMessageCount());
+    }
+
+    @Test
+    public void testNonBlockingWriteWaitsForKeyFrame() {
+        RTMPTConnection conn = createConnection();
+        conn.setNonBlockingWrite(true);
+        int capacity = conn.pendingOutMessages.remainingCapacity();
+        for (int i = 0; i < capacity; i++) {
+            conn.write(createVideoPacket(FrameType.INTERFRAME));
+        }
+
+        // video frame is dropped because the queue is full
+        conn.write(createVideoPacket(FrameType.INTERFRAME));
+        Assert.assertEquals(1, conn.getDroppedMessageCount());
+
+        // client polls and the queue has room again
+        while (conn.getPendingMessages() > 0) {
+            conn.getPendingMessages(4096).free();
+        }
+        Assert.assertEquals(0, conn.getPendingMessages());
+
+        // inter frames are dropped until a key frame even though they fit, audio is not affected
+        conn.write(createVideoPacket(FrameType.INTERFRAME));
+        conn.write(createVideoPacket(FrameType.DISPOSABLE_INTERFRAME));
+        conn.write(createPacket(Constants.TYPE_AUDIO_DATA));
+        Assert.assertEquals(3, conn.getDroppedMessageCount());
+        Assert.assertEquals(1, conn.getPendingMessages());
+
+        conn.write(createVideoPacket(FrameType.KEYFRAME));
+        conn.write(createVideoPacket(FrameType.INTERFRAME));
+        Assert.assertEquals(3, conn.getDroppedMessageCount());
+        Assert.assertEquals(3, conn.getPendingMessages());
+    }
+
+}